@@ -0,0 +1,165 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.ik.AdvIKAnalyzer;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.search.AddressQueryBuilder;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Created by chenqining on 2018/8/10.
+ * 地址子串检索: 索引大小的代价和查询延迟的收益.
+ * 同样的数据建两个索引(都合并成一个段): plain只有原来的addr域; grams另写addr_ngram, addr_edge域. 比较三种查询:
+ * 1. wildcard: 原来的做法, QueryParser解析"*子串*"(允许前导通配符), 在addr域上遍历词典;
+ * 2. phrase: QueryParser解析"\"子串\"", addr域上的短语, 召回取决于查询和地址的分词是否一致;
+ * 3. grams: AddressQueryBuilder, addr_ngram上的2字组合短语.
+ * 查询取自随机地址的子串(3~8个字)和前缀(带*), 用String.contains/startsWith得到的匹配数作为标准答案, 报告延迟和
+ * 匹配数与标准答案一致的查询比例.
+ * 用法: AddressSearchBenchmark [索引大小] [查询数] [advik|standard]
+ */
+public class AddressSearchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int queryCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        String analyzerName = args.length > 2 ? args[2] : "advik";
+        List<JSONObject> shops = BenchData.syntheticShops(size);
+        List<String> addresses = new ArrayList<>(shops.size());
+        for (JSONObject shop : shops) {
+            addresses.add(shop.getString("address").toLowerCase(Locale.ROOT));
+        }
+
+        Random random = new Random(11);
+        List<String> queries = new ArrayList<>();
+        for (int q = 0; q < queryCount; q++) {
+            String address = addresses.get(random.nextInt(addresses.size()));
+            int length = Math.min(address.length(), 3 + random.nextInt(6));
+            if (q % 4 == 3) {
+                queries.add(address.substring(0, length) + "*");   //四分之一是前缀
+            } else {
+                int from = random.nextInt(address.length() - length + 1);
+                queries.add(address.substring(from, from + length));
+            }
+        }
+        int[] expected = new int[queries.size()];
+        for (int q = 0; q < queries.size(); q++) {
+            String query = queries.get(q);
+            boolean prefix = query.endsWith("*");
+            String body = prefix ? query.substring(0, query.length() - 1) : query;
+            for (String address : addresses) {
+                if (prefix ? address.startsWith(body) : address.contains(body)) {
+                    expected[q]++;
+                }
+            }
+        }
+
+        Path base = Files.createTempDirectory("bench-address");
+        try (Analyzer analyzer = "standard".equals(analyzerName) ? new StandardAnalyzer() : new AdvIKAnalyzer()) {
+            Path plainPath = base.resolve("plain");
+            Path gramsPath = base.resolve("grams");
+            long plainMs = build(plainPath, analyzer, shops, false);
+            long gramsMs = build(gramsPath, analyzer, shops, true);
+            long plainBytes = sizeOf(plainPath);
+            long gramsBytes = sizeOf(gramsPath);
+            System.out.println(String.format("索引大小: %d, 分析器: %s, 查询数: %d", size, analyzerName, queries.size()));
+            System.out.println(String.format("plain: %.1fMB, 建索引%dms; grams: %.1fMB (+%.0f%%), 建索引%dms (+%.0f%%)",
+                    plainBytes / 1048576.0, plainMs, gramsBytes / 1048576.0, 100.0 * (gramsBytes - plainBytes) / plainBytes,
+                    gramsMs, 100.0 * (gramsMs - plainMs) / plainMs));
+
+            try (Directory plainDir = FSDirectory.open(plainPath); DirectoryReader plainReader = DirectoryReader.open(plainDir);
+                 Directory gramsDir = FSDirectory.open(gramsPath); DirectoryReader gramsReader = DirectoryReader.open(gramsDir)) {
+                IndexSearcher plain = new IndexSearcher(plainReader);
+                IndexSearcher grams = new IndexSearcher(gramsReader);
+                System.out.println(String.format("addr词典: %d个词, addr_ngram词典: %d个词 (通配符查询的代价随词典大小增长)",
+                        MultiFields.getTerms(plainReader, ShopSchema.ADDR).size(), MultiFields.getTerms(gramsReader, ShopSchema.ADDR_NGRAM).size()));
+                QueryParser parser = new QueryParser(ShopSchema.ADDR, analyzer);
+                parser.setAllowLeadingWildcard(true);
+                List<Query> wildcard = new ArrayList<>();
+                List<Query> phrase = new ArrayList<>();
+                List<Query> gram = new ArrayList<>();
+                for (String query : queries) {
+                    boolean prefix = query.endsWith("*");
+                    String body = QueryParser.escape(prefix ? query.substring(0, query.length() - 1) : query);
+                    wildcard.add(parser.parse(prefix ? body + "*" : "*" + body + "*"));
+                    phrase.add(parser.parse("\"" + body + "\""));
+                    gram.add(AddressQueryBuilder.build(query));
+                }
+                System.out.println("查询\t平均(ms)\tp50(ms)\tp99(ms)\t匹配数正确的比例");
+                report("wildcard", plain, wildcard, expected);
+                report("phrase", plain, phrase, expected);
+                report("grams", grams, gram, expected);
+            }
+        } finally {
+            IOUtils.rm(base);
+        }
+    }
+
+    private static long build(Path path, Analyzer analyzer, List<JSONObject> shops, boolean addressGrams) throws IOException {
+        long start = System.nanoTime();
+        IndexWriterConfig config = new IndexWriterConfig(addressGrams ? ShopSchema.withAddressGrams(analyzer) : analyzer)
+                .setIndexSort(ShopSchema.INDEX_SORT)
+                .setSimilarity(ShopSchema.SIMILARITY)
+                .setRAMBufferSizeMB(64);
+        try (Directory dir = FSDirectory.open(path); IndexWriter iwriter = new IndexWriter(dir, config)) {
+            for (JSONObject shop : shops) {
+                iwriter.addDocument(ShopSchema.createDocument(shop, addressGrams));
+            }
+            iwriter.forceMerge(1);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static void report(String name, IndexSearcher searcher, List<Query> queries, int[] expected) throws IOException {
+        long[] nanos = new long[queries.size()];
+        int correct = 0;
+        for (int round = 0; round < 3; round++) {   //第一轮预热
+            for (int q = 0; q < queries.size(); q++) {
+                long start = System.nanoTime();
+                int count = searcher.count(queries.get(q));
+                nanos[q] = System.nanoTime() - start;
+                if (round == 0 && count == expected[q]) {
+                    correct++;
+                }
+            }
+        }
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double sum = 0;
+        for (long n : sorted) {
+            sum += n;
+        }
+        System.out.println(String.format("%s\t%.3f\t%.3f\t%.3f\t%.2f", name, sum / sorted.length / 1e6,
+                sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6, (double) correct / queries.size()));
+    }
+
+    private static long sizeOf(Path path) throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for (Path file : files) {
+                size += Files.size(file);
+            }
+        }
+        return size;
+    }
+}
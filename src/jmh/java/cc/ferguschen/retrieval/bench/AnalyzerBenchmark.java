@@ -0,0 +1,100 @@
+package cc.ferguschen.retrieval.bench;
+
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/7/26.
+ * AnalyzerDemo中各分析器在中文店名和地址上的吞吐.
+ * 每次调用分析一遍语料(BenchData.syntheticShops生成的店名和地址), tokens计数器给出tokens/sec, chars计数器给出字符/sec;
+ * 分配用JMH的gc profiler统计: java -jar target/benchmarks.jar AnalyzerBenchmark -prof gc, 看gc.alloc.rate.norm(每次调用分配的字节).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnalyzerBenchmark {
+
+    @Param({"standard", "whitespace", "cjk", "keyword", "stop", "simple", "smartcn", "advik"})
+    public String analyzerName;
+
+    @Param({"2000"})
+    public int shops;
+
+    private Analyzer analyzer;
+    private List<String> texts;
+    private long charsPerPass;
+
+    @Setup
+    public void setup() {
+        analyzer = BenchAnalyzers.create(analyzerName);
+        texts = new ArrayList<>();
+        for (JSONObject shop : BenchData.syntheticShops(shops)) {
+            texts.add(shop.getString("name"));
+            texts.add(shop.getString("address"));
+        }
+        for (String text : texts) {
+            charsPerPass += text.length();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        analyzer.close();
+    }
+
+    /**
+     * 每个线程分析的token数和字符数, JMH按每秒输出
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long tokens;
+        public long chars;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+            chars = 0;
+        }
+    }
+
+    @Benchmark
+    public int analyze(Counters counters) throws IOException {
+        int tokens = 0;
+        for (String text : texts) {
+            try (TokenStream ts = analyzer.tokenStream("", text)) {
+                ts.reset();
+                while (ts.incrementToken()) {
+                    tokens++;
+                }
+                ts.end();
+            }
+        }
+        counters.tokens += tokens;
+        counters.chars += charsPerPass;
+        return tokens;
+    }
+}
@@ -0,0 +1,128 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.search.BatchSearcher;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/7/31.
+ * 一批关键词的检索耗时: 逐个按searchTest的方式检索(每个关键词解析, 打分, 按排名逐条读取文档) 对比 BatchSearcher.
+ * threads=1时只体现按文档号顺序统一读取存储字段的收益, 更多线程再加上查询并行.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchSearchBenchmark {
+
+    @Param({"100"})
+    public int batchSize;
+
+    @Param({"10", "50"})
+    public int topK;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"100000"})
+    public int docs;
+
+    private static final String[] FIELDS = {"id", "name"};
+
+    private Analyzer analyzer;
+    private Path path;
+    private Directory dir;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private BatchSearcher batchSearcher;
+    private List<String> keywords;
+
+    @Setup
+    public void setup() throws IOException {
+        analyzer = new StandardAnalyzer();
+        path = Files.createTempDirectory("bench-batch");
+        dir = FSDirectory.open(path);
+        List<JSONObject> shops = BenchData.syntheticShops(docs);
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+            for (JSONObject shop : shops) {
+                iwriter.addDocument(ShopSchema.createDocument(shop));
+            }
+        }
+        reader = DirectoryReader.open(dir);
+        searcher = new IndexSearcher(reader);
+        batchSearcher = new BatchSearcher(analyzer, "name", threads);
+
+        //店名开头的2~4个字
+        Random random = new Random(42);
+        keywords = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            String name = shops.get(random.nextInt(shops.size())).getString("name");
+            keywords.add(QueryParser.escape(name.substring(0, Math.min(name.length(), 2 + random.nextInt(3)))));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        batchSearcher.close();
+        IOUtils.close(reader, dir, analyzer);
+        IOUtils.rm(path);
+    }
+
+    @Benchmark
+    public void loopSingle(Blackhole bh) throws IOException, ParseException {
+        Set<String> fieldsToLoad = new HashSet<>(Arrays.asList(FIELDS));
+        for (String keyword : keywords) {
+            ScoreDoc[] hits = searcher.search(new QueryParser("name", analyzer).parse(keyword), topK).scoreDocs;
+            for (ScoreDoc hit : hits) {
+                Document doc = searcher.doc(hit.doc, fieldsToLoad);
+                bh.consume(doc.get("name"));
+            }
+        }
+    }
+
+    @Benchmark
+    public List<BatchSearcher.KeywordResult> batch() throws IOException {
+        return batchSearcher.search(searcher, keywords, topK, FIELDS);
+    }
+}
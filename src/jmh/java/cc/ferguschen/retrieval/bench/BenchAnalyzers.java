@@ -0,0 +1,56 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.analysis.CachingAnalyzer;
+import cc.ferguschen.retrieval.ik.AdvIKAnalyzer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.cjk.CJKAnalyzer;
+import org.apache.lucene.analysis.cn.smart.SmartChineseAnalyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.SimpleAnalyzer;
+import org.apache.lucene.analysis.core.StopAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Created by chenqining on 2018/7/26.
+ * 基准测试中按名字创建AnalyzerDemo里用到的分析器, 供@Param选择.
+ */
+public class BenchAnalyzers {
+
+    private static final String CACHED_SUFFIX = "-cached";
+
+    /**
+     * @param name standard, whitespace, cjk, keyword, stop, simple, smartcn, advik; 加后缀"-cached"时用CachingAnalyzer包装(16MB)
+     * @return
+     */
+    public static Analyzer create(String name) {
+        if (name.endsWith(CACHED_SUFFIX)) {
+            String base = name.substring(0, name.length() - CACHED_SUFFIX.length());
+            IntPredicate breaks = "whitespace".equals(base) ? CachingAnalyzer.WHITESPACE_BREAKS
+                    : "keyword".equals(base) ? c -> false : CachingAnalyzer.DEFAULT_BREAKS;
+            return new CachingAnalyzer(create(base), 16L * 1024 * 1024, 32, breaks, null);
+        }
+        switch (name) {
+            case "standard":
+                return new StandardAnalyzer();
+            case "whitespace":
+                return new WhitespaceAnalyzer();
+            case "cjk":
+                return new CJKAnalyzer();
+            case "keyword":
+                return new KeywordAnalyzer();
+            case "stop":
+                return new StopAnalyzer();
+            case "simple":
+                return new SimpleAnalyzer();
+            case "smartcn":
+                return new SmartChineseAnalyzer();
+            case "advik":
+                return new AdvIKAnalyzer();
+            default:
+                throw new IllegalArgumentException("unknown analyzer: " + name);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.utils.FileUtil;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Created by chenqining on 2018/7/18.
+ * 基准测试用的数据: 从shop.json加载POI记录, 并按需复制扩充到指定条数(id依次递增, 保证唯一).
+ * 复制出的记录文本完全重复, 检索和分词的测试用{@link #syntheticShops(int)}重新组合生成记录.
+ * 用法: BenchData [条数] [输出文件], 生成JSON行格式的数据文件, 可供RetrievalDemo.bulkMakeIndex导入.
+ */
+public class BenchData {
+
+    //地址拆成 区县前缀 + 道路 + 门牌, 如 "上海市黄浦区" + "浙江南路" + "78号..."
+    private static final Pattern ADDRESS = Pattern.compile("^(.*?[区县])(.*?[路街道巷弄])(.*)$");
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Path file = Paths.get(args.length > 1 ? args[1] : "shop-" + size + ".json");
+        writeJsonLines(syntheticShops(size), file);
+        System.out.println(String.format("生成%d条记录: %s", size, file.toAbsolutePath()));
+    }
+
+    /**
+     * 加载shop.json中的原始记录
+     * @return
+     */
+    public static List<JSONObject> loadShops(){
+        JSONArray dataList = FileUtil.loadJSONArray(FileUtil.loadResource("shop.json"));
+        List<JSONObject> result = new ArrayList<>();
+        if (dataList == null){
+            return result;
+        }
+        for (int i = 0; i < dataList.size(); i++){
+            result.add(dataList.getJSONObject(i));
+        }
+        return result;
+    }
+
+    /**
+     * 将shop.json的记录循环复制到size条, 复制出的记录id重新编号.
+     * @param size 目标条数
+     * @return
+     */
+    public static List<JSONObject> scaleShops(int size){
+        return scaleShops(size, 0);
+    }
+
+    /**
+     * 将shop.json的记录循环复制到size条, 复制出的记录id重新编号, 经纬度随机偏移, 模拟POI在城市中的分布.
+     * @param size 目标条数
+     * @param jitterDegrees 经纬度的最大随机偏移(度), 0表示不偏移
+     * @return
+     */
+    public static List<JSONObject> scaleShops(int size, double jitterDegrees){
+        Random random = new Random(42);   //固定种子, 保证每次生成的数据相同
+        List<JSONObject> seeds = loadShops();
+        List<JSONObject> result = new ArrayList<>(size);
+        if (seeds.isEmpty()){
+            return result;
+        }
+        for (int i = 0; i < size; i++){
+            JSONObject seed = seeds.get(i % seeds.size());
+            JSONObject copy = (JSONObject) seed.clone();
+            copy.put("id", i + 1);
+            if (jitterDegrees > 0 && i >= seeds.size()){
+                copy.put("latitude", seed.getDoubleValue("latitude") + (random.nextDouble() * 2 - 1) * jitterDegrees);
+                copy.put("longitude", seed.getDoubleValue("longitude") + (random.nextDouble() * 2 - 1) * jitterDegrees);
+            }
+            result.add(copy);
+        }
+        return result;
+    }
+
+    /**
+     * 由shop.json的记录重新组合出size条记录:
+     * 店名 = 原店名(去掉分店说明) + 随机道路的分店, 地址 = 随机区县 + 随机道路 + 随机门牌, 经纬度在原记录附近随机偏移,
+     * 热度(popularity)为1~10万的长尾分布.
+     * 词汇和shop.json一致, 但组合很少重复, 分词, 建索引和检索的负载比简单复制更接近真实数据.
+     * @param size 目标条数
+     * @return
+     */
+    public static List<JSONObject> syntheticShops(int size){
+        Random random = new Random(42);   //固定种子, 保证每次生成的数据相同
+        Random popularityRandom = new Random(7);   //热度单独取随机数, 不改变其他字段的生成序列
+        List<JSONObject> seeds = loadShops();
+        List<JSONObject> result = new ArrayList<>(size);
+        if (seeds.isEmpty()){
+            return result;
+        }
+        List<String> brands = new ArrayList<>();
+        Set<String> districts = new LinkedHashSet<>();
+        Set<String> roads = new LinkedHashSet<>();
+        for (JSONObject seed : seeds){
+            String name = seed.getString("name");
+            int paren = name.indexOf('(');
+            brands.add(paren > 0 ? name.substring(0, paren) : name);
+            Matcher m = ADDRESS.matcher(seed.getString("address"));
+            if (m.matches()){
+                districts.add(m.group(1));
+                roads.add(m.group(2));
+            }
+        }
+        List<String> districtList = new ArrayList<>(districts);
+        List<String> roadList = new ArrayList<>(roads);
+        if (districtList.isEmpty() || roadList.isEmpty()){
+            return scaleShops(size, 0.05);
+        }
+        for (int i = 0; i < size; i++){
+            JSONObject seed = seeds.get(random.nextInt(seeds.size()));
+            String road = roadList.get(random.nextInt(roadList.size()));
+            JSONObject shop = new JSONObject();
+            shop.put("id", i + 1);
+            shop.put("name", brands.get(random.nextInt(brands.size())) + "(" + road + (i / roadList.size() + 1) + "店)");
+            shop.put("address", districtList.get(random.nextInt(districtList.size())) + road + (1 + random.nextInt(999)) + "号");
+            shop.put("latitude", seed.getDoubleValue("latitude") + (random.nextDouble() * 2 - 1) * 0.05);
+            shop.put("longitude", seed.getDoubleValue("longitude") + (random.nextDouble() * 2 - 1) * 0.05);
+            shop.put("popularity", (long) Math.pow(100000, popularityRandom.nextDouble()));   //长尾分布: 多数很小, 少数很大
+            result.add(shop);
+        }
+        return result;
+    }
+
+    /**
+     * 按JSON行格式(每行一条记录)写入文件
+     * @param shops
+     * @param file
+     * @throws IOException
+     */
+    public static void writeJsonLines(List<JSONObject> shops, Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)){
+            for (JSONObject shop : shops){
+                writer.write(shop.toJSONString());
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.BulkIndexer;
+import cc.ferguschen.retrieval.index.IndexGenerations;
+import cc.ferguschen.retrieval.metrics.LatencyHistogram;
+import cc.ferguschen.retrieval.search.FieldLoader;
+import cc.ferguschen.retrieval.search.KeywordQueryBuilder;
+import cc.ferguschen.retrieval.search.QueryWarmer;
+import cc.ferguschen.retrieval.search.SwitchingSearcherManager;
+import cc.ferguschen.retrieval.utils.JsonLineReader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by chenqining on 2018/8/15.
+ * 蓝绿重建对线上查询的影响: 查询线程按固定速率检索, 主线程在新目录里全量重建(合并到指定段数), 再切换过去.
+ * 按阶段分别统计查询延迟和失败数:
+ * 0. warmup: 查询线程刚启动, JIT尚未编译, 不输出;
+ * 1. idle: 重建前;
+ * 2. rebuild: 新目录建索引和合并期间, 查询仍用旧目录, 和建索引争CPU和磁盘;
+ * 3. swap: switchTo期间(打开新目录, 预热, 替换), 查询不等待切换;
+ * 4. after: 切换后, 新目录刚预热过.
+ * 新数据比旧数据多1%的记录, 切换后检查文档数和旧目录是否已删除.
+ * 用法: BlueGreenBenchmark [条数] [查询线程数] [每个线程的qps] [建索引线程数] [合并到的段数]
+ */
+public class BlueGreenBenchmark {
+    private static final String[] PHASES = {"warmup", "idle", "rebuild", "swap", "after"};
+
+    private static volatile int phase = 0;
+    private static volatile boolean stop = false;
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+        int queryThreads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int qps = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int indexThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int maxSegments = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+        Path base = Files.createTempDirectory("bench-bluegreen");
+        IndexGenerations generations = new IndexGenerations(base.resolve("data"));
+        LatencyHistogram[] latencies = new LatencyHistogram[PHASES.length];
+        AtomicLong[] failures = new AtomicLong[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            failures[i] = new AtomicLong();
+        }
+        List<Thread> threads = new ArrayList<>();
+        SwitchingSearcherManager manager = null;
+        try (StandardAnalyzer analyzer = new StandardAnalyzer()) {
+            List<JSONObject> shops = BenchData.syntheticShops(size + size / 100);
+            Path day1 = base.resolve("day1.json");
+            Path day2 = base.resolve("day2.json");
+            BenchData.writeJsonLines(shops.subList(0, size), day1);
+            BenchData.writeJsonLines(shops, day2);
+            List<String> keywords = new ArrayList<>();
+            Random random = new Random(42);
+            for (int i = 0; i < 500; i++) {
+                String name = shops.get(random.nextInt(shops.size())).getString("name");
+                keywords.add(name.substring(0, Math.min(name.length(), 2 + random.nextInt(3))));
+            }
+
+            //第0代
+            Path current = generations.current();
+            try (Directory dir = new MMapDirectory(current); JsonLineReader reader = JsonLineReader.map(day1, true)) {
+                new BulkIndexer().setThreads(indexThreads).setForceMergeSegments(maxSegments).index(dir, analyzer, reader);
+            }
+            KeywordQueryBuilder queryBuilder = new KeywordQueryBuilder(analyzer, "name");
+            QueryWarmer warmer = new QueryWarmer(200, 10, queryBuilder::build, "id", "name");
+            keywords.forEach(warmer::record);
+            manager = new SwitchingSearcherManager(new MMapDirectory(current), warmer.wrap(new SearcherFactory()));
+
+            SwitchingSearcherManager searchers = manager;
+            AtomicInteger seed = new AtomicInteger();
+            for (int t = 0; t < queryThreads; t++) {
+                Thread thread = new Thread(() -> query(searchers, queryBuilder, keywords, qps, seed.incrementAndGet(),
+                        latencies, failures), "query-" + t);
+                thread.start();
+                threads.add(thread);
+            }
+
+            Thread.sleep(3000);
+            phase = 1;
+            Thread.sleep(3000);
+            phase = 2;
+            long start = System.nanoTime();
+            Path next = generations.next();
+            long docs;
+            try (Directory dir = new MMapDirectory(next); JsonLineReader reader = JsonLineReader.map(day2, true)) {
+                docs = new BulkIndexer().setThreads(indexThreads).setForceMergeSegments(maxSegments).index(dir, analyzer, reader);
+            }
+            double rebuildSeconds = (System.nanoTime() - start) / 1e9;
+            generations.publish(next);
+
+            phase = 3;
+            start = System.nanoTime();
+            AtomicLong retiredAt = new AtomicLong();
+            manager.switchTo(new MMapDirectory(next), oldDir -> {
+                oldDir.close();
+                IndexGenerations.delete(current);
+                retiredAt.set(System.nanoTime());
+            });
+            long swapNanos = System.nanoTime() - start;
+            phase = 4;
+            Thread.sleep(3000);
+            stop = true;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            System.out.println(String.format("记录数: %d -> %d, 查询线程: %d x %dqps, 建索引线程: %d, 合并到%d段",
+                    size, docs, queryThreads, qps, indexThreads, maxSegments));
+            System.out.println(String.format("重建: %.2fs, 切换(含预热%d个查询): %.1fms, 旧目录在切换开始后%.1fms删除",
+                    rebuildSeconds, warmer.getLastWarmQueries(), swapNanos / 1e6,
+                    retiredAt.get() == 0 ? -1 : (retiredAt.get() - start) / 1e6));
+            IndexSearcher searcher = manager.acquire();
+            try {
+                System.out.println(String.format("切换后: 文档数%d, 段数%d, 旧目录%s, 指针指向%s", searcher.getIndexReader().numDocs(),
+                        searcher.getIndexReader().leaves().size(), Files.exists(current) ? "仍存在" : "已删除",
+                        generations.current().getFileName()));
+            } finally {
+                manager.release(searcher);
+            }
+            System.out.println("阶段\t查询数\t失败\tp50(ms)\tp99(ms)\tp999(ms)\tmax(ms)");
+            for (int i = 1; i < PHASES.length; i++) {
+                LatencyHistogram.Snapshot s = latencies[i].snapshot();
+                System.out.println(String.format("%s\t%d\t%d\t%.3f\t%.3f\t%.3f\t%.3f", PHASES[i], s.getCount(), failures[i].get(),
+                        s.getP50Ms(), s.getP99Ms(), s.getP999Ms(), s.getMaxMs()));
+            }
+        } finally {
+            stop = true;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (manager != null) {
+                Directory dir = manager.getDirectory();
+                manager.close();
+                dir.close();
+            }
+            IOUtils.rm(base);
+        }
+    }
+
+    /**
+     * 按固定速率查询: 每隔1/qps秒发起一次, 延迟从计划的发起时间算起, 查询变慢时积压的等待也计入(避免协调遗漏)
+     */
+    private static void query(SwitchingSearcherManager manager, KeywordQueryBuilder queryBuilder, List<String> keywords,
+                              int qps, int seed, LatencyHistogram[] latencies, AtomicLong[] failures) {
+        Random random = new Random(seed);
+        long interval = 1000000000L / qps;
+        long next = System.nanoTime();
+        while (!stop) {
+            long now = System.nanoTime();
+            if (now < next) {
+                try {
+                    Thread.sleep((next - now) / 1000000, (int) ((next - now) % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            int current = phase;
+            try {
+                IndexSearcher searcher = manager.acquire();
+                try {
+                    ScoreDoc[] hits = searcher.search(queryBuilder.build(keywords.get(random.nextInt(keywords.size()))), 10).scoreDocs;
+                    int[] docs = new int[hits.length];
+                    for (int i = 0; i < hits.length; i++) {
+                        docs[i] = hits[i].doc;
+                    }
+                    FieldLoader.load(searcher.getIndexReader(), docs, "id", "name");
+                } finally {
+                    manager.release(searcher);
+                }
+                latencies[current].record(System.nanoTime() - next);
+            } catch (IOException | RuntimeException e) {
+                failures[current].incrementAndGet();
+            }
+            next += interval;
+        }
+    }
+}
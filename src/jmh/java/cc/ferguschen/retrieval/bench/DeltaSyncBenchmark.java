@@ -0,0 +1,162 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.BulkIndexer;
+import cc.ferguschen.retrieval.index.ContentHashStore;
+import cc.ferguschen.retrieval.index.DeltaIndexer;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.utils.JsonLineReader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Created by chenqining on 2018/8/14.
+ * 增量同步 对比 全量重建: 先全量建索引并记录状态, 再生成变化了一定比例的新数据(一半修改, 1/4删除, 1/4新增),
+ * 分别用DeltaIndexer增量同步和BulkIndexer全量重建, 报告耗时, 并逐条比较两个索引的存储字段确认结果相同.
+ * 另外报告没有变化时的同步耗时(只有读数据和算哈希), 以及状态表每条记录的内存.
+ * 用法: DeltaSyncBenchmark [条数] [变化比例] [全量重建的线程数]
+ */
+public class DeltaSyncBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        double ratio = args.length > 1 ? Double.parseDouble(args[1]) : 0.02;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        Path base = Files.createTempDirectory("bench-delta");
+        try (StandardAnalyzer analyzer = new StandardAnalyzer()) {
+            List<JSONObject> shops = BenchData.syntheticShops(size);
+            Path dump1 = base.resolve("day1.json");
+            BenchData.writeJsonLines(shops, dump1);
+            List<JSONObject> changed = mutate(shops, ratio, new Random(99));
+            Path dump2 = base.resolve("day2.json");
+            BenchData.writeJsonLines(changed, dump2);
+            System.out.println(String.format("记录数: %d -> %d, 变化比例: %.1f%%", size, changed.size(), ratio * 100));
+
+            //第一天: 全量建索引, 记录状态
+            Path deltaPath = base.resolve("idx-delta");
+            DeltaIndexer deltaIndexer = new DeltaIndexer(base.resolve("state.bin"));
+            long start = System.nanoTime();
+            try (Directory dir = FSDirectory.open(deltaPath); JsonLineReader reader = JsonLineReader.map(dump1, true)) {
+                new BulkIndexer().setThreads(threads).index(dir, analyzer, reader);
+            }
+            System.out.println(String.format("全量建索引(第一天): %.2fs", (System.nanoTime() - start) / 1e9));
+            start = System.nanoTime();
+            try (JsonLineReader reader = JsonLineReader.map(dump1, true)) {
+                deltaIndexer.record(reader);
+            }
+            ContentHashStore state = ContentHashStore.load(base.resolve("state.bin"));
+            System.out.println(String.format("记录状态: %.2fs, 状态文件%.1fMB, 内存%.1fMB(每条%.1f字节)",
+                    (System.nanoTime() - start) / 1e9, Files.size(base.resolve("state.bin")) / 1048576.0,
+                    state.ramBytesUsed() / 1048576.0, (double) state.ramBytesUsed() / state.size()));
+
+            //第二天: 增量同步
+            start = System.nanoTime();
+            try (Directory dir = FSDirectory.open(deltaPath);
+                 IndexWriter iwriter = new IndexWriter(dir, appendConfig(analyzer));
+                 JsonLineReader reader = JsonLineReader.map(dump2, true)) {
+                deltaIndexer.sync(iwriter, reader);
+            }
+            System.out.println(String.format("增量同步: %.2fs, %s", (System.nanoTime() - start) / 1e9, deltaIndexer));
+
+            start = System.nanoTime();
+            try (Directory dir = FSDirectory.open(deltaPath);
+                 IndexWriter iwriter = new IndexWriter(dir, appendConfig(analyzer));
+                 JsonLineReader reader = JsonLineReader.map(dump2, true)) {
+                deltaIndexer.sync(iwriter, reader);
+            }
+            System.out.println(String.format("无变化的同步: %.2fs, %s", (System.nanoTime() - start) / 1e9, deltaIndexer));
+
+            //第二天: 全量重建
+            Path fullPath = base.resolve("idx-full");
+            start = System.nanoTime();
+            try (Directory dir = FSDirectory.open(fullPath); JsonLineReader reader = JsonLineReader.map(dump2, true)) {
+                new BulkIndexer().setThreads(threads).index(dir, analyzer, reader);
+            }
+            System.out.println(String.format("全量重建: %.2fs", (System.nanoTime() - start) / 1e9));
+
+            Map<String, String> deltaDocs = storedFields(deltaPath);
+            Map<String, String> fullDocs = storedFields(fullPath);
+            System.out.println(String.format("文档数: 增量%d, 全量%d, 内容%s", deltaDocs.size(), fullDocs.size(),
+                    deltaDocs.equals(fullDocs) ? "相同" : "不同!"));
+        } finally {
+            IOUtils.rm(base);
+        }
+    }
+
+    private static IndexWriterConfig appendConfig(StandardAnalyzer analyzer) {
+        return new BulkIndexer().setOpenMode(IndexWriterConfig.OpenMode.APPEND).newConfig(analyzer);
+    }
+
+    /**
+     * 按比例修改记录: 一半改热度和店名, 1/4删除, 再新增1/4(复制随机记录, 新id)
+     */
+    private static List<JSONObject> mutate(List<JSONObject> shops, double ratio, Random random) {
+        List<JSONObject> result = new ArrayList<>(shops.size());
+        for (JSONObject shop : shops) {
+            double r = random.nextDouble();
+            if (r < ratio / 4) {
+                continue;
+            }
+            if (r < ratio * 3 / 4) {
+                JSONObject copy = (JSONObject) shop.clone();
+                copy.put("popularity", copy.getLongValue("popularity") + 1);
+                if (random.nextBoolean()) {
+                    copy.put("name", copy.getString("name") + "(新店)");
+                }
+                result.add(copy);
+            } else {
+                result.add(shop);
+            }
+        }
+        int inserts = (int) (shops.size() * ratio / 4);
+        for (int i = 0; i < inserts; i++) {
+            JSONObject copy = (JSONObject) shops.get(random.nextInt(shops.size())).clone();
+            copy.put("id", shops.size() + i + 1);
+            result.add(copy);
+        }
+        return result;
+    }
+
+    /**
+     * @return id -> 存储的店名和经纬度
+     */
+    private static Map<String, String> storedFields(Path path) throws IOException {
+        Map<String, String> result = new HashMap<>();
+        try (Directory dir = FSDirectory.open(path); DirectoryReader reader = DirectoryReader.open(dir)) {
+            for (LeafReaderContext context : reader.leaves()) {
+                LeafReader leaf = context.reader();
+                Bits liveDocs = leaf.getLiveDocs();
+                for (int i = 0; i < leaf.maxDoc(); i++) {
+                    if (liveDocs != null && !liveDocs.get(i)) {
+                        continue;
+                    }
+                    Document doc = leaf.document(i);
+                    String old = result.put(doc.get(ShopSchema.ID),
+                            doc.get(ShopSchema.NAME) + "|" + doc.get(ShopSchema.LATITUDE) + "|" + doc.get(ShopSchema.LONGITUDE));
+                    if (old != null) {
+                        result.put(doc.get(ShopSchema.ID), "duplicate");
+                    }
+                }
+            }
+        }
+        return result;
+    }
+}
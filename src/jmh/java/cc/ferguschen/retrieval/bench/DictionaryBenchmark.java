@@ -0,0 +1,183 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.ik.AdvIKAnalyzer;
+import cc.ferguschen.retrieval.ik.AdvIKTokenizer;
+import cc.ferguschen.retrieval.ik.CompactDictionary;
+import cc.ferguschen.retrieval.ik.DictionaryManager;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.IOUtils;
+import org.wltea.analyzer.dic.Dictionary;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Created by chenqining on 2018/7/25.
+ * 扩展词典的内存占用和查询吞吐: 对比CompactDictionary(FST)和IK自带的词典(DictSegment), 并演示热加载.
+ * 词条由shop.json中出现过的汉字随机组成(长度2~8), 前缀共享比真实POI名称少, 对FST是偏保守的估计.
+ * 用法: DictionaryBenchmark [词条数]
+ */
+public class DictionaryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        List<String> words = randomWords(size);
+
+        long start = System.nanoTime();
+        CompactDictionary dictionary = CompactDictionary.build(words);
+        System.out.println(String.format("FST: build %d words %.1fms, %.1fMB heap (%.1f bytes/word)",
+                dictionary.size(), (System.nanoTime() - start) / 1e6,
+                dictionary.ramBytesUsed() / 1048576.0, (double) dictionary.ramBytesUsed() / dictionary.size()));
+
+        Path dir = Files.createTempDirectory("bench-dict");
+        try {
+            Path fstFile = dir.resolve("poi.fst");
+            dictionary.save(fstFile);
+            start = System.nanoTime();
+            CompactDictionary loaded = CompactDictionary.load(fstFile);
+            System.out.println(String.format("FST: file %.1fMB, load %.1fms",
+                    Files.size(fstFile) / 1048576.0, (System.nanoTime() - start) / 1e6));
+
+            lookup("FST", loaded, words);
+            ikHeap(words);
+            hotReload(dir);
+        } finally {
+            IOUtils.rm(dir);
+        }
+    }
+
+    /**
+     * 由shop.json中出现的汉字随机组成的不重复词条
+     */
+    private static List<String> randomWords(int size) {
+        Set<Character> chars = new LinkedHashSet<>();
+        for (JSONObject shop : BenchData.loadShops()) {
+            for (char c : (shop.getString("name") + shop.getString("address")).toCharArray()) {
+                if (Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN) {
+                    chars.add(c);
+                }
+            }
+        }
+        Character[] alphabet = chars.toArray(new Character[0]);
+        Random random = new Random(42);
+        Set<String> words = new LinkedHashSet<>(size * 2);
+        StringBuilder sb = new StringBuilder();
+        while (words.size() < size) {
+            sb.setLength(0);
+            int len = 2 + random.nextInt(7);
+            for (int i = 0; i < len; i++) {
+                sb.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            words.add(sb.toString());
+        }
+        return new ArrayList<>(words);
+    }
+
+    private static void lookup(String label, CompactDictionary dictionary, List<String> words) {
+        List<String> queries = new ArrayList<>(words.subList(0, Math.min(200000, words.size())));
+        Collections.shuffle(queries, new Random(7));
+        CompactDictionary.Matcher matcher = dictionary.matcher();
+        for (int round = 0; round < 3; round++) {
+            long hits = 0;
+            long start = System.nanoTime();
+            for (String query : queries) {
+                matcher.start();
+                if (matcher.accept(query) && matcher.isWord()) {
+                    hits++;
+                }
+                //把最后一个字换掉, 一般查不到
+                matcher.start();
+                if (matcher.accept(query.subSequence(0, query.length() - 1)) && matcher.accept('乙') && matcher.isWord()) {
+                    hits++;
+                }
+            }
+            double sec = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%s: %.0f lookups/sec (%d hits of %d)", label, queries.size() * 2 / sec, hits, queries.size() * 2));
+        }
+    }
+
+    /**
+     * 把同样的词条加进IK自带的词典, 用GC后的堆增量估计其占用
+     */
+    private static void ikHeap(List<String> words) {
+        Dictionary ik = Dictionary.initial(AdvIKTokenizer.getConfig(true));   //先加载IK的主词典, 只统计新增词条的占用
+        long before = usedHeap();
+        ik.addWords(words);
+        long after = usedHeap();
+        System.out.println(String.format("IK DictSegment: %.1fMB heap (%.1f bytes/word)",
+                (after - before) / 1048576.0, (double) (after - before) / words.size()));
+
+        char[][] queries = new char[Math.min(200000, words.size())][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = words.get(i).toCharArray();
+        }
+        for (int round = 0; round < 3; round++) {
+            long hits = 0;
+            long start = System.nanoTime();
+            for (char[] query : queries) {
+                if (ik.matchInMainDict(query).isMatch()) {
+                    hits++;
+                }
+            }
+            double sec = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("IK DictSegment: %.0f lookups/sec (%d hits of %d)", queries.length / sec, hits, queries.length));
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 替换词典文件后, 新文档的分词结果随之改变
+     */
+    private static void hotReload(Path dir) throws IOException, InterruptedException {
+        Path dic = dir.resolve("poi.dic");
+        Files.write(dic, Arrays.asList("星巴克"), StandardCharsets.UTF_8);
+        String text = "星巴克臻选烘焙工坊";
+        try (DictionaryManager manager = new DictionaryManager(Collections.singletonList(dic), 200);
+             Analyzer analyzer = new AdvIKAnalyzer(true, manager)) {
+            System.out.println("before reload: " + analyze(analyzer, text));
+            //先写临时文件再改名, 后台线程不会读到写了一半的文件
+            Path tmp = dir.resolve("poi.dic.tmp");
+            Files.write(tmp, Arrays.asList("星巴克", "星巴克臻选", "烘焙工坊"), StandardCharsets.UTF_8);
+            Files.move(tmp, dic, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (manager.getReloadCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            System.out.println(String.format("after reload (%d loads, last %dms): %s",
+                    manager.getReloadCount(), manager.getLastReloadMs(), analyze(analyzer, text)));
+        }
+    }
+
+    private static String analyze(Analyzer analyzer, String text) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try (TokenStream ts = analyzer.tokenStream("", text)) {
+            CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+            ts.reset();
+            while (ts.incrementToken()) {
+                sb.append(term).append('|');
+            }
+            ts.end();
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,144 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.search.FieldLoader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/8/1.
+ * 取回一页命中结果(id, name)的开销: 按排名逐个加载存储文档 / 按文档号升序加载存储文档 / 按列读取DocValues.
+ * 命中文档号在整个索引中随机抽取, 和真实查询的排名顺序一样是跳跃的. hits计数器为每秒取回的结果条数, 1/hits即单条结果的开销.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FetchBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int topK;
+
+    @Param({"100000"})
+    public int docs;
+
+    private static final String[] FIELDS = {ShopSchema.ID, ShopSchema.NAME};
+
+    private Path path;
+    private Directory dir;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private int[][] pages;
+    private int next;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long hits;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        path = Files.createTempDirectory("bench-fetch");
+        dir = FSDirectory.open(path);
+        List<JSONObject> shops = BenchData.syntheticShops(docs);
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+            for (JSONObject shop : shops) {
+                iwriter.addDocument(ShopSchema.createDocument(shop));
+            }
+        }
+        reader = DirectoryReader.open(dir);
+        searcher = new IndexSearcher(reader);
+
+        Random random = new Random(42);
+        pages = new int[64][];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = new int[Math.min(topK, reader.maxDoc())];
+            for (int j = 0; j < pages[i].length; j++) {
+                pages[i][j] = random.nextInt(reader.maxDoc());
+            }
+        }
+        System.out.println(reader.leaves().size() + " segments, doc values for " + Arrays.toString(FIELDS) + ": "
+                + FieldLoader.hasDocValues(reader, FIELDS));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        IOUtils.close(reader, dir);
+        IOUtils.rm(path);
+    }
+
+    private int[] nextPage() {
+        next = (next + 1) % pages.length;
+        return pages[next];
+    }
+
+    @Benchmark
+    public void storedByRank(Counters counters, Blackhole bh) throws IOException {
+        Set<String> fieldsToLoad = new HashSet<>(Arrays.asList(FIELDS));
+        int[] page = nextPage();
+        for (int doc : page) {
+            Document document = searcher.doc(doc, fieldsToLoad);
+            bh.consume(document.get(ShopSchema.ID));
+            bh.consume(document.get(ShopSchema.NAME));
+        }
+        counters.hits += page.length;
+    }
+
+    @Benchmark
+    public Map<Integer, Map<String, String>> storedByDocId(Counters counters) throws IOException {
+        int[] page = nextPage();
+        counters.hits += page.length;
+        return FieldLoader.loadStored(reader, page, FIELDS);
+    }
+
+    @Benchmark
+    public Map<Integer, Map<String, String>> docValues(Counters counters) throws IOException {
+        int[] page = nextPage();
+        counters.hits += page.length;
+        return FieldLoader.loadDocValues(reader, page, FIELDS);
+    }
+}
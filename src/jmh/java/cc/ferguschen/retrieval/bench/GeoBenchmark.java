@@ -0,0 +1,111 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.spatial.GeoSearcher;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Created by chenqining on 2018/7/22.
+ * 附近检索的延迟随半径和索引大小的变化.
+ * 对比两种做法:
+ * 1. index: GeoSearcher.nearby, 在索引中做距离过滤并按距离取topK;
+ * 2. post-filter: 原来的做法, 先取回所有匹配关键词的文档, 在应用层计算距离, 过滤并排序.
+ * 用法: GeoBenchmark [索引大小,...] [半径(米),...] [查询次数]
+ */
+public class GeoBenchmark {
+    private static final double CENTER_LAT = 31.23;
+    private static final double CENTER_LON = 121.47;
+    private static final int TOP_K = 20;
+    private static final Set<String> LOCATION_FIELDS = new HashSet<>(Arrays.asList(ShopSchema.LATITUDE, ShopSchema.LONGITUDE));
+
+    private static Directory buildIndex(int size) throws IOException {
+        Directory dir = new RAMDirectory();
+        try (IndexWriter iwriter = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            for (JSONObject shop : BenchData.scaleShops(size, 0.3)) {
+                iwriter.addDocument(ShopSchema.createDocument(shop));
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * 应用层过滤: 取回所有匹配的文档, 计算距离后过滤排序
+     */
+    private static int postFilter(IndexSearcher isearcher, Query textQuery, double lat, double lon, double radius) throws IOException {
+        ScoreDoc[] all = isearcher.search(textQuery, Math.max(1, isearcher.getIndexReader().maxDoc())).scoreDocs;
+        List<double[]> matched = new ArrayList<>();
+        for (ScoreDoc scoreDoc : all) {
+            Document doc = isearcher.doc(scoreDoc.doc, LOCATION_FIELDS);
+            double distance = GeoSearcher.distanceMeters(lat, lon,
+                    doc.getField(ShopSchema.LATITUDE).numericValue().doubleValue(),
+                    doc.getField(ShopSchema.LONGITUDE).numericValue().doubleValue());
+            if (distance <= radius) {
+                matched.add(new double[]{scoreDoc.doc, distance});
+            }
+        }
+        matched.sort((a, b) -> Double.compare(a[1], b[1]));
+        return Math.min(TOP_K, matched.size());
+    }
+
+    private static String percentiles(long[] nanos) {
+        Arrays.sort(nanos);
+        double sum = 0;
+        for (long n : nanos) {
+            sum += n;
+        }
+        return String.format("avg %.3fms p50 %.3fms p99 %.3fms", sum / nanos.length / 1e6,
+                nanos[nanos.length / 2] / 1e6, nanos[(int) (nanos.length * 0.99)] / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0 ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray() : new int[]{10000, 100000, 500000};
+        double[] radii = args.length > 1 ? Arrays.stream(args[1].split(",")).mapToDouble(Double::parseDouble).toArray() : new double[]{500, 2000, 10000, 50000};
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        Query textQuery = new TermQuery(new Term(ShopSchema.NAME, "店"));   //StandardAnalyzer按字切分中文
+
+        for (int size : sizes) {
+            try (Directory dir = buildIndex(size); DirectoryReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher isearcher = new IndexSearcher(reader);
+                for (double radius : radii) {
+                    Random random = new Random(7);
+                    long[] indexNanos = new long[queries];
+                    long[] postNanos = new long[queries];
+                    long found = 0;
+                    for (int q = 0; q < queries; q++) {
+                        double lat = CENTER_LAT + (random.nextDouble() * 2 - 1) * 0.2;
+                        double lon = CENTER_LON + (random.nextDouble() * 2 - 1) * 0.2;
+                        long start = System.nanoTime();
+                        found += GeoSearcher.nearby(isearcher, textQuery, lat, lon, radius, TOP_K).size();
+                        indexNanos[q] = System.nanoTime() - start;
+
+                        start = System.nanoTime();
+                        postFilter(isearcher, textQuery, lat, lon, radius);
+                        postNanos[q] = System.nanoTime() - start;
+                    }
+                    System.out.println(String.format("size=%d radius=%.0fm avgHits=%.1f%n  index:       %s%n  post-filter: %s",
+                            size, radius, (double) found / queries, percentiles(indexNanos), percentiles(postNanos)));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.ik.AdvIKAnalyzer;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wltea.analyzer.core.IKSegmenter;
+import org.wltea.analyzer.core.Lexeme;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/7/24.
+ * IK分析链的吞吐和分配: 对比原来的实现(legacy)和复用分词器/共享配置后的实现(pooled).
+ * * analyzeCorpus: 共享一个analyzer, 分析shop.json中所有店名和地址, tokens计数器给出tokens/sec, 结束时打印每个token分配的字节数;
+ * * createAnalyzer: 新建analyzer并分析一条文本, 体现创建分词器的开销(原实现每次都重新解析IKAnalyzer.cfg.xml).
+ * 运行: mvn -Pjmh compile 后 java -cp ... org.openjdk.jmh.Main IKAnalyzerBenchmark, 加 -prof gc 可看到JMH统计的分配率.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IKAnalyzerBenchmark {
+
+    @Param({"legacy", "pooled"})
+    public String impl;
+
+    private Analyzer analyzer;
+    private List<String> texts;
+
+    @Setup
+    public void setup() {
+        analyzer = newAnalyzer();
+        texts = new ArrayList<>();
+        for (JSONObject shop : BenchData.loadShops()) {
+            texts.add(shop.getString("name"));
+            texts.add(shop.getString("address"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        analyzer.close();
+    }
+
+    private Analyzer newAnalyzer() {
+        return "legacy".equals(impl) ? new LegacyIKAnalyzer() : new AdvIKAnalyzer();
+    }
+
+    /**
+     * 每个线程的token计数, JMH按每秒输出
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class TokenCounter {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    /**
+     * 统计整个测试期间当前线程分配的字节数和token数
+     */
+    @State(Scope.Thread)
+    public static class AllocMeter {
+        private final com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private long startBytes;
+        long tokens;
+
+        @Setup(Level.Trial)
+        public void start() {
+            startBytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            tokens = 0;
+        }
+
+        @TearDown(Level.Trial)
+        public void report() {
+            long bytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+            if (tokens > 0) {
+                System.out.println(String.format("%n[alloc] %.1f bytes/token over %d tokens", (double) bytes / tokens, tokens));
+            }
+        }
+    }
+
+    private static int analyze(Analyzer analyzer, String text) throws IOException {
+        int count = 0;
+        try (TokenStream ts = analyzer.tokenStream("", text)) {
+            ts.reset();
+            while (ts.incrementToken()) {
+                count++;
+            }
+            ts.end();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int analyzeCorpus(TokenCounter counter, AllocMeter meter) throws IOException {
+        int tokens = 0;
+        for (String text : texts) {
+            tokens += analyze(analyzer, text);
+        }
+        counter.tokens += tokens;
+        meter.tokens += tokens;
+        return tokens;
+    }
+
+    @Benchmark
+    public int createAnalyzer() throws IOException {
+        Analyzer fresh = newAnalyzer();
+        try {
+            return analyze(fresh, texts.get(0));
+        } finally {
+            fresh.close();
+        }
+    }
+
+    /**
+     * 原来的AdvIKAnalyzer: 每次createComponents都创建并立即关闭一个无用的StringReader
+     */
+    static class LegacyIKAnalyzer extends Analyzer {
+        @Override
+        protected TokenStreamComponents createComponents(String arg0) {
+            Reader reader = null;
+            try {
+                reader = new StringReader(arg0);
+                return new TokenStreamComponents(new LegacyIKTokenizer(reader));
+            } finally {
+                IOUtils.closeWhileHandlingException(reader);
+            }
+        }
+    }
+
+    /**
+     * 原来的AdvIKTokenizer: IKSegmenter(Reader, boolean)每次重新解析配置, 设置词元后再多调整一次长度
+     */
+    static final class LegacyIKTokenizer extends Tokenizer {
+        private final IKSegmenter segmenter;
+        private final CharTermAttribute termAtt;
+        private final OffsetAttribute offsetAtt;
+        private final TypeAttribute typeAtt;
+        private int endPosition;
+
+        LegacyIKTokenizer(Reader in) {
+            offsetAtt = addAttribute(OffsetAttribute.class);
+            termAtt = addAttribute(CharTermAttribute.class);
+            typeAtt = addAttribute(TypeAttribute.class);
+            segmenter = new IKSegmenter(input, true);
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            clearAttributes();
+            Lexeme nextLexeme = segmenter.next();
+            if (nextLexeme != null) {
+                termAtt.append(nextLexeme.getLexemeText());
+                termAtt.setLength(nextLexeme.getLength());
+                offsetAtt.setOffset(nextLexeme.getBeginPosition(), nextLexeme.getEndPosition());
+                endPosition = nextLexeme.getEndPosition();
+                typeAtt.setType(nextLexeme.getLexemeTypeString());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            segmenter.reset(input);
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            int finalOffset = correctOffset(this.endPosition);
+            offsetAtt.setOffset(finalOffset, finalOffset);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.analysis.CachingAnalyzer;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/7/26.
+ * RetrievalDemo.makeIndex流程的建索引吞吐: 每次调用以CREATE模式打开IndexWriter, 逐条addDocument, 最后close(含commit).
+ * 数据由BenchData.syntheticShops或scaleShops生成, docs计数器给出docs/sec.
+ * "-cached"的分析器用CachingAnalyzer包装, 每次调用前清空缓存, 只统计一遍建索引内部的重复; 结束时打印缓存命中率.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexingBenchmark {
+
+    @Param({"standard", "standard-cached", "cjk", "smartcn", "smartcn-cached", "advik", "advik-cached"})
+    public String analyzerName;
+
+    @Param({"20000"})
+    public int docs;
+
+    @Param({"synthetic", "scaled"})
+    public String data;   //synthetic: 组合很少重复(地址带随机门牌号); scaled: 重复shop.json的记录, 相当于反复更新同一批店铺
+
+    private Analyzer analyzer;
+    private List<JSONObject> shops;
+    private Path path;
+    private Directory dir;
+
+    @Setup
+    public void setup() throws IOException {
+        analyzer = BenchAnalyzers.create(analyzerName);
+        shops = "scaled".equals(data) ? BenchData.scaleShops(docs) : BenchData.syntheticShops(docs);
+        path = Files.createTempDirectory("bench-indexing");
+        dir = FSDirectory.open(path);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (analyzer instanceof CachingAnalyzer) {
+            System.out.println("\n分析缓存: " + analyzer);
+        }
+        IOUtils.close(dir, analyzer);
+        IOUtils.rm(path);
+    }
+
+    /**
+     * 每个线程写入的文档数, JMH按每秒输出
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class DocCounter {
+        public long docs;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            docs = 0;
+        }
+    }
+
+    @Benchmark
+    public int makeIndex(DocCounter counter) throws IOException {
+        if (analyzer instanceof CachingAnalyzer) {
+            ((CachingAnalyzer) analyzer).clear();
+        }
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+            for (JSONObject shop : shops) {
+                iwriter.addDocument(ShopSchema.createDocument(shop));
+            }
+        }
+        counter.docs += shops.size();
+        return shops.size();
+    }
+}
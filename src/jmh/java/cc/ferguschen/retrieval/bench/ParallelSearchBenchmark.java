@@ -0,0 +1,117 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.search.ParallelIndexSearcher;
+import cc.ferguschen.retrieval.search.ParallelSearchPool;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/7/30.
+ * 段并行检索随线程数和段数的伸缩: threads=1即原来的串行检索.
+ * heavyQuery在地址上检索常见的字, 几乎命中全部文档; lightQuery按id只命中一条, 不进入线程池, 用来确认轻查询没有额外开销.
+ * 同时输出吞吐和延迟分布; 加 -t N 用N个线程并发发起查询, 可观察准入控制下的整体吞吐.
+ * 例: java -jar target/benchmarks.jar ParallelSearchBenchmark -p threads=1,2,4,8 -p segments=1,8,32
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelSearchBenchmark {
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    @Param({"1", "8", "32"})
+    public int segments;
+
+    @Param({"200000"})
+    public int docs;
+
+    private Path path;
+    private Directory dir;
+    private DirectoryReader reader;
+    private ParallelSearchPool pool;
+    private ParallelIndexSearcher searcher;
+    private Query heavyQuery;
+    private Query lightQuery;
+
+    @Setup
+    public void setup() throws IOException, ParseException {
+        Analyzer analyzer = new StandardAnalyzer();
+        path = Files.createTempDirectory("bench-parallel");
+        dir = FSDirectory.open(path);
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setMergePolicy(NoMergePolicy.INSTANCE);   //保持指定的段数
+        config.setRAMBufferSizeMB(512);
+        List<JSONObject> shops = BenchData.syntheticShops(docs);
+        try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+            int perSegment = (docs + segments - 1) / segments;
+            for (int i = 0; i < shops.size(); i++) {
+                iwriter.addDocument(ShopSchema.createDocument(shops.get(i)));
+                if ((i + 1) % perSegment == 0) {
+                    iwriter.commit();   //每个commit生成一个新段
+                }
+            }
+        }
+        reader = DirectoryReader.open(dir);
+        pool = new ParallelSearchPool(threads, 1, 10000, threads, 10000);
+        searcher = new ParallelIndexSearcher(reader, pool);
+        heavyQuery = new QueryParser("addr", analyzer).parse("上海市 路");
+        lightQuery = new TermQuery(new Term(ShopSchema.ID, "42"));
+        System.out.println(String.format("%n%d segments, %d slices, heavy hits %d, light hits %d",
+                reader.leaves().size(), searcher.getSliceCount(), searcher.count(heavyQuery), searcher.count(lightQuery)));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.close();
+        IOUtils.close(reader, dir);
+        IOUtils.rm(path);
+    }
+
+    @Benchmark
+    public TopDocs heavyQuery() throws IOException {
+        return searcher.search(heavyQuery, 10);
+    }
+
+    @Benchmark
+    public TopDocs lightQuery() throws IOException {
+        return searcher.search(lightQuery, 10);
+    }
+}
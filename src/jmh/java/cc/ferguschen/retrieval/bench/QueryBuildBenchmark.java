@@ -0,0 +1,129 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.search.KeywordQueryBuilder;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/8/12.
+ * 关键词到查询的构造: QueryParser(每次新建, 关键词先escape) 对比 KeywordQueryBuilder(不缓存 / 带查询缓存).
+ * build只构造查询; search再在name上取top10. 关键词80%取自64个热门关键词, 其余取自完整店名(带括号)和店名片段,
+ * 模拟热门关键词集中的线上分布.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBuildBenchmark {
+
+    @Param({"standard", "advik"})
+    public String analyzerName;
+
+    @Param({"parser", "builder", "cached"})
+    public String path;
+
+    @Param({"100000"})
+    public int docs;
+
+    private Analyzer analyzer;
+    private Path indexPath;
+    private Directory dir;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private KeywordQueryBuilder queryBuilder;
+    private String[] keywords;
+    private String[] escaped;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        analyzer = BenchAnalyzers.create(analyzerName);
+        indexPath = Files.createTempDirectory("bench-query-build");
+        dir = FSDirectory.open(indexPath);
+        List<JSONObject> shops = BenchData.syntheticShops(docs);
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+            for (JSONObject shop : shops) {
+                iwriter.addDocument(ShopSchema.createDocument(shop));
+            }
+        }
+        reader = DirectoryReader.open(dir);
+        searcher = new IndexSearcher(reader);
+        queryBuilder = new KeywordQueryBuilder(analyzer, "name").setMaxCacheEntries("cached".equals(path) ? 1000 : 0);
+
+        Random random = new Random(42);
+        String[] hot = new String[64];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = keyword(shops, random);
+        }
+        keywords = new String[4096];
+        escaped = new String[keywords.length];
+        for (int i = 0; i < keywords.length; i++) {
+            keywords[i] = random.nextInt(10) < 8 ? hot[random.nextInt(hot.length)] : keyword(shops, random);
+            escaped[i] = QueryParser.escape(keywords[i]);   //不escape时带括号的店名会抛ParseException
+        }
+    }
+
+    /**
+     * 完整店名(多数带分店名括号), 或店名开头的2~4个字
+     */
+    private static String keyword(List<JSONObject> shops, Random random) {
+        String name = shops.get(random.nextInt(shops.size())).getString("name");
+        return random.nextBoolean() ? name : name.substring(0, Math.min(name.length(), 2 + random.nextInt(3)));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.out.println("查询缓存: " + queryBuilder);
+        IOUtils.close(reader, dir, analyzer);
+        IOUtils.rm(indexPath);
+    }
+
+    private Query query() throws ParseException {
+        int i = next++ & (keywords.length - 1);
+        return "parser".equals(path) ? new QueryParser("name", analyzer).parse(escaped[i]) : queryBuilder.build(keywords[i]);
+    }
+
+    @Benchmark
+    public Query build() throws ParseException {
+        return query();
+    }
+
+    @Benchmark
+    public int search() throws IOException, ParseException {
+        return searcher.search(query(), 10).scoreDocs.length;
+    }
+}
@@ -0,0 +1,190 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.index.ShopSimilarity;
+import cc.ferguschen.retrieval.search.FieldLoader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Created by chenqining on 2018/8/3.
+ * 相关度模型和查询方式的评估: 对每种配置报告相关度(nDCG@10, MRR, P@10)和查询延迟, 调参时同时看效果和速度.
+ * 查询由BenchData.syntheticShops中随机一条记录的"品牌 区县"组成, 例如"星巴克 长宁区"(区县只出现在地址中); 相关度标注:
+ * 品牌相同且在同一区县为2, 只有品牌相同为1, 其他为0.
+ * 所有配置都是BM25族(含TF-IDF), 长度norm的编码相同, 所以只建一次索引, 检索时切换相似度.
+ * 用法: RelevanceBenchmark [索引大小] [查询数]
+ */
+public class RelevanceBenchmark {
+    private static final int TOP_K = 10;
+    private static final Pattern ADDRESS = Pattern.compile("^(.*?[区县])(.*?[路街道巷弄])(.*)$");
+
+    /**
+     * 一种配置: 相似度 + 是否同时检索addr
+     */
+    private static class Config {
+        final String name;
+        final Similarity similarity;
+        final boolean multiField;
+
+        Config(String name, Similarity similarity, boolean multiField) {
+            this.name = name;
+            this.similarity = similarity;
+            this.multiField = multiField;
+        }
+    }
+
+    private static String brand(String name) {
+        int paren = name.indexOf('(');
+        return paren > 0 ? name.substring(0, paren) : name;
+    }
+
+    /**
+     * 地址中的区县, 去掉前面的省市
+     */
+    private static String district(String address) {
+        Matcher m = ADDRESS.matcher(address);
+        if (!m.matches()) {
+            return "";
+        }
+        String district = m.group(1);
+        return district.substring(district.lastIndexOf('市') + 1);
+    }
+
+    private static double dcg(int[] grades) {
+        double dcg = 0;
+        for (int i = 0; i < grades.length; i++) {
+            dcg += ((1 << grades[i]) - 1) / (Math.log(i + 2) / Math.log(2));
+        }
+        return dcg;
+    }
+
+    public static void main(String[] args) throws IOException, ParseException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int queryCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        List<JSONObject> shops = BenchData.syntheticShops(size);
+        Analyzer analyzer = new StandardAnalyzer();
+        Directory dir = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setSimilarity(ShopSchema.SIMILARITY);
+        try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+            for (JSONObject shop : shops) {
+                iwriter.addDocument(ShopSchema.createDocument(shop));
+            }
+        }
+
+        //品牌 -> 记录数, 品牌+区县 -> 记录数, 用于计算理想DCG
+        Map<String, Integer> brandCount = new HashMap<>();
+        Map<String, Integer> brandDistrictCount = new HashMap<>();
+        for (JSONObject shop : shops) {
+            String brand = brand(shop.getString("name"));
+            brandCount.merge(brand, 1, Integer::sum);
+            brandDistrictCount.merge(brand + "\t" + district(shop.getString("address")), 1, Integer::sum);
+        }
+        Random random = new Random(42);
+        List<String[]> queries = new ArrayList<>(queryCount);
+        for (int i = 0; i < queryCount; i++) {
+            JSONObject target = shops.get(random.nextInt(shops.size()));
+            queries.add(new String[]{brand(target.getString("name")), district(target.getString("address"))});
+        }
+
+        List<Config> configs = Arrays.asList(
+                new Config("TF-IDF, name", new ClassicSimilarity(), false),
+                new Config("BM25(1.2,0.75), name", new BM25Similarity(), false),
+                new Config("BM25(1.2,0.75), name^3 addr", new BM25Similarity(), true),
+                new Config("Shop(name b=0.3, addr b=0.75), name^3 addr", ShopSchema.SIMILARITY, true),
+                new Config("Shop(name b=0, addr b=0.75), name^3 addr", new ShopSimilarity(1.2f, 0f, 1.2f, 0.75f), true),
+                new Config("Shop(name k1=0.6 b=0.3, addr b=0.75), name^3 addr", new ShopSimilarity(0.6f, 0.3f, 1.2f, 0.75f), true));
+
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            System.out.println(String.format("索引大小: %d, 查询数: %d", reader.maxDoc(), queries.size()));
+            System.out.println("配置\tnDCG@10\tMRR\tP@10\t平均延迟(ms)\tp99延迟(ms)");
+            String[] fields = ShopSchema.FIELD_BOOSTS.keySet().toArray(new String[0]);
+            for (Config c : configs) {
+                IndexSearcher isearcher = new IndexSearcher(reader);
+                isearcher.setSimilarity(c.similarity);
+                QueryParser parser = c.multiField
+                        ? new MultiFieldQueryParser(fields, analyzer, ShopSchema.FIELD_BOOSTS)
+                        : new QueryParser(ShopSchema.NAME, analyzer);
+                for (int round = 0; round < 2; round++) {   //第一轮预热, 只报告第二轮
+                    double ndcg = 0, mrr = 0, precision = 0;
+                    long[] nanos = new long[queries.size()];
+                    for (int q = 0; q < queries.size(); q++) {
+                        String brand = queries.get(q)[0];
+                        String district = queries.get(q)[1];
+                        long start = System.nanoTime();
+                        Query query = parser.parse(QueryParser.escape(brand) + " " + QueryParser.escape(district));
+                        ScoreDoc[] hits = isearcher.search(query, TOP_K).scoreDocs;
+                        nanos[q] = System.nanoTime() - start;
+
+                        int[] docs = new int[hits.length];
+                        for (int i = 0; i < hits.length; i++) {
+                            docs[i] = hits[i].doc;
+                        }
+                        Map<Integer, Map<String, String>> ids = FieldLoader.load(reader, docs, ShopSchema.ID);
+                        int[] grades = new int[hits.length];
+                        int relevant = 0;
+                        double reciprocalRank = 0;
+                        for (int i = 0; i < hits.length; i++) {
+                            JSONObject shop = shops.get(Integer.parseInt(ids.get(hits[i].doc).get(ShopSchema.ID)) - 1);
+                            if (brand(shop.getString("name")).equals(brand)) {
+                                grades[i] = district(shop.getString("address")).equals(district) ? 2 : 1;
+                                relevant++;
+                            }
+                            if (grades[i] == 2 && reciprocalRank == 0) {
+                                reciprocalRank = 1.0 / (i + 1);
+                            }
+                        }
+                        int both = brandDistrictCount.getOrDefault(brand + "\t" + district, 0);
+                        int brandOnly = brandCount.getOrDefault(brand, 0) - both;
+                        int[] ideal = new int[Math.min(TOP_K, both + brandOnly)];
+                        for (int i = 0; i < ideal.length; i++) {
+                            ideal[i] = i < both ? 2 : 1;
+                        }
+                        double idealDcg = dcg(ideal);
+                        ndcg += idealDcg == 0 ? 0 : dcg(grades) / idealDcg;
+                        mrr += reciprocalRank;
+                        precision += (double) relevant / TOP_K;
+                    }
+                    if (round == 1) {
+                        Arrays.sort(nanos);
+                        long total = 0;
+                        for (long n : nanos) {
+                            total += n;
+                        }
+                        System.out.println(String.format("%s\t%.4f\t%.4f\t%.4f\t%.3f\t%.3f", c.name,
+                                ndcg / queries.size(), mrr / queries.size(), precision / queries.size(),
+                                total / 1e6 / nanos.length, nanos[(int) (nanos.length * 0.99)] / 1e6));
+                    }
+                }
+            }
+        }
+        dir.close();
+        analyzer.close();
+    }
+}
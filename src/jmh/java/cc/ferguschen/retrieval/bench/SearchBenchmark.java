@@ -0,0 +1,117 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.ShopSchema;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/7/26.
+ * RetrievalDemo.searchTest流程的查询延迟: maybeRefresh, acquire, QueryParser解析, 取top10并读取存储字段, release.
+ * SampleTime模式下JMH输出延迟分布(p50/p90/p99/p99.9). 关键词取自生成数据中的店名片段和道路名.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    @Param({"standard", "cjk", "smartcn", "advik"})
+    public String analyzerName;
+
+    @Param({"100000"})
+    public int docs;
+
+    private Analyzer analyzer;
+    private Path path;
+    private Directory dir;
+    private SearcherManager searcherManager;
+    private String[] keywords;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        analyzer = BenchAnalyzers.create(analyzerName);
+        path = Files.createTempDirectory("bench-search");
+        dir = FSDirectory.open(path);
+        List<JSONObject> shops = BenchData.syntheticShops(docs);
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+            for (JSONObject shop : shops) {
+                iwriter.addDocument(ShopSchema.createDocument(shop));
+            }
+        }
+        searcherManager = new SearcherManager(dir, null);
+
+        //店名开头的2~4个字, 或分店名中的道路名
+        Random random = new Random(42);
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < 1024; i++) {
+            String name = shops.get(random.nextInt(shops.size())).getString("name");
+            int paren = name.indexOf('(');
+            String keyword = random.nextBoolean() || paren < 0
+                    ? name.substring(0, Math.min(name.length(), 2 + random.nextInt(3)))
+                    : name.substring(paren + 1, name.length() - 1);
+            list.add(QueryParser.escape(keyword));
+        }
+        keywords = list.toArray(new String[0]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        IOUtils.close(searcherManager, dir, analyzer);
+        IOUtils.rm(path);
+    }
+
+    @Benchmark
+    public void searchTest(Blackhole bh) throws IOException, ParseException {
+        String keyword = keywords[next++ & (keywords.length - 1)];
+        searcherManager.maybeRefresh();
+        IndexSearcher isearcher = searcherManager.acquire();
+        try {
+            Query query = new QueryParser("name", analyzer).parse(keyword);
+            ScoreDoc[] hits = isearcher.search(query, 10).scoreDocs;
+            for (ScoreDoc hit : hits) {
+                Document hitDoc = isearcher.doc(hit.doc);
+                bh.consume(hitDoc.get("name"));
+            }
+        } finally {
+            searcherManager.release(isearcher);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.BulkIndexer;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.shard.GeoShardRouter;
+import cc.ferguschen.retrieval.shard.HashShardRouter;
+import cc.ferguschen.retrieval.shard.ShardRouter;
+import cc.ferguschen.retrieval.shard.ShardedIndexWriter;
+import cc.ferguschen.retrieval.shard.ShardedSearcher;
+import cc.ferguschen.retrieval.utils.FileUtil;
+import cc.ferguschen.retrieval.utils.JsonLineReader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.LatLonPoint;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/8/6.
+ * 分片索引的检索延迟: 分片数 x 路由方式.
+ * * keyword: 关键词查询, 所有分片scatter-gather;
+ * * nearbyBox: 关键词 + 经度范围较窄的矩形, 按经度分带路由时只访问相交的分片.
+ * setup中输出并行建索引的耗时. 单机单核时分片不会更快, 多核时各分片并行执行.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardedSearchBenchmark {
+    private static final double MIN_LAT = 31.15, MAX_LAT = 31.30, MIN_LON = 121.44, MAX_LON = 121.46;
+
+    @Param({"1", "2", "4"})
+    public int shards;
+
+    @Param({"hash", "geo"})
+    public String routing;
+
+    @Param({"200000"})
+    public int docs;
+
+    private Analyzer analyzer;
+    private Path path;
+    private ShardedSearcher searcher;
+    private ShardRouter router;
+    private Query keywordQuery;
+    private Query boxQuery;
+    private int[] boxShards;
+
+    @Setup
+    public void setup() throws IOException, ParseException {
+        analyzer = new StandardAnalyzer();
+        path = Files.createTempDirectory("bench-shards");
+        List<JSONObject> shops = BenchData.syntheticShops(docs);
+        router = "geo".equals(routing) ? GeoShardRouter.fromSample(shops, shards) : new HashShardRouter(shards);
+        Path data = path.resolve("shops.json");
+        BenchData.writeJsonLines(shops, data);
+
+        BulkIndexer bulkIndexer = new BulkIndexer().setThreads(Runtime.getRuntime().availableProcessors());
+        long start = System.nanoTime();
+        try (ShardedIndexWriter writer = new ShardedIndexWriter(path.resolve("index"), router, analyzer, bulkIndexer);
+             JsonLineReader reader = FileUtil.mapJSONLines(data.toString(), true)) {
+            writer.index(bulkIndexer, reader);
+        }
+        System.out.println(String.format("%s: indexed %d docs in %.2fs", router, docs, (System.nanoTime() - start) / 1e9));
+
+        searcher = new ShardedSearcher(path.resolve("index"), shards, ShopSchema.SIMILARITY, shards);
+        keywordQuery = new QueryParser(ShopSchema.NAME, analyzer).parse("星巴克");
+        boxQuery = new BooleanQuery.Builder()
+                .add(keywordQuery, BooleanClause.Occur.MUST)
+                .add(LatLonPoint.newBoxQuery(ShopSchema.LOCATION, MIN_LAT, MAX_LAT, MIN_LON, MAX_LON), BooleanClause.Occur.FILTER)
+                .build();
+        boxShards = router instanceof GeoShardRouter
+                ? ((GeoShardRouter) router).shardsForLongitude(MIN_LON, MAX_LON)
+                : null;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        IOUtils.close(searcher, analyzer);
+        IOUtils.rm(path);
+    }
+
+    @Benchmark
+    public ShardedSearcher.ShardedHits keyword() throws IOException {
+        return searcher.search(keywordQuery, 20, ShopSchema.ID, ShopSchema.NAME);
+    }
+
+    @Benchmark
+    public ShardedSearcher.ShardedHits nearbyBox() throws IOException {
+        return boxShards == null
+                ? searcher.search(boxQuery, 20, ShopSchema.ID, ShopSchema.NAME)
+                : searcher.search(boxQuery, 20, boxShards, ShopSchema.ID, ShopSchema.NAME);
+    }
+}
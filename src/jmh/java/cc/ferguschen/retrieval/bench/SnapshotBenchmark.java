@@ -0,0 +1,152 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.BulkIndexer;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.index.ShopSnapshot;
+import cc.ferguschen.retrieval.utils.JsonLineReader;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Created by chenqining on 2018/8/13.
+ * 全量重建的读取开销: JSON行文件(内存映射 + fastjson逐行解析) 对比 二进制快照(ShopSnapshot, 各压缩方式).
+ * 1. 转换: 快照的大小和转换耗时;
+ * 2. 只读取: 读出所有记录并构造Document, 不写索引, 报告耗时, 每条记录分配的字节数和GC次数;
+ * 3. 建索引: BulkIndexer从两种数据源导入, 报告docs/sec(分析和写索引占大头, 读取的收益被稀释).
+ * 用法: SnapshotBenchmark [条数] [索引线程数]
+ */
+public class SnapshotBenchmark {
+    private static long sink;   //防止构造的Document被优化掉
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Path base = Files.createTempDirectory("bench-snapshot");
+        try {
+            Path json = base.resolve("shops.json");
+            BenchData.writeJsonLines(BenchData.syntheticShops(size), json);
+            System.out.println(String.format("记录数: %d, JSON行: %.1fMB", size, Files.size(json) / 1048576.0));
+
+            System.out.println("格式\t大小(MB)\t转换(s)");
+            for (ShopSnapshot.Codec codec : ShopSnapshot.Codec.values()) {
+                Path snap = base.resolve("shops-" + codec + ".snap");
+                long start = System.nanoTime();
+                try (JsonLineReader reader = JsonLineReader.map(json, true)) {
+                    ShopSnapshot.write(reader, snap, codec, ShopSnapshot.DEFAULT_BLOCK_SIZE);
+                }
+                System.out.println(String.format("%s\t%.1f\t%.2f", codec, Files.size(snap) / 1048576.0, (System.nanoTime() - start) / 1e9));
+            }
+
+            System.out.println("读取\t耗时(ms)\t每条分配(B)\tGC次数");
+            for (int round = 0; round < 3; round++) {   //第一轮预热
+                boolean print = round == 2;
+                readJson(json, print);
+                for (ShopSnapshot.Codec codec : ShopSnapshot.Codec.values()) {
+                    readSnapshot(base.resolve("shops-" + codec + ".snap"), codec, print);
+                }
+            }
+
+            System.out.println("建索引\tdocs/sec\t峰值堆内存(MB)");
+            for (int round = 0; round < 2; round++) {
+                boolean print = round == 1;
+                bulkIndex(base, "json", print, (indexer, dir, analyzer) -> {
+                    try (JsonLineReader reader = JsonLineReader.map(json, true)) {
+                        return indexer.index(dir, analyzer, reader);
+                    }
+                }, threads);
+                bulkIndex(base, "snapshot-lz4", print, (indexer, dir, analyzer) -> {
+                    try (ShopSnapshot snapshot = ShopSnapshot.open(base.resolve("shops-LZ4.snap"))) {
+                        return indexer.index(dir, analyzer, snapshot);
+                    }
+                }, threads);
+            }
+        } finally {
+            IOUtils.rm(base);
+        }
+    }
+
+    private static void readJson(Path json, boolean print) throws IOException {
+        Measure measure = new Measure();
+        long rows = 0;
+        try (JsonLineReader reader = JsonLineReader.map(json, true)) {
+            while (reader.hasNext()) {
+                Document doc = ShopSchema.createDocument(reader.next());
+                sink += doc.getFields().size();
+                rows++;
+            }
+        }
+        measure.report("json", rows, print);
+    }
+
+    private static void readSnapshot(Path path, ShopSnapshot.Codec codec, boolean print) throws IOException {
+        Measure measure = new Measure();
+        long rows;
+        try (ShopSnapshot snapshot = ShopSnapshot.open(path)) {
+            ShopSnapshot.Block block;
+            while ((block = snapshot.next()) != null) {
+                for (int i = 0; i < block.size; i++) {
+                    sink += block.toDocument(i).getFields().size();
+                }
+            }
+            rows = snapshot.getRowsRead();
+        }
+        measure.report("snapshot-" + codec.name().toLowerCase(Locale.ROOT), rows, print);
+    }
+
+    private interface Importer {
+        long run(BulkIndexer indexer, Directory dir, StandardAnalyzer analyzer) throws IOException;
+    }
+
+    private static void bulkIndex(Path base, String name, boolean print, Importer importer, int threads) throws IOException {
+        Path path = Files.createTempDirectory(base, "idx");
+        BulkIndexer indexer = new BulkIndexer().setThreads(threads).setRamBufferMB(256);
+        BulkIndexer.resetPeakHeap();
+        long start = System.nanoTime();
+        long docs;
+        try (Directory dir = FSDirectory.open(path); StandardAnalyzer analyzer = new StandardAnalyzer()) {
+            docs = importer.run(indexer, dir, analyzer);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (print) {
+            System.out.println(String.format("%s\t%.0f\t%.0f", name, docs / seconds, BulkIndexer.peakHeapBytes() / 1048576.0));
+        }
+        IOUtils.rm(path);
+    }
+
+    /**
+     * 当前线程的耗时, 分配字节数和GC次数
+     */
+    private static final class Measure {
+        private final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final long start = System.nanoTime();
+        private final long allocated = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        private final long gcs = gcCount();
+
+        void report(String name, long rows, boolean print) {
+            long elapsed = System.nanoTime() - start;
+            long bytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+            if (print) {
+                System.out.println(String.format("%s\t%.0f\t%.0f\t%d", name, elapsed / 1e6, (double) bytes / Math.max(1, rows),
+                        gcCount() - gcs));
+            }
+        }
+
+        private static long gcCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        }
+    }
+}
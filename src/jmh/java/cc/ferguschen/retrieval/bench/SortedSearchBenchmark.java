@@ -0,0 +1,120 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.search.SortedSearch;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/8/2.
+ * 命中大量文档时按热度取top20的延迟:
+ * * unsortedIndex: 未排序的索引, 遍历全部匹配文档;
+ * * sortedIndex: 按热度排序的索引, 每个段收集到topK即停止;
+ * * sortedIndexById: 同一个排序索引, 但按id排序(不是索引排序的前缀), 仍需遍历全部匹配文档.
+ * 查询是name中的"店"字(StandardAnalyzer按字切分), 几乎匹配全部文档.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SortedSearchBenchmark {
+
+    @Param({"200000"})
+    public int docs;
+
+    @Param({"20"})
+    public int topK;
+
+    private final Query query = new TermQuery(new Term(ShopSchema.NAME, "店"));
+
+    private Path unsortedPath;
+    private Path sortedPath;
+    private Directory unsortedDir;
+    private Directory sortedDir;
+    private DirectoryReader unsortedReader;
+    private DirectoryReader sortedReader;
+    private IndexSearcher unsortedSearcher;
+    private IndexSearcher sortedSearcher;
+
+    @Setup
+    public void setup() throws IOException {
+        List<JSONObject> shops = BenchData.syntheticShops(docs);
+        unsortedPath = Files.createTempDirectory("bench-unsorted");
+        sortedPath = Files.createTempDirectory("bench-sorted");
+        unsortedDir = FSDirectory.open(unsortedPath);
+        sortedDir = FSDirectory.open(sortedPath);
+        build(unsortedDir, shops, false);
+        build(sortedDir, shops, true);
+        unsortedReader = DirectoryReader.open(unsortedDir);
+        sortedReader = DirectoryReader.open(sortedDir);
+        unsortedSearcher = new IndexSearcher(unsortedReader);
+        sortedSearcher = new IndexSearcher(sortedReader);
+        System.out.println("matches: " + sortedSearcher.count(query) + ", segments: " + sortedReader.leaves().size()
+                + ", early terminate: " + SortedSearch.canEarlyTerminate(sortedReader, ShopSchema.BY_POPULARITY));
+    }
+
+    private static void build(Directory dir, List<JSONObject> shops, boolean sorted) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        if (sorted) {
+            config.setIndexSort(ShopSchema.INDEX_SORT);
+        }
+        try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+            for (JSONObject shop : shops) {
+                iwriter.addDocument(ShopSchema.createDocument(shop));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        IOUtils.close(unsortedReader, sortedReader, unsortedDir, sortedDir);
+        IOUtils.rm(unsortedPath, sortedPath);
+    }
+
+    @Benchmark
+    public TopFieldDocs unsortedIndex() throws IOException {
+        return SortedSearch.search(unsortedSearcher, query, ShopSchema.BY_POPULARITY, topK).topDocs;
+    }
+
+    @Benchmark
+    public TopFieldDocs sortedIndex() throws IOException {
+        return SortedSearch.search(sortedSearcher, query, ShopSchema.BY_POPULARITY, topK).topDocs;
+    }
+
+    @Benchmark
+    public TopFieldDocs sortedIndexById() throws IOException {
+        return SortedSearch.search(sortedSearcher, query, ShopSchema.BY_ID, topK).topDocs;
+    }
+}
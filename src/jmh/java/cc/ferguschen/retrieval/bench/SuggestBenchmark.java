@@ -0,0 +1,80 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.suggest.ShopSuggester;
+import cc.ferguschen.retrieval.utils.FileUtil;
+import cc.ferguschen.retrieval.utils.JsonLineReader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Created by chenqining on 2018/7/23.
+ * 店名输入提示的延迟: 构建耗时, 从磁盘重新打开的耗时, 以及不同长度前缀的p50/p99延迟.
+ * 店名由shop.json中的店名加上分店编号生成, 保证各不相同.
+ * 用法: SuggestBenchmark [店名数] [查询次数]
+ */
+public class SuggestBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        StringBuilder lines = new StringBuilder();
+        List<String> names = new ArrayList<>(size);
+        for (JSONObject shop : BenchData.scaleShops(size)) {
+            String name = shop.getString("name") + "(" + shop.getString("id") + "分店)";
+            shop.put("name", name);
+            names.add(name);
+            lines.append(shop.toJSONString()).append('\n');
+        }
+
+        Path path = Files.createTempDirectory("bench-suggest");
+        try {
+            long start = System.nanoTime();
+            try (ShopSuggester suggester = new ShopSuggester(FSDirectory.open(path));
+                 JsonLineReader reader = FileUtil.openJSONLines(new ByteArrayInputStream(lines.toString().getBytes(StandardCharsets.UTF_8)), true)) {
+                suggester.buildFromJson(reader);
+                System.out.println(String.format("build %d names: %.1fms", suggester.getCount(), (System.nanoTime() - start) / 1e6));
+            }
+
+            start = System.nanoTime();
+            try (ShopSuggester suggester = new ShopSuggester(FSDirectory.open(path))) {
+                System.out.println(String.format("reopen from disk: %.1fms", (System.nanoTime() - start) / 1e6));
+                Random random = new Random(42);
+                for (int prefixLen = 1; prefixLen <= 4; prefixLen++) {
+                    //预热
+                    for (int q = 0; q < 2000; q++) {
+                        suggester.suggest(prefix(names.get(random.nextInt(names.size())), prefixLen), 10);
+                    }
+                    long[] nanos = new long[queries];
+                    long results = 0;
+                    for (int q = 0; q < queries; q++) {
+                        String prefix = prefix(names.get(random.nextInt(names.size())), prefixLen);
+                        long t = System.nanoTime();
+                        results += suggester.suggest(prefix, 10).size();
+                        nanos[q] = System.nanoTime() - t;
+                    }
+                    Arrays.sort(nanos);
+                    System.out.println(String.format("prefix length %d: avg results %.1f, p50 %.3fms, p99 %.3fms, max %.3fms",
+                            prefixLen, (double) results / queries, nanos[queries / 2] / 1e6,
+                            nanos[(int) (queries * 0.99)] / 1e6, nanos[queries - 1] / 1e6));
+                }
+            }
+        } finally {
+            IOUtils.rm(path);
+        }
+    }
+
+    private static String prefix(String name, int len) {
+        return name.substring(0, Math.min(len, name.length()));
+    }
+}
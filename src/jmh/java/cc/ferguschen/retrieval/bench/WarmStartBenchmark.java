@@ -0,0 +1,260 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.DirectoryFactory;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.search.FieldLoader;
+import cc.ferguschen.retrieval.search.QueryWarmer;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Created by chenqining on 2018/8/7.
+ * 冷启动到稳定延迟的时间: 每种目录/预热配置在一个新的JVM中执行, 启动前清空操作系统页缓存(需要root, 失败时会提示,
+ * 此时只比较JIT和缺页映射的差别).
+ * 子进程打开索引, 按配置预热后发布searcher, 然后依次执行查询流(解析 + top10 + 读取id/name), 报告:
+ * 打开目录, 打开reader和预热(预算2秒)的耗时, 前100/前1000个查询的p99, 稳定p99(后一半查询), 以及从进程启动到稳定的时间
+ * (最后一个p99超过稳定值2倍的100查询窗口结束的时刻).
+ * 查询流和预热用的"最近查询"来自同一个偏斜分布(热门品牌查得多), 但随机种子不同.
+ * 用法: WarmStartBenchmark [索引大小] [查询数]
+ */
+public class WarmStartBenchmark {
+    private static final int WINDOW = 100;
+    private static final int WARM_QUERIES = 500;
+    private static final long WARM_BUDGET_MS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "child".equals(args[0])) {
+            child(args);
+            return;
+        }
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+        int queryCount = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+
+        Path base = Files.createTempDirectory("bench-warm");
+        Path indexPath = base.resolve("index");
+        List<JSONObject> shops = BenchData.syntheticShops(size);
+        try (Analyzer analyzer = new StandardAnalyzer();
+             Directory dir = FSDirectory.open(indexPath);
+             IndexWriter iwriter = new IndexWriter(dir, new IndexWriterConfig(analyzer)
+                     .setIndexSort(ShopSchema.INDEX_SORT)
+                     .setSimilarity(ShopSchema.SIMILARITY)
+                     .setRAMBufferSizeMB(64))) {
+            for (JSONObject shop : shops) {
+                iwriter.addDocument(ShopSchema.createDocument(shop));
+            }
+        }
+        Path warmFile = base.resolve("warm.txt");
+        Path streamFile = base.resolve("stream.txt");
+        List<String> recent = new ArrayList<>(keywords(shops, WARM_QUERIES * 4, 1));   //不同的关键词可能不足WARM_QUERIES个
+        Files.write(warmFile, recent.subList(0, Math.min(WARM_QUERIES, recent.size())), StandardCharsets.UTF_8);
+        Files.write(streamFile, queryStream(shops, queryCount, 2), StandardCharsets.UTF_8);
+        shops = null;
+
+        String[][] configs = {
+                {"nio", "false", "false"},
+                {"mmap", "false", "false"},
+                {"mmap", "true", "false"},
+                {"ram", "false", "false"},
+                {"mmap", "false", "true"},
+                {"mmap", "true", "true"},
+        };
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        System.out.println(String.format("索引大小: %d, 查询数: %d, 预热查询数: %d", size, queryCount, Math.min(WARM_QUERIES, recent.size())));
+        System.out.println("配置\t页缓存\t打开目录(ms)\t打开reader+预热(ms)\t前100 p99(ms)\t前1000 p99(ms)\t稳定p99(ms)\t启动到稳定(ms)");
+        for (String[] config : configs) {
+            boolean dropped = dropPageCache();
+            List<String> command = new ArrayList<>(Arrays.asList(java, "-Dfile.encoding=UTF-8",
+                    "-cp", System.getProperty("java.class.path"), WarmStartBenchmark.class.getName(), "child"));
+            command.addAll(Arrays.asList(config));
+            command.addAll(Arrays.asList(indexPath.toString(), warmFile.toString(), streamFile.toString(), dropped ? "cold" : "warm"));
+            Process process = new ProcessBuilder(command).inheritIO().start();
+            process.waitFor();
+        }
+        IOUtils.rm(base);
+    }
+
+    /**
+     * 子进程: 打开索引, 预热, 执行查询流
+     */
+    private static void child(String[] args) throws IOException {
+        long processStart = System.nanoTime();
+        DirectoryFactory factory = new DirectoryFactory().setType(args[1]).setPreload(Boolean.parseBoolean(args[2]));
+        boolean warm = Boolean.parseBoolean(args[3]);
+        Path indexPath = Paths.get(args[4]);
+        List<String> stream = Files.readAllLines(Paths.get(args[6]), StandardCharsets.UTF_8);
+
+        Analyzer analyzer = new StandardAnalyzer();
+        Directory dir = factory.open(indexPath);
+        long opened = System.nanoTime();
+        SearcherFactory searcherFactory = new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+                IndexSearcher searcher = super.newSearcher(reader, previousReader);
+                searcher.setSimilarity(ShopSchema.SIMILARITY);
+                return searcher;
+            }
+        };
+        QueryWarmer warmer = new QueryWarmer(WARM_QUERIES, 10, keyword -> {
+            try {
+                return new QueryParser(ShopSchema.NAME, analyzer).parse(keyword);
+            } catch (ParseException e) {
+                return null;
+            }
+        }, ShopSchema.ID, ShopSchema.NAME).setMaxWarmMs(WARM_BUDGET_MS);
+        if (warm) {
+            warmer.load(Paths.get(args[5]));
+            searcherFactory = warmer.wrap(searcherFactory);
+        }
+        SearcherManager manager = new SearcherManager(dir, searcherFactory);
+        long ready = System.nanoTime();
+
+        QueryParser parser = new QueryParser(ShopSchema.NAME, analyzer);
+        long[] nanos = new long[stream.size()];
+        long[] finished = new long[stream.size()];
+        for (int q = 0; q < stream.size(); q++) {
+            long start = System.nanoTime();
+            IndexSearcher searcher = manager.acquire();
+            try {
+                ScoreDoc[] hits = searcher.search(parser.parse(stream.get(q)), 10).scoreDocs;
+                int[] docs = new int[hits.length];
+                for (int i = 0; i < hits.length; i++) {
+                    docs[i] = hits[i].doc;
+                }
+                FieldLoader.load(searcher.getIndexReader(), docs, ShopSchema.ID, ShopSchema.NAME);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException(e);
+            } finally {
+                manager.release(searcher);
+            }
+            finished[q] = System.nanoTime();
+            nanos[q] = finished[q] - start;
+        }
+
+        double steady = p99(nanos, nanos.length / 2, nanos.length);
+        long steadyAt = ready;
+        for (int from = 0; from + WINDOW <= nanos.length; from += WINDOW) {
+            if (p99(nanos, from, from + WINDOW) > 2 * steady) {
+                steadyAt = finished[from + WINDOW - 1];
+            }
+        }
+        String name = factory + (warm ? "+warm" : "");
+        System.out.println(String.format("%s\t%s\t%.1f\t%.1f\t%.3f\t%.3f\t%.3f\t%.0f", name, args[7],
+                (opened - processStart) / 1e6, (ready - opened) / 1e6,
+                p99(nanos, 0, Math.min(WINDOW, nanos.length)) / 1e6, p99(nanos, 0, Math.min(1000, nanos.length)) / 1e6,
+                steady / 1e6, (steadyAt - processStart) / 1e6));
+        manager.close();
+        dir.close();
+        analyzer.close();
+    }
+
+    private static double p99(long[] nanos, int from, int to) {
+        long[] window = Arrays.copyOfRange(nanos, from, to);
+        Arrays.sort(window);
+        return window[Math.min(window.length - 1, (int) (window.length * 0.99))];
+    }
+
+    /**
+     * 品牌词, 热门品牌(列表靠前)出现得更多
+     */
+    private static String keyword(List<String> brands, List<String> roads, Random random) {
+        String brand = brands.get((int) (brands.size() * Math.pow(random.nextDouble(), 3)));
+        return random.nextInt(4) == 0 ? brand + " " + roads.get(random.nextInt(roads.size())) : brand;
+    }
+
+    private static Set<String> keywords(List<JSONObject> shops, int count, long seed) {
+        Vocabulary vocab = vocabulary(shops);
+        Random random = new Random(seed);
+        Set<String> result = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            result.add(keyword(vocab.brands, vocab.roads, random));
+        }
+        return result;
+    }
+
+    private static List<String> queryStream(List<JSONObject> shops, int count, long seed) {
+        Vocabulary vocab = vocabulary(shops);
+        Random random = new Random(seed);
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(keyword(vocab.brands, vocab.roads, random));
+        }
+        return result;
+    }
+
+    /**
+     * 品牌和道路(店名括号中的分店说明去掉编号)
+     */
+    private static Vocabulary vocabulary(List<JSONObject> shops) {
+        Set<String> brands = new LinkedHashSet<>();
+        Set<String> roads = new LinkedHashSet<>();
+        for (JSONObject shop : shops) {
+            String name = shop.getString("name");
+            int paren = name.indexOf('(');
+            if (paren > 0) {
+                brands.add(QueryParser.escape(name.substring(0, paren)));
+                roads.add(QueryParser.escape(name.substring(paren + 1).replaceAll("\\d+店\\)$", "")));
+            }
+        }
+        return new Vocabulary(new ArrayList<>(brands), new ArrayList<>(roads));
+    }
+
+    /**
+     * 清空操作系统页缓存, 使子进程从磁盘读取索引
+     * @return 是否成功
+     */
+    private static boolean dropPageCache() {
+        File control = new File("/proc/sys/vm/drop_caches");
+        if (!control.canWrite()) {
+            return false;
+        }
+        try {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+            Files.write(control.toPath(), "3".getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 生成查询用的品牌和道路
+     */
+    private static final class Vocabulary {
+        final List<String> brands;
+        final List<String> roads;
+
+        Vocabulary(List<String> brands, List<String> roads) {
+            this.brands = brands;
+            this.roads = roads;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package cc.ferguschen.retrieval.bench;
+
+import cc.ferguschen.retrieval.index.IndexWriterService;
+import cc.ferguschen.retrieval.index.MutationLog;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by chenqining on 2018/7/18.
+ * 对比两种修改索引的方式的吞吐(ops/sec):
+ * 1. 原IndexDemo的做法: 每次修改都新建IndexWriter, 改一篇文档后close(每次都要拿写锁, 读segments_N, commit);
+ * 2. IndexWriterService: 共享一个长期writer, 多线程并发修改, 按计划commit.
+ * 以及变更流(已有索引上的upsert和delete, 热门id反复修改)的两种应用方式:
+ * 3. 逐条: 每条修改调用一次IndexWriterService.updateDocument/deleteDocument;
+ * 4. MutationLog: 修改追加到日志(最后fsync), 按id合并后批量deleteDocuments + addDocuments, 最后checkpoint.
+ * 用法: WriterBenchmark [perCall条数] [service条数] [线程数] [变更条数] [变更涉及的id数]
+ */
+public class WriterBenchmark {
+
+    private static Directory createIndex(Path path, Analyzer analyzer) throws IOException {
+        Directory dir = FSDirectory.open(path);
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setIndexSort(ShopSchema.INDEX_SORT);
+        new IndexWriter(dir, config).close();
+        return dir;
+    }
+
+    /**
+     * 原做法: 每次修改都打开/关闭writer
+     */
+    private static double perCall(List<JSONObject> shops, Analyzer analyzer) throws IOException {
+        Path path = Files.createTempDirectory("bench-percall");
+        try (Directory dir = createIndex(path, analyzer)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < shops.size(); i++) {
+                IndexWriterConfig config = new IndexWriterConfig(analyzer);
+                config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+                config.setIndexSort(ShopSchema.INDEX_SORT);
+                IndexWriter iwriter = new IndexWriter(dir, config);
+                JSONObject shop = shops.get(i);
+                if (i % 2 == 0) {
+                    iwriter.addDocument(ShopSchema.createDocument(shop));
+                } else {
+                    iwriter.updateDocument(new Term("id", shop.getString("id")), ShopSchema.createDocument(shop));
+                }
+                iwriter.close();
+            }
+            return shops.size() * 1e9 / (System.nanoTime() - start);
+        } finally {
+            IOUtils.rm(path);
+        }
+    }
+
+    /**
+     * 共享writer: 多线程并发修改, 最后flush
+     */
+    private static double shared(List<JSONObject> shops, Analyzer analyzer, int threads) throws Exception {
+        Path path = Files.createTempDirectory("bench-shared");
+        try (Directory dir = createIndex(path, analyzer)) {
+            long start = System.nanoTime();
+            try (IndexWriterService service = new IndexWriterService(dir, analyzer, IndexWriterConfig.OpenMode.APPEND, 1000, 10000)) {
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                for (int t = 0; t < threads; t++) {
+                    final int slot = t;
+                    pool.execute(() -> {
+                        try {
+                            for (int i = slot; i < shops.size(); i += threads) {
+                                JSONObject shop = shops.get(i);
+                                if (i % 2 == 0) {
+                                    service.addDocument(ShopSchema.createDocument(shop));
+                                } else {
+                                    service.updateDocument(shop.getString("id"), ShopSchema.createDocument(shop));
+                                }
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    });
+                }
+                pool.shutdown();
+                pool.awaitTermination(1, TimeUnit.HOURS);
+                service.flush();
+            }
+            return shops.size() * 1e9 / (System.nanoTime() - start);
+        } finally {
+            IOUtils.rm(path);
+        }
+    }
+
+    /**
+     * 变更流: 从distinctIds条记录中按偏斜分布选取(热门记录改得多), 10%为删除(带deleted标记), 其余为热度变化的upsert
+     */
+    private static List<JSONObject> changeStream(List<JSONObject> base, int size) {
+        Random random = new Random(42);
+        List<JSONObject> changes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            JSONObject change = (JSONObject) base.get((int) (base.size() * Math.pow(random.nextDouble(), 2))).clone();
+            if (random.nextInt(10) == 0) {
+                change.put("deleted", true);
+            } else {
+                change.put("popularity", change.getLongValue("popularity") + 1 + random.nextInt(100));
+            }
+            changes.add(change);
+        }
+        return changes;
+    }
+
+    private static Directory createIndex(Path path, Analyzer analyzer, List<JSONObject> base) throws IOException {
+        Directory dir = createIndex(path, analyzer);
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setIndexSort(ShopSchema.INDEX_SORT);
+        try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+            for (JSONObject shop : base) {
+                iwriter.addDocument(ShopSchema.createDocument(shop));
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * 逐条应用变更, 最后flush
+     */
+    private static double perChange(List<JSONObject> base, List<JSONObject> changes, Analyzer analyzer, int threads) throws Exception {
+        Path path = Files.createTempDirectory("bench-perchange");
+        try (Directory dir = createIndex(path, analyzer, base)) {
+            long start = System.nanoTime();
+            try (IndexWriterService service = new IndexWriterService(dir, analyzer, IndexWriterConfig.OpenMode.APPEND, 1000, 10000)) {
+                runThreads(changes, threads, change -> {
+                    String id = change.getString("id");
+                    if (change.getBooleanValue("deleted")) {
+                        service.deleteDocument(id);
+                    } else {
+                        service.updateDocument(id, ShopSchema.createDocument(change));
+                    }
+                });
+                service.flush();
+            }
+            return changes.size() * 1e9 / (System.nanoTime() - start);
+        } finally {
+            IOUtils.rm(path);
+        }
+    }
+
+    /**
+     * 变更写入MutationLog, 最后sync和checkpoint
+     */
+    private static double mutationLog(List<JSONObject> base, List<JSONObject> changes, Analyzer analyzer, int threads) throws Exception {
+        Path path = Files.createTempDirectory("bench-mutationlog");
+        try (Directory dir = createIndex(path.resolve("index"), analyzer, base)) {
+            long start = System.nanoTime();
+            try (IndexWriterService service = new IndexWriterService(dir, analyzer, IndexWriterConfig.OpenMode.APPEND, 0, 0);
+                 MutationLog log = new MutationLog(path.resolve("log"), service.getIndexWriter(), 5000, 200)) {
+                runThreads(changes, threads, change -> {
+                    if (change.getBooleanValue("deleted")) {
+                        log.delete(change.getString("id"));
+                    } else {
+                        log.upsert(change);
+                    }
+                });
+                log.sync();
+                log.checkpoint();
+                System.out.println("mutation log: " + log);
+            }
+            return changes.size() * 1e9 / (System.nanoTime() - start);
+        } finally {
+            IOUtils.rm(path);
+        }
+    }
+
+    private interface Change {
+        void apply(JSONObject change) throws IOException;
+    }
+
+    private static void runThreads(List<JSONObject> changes, int threads, Change action) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int slot = t;
+            pool.execute(() -> {
+                try {
+                    for (int i = slot; i < changes.size(); i += threads) {
+                        action.apply(changes.get(i));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int perCallSize = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int sharedSize = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        Analyzer analyzer = new StandardAnalyzer();
+
+        double perCallOps = perCall(BenchData.scaleShops(perCallSize), analyzer);
+        System.out.println(String.format("per-call writer: %d ops, %.1f ops/sec", perCallSize, perCallOps));
+
+        double sharedOps = shared(BenchData.scaleShops(sharedSize), analyzer, threads);
+        System.out.println(String.format("shared writer(%d threads): %d ops, %.1f ops/sec", threads, sharedSize, sharedOps));
+        System.out.println(String.format("speedup: %.1fx", sharedOps / perCallOps));
+
+        int changeSize = args.length > 3 ? Integer.parseInt(args[3]) : 200000;
+        int distinctIds = args.length > 4 ? Integer.parseInt(args[4]) : 20000;
+        List<JSONObject> base = BenchData.syntheticShops(distinctIds);
+        List<JSONObject> changes = changeStream(base, changeSize);
+        double perChangeOps = perChange(base, changes, analyzer, threads);
+        System.out.println(String.format("per-change(%d threads): %d changes on %d ids, %.1f changes/sec", threads, changeSize, distinctIds, perChangeOps));
+        double logOps = mutationLog(base, changes, analyzer, threads);
+        System.out.println(String.format("mutation log(%d threads): %d changes on %d ids, %.1f changes/sec", threads, changeSize, distinctIds, logOps));
+        System.out.println(String.format("speedup: %.1fx over per-change, %.1fx over per-call writer", logOps / perChangeOps, logOps / perCallOps));
+    }
+}
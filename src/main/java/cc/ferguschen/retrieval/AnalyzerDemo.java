@@ -1,5 +1,6 @@
 package cc.ferguschen.retrieval;
 
+import cc.ferguschen.retrieval.analysis.CachingAnalyzer;
 import cc.ferguschen.retrieval.ik.AdvIKAnalyzer;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
@@ -31,8 +32,7 @@ public class AnalyzerDemo {
     private static void printAnalyzerResult(Analyzer analyzer, String sentence){
 
         StringReader reader = new StringReader(sentence);
-        try{
-            TokenStream tokenStream = analyzer.tokenStream("", reader);  //对reader进行分词操作, TokenStream是分词器处理之后的流,存储分词器的所有信息
+        try(TokenStream tokenStream = analyzer.tokenStream("", reader)){  //对reader进行分词操作, TokenStream是分词器处理之后的流,存储分词器的所有信息; 用完关闭, 同一个analyzer才能再次分析
             tokenStream.reset();  //重置流状态, 以便调用incrementToken获取token, 该方法使tokenStream可以复用.
             System.out.println("分析器:" + analyzer.getClass());
             //获取分词结果, CharTermAttribute是Token的文本
@@ -40,6 +40,7 @@ public class AnalyzerDemo {
             while(tokenStream.incrementToken()){  //通过incrementToken获取下一个token, 相当于迭代器的next和hasNext结合
                 System.out.print(term.toString() + "|");
             }
+            tokenStream.end();
             System.out.println("\n");
         }catch (Exception e){
             e.printStackTrace();
@@ -77,5 +78,11 @@ public class AnalyzerDemo {
 
         analyzer = new AdvIKAnalyzer();   //IK分词器, 扩展到高版本Lucene, 配置文件在 resources/
         printAnalyzerResult(analyzer, sentence);
+
+        CachingAnalyzer cached = AdvIKAnalyzer.cached(true, null, 1024 * 1024);   //缓存分析结果, 第二次分析同样的句子时直接回放
+        for (int i = 0; i < 3; i++){   //片段第二次出现时放入缓存, 第三次全部命中
+            printAnalyzerResult(cached, sentence);
+        }
+        System.out.println("分析缓存: " + cached);
     }
 }
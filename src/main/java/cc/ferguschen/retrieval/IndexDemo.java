@@ -1,24 +1,42 @@
 package cc.ferguschen.retrieval;
 
+import cc.ferguschen.retrieval.index.DirectoryFactory;
+import cc.ferguschen.retrieval.index.IndexGenerations;
+import cc.ferguschen.retrieval.index.IndexWriterService;
+import cc.ferguschen.retrieval.index.MutationLog;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import cc.ferguschen.retrieval.search.NRTSearcherService;
+import cc.ferguschen.retrieval.suggest.ShopSuggester;
+import com.alibaba.fastjson.JSONObject;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BoostAttributeImpl;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by chenqining on 2018/7/17.
@@ -26,15 +44,39 @@ import java.util.Arrays;
  */
 public class IndexDemo {
     private String idxPath = "idx/data";   //存放索引的目录
+    private IndexGenerations generations = new IndexGenerations(Paths.get(idxPath));   //蓝绿重建(RetrievalDemo.blueGreenMakeIndex)后当前一代可能是idx/data.N
+    private String suggestPath = "idx/suggest";   //存放店名提示索引的目录
     private Analyzer analyzer = null;
     private Directory idxDir = null;
+    private DirectoryFactory dirFactory = new DirectoryFactory().setType(DirectoryFactory.Type.MMAP).setPreload(true);   //需要写入, 不能用RAM
+    private IndexWriterService writerService = null;   //共享的writer, 所有修改复用同一个IndexWriter
+    private long commitIntervalMs = 1000;   //定时commit间隔
+    private long commitEveryOps = 1000;     //累计修改数达到该值时commit
+    private NRTSearcherService nrtSearcher = null;   //近实时检索, 修改不需要commit即可被搜到
+    private volatile long lastSeqNo = 0;    //最近一次修改的序列号
+    private ShopSuggester suggester = null;  //店名提示, 追加和更新POI时增量更新
+    private Map<String, String> suggestedNames = new HashMap<>();   //本次运行修改过的id -> 提示中的店名(null表示已删除), 改名和删除时据此删掉旧店名
+    private String mutationLogPath = "idx/mutations";   //修改日志的目录
+    private MutationLog mutationLog = null;   //更新和删除先写日志, 按id合并后批量应用
+    private SearchMetrics metrics = new SearchMetrics();   //写入/commit/合并/reopen的延迟, 段数, 删除文档比例
+    private boolean addressGrams = true;   //和RetrievalDemo建索引时一致: 追加和更新的文档也写addr_ngram, addr_edge, 否则部分地址检索搜不到
 
     private boolean initIdx(){
         try {
             if (analyzer == null) {
                 CharArraySet stopWordsSet = new CharArraySet(Arrays.asList("镇", "村", "市", "乡"), true);  //可以自定义停用词, 第2个参数控制忽略大小写.
                 analyzer = new StandardAnalyzer(stopWordsSet);
-                idxDir = FSDirectory.open(Paths.get(idxPath));
+                //写入当前一代的目录. 蓝绿重建切换后旧目录会被删除, 已打开的writer要close后重新initIdx, 否则修改写进退役的目录, 检索看不到
+                idxDir = dirFactory.open(generations.current());
+                writerService = new IndexWriterService(idxDir, analyzer, IndexWriterConfig.OpenMode.APPEND, commitIntervalMs, commitEveryOps, metrics, addressGrams);
+                nrtSearcher = new NRTSearcherService(writerService.getIndexWriter(), 1.0, 0.01);  //最多1秒陈旧, 有等待者时10毫秒内reopen
+                nrtSearcher.watch(metrics);
+                mutationLog = new MutationLog(Paths.get(mutationLogPath), writerService.getIndexWriter(), 1000, 200, addressGrams)  //累计1000条或每200毫秒应用一批
+                        .setMetrics(metrics);
+                if (mutationLog.getReplayedOps() > 0){
+                    System.out.println("重放未提交的修改: " + mutationLog.getReplayedOps());
+                }
+                suggester = new ShopSuggester(FSDirectory.open(Paths.get(suggestPath))).setMetrics(metrics);
             }
         }catch (IOException e){
             e.printStackTrace();
@@ -55,16 +97,13 @@ public class IndexDemo {
             return;
         }
         try {
-            IndexWriterConfig config = new IndexWriterConfig(analyzer);
-            config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
-            IndexWriter iwriter = new IndexWriter(idxDir, config);
-
-            Document doc = new Document();
-            doc.add(new StringField("id", id, Field.Store.YES));
-            doc.add(new TextField("name", name, Field.Store.YES));
-            doc.add(new TextField("addr", addr, Field.Store.NO));
-            iwriter.addDocument(doc);
-            iwriter.close();
+            Document doc = ShopSchema.createDocument(id, name, addr);
+            if (addressGrams){
+                ShopSchema.addAddressGrams(doc, addr);
+            }
+            lastSeqNo = writerService.addDocument(doc);   //不再每次打开/关闭writer, 由writerService按计划commit
+            suggester.upsert(id, name);
+            suggestedNames.put(id, name);
         }catch (IOException e){
             e.printStackTrace();
         }
@@ -72,7 +111,7 @@ public class IndexDemo {
 
 
     /**
-     * 更新指定id的name
+     * 更新指定id的name. 写入修改日志, 由日志按批应用; 文档和makeIndex一样由ShopSchema创建.
      * @param name
      * @param id
      */
@@ -82,18 +121,17 @@ public class IndexDemo {
             return;
         }
         try{
-            IndexWriterConfig config = new IndexWriterConfig(analyzer);
-            config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);  //默认是CREATE_OR_APPEND;
-            IndexWriter iwriter = new IndexWriter(idxDir, config);
-
-            //创建新的文档
-            Document doc = new Document();
-            doc.add(new StringField("id", id, Field.Store.YES));
-            doc.add(new TextField("name", name, Field.Store.YES));
-            doc.add(new TextField("address", "测试地址,保存", Field.Store.YES));
-            Field f = new TextField("contents", "hello word", Field.Store.NO);
-            iwriter.updateDocument(new Term("id", id), doc);  //lucene是用新文档替换掉符合条件的文档, 所以, 结果是以前的文档删除, 又追加新文档.
-            iwriter.close();
+            JSONObject shop = new JSONObject();
+            shop.put("id", id);
+            shop.put("name", name);
+            shop.put("address", "测试地址,保存");
+            String oldName = currentNames(Collections.singletonList(id)).get(id);
+            mutationLog.upsert(shop);  //lucene是用新文档替换掉符合条件的文档, 所以, 结果是以前的文档删除, 又追加新文档.
+            if (oldName != null && !oldName.equals(name)){
+                suggester.remove(oldName);   //改名后不再提示旧店名(payload还是这个id)
+            }
+            suggester.upsert(id, name);
+            suggestedNames.put(id, name);
 
         }catch (IOException e){
             e.printStackTrace();
@@ -108,11 +146,13 @@ public class IndexDemo {
             return;
         }
         try{
-            IndexWriterConfig config = new IndexWriterConfig(analyzer);
-            config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
-            IndexWriter iwriter  = new IndexWriter(idxDir, config);
-            //方法一: 通过Term删除
-            System.out.println("delete Value:" +iwriter.deleteDocuments(new Term("id", id)));
+            String oldName = currentNames(Collections.singletonList(id)).get(id);
+            //写入修改日志, 和同一id的其他修改合并后, 通过Term批量删除
+            mutationLog.delete(id);
+            if (oldName != null){
+                suggester.remove(oldName);   //删除的POI不再被提示
+            }
+            suggestedNames.put(id, null);
 
             //方法二: 通过查询删除
 //            QueryParser queryParser = new QueryParser("id", analyzer);
@@ -123,26 +163,220 @@ public class IndexDemo {
             //iwriter.rollback();  // 同一方法中, 可以用rollback恢复已放到回收站的索引;
 
 //            iwriter.forceMergeDeletes();   //强制删除已删除的文档.
-            iwriter.close();
         }catch (Exception e){
             e.printStackTrace();
         }
     }
 
-    public static void main(String[] args){
+    /**
+     * 变更流的一次突发: 一批upsert和delete写入修改日志, 同一id的重复修改合并.
+     * 店名提示按每个id最后的结果更新: 删除或改名的先删掉旧店名, 再写入新店名.
+     * @param upserts
+     * @param deletes 在upserts之后执行
+     */
+    private void applyChanges(List<JSONObject> upserts, List<String> deletes){
+        if (analyzer == null && !initIdx()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        try{
+            Map<String, String> newNames = new LinkedHashMap<>();   //id -> 这批修改后的店名, null表示删除
+            for (JSONObject shop : upserts){
+                newNames.put(shop.getString("id"), shop.getString("name"));
+            }
+            for (String id : deletes){
+                newNames.put(id, null);
+            }
+            Map<String, String> oldNames = currentNames(newNames.keySet());
+
+            for (JSONObject shop : upserts){
+                mutationLog.upsert(shop);
+            }
+            for (String id : deletes){
+                mutationLog.delete(id);
+            }
+            mutationLog.sync();   //整批只fsync一次, 之后崩溃也能重放
+
+            //先删完旧店名再写新店名: 一个id改掉的名字可能正是另一个id改成的名字
+            for (Map.Entry<String, String> e : newNames.entrySet()){
+                String oldName = oldNames.get(e.getKey());
+                if (oldName != null && !oldName.equals(e.getValue())){
+                    suggester.remove(oldName);
+                }
+            }
+            for (Map.Entry<String, String> e : newNames.entrySet()){
+                if (e.getValue() != null){
+                    suggester.upsert(e.getKey(), e.getValue());
+                }
+            }
+            suggestedNames.putAll(newNames);
+            System.out.println("修改日志: " + mutationLog);
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 各id当前的店名, 用于在店名提示中删掉旧店名.
+     * 本次运行修改过的id取suggestedNames中最后写入的店名(修改可能还在日志中没有应用); 其他id的店名修改前后没变过,
+     * 直接从当前的近实时searcher读取, 不应用日志也不等待reopen, 不破坏日志的批量合并.
+     * 提示按店名去重, 同名的连锁店共用一条提示, 删掉其中一家时这条提示也被删除, 直到同名的店再次更新.
+     * @param ids
+     * @return id -> 店名, 不存在或已删除的id不在其中
+     * @throws IOException
+     */
+    private Map<String, String> currentNames(Collection<String> ids) throws IOException{
+        Map<String, String> names = new HashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String id : ids){
+            if (suggestedNames.containsKey(id)){
+                String name = suggestedNames.get(id);
+                if (name != null){
+                    names.put(id, name);
+                }
+            }else {
+                unknown.add(id);
+            }
+        }
+        if (unknown.isEmpty()){
+            return names;
+        }
+        IndexSearcher isearcher = nrtSearcher.acquire();
+        try{
+            for (String id : unknown){
+                ScoreDoc[] hits = isearcher.search(new TermQuery(new Term(ShopSchema.ID, id)), 1).scoreDocs;
+                if (hits.length > 0){
+                    names.put(id, isearcher.doc(hits[0].doc).get(ShopSchema.NAME));
+                }
+            }
+        }finally {
+            nrtSearcher.release(isearcher);
+        }
+        return names;
+    }
+
+    /**
+     * 近实时检索指定id的文档数. 等待最近一次修改可见后再查询, 不需要commit.
+     * @param id
+     * @return 文档数, 出错时返回-1
+     */
+    private int countById(String id){
+        if (nrtSearcher == null){
+            return -1;
+        }
+        IndexSearcher isearcher = null;
+        try{
+            if (mutationLog.apply() > 0){   //日志中尚未应用的修改先写入writer
+                lastSeqNo = Math.max(lastSeqNo, mutationLog.getAppliedIndexSeqNo());
+            }
+            nrtSearcher.waitForGeneration(lastSeqNo, 1000);
+            isearcher = nrtSearcher.acquire();
+            return isearcher.count(new TermQuery(new Term("id", id)));
+        }catch (IOException e){
+            e.printStackTrace();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }finally {
+            if (isearcher != null){
+                try{
+                    nrtSearcher.release(isearcher);
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 立即提交所有修改
+     */
+    private void flush(){
+        if (writerService == null){
+            return;
+        }
+        try{
+            mutationLog.checkpoint();   //应用剩余修改并commit, 删除已提交的日志
+            writerService.flush();
+            suggester.refresh();   //使增量更新的店名提示可见
+            suggester.commit();
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 提交剩余修改并释放writer和目录
+     */
+    private void close(){
+        try{
+            if (mutationLog != null){
+                mutationLog.close();   //close时checkpoint, writer由writerService关闭
+                mutationLog = null;
+            }
+            if (nrtSearcher != null){
+                nrtSearcher.close();
+                nrtSearcher = null;
+            }
+            if (suggester != null){
+                suggester.close();
+                suggester = null;
+                suggestedNames.clear();
+            }
+            if (writerService != null){
+                writerService.close();
+                writerService = null;
+            }
+            if (idxDir != null){
+                idxDir.close();
+                idxDir = null;
+            }
+            analyzer = null;
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
         IndexDemo demo = new IndexDemo();
         String appendID = "1234567";
         String name = "追加饭店";
         String addr = "上海市浦东新区学业路302号";
         demo.appendIndex(name, addr, appendID);
+        System.out.println("append后的文档数:" + demo.countById(appendID));
 
         //删除文档
         String delID = "1234567";
         demo.deleteIndex(delID);
+        System.out.println("delete后的文档数:" + demo.countById(delID));
+        System.out.println(String.format("reader版本:%d, reopen次数:%d, 最近reopen耗时:%.2fms",
+                demo.nrtSearcher.getReaderVersion(), demo.nrtSearcher.getReopenCount(), demo.nrtSearcher.getLastReopenMs()));
 
         //更新文档
         String updateID = "22130905";
-//        demo.updateIndex("测试修改的POI Name", updateID);
+        demo.updateIndex("测试修改的POI Name", updateID);
+        System.out.println("update后的文档数:" + demo.countById(updateID));
+
+        //变更流的突发: 同一批id反复更新, 最后删掉一部分, 日志合并后每个id只写一次索引
+        List<JSONObject> upserts = new ArrayList<>();
+        List<String> deletes = new ArrayList<>();
+        for (int round = 0; round < 5; round++){
+            for (int i = 0; i < 200; i++){
+                JSONObject shop = new JSONObject();
+                shop.put("id", "burst-" + i);
+                shop.put("name", "突发更新" + round + "号店");
+                shop.put("address", "上海市浦东新区学业路" + i + "号");
+                upserts.add(shop);
+            }
+        }
+        for (int i = 0; i < 50; i++){
+            deletes.add("burst-" + i);
+        }
+        demo.applyChanges(upserts, deletes);
+        System.out.println("burst-0的文档数:" + demo.countById("burst-0") + ", burst-100的文档数:" + demo.countById("burst-100"));
 
+        demo.flush();
+        System.out.println("指标: " + demo.metrics.snapshot());
+        demo.close();
     }
 }
@@ -1,31 +1,66 @@
 package cc.ferguschen.retrieval;
 
+import cc.ferguschen.retrieval.index.BulkIndexer;
+import cc.ferguschen.retrieval.index.DeltaIndexer;
+import cc.ferguschen.retrieval.index.DirectoryFactory;
+import cc.ferguschen.retrieval.index.IndexGenerations;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.index.ShopSnapshot;
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import cc.ferguschen.retrieval.search.AddressQueryBuilder;
+import cc.ferguschen.retrieval.search.BatchSearcher;
+import cc.ferguschen.retrieval.search.FieldLoader;
+import cc.ferguschen.retrieval.search.KeywordQueryBuilder;
+import cc.ferguschen.retrieval.search.ParallelSearchPool;
+import cc.ferguschen.retrieval.search.QueryResultCache;
+import cc.ferguschen.retrieval.search.QueryWarmer;
+import cc.ferguschen.retrieval.search.SortedSearch;
+import cc.ferguschen.retrieval.search.SwitchingSearcherManager;
+import cc.ferguschen.retrieval.shard.HashShardRouter;
+import cc.ferguschen.retrieval.shard.ShardRouter;
+import cc.ferguschen.retrieval.shard.ShardedIndexWriter;
+import cc.ferguschen.retrieval.shard.ShardedSearcher;
+import cc.ferguschen.retrieval.spatial.GeoSearcher;
+import cc.ferguschen.retrieval.suggest.ShopSuggester;
 import cc.ferguschen.retrieval.utils.FileUtil;
+import cc.ferguschen.retrieval.utils.JsonLineReader;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.StringField;
-import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.suggest.Lookup;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 
+import javax.management.JMException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by chenqining on 2018/7/16.
@@ -33,8 +68,30 @@ import java.util.Arrays;
  */
 public class RetrievalDemo {
     private String idxPath = "idx/data";   //存放索引的目录
+    private IndexGenerations generations = new IndexGenerations(Paths.get(idxPath));   //蓝绿重建时, 索引在idx/data, idx/data.1, ...之间切换
+    private boolean addressGrams = true;   //地址子串模式: 各种建索引方式都另写addr_ngram, addr_edge域, 部分地址不再走通配符查询
     private Analyzer analyzer = null;
     private Directory idxDir = null;
+    private DirectoryFactory dirFactory = new DirectoryFactory().setType(DirectoryFactory.Type.MMAP).setPreload(true);   //内存映射, 打开时预加载词典/倒排/DocValues
+    private SwitchingSearcherManager searcherManager = null;   //保持一个打开的reader, 查询时借用, 索引变化时reopen, 蓝绿重建后切换目录
+    private ScheduledExecutorService refresher = null;   //后台定时maybeRefresh, reopen和预热不在查询线程上执行
+    private long refreshIntervalMs = 1000;   //后台refresh的间隔; 本进程的重建在commit后立即refresh
+    private QueryResultCache resultCache = null;   //热门关键词的结果缓存, reopen时清空
+    private KeywordQueryBuilder queryBuilder = null;   //关键词直接构造查询, 不经过QueryParser, 常用关键词的查询缓存复用
+    private ParallelSearchPool searchPool = null;   //重查询按段分片并行执行的线程池
+    private BatchSearcher batchSearcher = null;   //批量检索, 一批关键词并行执行
+    private QueryWarmer warmer = null;   //用最近的查询预热新searcher, 预热完才发布
+    private String warmQueriesPath = "idx/warm-queries.txt";   //最近的查询, 关闭时保存, 启动时加载
+    private long warmBudgetMs = 2000;   //每次预热最多2秒, 最近查过的优先; 超出的查询不预热, 避免新searcher迟迟不能发布
+    private String suggestPath = "idx/suggest";   //存放店名提示索引的目录
+    private String snapshotPath = "idx/shop.snap";   //源数据的二进制快照, 全量重建时代替JSON解析
+    private String deltaStatePath = "idx/delta-state.bin";   //增量同步的状态: 上次同步的各记录的内容哈希
+    private ShopSuggester suggester = null;
+    private String shardPath = "idx/shards";   //分片索引的父目录, 每个分片一个子目录
+    private int numShards = 4;
+    private ShardedSearcher shardedSearcher = null;   //分片索引的scatter-gather检索
+    private SearchMetrics metrics = new SearchMetrics();   //解析/检索/读取字段和reopen的延迟, 段数, 删除文档比例
+    private String metricsName = "cc.ferguschen.retrieval:type=SearchMetrics,name=RetrievalDemo";   //注册的MXBean名
 
 
     /**
@@ -46,7 +103,11 @@ public class RetrievalDemo {
             if (analyzer == null) {
                 CharArraySet stopWordsSet = new CharArraySet(Arrays.asList("镇", "村", "市", "乡"), true);  //可以自定义停用词, 第2个参数控制忽略大小写.
                 analyzer = new StandardAnalyzer(stopWordsSet);
-                idxDir = FSDirectory.open(Paths.get(idxPath));
+                queryBuilder = new KeywordQueryBuilder(analyzer, "name");
+                idxDir = dirFactory.open(generations.current());   //蓝绿重建过时, 打开当前一代的目录
+                for (Path stale : generations.stale()){
+                    IndexGenerations.delete(stale);   //上次运行切换走后没来得及删除的旧目录, 以及重建失败留下的目录
+                }
             }
         }catch (Exception e){
             e.printStackTrace();
@@ -71,63 +132,728 @@ public class RetrievalDemo {
         JSONArray dataList = FileUtil.loadJSONArray(dataStream);
         assert dataList != null;
         try{
+            newDeltaIndexer().clearState();   //makeIndex读的是JSON数组资源, 不记录增量同步的状态, 下次deltaMakeIndex全量重建
+
             //创建索引写入器
-            IndexWriterConfig config = new IndexWriterConfig(analyzer);
+            IndexWriterConfig config = new IndexWriterConfig(addressGrams ? ShopSchema.withAddressGrams(analyzer) : analyzer);  // 地址子串模式下addr_ngram, addr_edge用各自的分析器
             config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);  // 创建写入模式, 每一次都重新创建
+            config.setIndexSort(ShopSchema.INDEX_SORT);  // 段内文档按热度降序存放, 按热度排序的查询可以提前结束
+            config.setSimilarity(ShopSchema.SIMILARITY);  // 分域的BM25参数, 检索时使用同一个
             IndexWriter iwriter = new IndexWriter(idxDir, config);
 
-            BM25Similarity si = new BM25Similarity();
-
             //将文档内容写入索引文件
             for(int i = 0; i < dataList.size(); i++){
-                Document doc = new Document();
-
                 JSONObject curAddr = dataList.getJSONObject(i);
-                String addr = curAddr.getString("address");
-                String shopName = curAddr.getString("name");
-                String id = curAddr.getString("id");
-                doc.add(new StringField("id", id, Field.Store.YES));   // 不分析, 直接存储字符串.
-                doc.add(new TextField("name", shopName, Field.Store.YES));   // 分析(lucene分析器)并存储.
-                doc.add(new TextField("addr", addr, Field.Store.NO));  //只分析, 不存储. 不存储的域, 在检索时无法获取其值.
+                Document doc = ShopSchema.createDocument(curAddr, addressGrams);   //id不分析直接存储, name分析并存储, addr只分析不存储; id, name另写DocValues
 
+                long start = System.nanoTime();
                 iwriter.addDocument(doc);
+                metrics.record(SearchMetrics.Stage.ADD, System.nanoTime() - start);
             }
             iwriter.close();
+            if (searcherManager != null){
+                searcherManager.maybeRefresh();   //重建索引后, 让后续查询看到新索引
+            }
         }catch (IOException e){
             e.printStackTrace();
         }
     }
 
+    /**
+     * 批量导入模式: 流式读取JSON行文件, 多线程并行建索引, 适合全量导入大文件.
+     * @param dataFilepath 数据文件路径, 不存在时按资源文件名加载
+     * @param threads 索引线程数
+     */
+    private void bulkMakeIndex(String dataFilepath, int threads){
+        if (analyzer == null && !initIdx()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        try{
+            JsonLineReader reader = openJSONLines(dataFilepath);
+            if (reader == null){
+                return;
+            }
+            BulkIndexer bulkIndexer = new BulkIndexer().setThreads(threads).setRamBufferMB(256).setMetrics(metrics).setAddressGrams(addressGrams);
+            DeltaIndexer deltaIndexer = newDeltaIndexer();
+            BulkIndexer.resetPeakHeap();
+            long start = System.nanoTime();
+            long docs;
+            try{
+                deltaIndexer.clearState();   //重建中途失败时不留下和索引不符的状态
+                docs = bulkIndexer.index(idxDir, analyzer, reader);
+            }finally {
+                reader.close();
+            }
+            recordDeltaState(deltaIndexer, dataFilepath);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("导入文档数: %d, 错误行数: %d, 耗时: %.2fs, %.1f docs/sec, 峰值堆内存: %.1fMB",
+                    docs, bulkIndexer.getBadLines(), seconds, docs / seconds, BulkIndexer.peakHeapBytes() / 1024.0 / 1024.0));
+            if (searcherManager != null){
+                searcherManager.maybeRefresh();
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 从二进制快照全量重建: 快照不存在或比数据文件旧时先转换一次(LZ4压缩), 之后的重建不再解析JSON.
+     * @param dataFilepath 数据文件路径, 不存在时按资源文件名加载
+     * @param threads 索引线程数
+     */
+    private void snapshotMakeIndex(String dataFilepath, int threads){
+        if (analyzer == null && !initIdx()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        try{
+            File dataFile = new File(dataFilepath);
+            File snapshotFile = new File(snapshotPath);
+            if (!snapshotFile.exists() || (dataFile.exists() && dataFile.lastModified() > snapshotFile.lastModified())){
+                JsonLineReader reader = openJSONLines(dataFilepath);
+                if (reader == null){
+                    return;
+                }
+                long start = System.nanoTime();
+                try{
+                    long rows = ShopSnapshot.write(reader, snapshotFile.toPath(), ShopSnapshot.Codec.LZ4, ShopSnapshot.DEFAULT_BLOCK_SIZE);
+                    System.out.println(String.format("转换快照: %d条, %.1fKB, 耗时: %.2fs", rows, snapshotFile.length() / 1024.0, (System.nanoTime() - start) / 1e9));
+                }finally {
+                    reader.close();
+                }
+            }
+            BulkIndexer bulkIndexer = new BulkIndexer().setThreads(threads).setRamBufferMB(256).setMetrics(metrics).setAddressGrams(addressGrams);
+            long start = System.nanoTime();
+            long docs;
+            try (ShopSnapshot snapshot = ShopSnapshot.open(snapshotFile.toPath())){
+                newDeltaIndexer().clearState();   //快照可能来自旧的资源文件, 不一定和dataFilepath相同, 不记录状态, 下次deltaMakeIndex全量重建
+                docs = bulkIndexer.index(idxDir, analyzer, snapshot);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("快照导入文档数: %d, 耗时: %.2fs, %.1f docs/sec", docs, seconds, docs / seconds));
+            if (searcherManager != null){
+                searcherManager.maybeRefresh();
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 增量同步模式: 只把和上次同步相比新增, 修改, 删除的记录写入索引, 适合每天更新的全量数据.
+     * 索引或同步状态不存在时, 以CREATE模式建索引并记录状态(所有记录都作为新增).
+     * @param dataFilepath 数据文件路径, 不存在时按资源文件名加载
+     */
+    private void deltaMakeIndex(String dataFilepath){
+        if (analyzer == null && !initIdx()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        DeltaIndexer deltaIndexer = newDeltaIndexer();
+        try{
+            JsonLineReader reader = openJSONLines(dataFilepath);
+            if (reader == null){
+                return;
+            }
+            boolean append = deltaIndexer.hasState() && DirectoryReader.indexExists(idxDir);
+            IndexWriterConfig config = new IndexWriterConfig(addressGrams ? ShopSchema.withAddressGrams(analyzer) : analyzer);  // 和makeIndex的配置一致
+            config.setOpenMode(append ? IndexWriterConfig.OpenMode.APPEND : IndexWriterConfig.OpenMode.CREATE);
+            config.setIndexSort(ShopSchema.INDEX_SORT);
+            config.setSimilarity(ShopSchema.SIMILARITY);
+            if (!append){
+                deltaIndexer.clearState();   //索引重新创建, 旧状态作废
+            }
+            long start = System.nanoTime();
+            try (IndexWriter iwriter = new IndexWriter(idxDir, config)){
+                try{
+                    deltaIndexer.sync(iwriter, reader);
+                }catch (IOException | RuntimeException e){
+                    iwriter.rollback();   //丢弃未commit的修改, 状态未保存, 下次重新同步
+                    throw e;
+                }
+            }finally {
+                reader.close();
+            }
+            System.out.println(String.format("%s: %s, 耗时: %.2fs", append ? "增量同步" : "首次全量", deltaIndexer, (System.nanoTime() - start) / 1e9));
+            if (searcherManager != null){
+                searcherManager.maybeRefresh();
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 蓝绿重建: 在新的一代目录里批量建索引并合并到maxSegments个段, 期间查询继续使用旧目录;
+     * 建好后更新指针文件, 检索切换到新目录(预热后才发布), 旧目录在最后一个借用它的查询结束后关闭并删除.
+     * 其他进程中打开的writer(如IndexDemo的IndexWriterService)不会跟着切换, 要关闭后按当前一代重新打开.
+     * @param dataFilepath 数据文件路径, 不存在时按资源文件名加载
+     * @param threads 索引线程数
+     * @param maxSegments 新索引合并到的段数
+     */
+    private void blueGreenMakeIndex(String dataFilepath, int threads, int maxSegments){
+        if (analyzer == null && !initIdx()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        Path next = null;
+        boolean published = false;
+        try{
+            JsonLineReader reader = openJSONLines(dataFilepath);
+            if (reader == null){
+                return;
+            }
+            Path oldPath = generations.current();
+            next = generations.next();
+            BulkIndexer bulkIndexer = new BulkIndexer().setThreads(threads).setRamBufferMB(256).setMetrics(metrics).setForceMergeSegments(maxSegments)
+                    .setAddressGrams(addressGrams);   //和makeIndex一致, 切换后地址检索仍走addr_ngram/addr_edge
+            DeltaIndexer deltaIndexer = newDeltaIndexer();
+            deltaIndexer.clearState();   //状态对应旧目录, 切换后作废; 新目录建好后重新记录
+            long start = System.nanoTime();
+            long docs;
+            try (Directory buildDir = FSDirectory.open(next)){   //直接写磁盘, 不经过dirFactory(RAM类型时会写进内存副本)
+                docs = bulkIndexer.index(buildDir, analyzer, reader);
+            }finally {
+                reader.close();
+            }
+            double buildSeconds = (System.nanoTime() - start) / 1e9;
+            generations.publish(next);   //先更新指针再切换: 切换后旧目录随时可能被删除, 此时重启要打开新目录
+            published = true;
+
+            start = System.nanoTime();
+            Directory newDir = dirFactory.open(next);
+            SwitchingSearcherManager.RetiredListener cleanup = oldDir -> {
+                oldDir.close();
+                IndexGenerations.delete(oldPath);
+                System.out.println("删除旧索引目录: " + oldPath);
+            };
+            if (searcherManager != null){
+                searcherManager.switchTo(newDir, cleanup);   //预热新searcher后原子替换, 进行中的查询继续用旧searcher
+            }else {
+                cleanup.onRetired(idxDir);
+            }
+            idxDir = newDir;   //之后makeIndex等写入新目录
+            recordDeltaState(deltaIndexer, dataFilepath);   //之后deltaMakeIndex相对新目录同步
+            System.out.println(String.format("蓝绿重建: %s, 文档数: %d, 建索引+合并到%d段: %.2fs, 切换(含预热): %.2fms",
+                    next.getFileName(), docs, maxSegments, buildSeconds, (System.nanoTime() - start) / 1e6));
+        }catch (IOException e){
+            e.printStackTrace();
+            if (next != null && !published){
+                try{
+                    IndexGenerations.delete(next);   //没有发布的目录没人用, 直接删除
+                }catch (IOException e1){
+                    e1.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 和makeIndex写入相同文档结构的增量同步器
+     */
+    private DeltaIndexer newDeltaIndexer(){
+        return new DeltaIndexer(Paths.get(deltaStatePath)).setAddressGrams(addressGrams).setMetrics(metrics);
+    }
+
+    /**
+     * 全量重建commit后, 把同一份数据(再读一遍, 只算哈希)记为增量同步的状态, 之后deltaMakeIndex只应用相对这次重建的变化.
+     * 否则增量同步会和重建前的状态比较, 如改回旧内容的记录被当作未变化, 索引中留下重建时的版本.
+     * @param deltaIndexer
+     * @param dataFilepath 重建用的数据
+     * @throws IOException
+     */
+    private void recordDeltaState(DeltaIndexer deltaIndexer, String dataFilepath) throws IOException{
+        JsonLineReader reader = openJSONLines(dataFilepath);
+        if (reader == null){
+            return;
+        }
+        try{
+            deltaIndexer.record(reader);
+        }finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 打开JSON行数据: 本地文件用内存映射读取, 否则按资源文件流式读取
+     * @param dataFilepath 数据文件路径, 不存在时按资源文件名加载
+     * @return 找不到数据时返回null
+     * @throws IOException
+     */
+    private JsonLineReader openJSONLines(String dataFilepath) throws IOException{
+        File dataFile = new File(dataFilepath);
+        if (dataFile.exists()){
+            return FileUtil.mapJSONLines(dataFilepath, true);
+        }
+        InputStream dataStream = FileUtil.loadResource(dataFilepath);
+        if (dataStream == null){
+            System.out.println("[error] data file not found: " + dataFilepath);
+            return null;
+        }
+        return FileUtil.openJSONLines(dataStream, true);
+    }
+
+    /**
+     * 分片建索引: 按router把记录分到各分片, 各分片并行建索引
+     * @param dataFilepath 数据文件路径, 不存在时按资源文件名加载
+     * @param router 路由方式, 如按id哈希(HashShardRouter)或按经度分带(GeoShardRouter)
+     * @param threads 索引线程数
+     */
+    private void shardedMakeIndex(String dataFilepath, ShardRouter router, int threads){
+        if (analyzer == null && !initIdx()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        try{
+            JsonLineReader reader = openJSONLines(dataFilepath);
+            if (reader == null){
+                return;
+            }
+            BulkIndexer bulkIndexer = new BulkIndexer().setThreads(threads).setRamBufferMB(256).setMetrics(metrics).setAddressGrams(addressGrams);
+            long start = System.nanoTime();
+            long docs;
+            try (ShardedIndexWriter writer = new ShardedIndexWriter(Paths.get(shardPath), router, analyzer, bulkIndexer)){
+                docs = writer.index(bulkIndexer, reader);
+            }finally {
+                reader.close();
+            }
+            numShards = router.getNumShards();
+            System.out.println(String.format("分片导入文档数: %d, 分片: %s, 耗时: %.2fs", docs, router, (System.nanoTime() - start) / 1e9));
+            if (shardedSearcher != null && shardedSearcher.getNumShards() != numShards){
+                shardedSearcher.close();
+                shardedSearcher = null;
+            }else if (shardedSearcher != null){
+                shardedSearcher.maybeRefresh();
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 在分片索引上检索关键词, 并和把所有分片合成一个索引(MultiReader)的结果对比
+     * @param keyword 关键词
+     */
+    private void shardedSearchTest(String keyword){
+        if (analyzer == null && !initIdx()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        List<DirectoryReader> readers = new ArrayList<>();
+        try{
+            if (shardedSearcher == null){
+                shardedSearcher = new ShardedSearcher(Paths.get(shardPath), numShards, ShopSchema.SIMILARITY,
+                        Runtime.getRuntime().availableProcessors()).setMetrics(metrics);
+            }
+            Query query = queryBuilder.build(keyword);   //和searchTest一样按文本构造, 括号等字符不会解析失败
+            ShardedSearcher.ShardedHits hits = shardedSearcher.search(query, 10, ShopSchema.ID, ShopSchema.NAME);
+            System.out.println("分片查询结果数: " + hits.totalHits);
+            for (ShardedSearcher.ShardHit hit : hits.hits){
+                System.out.println(hit);
+            }
+
+            //对比: 所有分片合成一个reader检索, 得分和顺序应完全相同
+            for (int i = 0; i < numShards; i++){
+                readers.add(DirectoryReader.open(FSDirectory.open(ShardedIndexWriter.shardPath(Paths.get(shardPath), i))));
+            }
+            IndexSearcher whole = new IndexSearcher(new MultiReader(readers.toArray(new IndexReader[0]), false));
+            whole.setSimilarity(ShopSchema.SIMILARITY);
+            ScoreDoc[] expected = whole.search(query, 10).scoreDocs;
+            boolean same = expected.length == hits.hits.size();
+            for (int i = 0; same && i < expected.length; i++){
+                same = expected[i].score == hits.hits.get(i).score
+                        && whole.doc(expected[i].doc).get(ShopSchema.ID).equals(hits.hits.get(i).get(ShopSchema.ID));
+            }
+            System.out.println("与单个索引的结果一致: " + same);
+        }catch (IOException e){
+            e.printStackTrace();
+        }finally {
+            for (DirectoryReader reader : readers){
+                try{
+                    reader.close();
+                    reader.directory().close();
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 初始化SearcherManager. 只打开一次reader, 之后由后台线程定时maybeRefresh, 查询只acquire当前的searcher.
+     * @return
+     */
+    private boolean initSearcher(){
+        if (searcherManager != null){
+            return true;
+        }
+        if (analyzer == null && !initIdx()){
+            return false;
+        }
+        try{
+            searchPool = new ParallelSearchPool(Runtime.getRuntime().availableProcessors());
+            warmer = new QueryWarmer(1000, 10, queryBuilder::build, "id", "name")   //和searchTest的查询一致
+                    .setMaxWarmMs(warmBudgetMs);
+            warmer.load(Paths.get(warmQueriesPath));   //上次运行保存的查询, 第一个searcher发布前就预热
+            searcherManager = new SwitchingSearcherManager(idxDir, warmer.wrap(searchPool.newSearcherFactory(ShopSchema.SIMILARITY)));   //reopen出的searcher都共用这个线程池和相似度, 预热后才发布
+            System.out.println(String.format("索引目录: %s, 预热查询数: %d, 耗时: %.2fms", dirFactory, warmer.getLastWarmQueries(), warmer.getLastWarmMs()));
+            resultCache = new QueryResultCache(1000, 16 * 1024 * 1024).setMetrics(metrics);   //最多1000个查询, 16MB
+            batchSearcher = new BatchSearcher(queryBuilder, Runtime.getRuntime().availableProcessors()).setMetrics(metrics);
+            searcherManager.addListener(resultCache);
+            SwitchingSearcherManager manager = searcherManager;
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "searcher-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+            refresher.scheduleWithFixedDelay(() -> {
+                try{
+                    manager.maybeRefresh();   //其他进程commit的修改; 新searcher预热完才发布, 查询不等待
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }, refreshIntervalMs, refreshIntervalMs, TimeUnit.MILLISECONDS);
+            metrics.watch(searcherManager);   //记录reopen耗时, 统计段数和删除文档比例
+            metrics.register(metricsName);   //jconsole中查看
+        }catch (IOException e){
+            e.printStackTrace();
+            return false;
+        }catch (JMException e){
+            e.printStackTrace();   //JMX不可用不影响检索
+        }
+        return true;
+    }
+
     /**
      * 用关键词进行检索
      * @param keyword 关键词
      */
     private void searchTest(String keyword){
-        if (analyzer == null && !initIdx()){
+        if (!initSearcher()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        IndexSearcher isearcher = null;
+        try {
+            //1. 索引有新的commit时reopen(只打开变化的段), 否则直接复用当前reader
+            //2. 借用当前的索引器, 用完后必须release
+            isearcher = searcherManager.acquire();
+            warmer.record(keyword);   //记下关键词, 之后reopen和下次启动时用于预热
+            //3. 构造查询并获取结果: 同一reader上重复的关键词直接返回缓存的结果, 不再分析, 打分和读取文档
+            QueryResultCache.CachedHits hits = resultCache.search(isearcher, queryBuilder, keyword, 10,  //queryBuilder用analyzer分析关键字, 查询name域, 获取top10个查询结果.
+                    "id", "name");   //id和name有DocValues, 按列读取
+            System.out.println("查询结果数: " + hits.hits.size());
+            for (QueryResultCache.CachedHit hit : hits.hits){
+                System.out.println("id:" + hit.get("id") + "\tname:" + hit.get("name") + "\taddr:" + hit.get("addr")); //因为addr未存储也没有DocValues,所以获取的都是null
+            }
+            System.out.println("结果缓存: " + resultCache);
+        }catch (IOException e){
+            e.printStackTrace();
+        }finally {
+            if (isearcher != null){
+                try{
+                    searcherManager.release(isearcher);
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 批量检索: 一批关键词共用一个searcher并行检索, 命中文档按文档号顺序统一读取存储字段
+     * @param keywords 关键词
+     */
+    private void batchSearchTest(List<String> keywords){
+        if (!initSearcher()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        IndexSearcher isearcher = null;
+        try {
+            isearcher = searcherManager.acquire();
+            long start = System.nanoTime();
+            List<BatchSearcher.KeywordResult> results = batchSearcher.search(isearcher, keywords, 10, "id", "name");
+            System.out.println(String.format("批量查询%d个关键词, 耗时: %.3fms", keywords.size(), (System.nanoTime() - start) / 1e6));
+            for (BatchSearcher.KeywordResult result : results){
+                System.out.println(result);
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }finally {
+            if (isearcher != null){
+                try{
+                    searcherManager.release(isearcher);
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 多域检索: 关键词同时检索name和addr, 按ShopSchema.FIELD_BOOSTS加权, 各域按ShopSimilarity的参数打分
+     * @param keyword 关键词
+     */
+    private void multiFieldSearchTest(String keyword){
+        if (!initSearcher()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        IndexSearcher isearcher = null;
+        try {
+            isearcher = searcherManager.acquire();
+            long start = System.nanoTime();
+            String[] fields = ShopSchema.FIELD_BOOSTS.keySet().toArray(new String[0]);
+            Query query = new MultiFieldQueryParser(fields, analyzer, ShopSchema.FIELD_BOOSTS).parse(keyword);
+            TopDocs topDocs = isearcher.search(query, 10);
+            int[] docs = new int[topDocs.scoreDocs.length];
+            for (int i = 0; i < docs.length; i++){
+                docs[i] = topDocs.scoreDocs[i].doc;
+            }
+            Map<Integer, Map<String, String>> values = FieldLoader.load(isearcher.getIndexReader(), docs, ShopSchema.ID, ShopSchema.NAME);
+            metrics.record(SearchMetrics.Stage.QUERY, System.nanoTime() - start);
+            System.out.println("多域查询结果数: " + topDocs.totalHits + ", 查询: " + query);
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs){
+                System.out.println(String.format("%.3f\t%s", scoreDoc.score, values.get(scoreDoc.doc)));
+            }
+        }catch (IOException e){
+            metrics.recordError(SearchMetrics.Stage.QUERY);
+            e.printStackTrace();
+        }catch (ParseException e){
+            metrics.recordError(SearchMetrics.Stage.QUERY);
+            e.printStackTrace();
+            System.out.print("fail to parse Query");
+        }finally {
+            if (isearcher != null){
+                try{
+                    searcherManager.release(isearcher);
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 排序检索: 匹配关键词的POI按sort排序取top10, 不按相关度.
+     * 按索引排序(热度)检索时, 每个段收集到10个即停止, 不遍历全部匹配文档.
+     * @param keyword 关键词
+     * @param sort 排序方式, 如ShopSchema.BY_POPULARITY, ShopSchema.BY_ID
+     */
+    private void sortedSearchTest(String keyword, Sort sort){
+        if (!initSearcher()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        IndexSearcher isearcher = null;
+        try {
+            isearcher = searcherManager.acquire();
+            long start = System.nanoTime();
+            Query query = queryBuilder.build(keyword);
+            SortedSearch.SortedHits hits = SortedSearch.search(isearcher, query, sort, 10);
+            ScoreDoc[] scoreDocs = hits.topDocs.scoreDocs;
+            int[] docs = new int[scoreDocs.length];
+            for (int i = 0; i < docs.length; i++){
+                docs[i] = scoreDocs[i].doc;
+            }
+            Map<Integer, Map<String, String>> fields = FieldLoader.load(isearcher.getIndexReader(), docs,
+                    ShopSchema.ID, ShopSchema.NAME, ShopSchema.POPULARITY);
+            metrics.record(SearchMetrics.Stage.QUERY, System.nanoTime() - start);   //SortedSearch是静态方法, 在这里记录整个请求的耗时
+            System.out.println(String.format("排序查询结果数: %d%s, 排序: %s", hits.topDocs.totalHits,
+                    hits.earlyTerminated ? "+(提前结束)" : "", sort));
+            for (ScoreDoc scoreDoc : scoreDocs){
+                System.out.println(fields.get(scoreDoc.doc));
+            }
+        }catch (IOException e){
+            metrics.recordError(SearchMetrics.Stage.QUERY);
+            e.printStackTrace();
+        }finally {
+            if (isearcher != null){
+                try{
+                    searcherManager.release(isearcher);
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 部分地址检索, 如"浙江南路78", "上海市黄浦区*": 索引有地址子串域时转成2字组合的短语/前缀查询(AddressQueryBuilder),
+     * 否则退回QueryParser的通配符查询"*浙江南路78*", 后者要遍历addr的词典.
+     * @param keyword 部分地址
+     */
+    private void addressSearchTest(String keyword){
+        if (!initSearcher()){
             System.out.println("[error] fail to init index");
             return;
         }
+        IndexSearcher isearcher = null;
         try {
-            //1. 索引目录读取器, 打开索引目录
-            DirectoryReader ireader = DirectoryReader.open(idxDir);
-            //2. 根据索引目录, 创建索引器
-            IndexSearcher isearcher = new IndexSearcher(ireader);
-            //3. 解析查询
-            QueryParser parser = new QueryParser("name", analyzer);  //传入analyzer分析关键字, 并指定要查询的域
-            Query query = parser.parse(keyword);
-
-            //4. 获取结果
-            ScoreDoc[] hits = isearcher.search(query, 10).scoreDocs;  // 获取top10个查询结果.
-            System.out.println("查询结果数: " + hits.length);
-            for(int i = 0; i < hits.length; i++){
-                Document  hitDoc = isearcher.doc(hits[i].doc);
-                System.out.println("id:" + hitDoc.get("id") + "\tname:" + hitDoc.get("name") + "\taddr:" + hitDoc.get("addr")); //因为addr未存储,所以获取的都是null
+            isearcher = searcherManager.acquire();
+            long start = System.nanoTime();
+            Query query = MultiFields.getTerms(isearcher.getIndexReader(), ShopSchema.ADDR_NGRAM) != null ? AddressQueryBuilder.build(keyword) : null;
+            if (query == null){
+                QueryParser parser = new QueryParser(ShopSchema.ADDR, analyzer);
+                parser.setAllowLeadingWildcard(true);
+                String body = keyword.trim();
+                query = parser.parse(body.startsWith("*") || body.endsWith("*") ? body : "*" + body + "*");
+            }
+            TopDocs topDocs = isearcher.search(query, 10);
+            int[] docs = new int[topDocs.scoreDocs.length];
+            for (int i = 0; i < docs.length; i++){
+                docs[i] = topDocs.scoreDocs[i].doc;
+            }
+            Map<Integer, Map<String, String>> values = FieldLoader.load(isearcher.getIndexReader(), docs, ShopSchema.ID, ShopSchema.NAME);
+            metrics.record(SearchMetrics.Stage.QUERY, System.nanoTime() - start);
+            System.out.println(String.format("地址查询结果数: %d, 耗时: %.2fms, 查询: %s", topDocs.totalHits, (System.nanoTime() - start) / 1e6, query));
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs){
+                System.out.println(values.get(scoreDoc.doc));
             }
         }catch (IOException e){
+            metrics.recordError(SearchMetrics.Stage.QUERY);
             e.printStackTrace();
         }catch (ParseException e){
+            metrics.recordError(SearchMetrics.Stage.QUERY);
             e.printStackTrace();
             System.out.print("fail to parse Query");
+        }finally {
+            if (isearcher != null){
+                try{
+                    searcherManager.release(isearcher);
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 附近检索: 在(lat, lon)半径radiusMeters以内检索关键词, 按距离由近到远输出
+     * @param keyword 关键词, 为空时不限关键词
+     * @param lat 纬度
+     * @param lon 经度
+     * @param radiusMeters 半径(米)
+     */
+    private void nearbySearchTest(String keyword, double lat, double lon, double radiusMeters){
+        if (!initSearcher()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        IndexSearcher isearcher = null;
+        try {
+            isearcher = searcherManager.acquire();
+            long start = System.nanoTime();
+            Query query = null;
+            if (keyword != null && !keyword.isEmpty()){
+                query = queryBuilder.build(keyword);
+            }
+            List<GeoSearcher.GeoHit> hits = GeoSearcher.nearby(isearcher, query, lat, lon, radiusMeters, 10);
+            metrics.record(SearchMetrics.Stage.QUERY, System.nanoTime() - start);   //GeoSearcher是静态方法, 在这里记录整个请求的耗时
+            System.out.println("附近查询结果数: " + hits.size());
+            for (GeoSearcher.GeoHit hit : hits){
+                System.out.println(hit);
+            }
+        }catch (IOException e){
+            metrics.recordError(SearchMetrics.Stage.QUERY);
+            e.printStackTrace();
+        }finally {
+            if (isearcher != null){
+                try{
+                    searcherManager.release(isearcher);
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 店名输入提示. 提示索引为空时先从主索引构建, 之后直接复用磁盘上的提示索引.
+     * @param prefix 用户输入的前缀
+     */
+    private void suggestTest(String prefix){
+        if (!initSearcher()){
+            System.out.println("[error] fail to init index");
+            return;
+        }
+        IndexSearcher isearcher = null;
+        try{
+            if (suggester == null){
+                suggester = new ShopSuggester(FSDirectory.open(Paths.get(suggestPath))).setMetrics(metrics);
+                if (suggester.getCount() == 0){
+                    isearcher = searcherManager.acquire();
+                    suggester.buildFromIndex(isearcher.getIndexReader());
+                }
+            }
+            long start = System.nanoTime();
+            List<Lookup.LookupResult> results = suggester.suggest(prefix, 10);
+            System.out.println(String.format("提示结果数: %d, 耗时: %.3fms", results.size(), (System.nanoTime() - start) / 1e6));
+            for (Lookup.LookupResult result : results){
+                System.out.println("name:" + result.key + "\tid:" + result.payload.utf8ToString());
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }finally {
+            if (isearcher != null){
+                try{
+                    searcherManager.release(isearcher);
+                }catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 释放reader和索引目录
+     */
+    private void close(){
+        try{
+            if (suggester != null){
+                suggester.close();
+                suggester = null;
+            }
+            if (refresher != null){
+                refresher.shutdown();
+                try{
+                    refresher.awaitTermination(10, TimeUnit.SECONDS);
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                refresher = null;
+            }
+            if (searcherManager != null){
+                searcherManager.close();
+                searcherManager = null;
+                resultCache = null;
+                SearchMetrics.unregister(metricsName);
+            }
+            if (warmer != null){
+                warmer.save(Paths.get(warmQueriesPath));
+                warmer = null;
+            }
+            if (batchSearcher != null){
+                batchSearcher.close();
+                batchSearcher = null;
+            }
+            if (searchPool != null){
+                searchPool.close();
+                searchPool = null;
+            }
+            if (shardedSearcher != null){
+                shardedSearcher.close();
+                shardedSearcher = null;
+            }
+            if (idxDir != null){
+                idxDir.close();
+                idxDir = null;
+            }
+            analyzer = null;
+        }catch (IOException | JMException e){
+            e.printStackTrace();
         }
     }
 
@@ -137,8 +863,25 @@ public class RetrievalDemo {
         String keywords = "追加";
         RetrievalDemo demo1 =new RetrievalDemo();
 //        demo1.makeIndex("shop.json");
+//        demo1.bulkMakeIndex("shop.json", 4);   //大文件用批量导入模式
+//        demo1.snapshotMakeIndex("shop.json", 4);   //反复全量重建时, 从二进制快照导入
+//        demo1.deltaMakeIndex("shop.json");   //每天更新的数据, 只写入变化的记录
+//        demo1.blueGreenMakeIndex("shop.json", 4, 1);   //线上全量重建: 写入新目录, 建好后切换, 不影响查询
         demo1.searchTest(keywords);
-
+        demo1.searchTest(" " + keywords + " ");   //规整后与上一个查询相同, 命中缓存
+        demo1.searchTest("星巴克(江苏店)");   //括号不是查询语法, 不会解析失败
+        demo1.batchSearchTest(Arrays.asList("星巴克", "密室逃脱", "VR", "剧情"));
+        demo1.multiFieldSearchTest("密室 黄浦区");
+        demo1.addressSearchTest("浙江南路78");   //部分地址, makeIndex按地址子串模式建索引后走addr_ngram
+        demo1.addressSearchTest("上海市长宁区*");
+        demo1.sortedSearchTest("密室", ShopSchema.BY_POPULARITY);
+        demo1.sortedSearchTest("密室", ShopSchema.BY_ID);
+        demo1.suggestTest("星巴");
+        demo1.shardedMakeIndex("shop.json", new HashShardRouter(4), 2);
+        demo1.shardedSearchTest("密室逃脱");
+        demo1.nearbySearchTest("密室", 31.2288, 121.48206, 3000);   //人民广场附近3公里的密室
+        System.out.println("指标: " + demo1.metrics.snapshot());
+        demo1.close();
 
     }
 }
@@ -0,0 +1,68 @@
+package cc.ferguschen.retrieval.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenizer;
+import org.apache.lucene.analysis.ngram.NGramTokenizer;
+
+/**
+ * Created by chenqining on 2018/8/10.
+ * 地址子串检索用的分析器. 地址在标点和空白处断开成段(只有字母和数字组成段), 统一小写后按模式输出:
+ * * NGRAM: 段内所有的1字和2字组合, 按起点排列, 同一起点先1字后2字(所以相邻的2字组合位置相差2).
+ *   任意子串都能转成其2字组合的短语查询, 只查几个词的倒排, 不必像通配符查询那样遍历词典;
+ * * EDGE: 每段开头的前缀(1~maxGram字), 地址的前缀查询只查一个词.
+ * 建索引和查询使用同一个实例, 查询见{@link cc.ferguschen.retrieval.search.AddressQueryBuilder}.
+ */
+public class AddressGramAnalyzer extends Analyzer {
+    public enum Mode {
+        NGRAM, EDGE
+    }
+
+    private final Mode mode;
+    private final int maxGram;
+
+    /**
+     * @param mode NGRAM: 1~2字组合; EDGE: 每段的前缀
+     * @param maxGram EDGE模式下前缀的最大长度, NGRAM模式忽略
+     */
+    public AddressGramAnalyzer(Mode mode, int maxGram) {
+        this.mode = mode;
+        this.maxGram = maxGram;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getMaxGram() {
+        return mode == Mode.NGRAM ? 2 : maxGram;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName) {
+        Tokenizer tokenizer;
+        if (mode == Mode.NGRAM) {
+            tokenizer = new NGramTokenizer(1, 2) {
+                @Override
+                protected boolean isTokenChar(int chr) {
+                    return Character.isLetterOrDigit(chr);
+                }
+            };
+        } else {
+            tokenizer = new EdgeNGramTokenizer(1, maxGram) {
+                @Override
+                protected boolean isTokenChar(int chr) {
+                    return Character.isLetterOrDigit(chr);
+                }
+            };
+        }
+        return new TokenStreamComponents(tokenizer, new LowerCaseFilter(tokenizer));
+    }
+
+    @Override
+    protected TokenStream normalize(String fieldName, TokenStream in) {
+        return new LowerCaseFilter(in);
+    }
+}
@@ -0,0 +1,563 @@
+package cc.ferguschen.retrieval.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.AnalyzerWrapper;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * Created by chenqining on 2018/8/9.
+ * 缓存分析结果的分析器包装.
+ * POI的店名和地址大量重复(连锁店名"星巴克", 区县前缀等), 但每次出现都要重新分词. 这里把输入在空白, 括号和中文标点之后切成片段
+ * (片段带着其后的切分字符, 如"星巴克(", "江苏店)", 被过滤掉的标点仍然计入位置增量), 每个不超过maxChars的片段缓存其词元序列
+ * (词, 偏移, 类型, 位置增量, 结束偏移), 再次遇到时直接回放, 不再调用被包装的分析器; 片段第二次出现才缓存,
+ * 遇到不缓存的片段时剩余输入照常分析.
+ * 适合分词慢的分析器(AdvIKAnalyzer, SmartChineseAnalyzer): 查一次缓存(构造键, 哈希, 加锁)和StandardAnalyzer分析同样的片段
+ * 开销相当, 包装StandardAnalyzer不会更快.
+ * 切分字符必须是被包装的分析器不会跨越来组合词元的: 默认的{@link #DEFAULT_BREAKS}适用于StandardAnalyzer, CJKAnalyzer,
+ * SmartChineseAnalyzer和AdvIKAnalyzer; WhitespaceAnalyzer只能用{@link #WHITESPACE_BREAKS}, KeywordAnalyzer不能切分.
+ * * 缓存按键的哈希分成多个分段, 每段一把锁, 按最近最少使用淘汰, 总大小(估算字节数)有上限, 多个索引线程可以同时使用;
+ * * 被包装的分析器按域复用时(PER_FIELD), 键包含域名; 所有域共用一套组件时(GLOBAL, 如StandardAnalyzer), 各域共享缓存;
+ * * 分词依赖可热加载的词典时, 传入generation(如DictionaryManager::get), 它变化后旧的缓存结果不再使用;
+ * * 被包装的分析器不能有CharFilter(AnalyzerWrapper会对输入先应用一次), Lucene自带的中文分析器和AdvIKAnalyzer都没有.
+ * close时不会关闭被包装的分析器.
+ */
+public class CachingAnalyzer extends AnalyzerWrapper {
+    /**
+     * 默认的切分字符: 空白, 括号, 以及全角/中文标点(，、。：等).
+     * 不含英文的. , ' _ 等: StandardTokenizer会把"U.S.A", "1,000"这样的串当作一个词.
+     */
+    public static final IntPredicate DEFAULT_BREAKS = c -> Character.isWhitespace(c) || isBracket(c) || (c >= 0x3000 && isPunctuation(c));
+
+    /**
+     * 只在空白处切分
+     */
+    public static final IntPredicate WHITESPACE_BREAKS = Character::isWhitespace;
+
+    private static final int STRIPES = 16;
+
+    private final Analyzer delegate;
+    private final boolean perField;
+    private final int maxChars;
+    private final IntPredicate breaks;
+    private final Supplier<?> generation;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param delegate 被包装的分析器
+     * @param maxRamBytes 缓存估算占用的最大字节数
+     */
+    public CachingAnalyzer(Analyzer delegate, long maxRamBytes) {
+        this(delegate, maxRamBytes, 32, DEFAULT_BREAKS, null);
+    }
+
+    /**
+     * @param delegate 被包装的分析器
+     * @param maxRamBytes 缓存估算占用的最大字节数
+     * @param maxChars 只缓存不超过这个长度的片段
+     * @param breaks 切分片段的字符, 被包装的分析器不能跨这些字符组合词元
+     * @param generation 分析结果的版本, 返回的对象变化(按引用比较)后旧的缓存失效; 可以为null
+     */
+    public CachingAnalyzer(Analyzer delegate, long maxRamBytes, int maxChars, IntPredicate breaks, Supplier<?> generation) {
+        super(delegate.getReuseStrategy());
+        this.delegate = delegate;
+        this.perField = delegate.getReuseStrategy() != Analyzer.GLOBAL_REUSE_STRATEGY;
+        this.maxChars = maxChars;
+        this.breaks = breaks;
+        this.generation = generation;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(maxRamBytes / STRIPES);
+        }
+    }
+
+    private static boolean isBracket(int c) {
+        int type = Character.getType(c);
+        return type == Character.START_PUNCTUATION || type == Character.END_PUNCTUATION;
+    }
+
+    private static boolean isPunctuation(int c) {
+        switch (Character.getType(c)) {
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.DASH_PUNCTUATION:
+            case Character.START_PUNCTUATION:
+            case Character.END_PUNCTUATION:
+            case Character.INITIAL_QUOTE_PUNCTUATION:
+            case Character.FINAL_QUOTE_PUNCTUATION:
+            case Character.OTHER_PUNCTUATION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    protected Analyzer getWrappedAnalyzer(String fieldName) {
+        return delegate;
+    }
+
+    @Override
+    protected TokenStreamComponents wrapComponents(String fieldName, TokenStreamComponents components) {
+        return new TokenStreamComponents(new CachingTokenizer(fieldName));   //不使用被包装分析器的组件, 未命中时通过它的tokenStream分析
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    public long getHitCount() {
+        long n = 0;
+        for (Stripe stripe : stripes) {
+            n += stripe.hitCount;
+        }
+        return n;
+    }
+
+    public long getMissCount() {
+        long n = 0;
+        for (Stripe stripe : stripes) {
+            n += stripe.missCount;
+        }
+        return n;
+    }
+
+    /**
+     * 命中率, 超过maxChars不缓存的片段不计入
+     * @return
+     */
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long ramBytesUsed() {
+        long n = 0;
+        for (Stripe stripe : stripes) {
+            n += stripe.ramBytesUsed;
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        int entries = 0;
+        long evictions = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                entries += stripe.cache.size();
+                evictions += stripe.evictionCount;
+            }
+        }
+        long hits = getHitCount();
+        return String.format("entries=%d, ram=%.1fKB, hitRatio=%.2f (%d/%d), evictions=%d",
+                entries, ramBytesUsed() / 1024.0, getHitRatio(), hits, hits + getMissCount(), evictions);
+    }
+
+    /**
+     * @return 缓存的分析结果; 未命中且片段第一次出现时返回null, 由调用方直接流式分析, 不缓存
+     */
+    private Tokens lookup(String fieldName, String fragment) throws IOException {
+        Object gen = generation == null ? null : generation.get();
+        String key = perField ? fieldName + '\u0000' + fragment : fragment;
+        int hash = key.hashCode();
+        Stripe stripe = stripes[(hash & 0x7fffffff) % STRIPES];
+        Tokens tokens = stripe.get(key, gen);
+        if (tokens == null && stripe.admit(hash)) {
+            tokens = analyze(fieldName, fragment, gen);   //在锁外分析, 并发未命中时各算一次
+            stripe.put(key, tokens);
+        }
+        return tokens;
+    }
+
+    /**
+     * 记下一个不经过缓存分析的片段, 下次出现时可以放入缓存
+     * @param keyHash 键的哈希, 和lookup中键的hashCode相同
+     */
+    private void markSeen(int keyHash) {
+        stripes[(keyHash & 0x7fffffff) % STRIPES].admit(keyHash);
+    }
+
+    private Tokens analyze(String fieldName, String text, Object gen) throws IOException {
+        TokenBuilder builder = new TokenBuilder();
+        try (TokenStream ts = delegate.tokenStream(fieldName, text)) {
+            CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+            OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+            TypeAttribute typeAtt = ts.addAttribute(TypeAttribute.class);
+            PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+            PositionLengthAttribute posLenAtt = ts.addAttribute(PositionLengthAttribute.class);
+            ts.reset();
+            while (ts.incrementToken()) {
+                builder.add(termAtt.buffer(), termAtt.length(), offsetAtt.startOffset(), offsetAtt.endOffset(),
+                        typeAtt.type(), posIncAtt.getPositionIncrement(), posLenAtt.getPositionLength());
+            }
+            ts.end();
+            return builder.build(offsetAtt.endOffset(), posIncAtt.getPositionIncrement(), gen);
+        }
+    }
+
+    /**
+     * 一个片段的分析结果, 不可修改
+     */
+    private static final class Tokens {
+        final char[] chars;     //所有词拼接
+        final int[] ends;       //每个词在chars中的结束位置
+        final int[] startOffsets;
+        final int[] endOffsets;
+        final String[] types;
+        final int[] posIncs;
+        final int[] posLens;
+        final int finalOffset;  //end()之后的偏移, 多数分析器是片段长度, IK是最后一个词的结束位置
+        final int endPosInc;    //end()之后的位置增量, 即末尾被过滤掉的词数
+        final Object generation;
+        final long ramBytes;
+
+        Tokens(char[] chars, int[] ends, int[] startOffsets, int[] endOffsets, String[] types,
+               int[] posIncs, int[] posLens, int finalOffset, int endPosInc, Object generation) {
+            this.chars = chars;
+            this.ends = ends;
+            this.startOffsets = startOffsets;
+            this.endOffsets = endOffsets;
+            this.types = types;
+            this.posIncs = posIncs;
+            this.posLens = posLens;
+            this.finalOffset = finalOffset;
+            this.endPosInc = endPosInc;
+            this.generation = generation;
+            this.ramBytes = RamUsageEstimator.sizeOf(chars) + 5 * RamUsageEstimator.sizeOf(ends)
+                    + RamUsageEstimator.shallowSizeOf(types) + 3 * RamUsageEstimator.NUM_BYTES_OBJECT_HEADER;   //types是共享的常量
+        }
+
+        int size() {
+            return ends.length;
+        }
+    }
+
+    private static final class TokenBuilder {
+        private char[] chars = new char[16];
+        private int charCount = 0;
+        private int[] ends = new int[4];
+        private int[] startOffsets = new int[4];
+        private int[] endOffsets = new int[4];
+        private String[] types = new String[4];
+        private int[] posIncs = new int[4];
+        private int[] posLens = new int[4];
+        private int count = 0;
+
+        void add(char[] term, int length, int startOffset, int endOffset, String type, int posInc, int posLen) {
+            chars = ArrayUtil.grow(chars, charCount + length);
+            System.arraycopy(term, 0, chars, charCount, length);
+            charCount += length;
+            if (count == ends.length) {
+                int size = ArrayUtil.oversize(count + 1, Integer.BYTES);
+                ends = ArrayUtil.grow(ends, size);
+                startOffsets = ArrayUtil.grow(startOffsets, size);
+                endOffsets = ArrayUtil.grow(endOffsets, size);
+                types = ArrayUtil.grow(types, size);
+                posIncs = ArrayUtil.grow(posIncs, size);
+                posLens = ArrayUtil.grow(posLens, size);
+            }
+            ends[count] = charCount;
+            startOffsets[count] = startOffset;
+            endOffsets[count] = endOffset;
+            types[count] = type;
+            posIncs[count] = posInc;
+            posLens[count] = posLen;
+            count++;
+        }
+
+        Tokens build(int finalOffset, int endPosInc, Object generation) {
+            return new Tokens(Arrays.copyOf(chars, charCount), Arrays.copyOf(ends, count),
+                    Arrays.copyOf(startOffsets, count), Arrays.copyOf(endOffsets, count),
+                    Arrays.copyOf(types, count), Arrays.copyOf(posIncs, count),
+                    Arrays.copyOf(posLens, count), finalOffset, endPosInc, generation);
+        }
+    }
+
+    /**
+     * 缓存的一个分段: 按访问顺序的LinkedHashMap, 超过字节上限时淘汰最久未用的.
+     * 片段第二次出现时才放入缓存: seen按哈希记录最近未命中的片段(冲突时覆盖), 只出现一次的片段(如带门牌号的地址)
+     * 不分配缓存结构, 也不挤掉常用的片段.
+     */
+    private static final class Stripe {
+        private static final long ENTRY_OVERHEAD = 2 * RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+                + 6 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + Integer.BYTES;
+        private static final int SEEN_SLOTS = 4096;
+
+        private final long maxRamBytes;
+        private final LinkedHashMap<String, Tokens> cache = new LinkedHashMap<>(64, 0.75f, true);
+        private final int[] seen = new int[SEEN_SLOTS];
+        private long ramBytesUsed;
+        private volatile long hitCount;
+        private volatile long missCount;
+        private long evictionCount;
+
+        Stripe(long maxRamBytes) {
+            this.maxRamBytes = maxRamBytes;
+        }
+
+        synchronized Tokens get(String key, Object generation) {
+            Tokens tokens = cache.get(key);
+            if (tokens != null && tokens.generation == generation) {
+                hitCount++;
+                return tokens;
+            }
+            missCount++;
+            return null;
+        }
+
+        /**
+         * 未命中时调用: 片段最近出现过则返回true, 否则记下它
+         */
+        synchronized boolean admit(int hash) {
+            int slot = (hash >>> 4) & (SEEN_SLOTS - 1);   //低位已用于选择分段
+            if (seen[slot] == hash) {
+                return true;
+            }
+            seen[slot] = hash;
+            return false;
+        }
+
+        synchronized void put(String key, Tokens tokens) {
+            long bytes = entryBytes(key, tokens);
+            if (bytes > maxRamBytes) {
+                return;
+            }
+            Tokens old = cache.put(key, tokens);
+            if (old != null) {
+                ramBytesUsed -= entryBytes(key, old);
+            }
+            ramBytesUsed += bytes;
+            Iterator<Map.Entry<String, Tokens>> it = cache.entrySet().iterator();
+            while (ramBytesUsed > maxRamBytes && it.hasNext()) {
+                Map.Entry<String, Tokens> eldest = it.next();
+                it.remove();
+                ramBytesUsed -= entryBytes(eldest.getKey(), eldest.getValue());
+                evictionCount++;
+            }
+        }
+
+        synchronized void clear() {
+            cache.clear();
+            Arrays.fill(seen, 0);
+            ramBytesUsed = 0;
+        }
+
+        private static long entryBytes(String key, Tokens tokens) {
+            return ENTRY_OVERHEAD + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) Character.BYTES * key.length())
+                    + tokens.ramBytes;
+        }
+    }
+
+    /**
+     * 读入全部输入, 按片段查缓存并回放词元. 片段内的偏移加上片段的起点, 片段末尾被过滤掉的词计入下一个词的位置增量;
+     * 结束偏移取最后一个有结束偏移的片段的, 和整段分析一致.
+     * 遇到不缓存的片段(第一次出现或超过maxChars)时, 从它开始的剩余输入一次交给被包装的分析器, 逐个词元转发, 不先缓冲:
+     * 片段之间不组合词元, 所以和逐个片段分析的结果相同, 但只有一次reset.
+     */
+    private final class CachingTokenizer extends Tokenizer {
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+        private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        private final PositionLengthAttribute posLenAtt = addAttribute(PositionLengthAttribute.class);
+        private final String fieldName;
+        private final int keyPrefixHash;   //键中片段之前部分的哈希
+
+        private char[] text = new char[256];
+        private int length;
+        private int next;           //下一个片段的查找起点
+        private int currentBase;    //当前片段在输入中的起点
+        private Tokens current;     //当前片段缓存的词元
+        private int index;
+        private TokenStream live;   //剩余输入不走缓存时, 被包装分析器的TokenStream
+        private int liveCount;
+        private CharTermAttribute liveTermAtt;
+        private OffsetAttribute liveOffsetAtt;
+        private TypeAttribute liveTypeAtt;
+        private PositionIncrementAttribute livePosIncAtt;
+        private PositionLengthAttribute livePosLenAtt;
+        private int carriedPosInc;  //之前片段末尾被过滤掉的词数
+        private int finalOffset;
+        private boolean started;
+
+        CachingTokenizer(String fieldName) {
+            this.fieldName = fieldName;
+            this.keyPrefixHash = perField ? (fieldName + '\u0000').hashCode() : 0;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            closeLive();
+            length = 0;
+            int n;
+            while ((n = input.read(text, length, text.length - length)) != -1) {
+                length += n;
+                if (length == text.length) {
+                    text = ArrayUtil.grow(text, length + 1);
+                }
+            }
+            next = 0;
+            current = null;
+            index = 0;
+            carriedPosInc = 0;
+            finalOffset = 0;
+            started = false;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            while (true) {
+                if (live != null) {
+                    if (live.incrementToken()) {
+                        clearAttributes();
+                        termAtt.copyBuffer(liveTermAtt.buffer(), 0, liveTermAtt.length());
+                        setToken(liveOffsetAtt.startOffset(), liveOffsetAtt.endOffset(), liveTypeAtt.type(),
+                                livePosIncAtt.getPositionIncrement(), livePosLenAtt.getPositionLength());
+                        liveCount++;
+                        return true;
+                    }
+                    endLive();
+                } else if (current != null && index < current.size()) {
+                    clearAttributes();
+                    int start = index == 0 ? 0 : current.ends[index - 1];
+                    termAtt.copyBuffer(current.chars, start, current.ends[index] - start);
+                    setToken(current.startOffsets[index], current.endOffsets[index], current.types[index],
+                            current.posIncs[index], current.posLens[index]);
+                    index++;
+                    return true;
+                } else {
+                    if (current != null) {
+                        carriedPosInc += current.endPosInc;
+                        current = null;
+                    }
+                    if (!nextFragment()) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        private void setToken(int startOffset, int endOffset, String type, int posInc, int posLen) {
+            offsetAtt.setOffset(correctOffset(currentBase + startOffset), correctOffset(currentBase + endOffset));
+            typeAtt.setType(type);
+            posIncAtt.setPositionIncrement(posInc + carriedPosInc);
+            posLenAtt.setPositionLength(posLen);
+            carriedPosInc = 0;
+        }
+
+        private boolean nextFragment() throws IOException {
+            int start = next;
+            if (start == length && (start > 0 || started)) {   //空输入也分析一次, KeywordAnalyzer会产生一个空词
+                return false;
+            }
+            int end = fragmentEnd(start);
+            next = end;
+            started = true;
+            currentBase = start;
+            current = end - start <= maxChars ? lookup(fieldName, new String(text, start, end - start)) : null;
+            if (current == null) {
+                next = length;
+                startLive(new String(text, start, length - start));   //剩余部分一次分析, IK每次reset都要重新分配缓冲区
+                for (int from = end, to; from < length; from = to) {   //剩余的片段也记下, 再次出现时可以逐个缓存
+                    to = fragmentEnd(from);
+                    if (to - from <= maxChars) {
+                        int hash = keyPrefixHash;
+                        for (int i = from; i < to; i++) {
+                            hash = 31 * hash + text[i];   //即String.hashCode
+                        }
+                        markSeen(hash);
+                    }
+                }
+            } else {
+                index = 0;
+                if (current.finalOffset > 0 || current.size() > 0) {
+                    finalOffset = start + current.finalOffset;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 从start开始的片段的结束位置: 开头的切分字符, 非切分字符, 及其后的切分字符
+         */
+        private int fragmentEnd(int start) {
+            int end = start;
+            while (end < length && breaks.test(text[end])) {   //输入开头的切分字符
+                end++;
+            }
+            while (end < length && !breaks.test(text[end])) {
+                end++;
+            }
+            while (end < length && breaks.test(text[end])) {
+                end++;
+            }
+            return end;
+        }
+
+        private void startLive(String fragment) throws IOException {
+            live = delegate.tokenStream(fieldName, fragment);
+            liveTermAtt = live.addAttribute(CharTermAttribute.class);
+            liveOffsetAtt = live.addAttribute(OffsetAttribute.class);
+            liveTypeAtt = live.addAttribute(TypeAttribute.class);
+            livePosIncAtt = live.addAttribute(PositionIncrementAttribute.class);
+            livePosLenAtt = live.addAttribute(PositionLengthAttribute.class);
+            liveCount = 0;
+            live.reset();
+        }
+
+        private void endLive() throws IOException {
+            live.end();
+            carriedPosInc += livePosIncAtt.getPositionIncrement();
+            if (liveOffsetAtt.endOffset() > 0 || liveCount > 0) {
+                finalOffset = currentBase + liveOffsetAtt.endOffset();
+            }
+            closeLive();
+        }
+
+        private void closeLive() throws IOException {
+            if (live != null) {
+                TokenStream ts = live;
+                live = null;
+                ts.close();   //被包装分析器的组件按线程复用, 必须关闭后才能分析下一个片段
+            }
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            if (live != null) {
+                endLive();
+            }
+            int offset = correctOffset(finalOffset);
+            offsetAtt.setOffset(offset, offset);
+            posIncAtt.setPositionIncrement(carriedPosInc + (current == null ? 0 : current.endPosInc));
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeLive();
+            super.close();
+        }
+    }
+}
@@ -1,25 +1,49 @@
 package cc.ferguschen.retrieval.ik;
 
+import cc.ferguschen.retrieval.analysis.CachingAnalyzer;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.util.IOUtils;
-
-import java.io.Reader;
-import java.io.StringReader;
 
 /**
  * Created by chenqining on 2018/2/24.
+ * IK分析器. 线程安全, 应在索引和检索间共享一个实例:
+ * Analyzer默认的复用策略为每个线程缓存一套AdvIKTokenizer, 之后每篇文档只reset输入, 分词器和IKSegmenter都不重新创建.
  */
 public class AdvIKAnalyzer extends Analyzer {
+    private final boolean useSmart;
+    private final DictionaryManager dictionaryManager;
+
+    public AdvIKAnalyzer() {
+        this(true);   //true:智能切分, false: 细粒度切分
+    }
+
+    public AdvIKAnalyzer(boolean useSmart) {
+        this(useSmart, null);
+    }
+
+    /**
+     * @param useSmart true:智能切分, false: 细粒度切分
+     * @param dictionaryManager 可热加载的扩展词典, 相邻词元组成其中的词条时合并输出; 可以为null
+     */
+    public AdvIKAnalyzer(boolean useSmart, DictionaryManager dictionaryManager) {
+        this.useSmart = useSmart;
+        this.dictionaryManager = dictionaryManager;
+    }
+
+    /**
+     * 带分析结果缓存的IK分析器, 店名和地址中重复的片段只分词一次.
+     * 扩展词典热加载后(dictionaryManager.get()变化)旧的缓存结果不再使用.
+     * @param useSmart true:智能切分, false: 细粒度切分
+     * @param dictionaryManager 可热加载的扩展词典; 可以为null
+     * @param maxRamBytes 缓存估算占用的最大字节数
+     * @return
+     */
+    public static CachingAnalyzer cached(boolean useSmart, DictionaryManager dictionaryManager, long maxRamBytes) {
+        return new CachingAnalyzer(new AdvIKAnalyzer(useSmart, dictionaryManager), maxRamBytes, 32, CachingAnalyzer.DEFAULT_BREAKS,
+                dictionaryManager == null ? null : dictionaryManager::get);
+    }
 
     @Override
-    protected TokenStreamComponents createComponents(String arg0){
-        Reader reader = null;
-        try{
-            reader = new StringReader(arg0);
-            AdvIKTokenizer it = new AdvIKTokenizer(reader);
-            return new TokenStreamComponents(it);
-        }finally {
-            IOUtils.closeWhileHandlingException(reader);
-        }
+    protected TokenStreamComponents createComponents(String fieldName){
+        return new TokenStreamComponents(new AdvIKTokenizer(useSmart, dictionaryManager));
     }
 }
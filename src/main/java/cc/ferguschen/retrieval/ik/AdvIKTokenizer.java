@@ -4,17 +4,29 @@ import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.wltea.analyzer.cfg.Configuration;
+import org.wltea.analyzer.cfg.DefaultConfig;
 import org.wltea.analyzer.core.IKSegmenter;
 import org.wltea.analyzer.core.Lexeme;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by chenqining on 2018/2/24.
+ * IK分词器到Lucene Tokenizer的适配.
+ * Tokenizer和其中的IKSegmenter由Analyzer的复用策略按线程缓存, 每篇文档只调用reset(input)切换输入, 不重新创建;
+ * IK的配置(IKAnalyzer.cfg.xml)只解析一次, 所有分词器共享, 词典本身是IK内部的单例.
+ * 可选地指定一个{@link DictionaryManager}: IK切出的相邻词元如果拼起来是其中的词条, 就合并成一个词输出(取最长的词条).
+ * 大量的POI词条放在这个紧凑且可热加载的词典里, 不必加进IK的ext_dict.
  */
 public class AdvIKTokenizer extends Tokenizer {
-    private IKSegmenter _IKImplement;
+    private static final Configuration SMART_CONFIG = newConfig(true);
+    private static final Configuration FINE_CONFIG = newConfig(false);
+
+    private final IKSegmenter _IKImplement;
     // 词元文本属性
     private final CharTermAttribute termAtt;
     // 词元位移属性
@@ -24,33 +36,83 @@ public class AdvIKTokenizer extends Tokenizer {
     // 记录最后一个词元的结束位置
     private int endPosition;
 
-    public AdvIKTokenizer(Reader in) {
-        this(in, true);   //true:智能切分, false: 细粒度切分
+    // 可热加载的扩展词典, 为null时不合并词元
+    private final DictionaryManager dictionaryManager;
+    // 当前文档使用的词典及其匹配游标, 在reset时更新
+    private CompactDictionary dictionary;
+    private CompactDictionary.Matcher matcher;
+    // 为合并词元而预读的IK词元
+    private final List<Lexeme> pending = new ArrayList<>();
+    private int pendingPos;
+
+    public AdvIKTokenizer() {
+        this(true);   //true:智能切分, false: 细粒度切分
     }
 
-    public AdvIKTokenizer(Reader in, boolean useSmart) {
+    public AdvIKTokenizer(boolean useSmart) {
+        this(useSmart, null);
+    }
+
+    /**
+     * @param useSmart true:智能切分, false: 细粒度切分
+     * @param dictionaryManager 扩展词典, 可以为null
+     */
+    public AdvIKTokenizer(boolean useSmart, DictionaryManager dictionaryManager) {
         offsetAtt = addAttribute(OffsetAttribute.class);
         termAtt = addAttribute(CharTermAttribute.class);
         typeAtt = addAttribute(TypeAttribute.class);
-        _IKImplement = new IKSegmenter(input, useSmart);
+        _IKImplement = new IKSegmenter(input, getConfig(useSmart));
+        this.dictionaryManager = dictionaryManager;
+    }
+
+    /**
+     * @deprecated 输入由Lucene通过setReader设置, 参数in不会被使用. 请使用{@link #AdvIKTokenizer()}.
+     */
+    @Deprecated
+    public AdvIKTokenizer(Reader in) {
+        this(true);
+    }
+
+    /**
+     * @deprecated 输入由Lucene通过setReader设置, 参数in不会被使用. 请使用{@link #AdvIKTokenizer(boolean)}.
+     */
+    @Deprecated
+    public AdvIKTokenizer(Reader in, boolean useSmart) {
+        this(useSmart);
+    }
+
+    /**
+     * 共享的IK配置. IKSegmenter(Reader, boolean)每次都会重新解析IKAnalyzer.cfg.xml, 这里只解析一次.
+     * @param useSmart true:智能切分, false: 细粒度切分
+     * @return
+     */
+    public static Configuration getConfig(boolean useSmart) {
+        return useSmart ? SMART_CONFIG : FINE_CONFIG;
+    }
+
+    private static Configuration newConfig(boolean useSmart) {
+        Configuration config = DefaultConfig.getInstance();
+        config.setUseSmart(useSmart);
+        return config;
     }
 
     @Override
     public final boolean incrementToken() throws IOException {
-        // 清除所有的词元属性
+        // 清除所有的词元属性(词元文本长度置0)
         clearAttributes();
-        Lexeme nextLexeme = _IKImplement.next();
+        Lexeme nextLexeme = nextLexeme();
         if (nextLexeme != null) {
             // 将Lexeme转成Attributes
-            // 设置词元文本
+            // 设置词元文本: 拷贝到属性自身复用的char缓冲区, 不再调整长度. getLexemeText()每次都会在IK内部新建一个字符串,
+            // Lexeme只提供这一个取文本的方法, 不改IK的jar去不掉这次分配
             termAtt.append(nextLexeme.getLexemeText());
-            // 设置词元长度
-            termAtt.setLength(nextLexeme.getLength());
+            // 和后面的词元合并成扩展词典中的词
+            Lexeme lastLexeme = mergeDictionaryWord(nextLexeme);
             // 设置词元位移
-            offsetAtt.setOffset(nextLexeme.getBeginPosition(),
-                    nextLexeme.getEndPosition());
+            offsetAtt.setOffset(correctOffset(nextLexeme.getBeginPosition()),
+                    correctOffset(lastLexeme.getEndPosition()));
             // 记录分词的最后位置
-            endPosition = nextLexeme.getEndPosition();
+            endPosition = lastLexeme.getEndPosition();
             // 记录词元分类
             typeAtt.setType(nextLexeme.getLexemeTypeString());
             // 返会true告知还有下个词元
@@ -60,13 +122,76 @@ public class AdvIKTokenizer extends Tokenizer {
         return false;
     }
 
+    private Lexeme nextLexeme() throws IOException {
+        if (pendingPos < pending.size()) {
+            return pending.get(pendingPos++);
+        }
+        pending.clear();
+        pendingPos = 0;
+        return _IKImplement.next();
+    }
+
+    /**
+     * 从first开始, 找由连续词元组成的最长词条, 把合并进来的词元文本追加到termAtt
+     * @param first 已输出到termAtt的词元
+     * @return 合并的最后一个词元, 没有合并时就是first
+     * @throws IOException
+     */
+    private Lexeme mergeDictionaryWord(Lexeme first) throws IOException {
+        if (matcher == null) {
+            return first;
+        }
+        matcher.start();
+        if (!matcher.accept(first.getLexemeText())) {
+            return first;
+        }
+        Lexeme last = first;
+        Lexeme prev = first;
+        int matchedEnd = pendingPos;   //pending中属于最长词条的词元的结束下标
+        for (int i = pendingPos; ; i++) {
+            if (i == pending.size()) {
+                Lexeme lexeme = _IKImplement.next();
+                if (lexeme == null) {
+                    break;
+                }
+                pending.add(lexeme);
+            }
+            Lexeme next = pending.get(i);
+            // 只合并首尾相接的词元, 中间隔着标点或空白的不合并
+            if (next.getBeginPosition() != prev.getEndPosition() || !matcher.accept(next.getLexemeText())) {
+                break;
+            }
+            prev = next;
+            if (matcher.isWord()) {
+                matchedEnd = i + 1;
+                last = next;
+            }
+        }
+        for (int i = pendingPos; i < matchedEnd; i++) {
+            termAtt.append(pending.get(i).getLexemeText());
+        }
+        pendingPos = matchedEnd;
+        return last;
+    }
+
+    @Override
     public void reset() throws IOException {
         super.reset();
         _IKImplement.reset(input);
+        endPosition = 0;
+        pending.clear();
+        pendingPos = 0;
+        // 每篇文档开始时取一次词典, 热加载替换词典不影响正在分词的文档
+        CompactDictionary latest = dictionaryManager == null ? null : dictionaryManager.get();
+        if (latest != dictionary) {
+            dictionary = latest;
+            matcher = latest == null ? null : latest.matcher();
+        }
     }
 
     @Override
-    public final void end() {
+    public final void end() throws IOException {
+        super.end();
         // set final offset
         int finalOffset = correctOffset(this.endPosition);
         offsetAtt.setOffset(finalOffset, finalOffset);
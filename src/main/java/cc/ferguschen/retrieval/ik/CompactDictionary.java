@@ -0,0 +1,251 @@
+package cc.ferguschen.retrieval.ik;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+import org.apache.lucene.util.fst.Util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Created by chenqining on 2018/7/25.
+ * 紧凑的只读词典, 用Lucene的FST存储.
+ * IK的DictSegment为每个字建一个节点(含Map/数组), 百万级的POI词条要占用数GB堆内存;
+ * FST共享前缀和后缀, 同样的词条通常只需每条几个字节. 词典不可修改, 更新时整体重建后替换(见{@link DictionaryManager}).
+ * 词条按IK的方式规整为小写, 与IK输出的词元文本一致.
+ */
+public final class CompactDictionary implements Accountable {
+    private static final String CODEC_NAME = "IKCompactDict";
+    private static final int VERSION = 0;
+    private static final NoOutputs OUTPUTS = NoOutputs.getSingleton();
+
+    private final FST<Object> fst;   //空词典时为null
+    private final int size;
+
+    private CompactDictionary(FST<Object> fst, int size) {
+        this.fst = fst;
+        this.size = size;
+    }
+
+    /**
+     * 由词条集合构建词典, 重复和空白词条会被忽略
+     * @param words
+     * @return
+     * @throws IOException
+     */
+    public static CompactDictionary build(Collection<String> words) throws IOException {
+        List<String> sorted = new ArrayList<>(words.size());
+        for (String word : words) {
+            String w = normalize(word);
+            if (!w.isEmpty()) {
+                sorted.add(w);
+            }
+        }
+        //FST要求输入按顺序添加; String的自然顺序即UTF-16码元顺序
+        Collections.sort(sorted);
+        Builder<Object> builder = new Builder<>(FST.INPUT_TYPE.BYTE2, OUTPUTS);
+        IntsRefBuilder scratch = new IntsRefBuilder();
+        String last = null;
+        int size = 0;
+        for (String word : sorted) {
+            if (word.equals(last)) {
+                continue;
+            }
+            builder.add(Util.toUTF16(word, scratch), OUTPUTS.getNoOutput());
+            last = word;
+            size++;
+        }
+        return new CompactDictionary(builder.finish(), size);
+    }
+
+    /**
+     * 读取IK格式的词典文件(UTF-8, 每行一个词)并构建词典
+     * @param files
+     * @return
+     * @throws IOException
+     */
+    public static CompactDictionary buildFromFiles(List<Path> files) throws IOException {
+        List<String> words = new ArrayList<>();
+        for (Path file : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty() && line.charAt(0) == '\uFEFF') {
+                        line = line.substring(1);
+                    }
+                    words.add(line);
+                }
+            }
+        }
+        return build(words);
+    }
+
+    /**
+     * 读取{@link #save(Path)}预先构建的词典文件, 省去排序和构建FST的时间.
+     * 文件通过FSDirectory打开(64位JVM上为内存映射), 带校验和; Lucene 6的FST加载时会把数据拷贝到堆上的紧凑字节数组中.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static CompactDictionary load(Path file) throws IOException {
+        try (Directory dir = FSDirectory.open(file.toAbsolutePath().getParent());
+             ChecksumIndexInput in = dir.openChecksumInput(file.getFileName().toString(), IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC_NAME, VERSION, VERSION);
+            int size = in.readVInt();
+            FST<Object> fst = size > 0 ? new FST<>(in, OUTPUTS) : null;
+            CodecUtil.checkFooter(in);
+            return new CompactDictionary(fst, size);
+        }
+    }
+
+    /**
+     * 保存为预构建的词典文件. 热加载时应先写到临时文件, 再改名替换, 避免读到写了一半的文件.
+     * @param file
+     * @throws IOException
+     */
+    public void save(Path file) throws IOException {
+        try (Directory dir = FSDirectory.open(file.toAbsolutePath().getParent());
+             IndexOutput out = dir.createOutput(file.getFileName().toString(), IOContext.DEFAULT)) {
+            CodecUtil.writeHeader(out, CODEC_NAME, VERSION);
+            out.writeVInt(size);
+            if (fst != null) {
+                fst.save(out);
+            }
+            CodecUtil.writeFooter(out);
+        }
+    }
+
+    static String normalize(String word) {
+        return word == null ? "" : word.trim().toLowerCase();
+    }
+
+    /**
+     * 是否包含该词
+     * @param word
+     * @return
+     */
+    public boolean contains(CharSequence word) {
+        Matcher matcher = matcher();
+        return matcher.accept(word) && matcher.isWord();
+    }
+
+    /**
+     * 从text的start处开始, 最长的词典词的长度
+     * @param text
+     * @param start
+     * @return 没有匹配时返回0
+     */
+    public int longestMatch(CharSequence text, int start) {
+        Matcher matcher = matcher();
+        int longest = 0;
+        for (int i = start; i < text.length() && matcher.accept(text.charAt(i)); i++) {
+            if (matcher.isWord()) {
+                longest = i - start + 1;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * 新建逐字匹配的游标. 游标不是线程安全的, 每个线程(分词器)各用一个, 可反复start复用.
+     * @return
+     */
+    public Matcher matcher() {
+        return new Matcher();
+    }
+
+    /**
+     * 词条数
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return fst == null ? 0 : fst.ramBytesUsed();
+    }
+
+    /**
+     * 在FST上逐字前进的游标, 匹配过程中不分配对象
+     */
+    public final class Matcher {
+        private final FST.Arc<Object> arc = new FST.Arc<>();
+        private final FST.BytesReader reader = fst == null ? null : fst.getBytesReader();
+        private boolean alive;
+        private boolean word;
+
+        private Matcher() {
+            start();
+        }
+
+        /**
+         * 回到起点, 开始匹配一个新词
+         */
+        public void start() {
+            alive = fst != null;
+            word = false;
+            if (alive) {
+                fst.getFirstArc(arc);
+            }
+        }
+
+        /**
+         * 接受下一个字
+         * @param c
+         * @return false表示已不可能匹配任何词条
+         */
+        public boolean accept(char c) {
+            if (!alive) {
+                return false;
+            }
+            try {
+                alive = fst.findTargetArc(c, arc, arc, reader) != null;
+            } catch (IOException e) {
+                //FST在堆上, 读取不会真正发生IO
+                throw new IllegalStateException(e);
+            }
+            word = alive && arc.isFinal();
+            return alive;
+        }
+
+        /**
+         * 依次接受一串字
+         * @param chars
+         * @return false表示已不可能匹配任何词条
+         */
+        public boolean accept(CharSequence chars) {
+            for (int i = 0; i < chars.length(); i++) {
+                if (!accept(chars.charAt(i))) {
+                    return false;
+                }
+            }
+            return alive;
+        }
+
+        /**
+         * 目前接受的字是否恰好组成一个词条
+         * @return
+         */
+        public boolean isWord() {
+            return word;
+        }
+    }
+}
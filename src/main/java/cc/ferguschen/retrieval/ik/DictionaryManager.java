@@ -0,0 +1,135 @@
+package cc.ferguschen.retrieval.ik;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by chenqining on 2018/7/25.
+ * 可热加载的词典.
+ * 词典来源可以是若干IK格式的词典文件(每行一个词), 也可以是一个由{@link CompactDictionary#save(Path)}预构建的.fst文件.
+ * 后台线程定期检查文件的修改时间和大小, 有变化时在后台构建新词典, 构建成功后一次性替换引用;
+ * 正在分词的文档继续使用它开始时拿到的词典, 新文档使用新词典. 构建失败时保留旧词典.
+ */
+public class DictionaryManager implements Closeable {
+    private final List<Path> sources;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile CompactDictionary current;
+    private long[] stamps;   //各来源文件的修改时间和大小, 用于判断是否变化
+    private final AtomicLong reloadCount = new AtomicLong();
+    private volatile long lastReloadMs;
+
+    /**
+     * @param sources 词典文件. 只有一个且以.fst结尾时按预构建词典读取, 否则都按文本词典读取
+     * @param checkIntervalMs 检查文件变化的间隔(毫秒), <=0 表示不自动检查, 只在调用{@link #maybeReload()}时加载
+     * @throws IOException 首次加载失败
+     */
+    public DictionaryManager(List<Path> sources, long checkIntervalMs) throws IOException {
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("no dictionary file");
+        }
+        if (sources.size() > 1) {
+            for (Path source : sources) {
+                if (isPrebuilt(source)) {
+                    throw new IllegalArgumentException("prebuilt dictionary " + source + " cannot be combined with other files");
+                }
+            }
+        }
+        this.sources = Collections.unmodifiableList(new ArrayList<>(sources));
+        maybeReload();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ik-dictionary-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        if (checkIntervalMs > 0) {
+            scheduler.scheduleWithFixedDelay(this::reloadQuietly, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static boolean isPrebuilt(Path path) {
+        return path.getFileName().toString().endsWith(".fst");
+    }
+
+    /**
+     * 当前的词典. 分词器应在每篇文档开始时取一次, 整篇文档使用同一个词典.
+     * @return
+     */
+    public CompactDictionary get() {
+        return current;
+    }
+
+    /**
+     * 文件有变化时重新加载
+     * @return 是否重新加载了
+     * @throws IOException
+     */
+    public synchronized boolean maybeReload() throws IOException {
+        long[] newStamps = readStamps();
+        if (current != null && Arrays.equals(stamps, newStamps)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        CompactDictionary dictionary = sources.size() == 1 && isPrebuilt(sources.get(0))
+                ? CompactDictionary.load(sources.get(0))
+                : CompactDictionary.buildFromFiles(sources);
+        current = dictionary;
+        stamps = newStamps;
+        lastReloadMs = (System.nanoTime() - start) / 1000000;
+        reloadCount.incrementAndGet();
+        return true;
+    }
+
+    private long[] readStamps() throws IOException {
+        long[] result = new long[sources.size() * 2];
+        for (int i = 0; i < sources.size(); i++) {
+            Path source = sources.get(i);
+            result[i * 2] = Files.getLastModifiedTime(source).toMillis();
+            result[i * 2 + 1] = Files.size(source);
+        }
+        return result;
+    }
+
+    private void reloadQuietly() {
+        try {
+            maybeReload();
+        } catch (Exception e) {
+            //文件正在替换或内容有误, 保留旧词典, 下次再试
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 加载次数(含首次加载)
+     * @return
+     */
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * 最近一次加载的耗时(毫秒)
+     * @return
+     */
+    public long getLastReloadMs() {
+        return lastReloadMs;
+    }
+
+    /**
+     * 停止检查文件变化. 已加载的词典仍可使用.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,430 @@
+package cc.ferguschen.retrieval.index;
+
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import cc.ferguschen.retrieval.utils.FileUtil;
+import cc.ferguschen.retrieval.utils.JsonLineReader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntFunction;
+
+/**
+ * Created by chenqining on 2018/7/20.
+ * 多线程批量建索引. 适用于shop.json这样每行一个JSON对象的文件.
+ * 流水线分两段:
+ * 1. 解析线程: 用JsonLineReader流式读取文件, 逐行解析JSON, 每batchSize条打成一批放入有界队列;
+ *    或者从二进制快照({@link ShopSnapshot})按块读取, 每块一批, 不解析JSON;
+ * 2. 索引线程池: 从队列取批次, 构造Document并写入共享的IndexWriter.
+ * 队列有界, 索引跟不上时解析线程会阻塞(背压), 因此内存占用只和队列容量有关, 与文件大小无关.
+ */
+public class BulkIndexer {
+    private static final Batch POISON = iwriters -> 0;   //结束标记
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private double ramBufferMB = 256;
+    private int batchSize = 500;
+    private int queueCapacity = 64;   //队列中最多积压的批次数
+    private MergePolicy mergePolicy = new TieredMergePolicy();
+    private IndexWriterConfig.OpenMode openMode = IndexWriterConfig.OpenMode.CREATE;
+    private int forceMergeSegments = 0;   //导入后合并到的段数, 0表示不合并
+    private boolean addressGrams = false;   //是否写入地址子串检索的域
+    private SearchMetrics metrics = SearchMetrics.NONE;
+
+    private final AtomicLong docCount = new AtomicLong();
+    private final AtomicLong badLines = new AtomicLong();
+
+    public BulkIndexer setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public BulkIndexer setRamBufferMB(double ramBufferMB) {
+        this.ramBufferMB = ramBufferMB;
+        return this;
+    }
+
+    public BulkIndexer setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public BulkIndexer setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public BulkIndexer setMergePolicy(MergePolicy mergePolicy) {
+        this.mergePolicy = mergePolicy;
+        return this;
+    }
+
+    public BulkIndexer setOpenMode(IndexWriterConfig.OpenMode openMode) {
+        this.openMode = openMode;
+        return this;
+    }
+
+    /**
+     * 打开writer导入的方法(index(Directory, ...))在导入完, close前把索引合并到指定段数.
+     * 适合导入后只读的索引(如蓝绿重建的新目录): 段少, 查询时每个词只查几次词典, 也没有被删除的文档.
+     * @param forceMergeSegments 目标段数, 0表示不合并
+     * @return
+     */
+    public BulkIndexer setForceMergeSegments(int forceMergeSegments) {
+        this.forceMergeSegments = forceMergeSegments;
+        return this;
+    }
+
+    /**
+     * 是否写入地址子串检索的addr_ngram, addr_edge域(ShopSchema.createDocument(shop, true)),
+     * 开启时newConfig的分析器用ShopSchema.withAddressGrams包装. 应和makeIndex, 增量同步等其他写入同一索引的方式一致.
+     * @param addressGrams
+     * @return
+     */
+    public BulkIndexer setAddressGrams(boolean addressGrams) {
+        this.addressGrams = addressGrams;
+        return this;
+    }
+
+    public boolean isAddressGrams() {
+        return addressGrams;
+    }
+
+    /**
+     * 记录每个文档addDocument的耗时(ADD)
+     * @param metrics
+     * @return
+     */
+    public BulkIndexer setMetrics(SearchMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public long getDocCount() {
+        return docCount.get();
+    }
+
+    /**
+     * @return 跳过的记录数: 格式错误的行, 以及缺少id, name, address等字段无法构造文档的记录
+     */
+    public long getBadLines() {
+        return badLines.get();
+    }
+
+    /**
+     * 按当前配置创建IndexWriterConfig
+     * @param analyzer
+     * @return
+     */
+    public IndexWriterConfig newConfig(Analyzer analyzer) {
+        IndexWriterConfig config = new IndexWriterConfig(addressGrams ? ShopSchema.withAddressGrams(analyzer) : analyzer);
+        config.setOpenMode(openMode);
+        config.setRAMBufferSizeMB(ramBufferMB);
+        config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);   //只按内存大小flush
+        config.setMergePolicy(mergePolicy);
+        config.setIndexSort(ShopSchema.INDEX_SORT);
+        config.setSimilarity(ShopSchema.SIMILARITY);
+        return config;
+    }
+
+    /**
+     * 打开writer, 导入数据流(设置了forceMergeSegments时再合并)并关闭writer(close时commit).
+     * 导入失败时rollback, 不commit导入了一部分的索引(CREATE模式下会替换掉原来完整的索引).
+     * @param idxDir 索引目录
+     * @param analyzer 分析器
+     * @param dataStream JSON行数据流, 读完后关闭
+     * @return 导入的文档数
+     * @throws IOException
+     */
+    public long index(Directory idxDir, Analyzer analyzer, InputStream dataStream) throws IOException {
+        return indexAndClose(idxDir, analyzer, iwriter -> index(iwriter, dataStream));
+    }
+
+    /**
+     * 用已有的writer导入数据流, 不commit也不关闭writer.
+     * @param iwriter 共享的IndexWriter
+     * @param dataStream JSON行数据流, 读完后关闭
+     * @return 导入的文档数
+     * @throws IOException
+     */
+    public long index(IndexWriter iwriter, InputStream dataStream) throws IOException {
+        try (JsonLineReader reader = FileUtil.openJSONLines(dataStream, true)) {
+            return index(iwriter, reader);
+        }
+    }
+
+    /**
+     * 打开writer, 从JSON行读取器导入数据并关闭writer(close时commit), 失败时rollback.
+     * @param idxDir 索引目录
+     * @param analyzer 分析器
+     * @param reader JSON行读取器, 如FileUtil.mapJSONLines得到的内存映射读取器
+     * @return 导入的文档数
+     * @throws IOException
+     */
+    public long index(Directory idxDir, Analyzer analyzer, JsonLineReader reader) throws IOException {
+        return indexAndClose(idxDir, analyzer, iwriter -> index(iwriter, reader));
+    }
+
+    /**
+     * 用已有的writer从JSON行读取器导入数据, 不commit也不关闭writer, 也不关闭reader.
+     * 开启addressGrams时, writer应使用newConfig创建的配置(或同样包装过的分析器).
+     * @param iwriter 共享的IndexWriter
+     * @param reader JSON行读取器
+     * @return 导入的文档数
+     * @throws IOException
+     */
+    public long index(IndexWriter iwriter, JsonLineReader reader) throws IOException {
+        return index(new IndexWriter[]{iwriter}, shop -> 0, reader);
+    }
+
+    /**
+     * 分片导入: 索引线程按router把每条记录写入对应分片的writer, 各分片并行写入. 不commit也不关闭writer和reader.
+     * @param iwriters 各分片的writer
+     * @param router 记录 -> 分片号(0 ~ iwriters.length-1)
+     * @param reader JSON行读取器
+     * @return 导入的文档数
+     * @throws IOException
+     */
+    public long index(IndexWriter[] iwriters, ToIntFunction<JSONObject> router, JsonLineReader reader) throws IOException {
+        long docs = run(iwriters, () -> {
+            List<JSONObject> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && reader.hasNext()) {
+                batch.add(reader.next());
+            }
+            return batch.isEmpty() ? null : writers -> {
+                int added = 0;
+                for (JSONObject shop : batch) {
+                    int shard;
+                    Document doc;
+                    try {
+                        shard = router.applyAsInt(shop);
+                        doc = ShopSchema.createDocument(shop, addressGrams);
+                    } catch (RuntimeException e) {
+                        badLines.incrementAndGet();   //缺少id, name, address等字段的记录跳过并计数, 不中止导入
+                        continue;
+                    }
+                    addDocument(writers[shard], doc);
+                    added++;
+                }
+                return added;
+            };
+        });
+        badLines.addAndGet(reader.getBadLineCount());   //格式错误的行由reader跳过并计数
+        return docs;
+    }
+
+    /**
+     * 打开writer, 从快照导入数据并关闭writer(close时commit), 失败时rollback.
+     * @param idxDir 索引目录
+     * @param analyzer 分析器
+     * @param snapshot 快照, 不关闭
+     * @return 导入的文档数
+     * @throws IOException
+     */
+    public long index(Directory idxDir, Analyzer analyzer, ShopSnapshot snapshot) throws IOException {
+        return indexAndClose(idxDir, analyzer, iwriter -> index(iwriter, snapshot));
+    }
+
+    /**
+     * 用已有的writer从快照导入数据, 每块作为一批. 不commit也不关闭writer, 也不关闭快照.
+     * @param iwriter 共享的IndexWriter
+     * @param snapshot 快照
+     * @return 导入的文档数
+     * @throws IOException
+     */
+    public long index(IndexWriter iwriter, ShopSnapshot snapshot) throws IOException {
+        return run(new IndexWriter[]{iwriter}, () -> {
+            ShopSnapshot.Block block = snapshot.next();
+            return block == null ? null : writers -> {
+                int added = 0;
+                for (int i = 0; i < block.size; i++) {
+                    Document doc;
+                    try {
+                        doc = block.toDocument(i, addressGrams);
+                    } catch (RuntimeException e) {
+                        badLines.incrementAndGet();   //快照保留了源数据中缺少字段的记录, 同样跳过
+                        continue;
+                    }
+                    addDocument(writers[0], doc);
+                    added++;
+                }
+                return added;
+            };
+        });
+    }
+
+    private void addDocument(IndexWriter iwriter, Document doc) throws IOException {
+        long start = System.nanoTime();
+        try {
+            iwriter.addDocument(doc);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordError(SearchMetrics.Stage.ADD);
+            throw e;
+        }
+        metrics.record(SearchMetrics.Stage.ADD, System.nanoTime() - start);
+    }
+
+    /**
+     * 打开writer执行导入, 成功时合并并close(commit); 失败时rollback, 目录中保持导入前的commit
+     */
+    private long indexAndClose(Directory idxDir, Analyzer analyzer, Import task) throws IOException {
+        IndexWriter iwriter = new IndexWriter(idxDir, newConfig(analyzer));
+        long docs;
+        boolean success = false;
+        try {
+            docs = task.run(iwriter);
+            forceMerge(iwriter);
+            success = true;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(iwriter::rollback);
+            }
+        }
+        iwriter.close();
+        return docs;
+    }
+
+    private void forceMerge(IndexWriter iwriter) throws IOException {
+        if (forceMergeSegments > 0) {
+            iwriter.forceMerge(forceMergeSegments);
+        }
+    }
+
+    /**
+     * 用打开的writer导入数据
+     */
+    private interface Import {
+        /**
+         * @return 导入的文档数
+         */
+        long run(IndexWriter iwriter) throws IOException;
+    }
+
+    /**
+     * 解析线程产生的一批记录, 由某个索引线程写入
+     */
+    private interface Batch {
+        /**
+         * @return 写入的文档数
+         */
+        int index(IndexWriter[] iwriters) throws IOException;
+    }
+
+    /**
+     * 批次的来源, 在解析线程(调用线程)中执行
+     */
+    private interface BatchSource {
+        /**
+         * @return 没有更多记录时返回null
+         */
+        Batch next() throws IOException;
+    }
+
+    private long run(IndexWriter[] iwriters, BatchSource source) throws IOException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        long before = docCount.get();
+
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    while (true) {
+                        Batch batch = queue.take();
+                        if (batch == POISON) {
+                            return;
+                        }
+                        docCount.addAndGet(batch.index(iwriters));
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "bulk-indexer-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+
+        try {
+            Batch batch;
+            while (failure.get() == null && (batch = source.next()) != null) {
+                put(queue, batch, failure);
+            }
+        } finally {
+            //所有线程都退出后才返回, 保证调用方拿到的是完整结果
+            for (Thread worker : workers) {
+                while (worker.isAlive()) {
+                    queue.offer(POISON);
+                    try {
+                        worker.join(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        Throwable e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException("bulk indexing failed", e);
+        }
+        return docCount.get() - before;
+    }
+
+    private static void put(BlockingQueue<Batch> queue, Batch batch,
+                            AtomicReference<Throwable> failure) throws IOException {
+        try {
+            //索引线程出错时不再阻塞等待, 避免死锁
+            while (failure.get() == null && !queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                //队列已满, 继续等待索引线程消费
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while queueing batch", e);
+        }
+    }
+
+    /**
+     * 重置各堆内存池的峰值统计
+     */
+    public static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * 各堆内存池峰值之和(字节), 是实际峰值的上界
+     * @return
+     */
+    public static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
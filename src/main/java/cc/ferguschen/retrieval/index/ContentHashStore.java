@@ -0,0 +1,268 @@
+package cc.ferguschen.retrieval.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Created by chenqining on 2018/8/14.
+ * 数字id -> 记录内容哈希的表, 供增量同步({@link DeltaIndexer})比较两次数据.
+ * 开放寻址(线性探测), id和哈希分别放在两个long数组里, 装载率不超过0.7, 每条记录平均占二三十字节,
+ * 没有HashMap&lt;String, Long&gt;的Entry, String和Long对象(每条100字节以上), 百万级记录也只有二十几MB且不给GC增加负担.
+ * 哈希值0保留表示空槽, {@link #put}时0会换成1.
+ * 文件格式:
+ * <pre>
+ * 文件头: "SHOPHSH1" 版本(int) 条数(int)
+ * 数据:   每条 id(long) 哈希(long)
+ * 文件尾: 条数(int) "HSHEND01"
+ * </pre>
+ * 非线程安全.
+ */
+public class ContentHashStore {
+    private static final byte[] MAGIC = "SHOPHSH1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_MAGIC = "HSHEND01".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 4;
+    private static final int TRAILER_SIZE = 4 + END_MAGIC.length;
+    private static final double MAX_LOAD = 0.7;
+    private static final int IO_BUFFER = 1 << 16;
+
+    private long[] ids;
+    private long[] hashes;   //0表示空槽
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public ContentHashStore() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize 预计的条数, 插入这么多条之前不扩容
+     */
+    public ContentHashStore(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) Math.ceil(expectedSize / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        ids = new long[capacity];
+        hashes = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * MAX_LOAD);
+    }
+
+    /**
+     * id通常是连续的整数, 先打散再取槽位, 避免线性探测时聚集
+     */
+    private int slot(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @param id
+     * @return id的哈希, 不存在时返回0
+     */
+    public long get(long id) {
+        for (int i = slot(id); ; i = (i + 1) & mask) {
+            if (hashes[i] == 0) {
+                return 0;
+            }
+            if (ids[i] == id) {
+                return hashes[i];
+            }
+        }
+    }
+
+    public boolean contains(long id) {
+        return get(id) != 0;
+    }
+
+    /**
+     * 写入id的哈希
+     * @param id
+     * @param hash 为0时按1写入
+     * @return 原来的哈希, 不存在时返回0
+     */
+    public long put(long id, long hash) {
+        if (hash == 0) {
+            hash = 1;
+        }
+        int i = slot(id);
+        for (; hashes[i] != 0; i = (i + 1) & mask) {
+            if (ids[i] == id) {
+                long old = hashes[i];
+                hashes[i] = hash;
+                return old;
+            }
+        }
+        ids[i] = id;
+        hashes[i] = hash;
+        if (++size > resizeAt) {
+            rehash();
+        }
+        return 0;
+    }
+
+    private void rehash() {
+        long[] oldIds = ids;
+        long[] oldHashes = hashes;
+        allocate(oldIds.length << 1);
+        for (int j = 0; j < oldIds.length; j++) {
+            if (oldHashes[j] != 0) {
+                int i = slot(oldIds[j]);
+                while (hashes[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                ids[i] = oldIds[j];
+                hashes[i] = oldHashes[j];
+            }
+        }
+    }
+
+    /**
+     * @param other
+     * @return 在本表中而不在other中的id, 按id升序
+     */
+    public long[] idsNotIn(ContentHashStore other) {
+        long[] result = new long[16];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (hashes[i] != 0 && !other.contains(ids[i])) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count << 1);
+                }
+                result[count++] = ids[i];
+            }
+        }
+        result = Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 两个数组占用的字节数
+     */
+    public long ramBytesUsed() {
+        return 16L * ids.length;
+    }
+
+    /**
+     * 写入文件: 先写临时文件并fsync, 再原子替换, 进程崩溃时旧文件保持完整
+     * @param path
+     * @throws IOException
+     */
+    public void save(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER);
+            buffer.put(MAGIC).putInt(VERSION).putInt(size);
+            for (int i = 0; i < ids.length; i++) {
+                if (hashes[i] == 0) {
+                    continue;
+                }
+                if (buffer.remaining() < 16) {
+                    drain(channel, buffer);
+                }
+                buffer.putLong(ids[i]).putLong(hashes[i]);
+            }
+            if (buffer.remaining() < TRAILER_SIZE) {
+                drain(channel, buffer);
+            }
+            buffer.putInt(size).put(END_MAGIC);
+            drain(channel, buffer);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * 读取{@link #save}写入的文件
+     * @param path
+     * @return
+     * @throws IOException 文件不完整或格式不对
+     */
+    public static ContentHashStore load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("not a content hash file (too short): " + path);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            checkMagic(header, MAGIC, path);
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported content hash file version " + version + ": " + path);
+            }
+            int count = header.getInt();
+            if (count < 0 || length != HEADER_SIZE + 16L * count + TRAILER_SIZE) {
+                throw new IOException("truncated content hash file: " + path);
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(channel, trailer, length - TRAILER_SIZE);
+            if (trailer.getInt() != count) {
+                throw new IOException("truncated content hash file: " + path);
+            }
+            checkMagic(trailer, END_MAGIC, path);
+
+            ContentHashStore store = new ContentHashStore(count);
+            ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER);
+            long position = HEADER_SIZE;
+            int remaining = count;
+            while (remaining > 0) {
+                int n = Math.min(remaining, IO_BUFFER / 16);
+                buffer.clear().limit(n * 16);
+                readFully(channel, buffer, position);
+                for (int i = 0; i < n; i++) {
+                    store.put(buffer.getLong(), buffer.getLong());
+                }
+                position += n * 16L;
+                remaining -= n;
+            }
+            return store;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    private static void checkMagic(ByteBuffer buffer, byte[] magic, Path path) throws IOException {
+        byte[] actual = new byte[magic.length];
+        buffer.get(actual);
+        if (!Arrays.equals(actual, magic)) {
+            throw new IOException("not a content hash file (bad magic): " + path);
+        }
+    }
+}
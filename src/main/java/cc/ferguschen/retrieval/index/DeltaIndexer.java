@@ -0,0 +1,327 @@
+package cc.ferguschen.retrieval.index;
+
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import cc.ferguschen.retrieval.utils.JsonLineReader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by chenqining on 2018/8/14.
+ * 增量同步: 比较新的JSON行全量数据和上次同步时的数据, 只把新增, 修改和删除的记录写入索引.
+ * 每天的全量数据通常只有很少的POI变化, 全量重建要重新分析和写入所有文档, 增量同步只需读一遍数据算哈希.
+ * * 上次同步的状态是 id -> 记录内容的64位哈希({@link ContentHashStore}), 保存在statePath;
+ * * 流式读取新数据, 逐条计算哈希并和状态比较: 没有旧哈希的是新增, 哈希不同的是修改, 相同的跳过(不构造Document);
+ *   读完后, 旧状态中有而新数据中没有的id是删除;
+ * * 修改按batchSize条一批应用: 新增和修改逐条updateDocument(按id原子地替换, 同MutationLog), 删除一次deleteDocuments;
+ *   新增的id也按id替换, 即使状态和索引不一致(如下面的崩溃情况)也不会产生重复文档;
+ * * 应用完后先commit索引, 再原子替换状态文件. commit后, 状态保存前崩溃时, 下次同步会把这些修改再应用一遍,
+ *   按id替换, 结果相同; 出错时状态不变, 调用方应rollback writer, 之后重新同步.
+ * 哈希只覆盖ShopSchema用到的字段(id, name, address, latitude, longitude, popularity); 文档结构变化时(如开启addressGrams)
+ * 要全量重建并调用{@link #record}. id必须是十进制整数(如shop.json), 其他id的记录跳过并计入{@link #getBadRecords()}.
+ * 非线程安全, 同一个索引同时只能有一个同步.
+ */
+public class DeltaIndexer {
+    private final Path statePath;
+    private int batchSize = 1000;
+    private boolean addressGrams = false;
+    private SearchMetrics metrics = SearchMetrics.NONE;
+
+    //最近一次同步的统计
+    private long inserted;
+    private long updated;
+    private long deleted;
+    private long unchanged;
+    private long badRecords;
+
+    /**
+     * @param statePath 状态文件, 通常放在索引目录旁边
+     */
+    public DeltaIndexer(Path statePath) {
+        this.statePath = statePath;
+    }
+
+    /**
+     * 每批应用的修改数
+     * @param batchSize
+     * @return
+     */
+    public DeltaIndexer setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * 新文档是否写入地址子串检索的域, 应和全量建索引时一致
+     * @param addressGrams
+     * @return
+     */
+    public DeltaIndexer setAddressGrams(boolean addressGrams) {
+        this.addressGrams = addressGrams;
+        return this;
+    }
+
+    /**
+     * 记录每批修改写入IndexWriter和commit的耗时
+     * @param metrics
+     * @return
+     */
+    public DeltaIndexer setMetrics(SearchMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @return 状态文件是否存在. 不存在时应先全量建索引
+     */
+    public boolean hasState() {
+        return Files.exists(statePath);
+    }
+
+    /**
+     * 删除状态文件, 如索引被删除或全量重建失败后
+     * @throws IOException
+     */
+    public void clearState() throws IOException {
+        Files.deleteIfExists(statePath);
+    }
+
+    /**
+     * 全量建索引(如BulkIndexer)后, 把同一份数据记为已同步的状态, 之后可以增量同步
+     * @param reader 建索引用的数据, 读完不关闭
+     * @return 记录的条数
+     * @throws IOException
+     */
+    public long record(JsonLineReader reader) throws IOException {
+        resetStats();
+        ContentHashStore state = new ContentHashStore();
+        while (reader.hasNext()) {
+            JSONObject shop = reader.next();
+            long id = parseId(shop.getString(ShopSchema.ID));
+            if (id < 0) {
+                badRecords++;
+                continue;
+            }
+            state.put(id, contentHash(shop));
+        }
+        badRecords += reader.getBadLineCount();
+        state.save(statePath);
+        return state.size();
+    }
+
+    /**
+     * 增量同步: 应用新数据相对上次同步的新增, 修改和删除, commit后保存新的状态.
+     * 状态文件不存在时按空状态处理, 所有记录都作为新增, 配合CREATE模式的writer即为首次全量建索引.
+     * @param iwriter 索引的writer, 配置(分析器, 排序等)应和全量建索引时一致. 不关闭
+     * @param reader 新的全量数据, 读完不关闭
+     * @return 写入索引的修改数(新增 + 修改 + 删除)
+     * @throws IOException
+     */
+    public long sync(IndexWriter iwriter, JsonLineReader reader) throws IOException {
+        resetStats();
+        ContentHashStore previous = hasState() ? ContentHashStore.load(statePath) : new ContentHashStore();
+        ContentHashStore current = new ContentHashStore(previous.size());
+        LinkedHashMap<String, Document> batch = new LinkedHashMap<>();   //id -> 新文档, null表示删除
+
+        while (reader.hasNext()) {
+            JSONObject shop = reader.next();
+            String id = shop.getString(ShopSchema.ID);
+            long key = parseId(id);
+            if (key < 0) {
+                badRecords++;
+                continue;
+            }
+            long hash = contentHash(shop);
+            long old = current.get(key);   //数据中重复的id, 和前一次出现比较, 以最后一次为准
+            if (old == 0) {
+                old = previous.get(key);
+            }
+            if (old == hash) {
+                current.put(key, hash);
+                unchanged++;
+                continue;
+            }
+            Document doc;
+            try {
+                doc = ShopSchema.createDocument(shop, addressGrams);
+            } catch (RuntimeException e) {
+                //缺少字段的记录跳过, 保留索引中的旧文档(有的话), 不当作删除
+                badRecords++;
+                if (old != 0) {
+                    current.put(key, old);
+                }
+                continue;
+            }
+            current.put(key, hash);
+            if (old == 0) {
+                inserted++;
+            } else {
+                updated++;
+            }
+            batch.remove(id);   //先删再放, 保持最后一次修改的顺序
+            batch.put(id, doc);
+            if (batch.size() >= batchSize) {
+                apply(iwriter, batch);
+            }
+        }
+        badRecords += reader.getBadLineCount();
+
+        for (long key : previous.idsNotIn(current)) {
+            batch.put(Long.toString(key), null);
+            deleted++;
+            if (batch.size() >= batchSize) {
+                apply(iwriter, batch);
+            }
+        }
+        apply(iwriter, batch);
+
+        long start = System.nanoTime();
+        try {
+            iwriter.commit();
+        } catch (IOException | RuntimeException e) {
+            metrics.recordError(SearchMetrics.Stage.COMMIT);
+            throw e;
+        }
+        metrics.record(SearchMetrics.Stage.COMMIT, System.nanoTime() - start);
+        current.save(statePath);   //索引commit后才保存, 保证状态不会领先于索引
+        return inserted + updated + deleted;
+    }
+
+    private void apply(IndexWriter iwriter, LinkedHashMap<String, Document> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Term> deletes = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (Map.Entry<String, Document> e : batch.entrySet()) {
+                Term term = new Term(ShopSchema.ID, e.getKey());
+                if (e.getValue() == null) {
+                    deletes.add(term);
+                } else {
+                    iwriter.updateDocument(term, e.getValue());   //删旧文档和写新文档是一次操作, 使用同一writer的NRT reader不会看到文档消失
+                }
+            }
+            if (!deletes.isEmpty()) {
+                iwriter.deleteDocuments(deletes.toArray(new Term[0]));
+            }
+        } catch (IOException | RuntimeException e) {
+            metrics.recordError(SearchMetrics.Stage.APPLY);
+            throw e;
+        }
+        metrics.record(SearchMetrics.Stage.APPLY, System.nanoTime() - start);
+        batch.clear();
+    }
+
+    /**
+     * @param id
+     * @return 十进制整数id的值, 其他(null, 非数字, 有前导0或正号等, 转回字符串后不相同的)返回-1
+     */
+    static long parseId(String id) {
+        if (id == null || id.isEmpty() || id.length() > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return id.length() > 1 && id.charAt(0) == '0' ? -1 : value;
+    }
+
+    /**
+     * 记录内容的64位哈希: ShopSchema用到的各字段依次计入, 字段之间有分隔, 缺失字段和空串不同
+     * @param shop
+     * @return 非0的哈希
+     */
+    public static long contentHash(JSONObject shop) {
+        long h = 0xcbf29ce484222325L;   //FNV-1a 64位
+        h = mix(h, shop.getString(ShopSchema.ID));
+        h = mix(h, shop.getString(ShopSchema.NAME));
+        h = mix(h, shop.getString("address"));
+        h = mix(h, shop.getDouble(ShopSchema.LATITUDE));
+        h = mix(h, shop.getDouble(ShopSchema.LONGITUDE));
+        h = mix(h, shop.getLong(ShopSchema.POPULARITY));
+        //最后用MurmurHash3的fmix64打散, FNV的低位变化不充分
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb53fe1a85ec3L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;   //0在ContentHashStore中表示不存在
+    }
+
+    private static long mix(long h, String value) {
+        if (value == null) {
+            return (h ^ 0x1F) * 0x100000001b3L;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return (h ^ 0x1E ^ ((long) value.length() << 8)) * 0x100000001b3L;   //带上长度, "ab"+"c"和"a"+"bc"不同
+    }
+
+    private static long mix(long h, Double value) {
+        return mix(h, value == null ? null : (Long) Double.doubleToLongBits(value));
+    }
+
+    private static long mix(long h, Long value) {
+        if (value == null) {
+            return (h ^ 0x1F) * 0x100000001b3L;
+        }
+        long bits = value;
+        for (int shift = 0; shift < 64; shift += 16) {
+            h = (h ^ ((bits >>> shift) & 0xFFFF)) * 0x100000001b3L;
+        }
+        return (h ^ 0x1E) * 0x100000001b3L;
+    }
+
+    private void resetStats() {
+        inserted = 0;
+        updated = 0;
+        deleted = 0;
+        unchanged = 0;
+        badRecords = 0;
+    }
+
+    public long getInserted() {
+        return inserted;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return 最近一次同步或记录中跳过的记录数: 格式错误的行, id不是整数的, 缺少字段的
+     */
+    public long getBadRecords() {
+        return badRecords;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("inserted=%d, updated=%d, deleted=%d, unchanged=%d, bad=%d",
+                inserted, updated, deleted, unchanged, badRecords);
+    }
+}
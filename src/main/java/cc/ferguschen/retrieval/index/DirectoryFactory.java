@@ -0,0 +1,159 @@
+package cc.ferguschen.retrieval.index;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FileSwitchDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Created by chenqining on 2018/8/7.
+ * 按配置打开索引目录, 代替FSDirectory.open的隐式选择:
+ * * MMAP: 内存映射, 读取走操作系统页缓存; 可选预加载(preload), 打开文件时把热点文件(词典, 倒排, DocValues, norms)
+ *   的页全部读入, 避免刚启动时查询频繁缺页. 预加载的文件和其他文件用FileSwitchDirectory按扩展名分开;
+ * * NIO: 按块读文件, 不占用虚拟地址空间, 32位JVM或虚拟内存受限时使用;
+ * * RAM: 把整个索引拷贝到堆上(RAMDirectory), 只适合小索引的只读检索, 写入不会落盘;
+ *   索引超过maxRamBytes时退回MMAP.
+ * 用法: new DirectoryFactory().setType(DirectoryFactory.Type.MMAP).setPreload(true).open(path)
+ */
+public class DirectoryFactory {
+    public enum Type {
+        MMAP, NIO, RAM
+    }
+
+    /**
+     * 默认预加载的扩展名: 词典索引/词典(tip/tim), 倒排(doc), DocValues(dvm/dvd), norms(nvm/nvd), 以及小段的复合文件(cfs/cfe).
+     * 位置(pos/pay)和存储字段(fdt/fdx)较大, 检索时很少读到, 不预加载.
+     */
+    public static final Set<String> HOT_EXTENSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "tip", "tim", "doc", "dvm", "dvd", "nvm", "nvd", "cfs", "cfe")));
+
+    private Type type = Type.MMAP;
+    private boolean preload = false;
+    private Set<String> preloadExtensions = HOT_EXTENSIONS;
+    private long maxRamBytes = 256L * 1024 * 1024;
+
+    public DirectoryFactory setType(Type type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * 按名称设置类型, 不区分大小写, 如"mmap", "nio", "ram"
+     * @param type
+     * @return
+     */
+    public DirectoryFactory setType(String type) {
+        return setType(Type.valueOf(type.trim().toUpperCase(Locale.ROOT)));
+    }
+
+    /**
+     * MMAP时是否预加载热点文件
+     * @param preload
+     * @return
+     */
+    public DirectoryFactory setPreload(boolean preload) {
+        this.preload = preload;
+        return this;
+    }
+
+    /**
+     * 预加载的文件扩展名, 默认{@link #HOT_EXTENSIONS}
+     * @param preloadExtensions
+     * @return
+     */
+    public DirectoryFactory setPreloadExtensions(Set<String> preloadExtensions) {
+        this.preloadExtensions = preloadExtensions;
+        return this;
+    }
+
+    /**
+     * RAM时允许拷贝的最大索引大小, 超过则退回MMAP
+     * @param maxRamBytes
+     * @return
+     */
+    public DirectoryFactory setMaxRamBytes(long maxRamBytes) {
+        this.maxRamBytes = maxRamBytes;
+        return this;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isPreload() {
+        return preload;
+    }
+
+    /**
+     * 打开目录. 目录不存在时创建.
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public Directory open(Path path) throws IOException {
+        switch (type) {
+            case NIO:
+                return new NIOFSDirectory(path);
+            case RAM:
+                if (sizeOf(path) <= maxRamBytes) {
+                    return openRam(path);
+                }
+                return openMMap(path);   //索引过大, 退回内存映射
+            default:
+                return openMMap(path);
+        }
+    }
+
+    private Directory openMMap(Path path) throws IOException {
+        if (!preload) {
+            return new MMapDirectory(path);
+        }
+        MMapDirectory hot = new MMapDirectory(path);
+        hot.setPreload(true);   //打开IndexInput时读入所有页(MappedByteBuffer.load)
+        MMapDirectory cold = new MMapDirectory(path);
+        return new FileSwitchDirectory(preloadExtensions, hot, cold, true);   //两个目录指向同一路径, 只按扩展名分流读取
+    }
+
+    private static Directory openRam(Path path) throws IOException {
+        FSDirectory source = FSDirectory.open(path);
+        try {
+            return new RAMDirectory(source, IOContext.READONCE);
+        } finally {
+            IOUtils.close(source);
+        }
+    }
+
+    private static long sizeOf(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return 0;
+        }
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file)) {
+                    size += Files.size(file);
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.MMAP && preload ? "mmap+preload" : type.name().toLowerCase(Locale.ROOT);
+    }
+}
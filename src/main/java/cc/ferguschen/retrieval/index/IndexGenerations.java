@@ -0,0 +1,161 @@
+package cc.ferguschen.retrieval.index;
+
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by chenqining on 2018/8/15.
+ * 蓝绿重建的索引目录. 全量重建不再在线上的目录里CREATE(查询会看到重建了一半的索引), 而是写入新的一代目录:
+ * <pre>
+ * idx/data           第0代, 即原来的索引目录
+ * idx/data.1, .2 ... 之后每次重建的新目录
+ * idx/data.current   指针文件, 内容是当前一代的目录名; 不存在时当前为第0代
+ * </pre>
+ * 新目录建好(合并, commit)后{@link #publish}原子地替换指针文件, 检索端切换过去(SwitchingSearcherManager),
+ * 旧目录等最后一个查询结束后删除. 重启时按指针文件打开当前一代, 重建到一半崩溃的目录不会被用到, 下次重建时清理.
+ * 写入端(IndexWriterService, MutationLog等)也要按{@link #current}打开目录. IndexWriter不会跟着切换:
+ * publish后要关闭旧目录上的writer, 再在新的当前一代上重新打开, 否则修改写进退役(随后被删除)的目录, 检索看不到.
+ */
+public class IndexGenerations {
+    private static final String POINTER_SUFFIX = ".current";
+
+    private final Path root;
+    private final String base;
+    private final Path pointer;
+
+    /**
+     * @param basePath 第0代的目录, 如idx/data, 其他各代和指针文件放在同一个父目录下
+     */
+    public IndexGenerations(Path basePath) {
+        Path absolute = basePath.toAbsolutePath();
+        this.root = absolute.getParent();
+        this.base = absolute.getFileName().toString();
+        this.pointer = root.resolve(base + POINTER_SUFFIX);
+    }
+
+    /**
+     * @return 当前一代的目录
+     * @throws IOException
+     */
+    public Path current() throws IOException {
+        if (!Files.exists(pointer)) {
+            return root.resolve(base);
+        }
+        String name = new String(Files.readAllBytes(pointer), StandardCharsets.UTF_8).trim();
+        if (generation(name) < 0) {
+            throw new IOException("bad index generation pointer: " + pointer + " -> " + name);
+        }
+        return root.resolve(name);
+    }
+
+    /**
+     * 创建下一代的空目录, 代数比已有的所有目录(包括重建失败留下的)都大
+     * @return
+     * @throws IOException
+     */
+    public Path next() throws IOException {
+        long max = 0;
+        for (Path path : list()) {
+            max = Math.max(max, generation(path.getFileName().toString()));
+        }
+        Path next = root.resolve(base + "." + (max + 1));
+        Files.createDirectories(next);
+        return next;
+    }
+
+    /**
+     * 把指针文件指向generation: 先写临时文件并fsync, 再原子替换. 之后重启时打开这一代.
+     * @param generation next()创建并已建好索引的目录
+     * @throws IOException
+     */
+    public void publish(Path generation) throws IOException {
+        String name = generation.getFileName().toString();
+        if (generation(name) < 0 || !root.equals(generation.toAbsolutePath().getParent())) {
+            throw new IllegalArgumentException("not a generation of " + root.resolve(base) + ": " + generation);
+        }
+        Path tmp = root.resolve(base + POINTER_SUFFIX + ".tmp");
+        Files.write(tmp, name.getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, pointer, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return 除当前一代外的所有目录: 已切换走的旧目录, 以及重建失败留下的目录
+     * @throws IOException
+     */
+    public List<Path> stale() throws IOException {
+        Path current = current();
+        List<Path> result = new ArrayList<>();
+        for (Path path : list()) {
+            if (!path.equals(current)) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 删除一代的目录. 只应删除没有reader在用的目录(Linux上删除仍被打开或映射的文件也是安全的, 空间在关闭后释放).
+     * @param generation
+     * @throws IOException
+     */
+    public static void delete(Path generation) throws IOException {
+        IOUtils.rm(generation);
+    }
+
+    private List<Path> list() throws IOException {
+        List<Path> result = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return result;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, base + "*")) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path) && generation(path.getFileName().toString()) >= 0) {
+                    result.add(path);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param name 目录名
+     * @return 代数, 不是这组目录时返回-1
+     */
+    private long generation(String name) {
+        if (name.equals(base)) {
+            return 0;
+        }
+        if (!name.startsWith(base + ".")) {
+            return -1;
+        }
+        String suffix = name.substring(base.length() + 1);
+        if (suffix.isEmpty() || suffix.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            char c = suffix.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(suffix);
+    }
+
+    @Override
+    public String toString() {
+        return root.resolve(base).toString();
+    }
+}
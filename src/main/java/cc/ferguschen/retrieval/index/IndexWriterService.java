@@ -0,0 +1,278 @@
+package cc.ferguschen.retrieval.index;
+
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by chenqining on 2018/7/18.
+ * 长期持有的共享IndexWriter服务.
+ * IndexWriter本身是线程安全的, 多个线程可以同时add/update/delete; 真正昂贵的是打开writer(获取写锁, 读取segments_N)和commit(fsync).
+ * 这里只打开一次writer, 并按时间间隔或累计操作数定期commit, 避免每次修改都付出这些开销.
+ */
+public class IndexWriterService implements Closeable {
+    private final IndexWriter iwriter;
+    private final long commitIntervalMs;   //定时commit的间隔, <=0 表示不按时间commit
+    private final long commitEveryOps;     //累计多少次修改后commit, <=0 表示不按次数commit
+    private final ScheduledExecutorService scheduler;
+    private final SearchMetrics metrics;
+
+    private final AtomicLong pendingOps = new AtomicLong();   //自上次commit以来的修改数
+    private final AtomicLong totalOps = new AtomicLong();
+    private final AtomicLong commitCount = new AtomicLong();
+    private final AtomicBoolean commitScheduled = new AtomicBoolean(false);
+    private final Object commitLock = new Object();
+    private volatile boolean closed = false;
+
+    /**
+     * @param idxDir 索引目录
+     * @param analyzer 分析器
+     * @param openMode 打开模式
+     * @param commitIntervalMs 定时commit的间隔(毫秒), <=0 表示不按时间commit
+     * @param commitEveryOps 累计修改数达到该值时commit, <=0 表示不按次数commit
+     * @throws IOException
+     */
+    public IndexWriterService(Directory idxDir, Analyzer analyzer, IndexWriterConfig.OpenMode openMode,
+                              long commitIntervalMs, long commitEveryOps) throws IOException {
+        this(idxDir, newConfig(analyzer, openMode, false), commitIntervalMs, commitEveryOps, SearchMetrics.NONE);
+    }
+
+    public IndexWriterService(Directory idxDir, Analyzer analyzer, IndexWriterConfig.OpenMode openMode,
+                              long commitIntervalMs, long commitEveryOps, SearchMetrics metrics) throws IOException {
+        this(idxDir, analyzer, openMode, commitIntervalMs, commitEveryOps, metrics, false);
+    }
+
+    /**
+     * @param idxDir 索引目录
+     * @param analyzer 分析器
+     * @param openMode 打开模式
+     * @param commitIntervalMs 定时commit的间隔(毫秒), <=0 表示不按时间commit
+     * @param commitEveryOps 累计修改数达到该值时commit, <=0 表示不按次数commit
+     * @param metrics 记录add/update/delete/commit/合并的耗时
+     * @param addressGrams 索引是否有地址子串检索的域; 为true时分析器用ShopSchema.withAddressGrams包装,
+     *                     写入的文档也应带addr_ngram, addr_edge(ShopSchema.createDocument(shop, true))
+     * @throws IOException
+     */
+    public IndexWriterService(Directory idxDir, Analyzer analyzer, IndexWriterConfig.OpenMode openMode,
+                              long commitIntervalMs, long commitEveryOps, SearchMetrics metrics,
+                              boolean addressGrams) throws IOException {
+        this(idxDir, newConfig(analyzer, openMode, addressGrams), commitIntervalMs, commitEveryOps, metrics);
+    }
+
+    public IndexWriterService(Directory idxDir, IndexWriterConfig config,
+                              long commitIntervalMs, long commitEveryOps) throws IOException {
+        this(idxDir, config, commitIntervalMs, commitEveryOps, SearchMetrics.NONE);
+    }
+
+    /**
+     * @param idxDir 索引目录
+     * @param config writer配置; 合并调度器是默认的ConcurrentMergeScheduler时换成metrics记录合并耗时的调度器
+     * @param commitIntervalMs 定时commit的间隔(毫秒), <=0 表示不按时间commit
+     * @param commitEveryOps 累计修改数达到该值时commit, <=0 表示不按次数commit
+     * @param metrics 记录add/update/delete/commit/合并的耗时
+     * @throws IOException
+     */
+    public IndexWriterService(Directory idxDir, IndexWriterConfig config,
+                              long commitIntervalMs, long commitEveryOps, SearchMetrics metrics) throws IOException {
+        if (metrics.isEnabled() && config.getMergeScheduler().getClass() == ConcurrentMergeScheduler.class) {
+            config.setMergeScheduler(metrics.newMergeScheduler());
+        }
+        this.iwriter = new IndexWriter(idxDir, config);
+        this.commitIntervalMs = commitIntervalMs;
+        this.commitEveryOps = commitEveryOps;
+        this.metrics = metrics;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "index-writer-commit");
+            t.setDaemon(true);
+            return t;
+        });
+        if (commitIntervalMs > 0) {
+            scheduler.scheduleWithFixedDelay(this::commitQuietly, commitIntervalMs, commitIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static IndexWriterConfig newConfig(Analyzer analyzer, IndexWriterConfig.OpenMode openMode, boolean addressGrams) {
+        IndexWriterConfig config = new IndexWriterConfig(addressGrams ? ShopSchema.withAddressGrams(analyzer) : analyzer);
+        config.setOpenMode(openMode);
+        config.setIndexSort(ShopSchema.INDEX_SORT);   //和建索引时的排序一致, 否则打不开已排序的索引
+        config.setSimilarity(ShopSchema.SIMILARITY);
+        return config;
+    }
+
+    /**
+     * 追加文档
+     * @param doc
+     * @return 操作的序列号, 可用于等待近实时检索可见
+     * @throws IOException
+     */
+    public long addDocument(Document doc) throws IOException {
+        ensureOpen();
+        long start = System.nanoTime();
+        long seqNo;
+        try {
+            seqNo = iwriter.addDocument(doc);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordError(SearchMetrics.Stage.ADD);
+            throw e;
+        }
+        metrics.record(SearchMetrics.Stage.ADD, System.nanoTime() - start);
+        afterOp();
+        return seqNo;
+    }
+
+    /**
+     * 用新文档替换指定id的文档(先删后加)
+     * @param id
+     * @param doc
+     * @return 操作的序列号
+     * @throws IOException
+     */
+    public long updateDocument(String id, Document doc) throws IOException {
+        ensureOpen();
+        long start = System.nanoTime();
+        long seqNo;
+        try {
+            seqNo = iwriter.updateDocument(new Term("id", id), doc);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordError(SearchMetrics.Stage.UPDATE);
+            throw e;
+        }
+        metrics.record(SearchMetrics.Stage.UPDATE, System.nanoTime() - start);
+        afterOp();
+        return seqNo;
+    }
+
+    /**
+     * 删除指定id的文档
+     * @param id
+     * @return 操作的序列号
+     * @throws IOException
+     */
+    public long deleteDocument(String id) throws IOException {
+        ensureOpen();
+        long start = System.nanoTime();
+        long seqNo;
+        try {
+            seqNo = iwriter.deleteDocuments(new Term("id", id));
+        } catch (IOException | RuntimeException e) {
+            metrics.recordError(SearchMetrics.Stage.DELETE);
+            throw e;
+        }
+        metrics.record(SearchMetrics.Stage.DELETE, System.nanoTime() - start);
+        afterOp();
+        return seqNo;
+    }
+
+    private void afterOp() {
+        totalOps.incrementAndGet();
+        long pending = pendingOps.incrementAndGet();
+        //达到次数阈值时, 交给后台线程commit, 不阻塞调用方; commitScheduled保证同时只排队一次
+        if (commitEveryOps > 0 && pending >= commitEveryOps && commitScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    commitScheduled.set(false);
+                    commitQuietly();
+                });
+            } catch (RejectedExecutionException e) {
+                //close已停止scheduler(写入和close并发), 剩余的修改由close中的iwriter.close()提交
+                commitScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * 立即commit所有修改, 使其持久化.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        ensureOpen();
+        commit();
+    }
+
+    private void commit() throws IOException {
+        synchronized (commitLock) {
+            long pending = pendingOps.get();
+            if (pending == 0 && !iwriter.hasUncommittedChanges()) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                iwriter.commit();
+            } catch (IOException | RuntimeException e) {
+                metrics.recordError(SearchMetrics.Stage.COMMIT);
+                throw e;
+            }
+            metrics.record(SearchMetrics.Stage.COMMIT, System.nanoTime() - start);
+            pendingOps.addAndGet(-pending);   //commit期间到来的修改留给下一次
+            commitCount.incrementAndGet();
+        }
+    }
+
+    private void commitQuietly() {
+        if (closed) {
+            return;
+        }
+        try {
+            commit();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("IndexWriterService is closed");
+        }
+    }
+
+    /**
+     * 底层的IndexWriter, 供近实时检索等需要直接访问writer的组件使用. 不要在外部close它.
+     * @return
+     */
+    public IndexWriter getIndexWriter() {
+        return iwriter;
+    }
+
+    public long getTotalOps() {
+        return totalOps.get();
+    }
+
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+
+    /**
+     * 停止定时commit, 提交剩余修改并关闭writer.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (commitLock) {
+            closed = true;
+            iwriter.close();   //close会commit剩余的修改
+        }
+    }
+}
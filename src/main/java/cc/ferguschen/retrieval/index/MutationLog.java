@@ -0,0 +1,464 @@
+package cc.ferguschen.retrieval.index;
+
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by chenqining on 2018/8/8.
+ * 修改日志: 变更流中的upsert/delete先追加到本地日志文件, 再按批应用到索引.
+ * * 每条修改分配递增的序列号, 按行写入日志(seq \t U \t 记录JSON 或 seq \t D \t id); {@link #sync()}时fsync, 一批修改只fsync一次;
+ * * 尚未应用的修改按id合并, 同一id只保留最后一次操作, 突发的重复修改只写一次索引;
+ * * 应用时upsert逐条updateDocument(按id原子地替换, reopen不会看到旧文档已删除而新文档未写入的中间状态),
+ *   删除一次deleteDocuments删掉这批所有要删除的id, 文档统一由ShopSchema创建(addressGrams时和makeIndex一样带地址子串域);
+ *   累计batchSize条或每隔applyIntervalMs由后台线程应用, 不阻塞追加的线程;
+ * * {@link #checkpoint()}应用剩余修改并commit, 已应用的最大序列号写在commit的用户数据中; 之后切换到新的日志文件,
+ *   全部修改都已commit的旧文件被删除;
+ * * 打开时读取日志, 重放序列号大于已commit序列号的修改. upsert和delete按id执行, 重复应用结果相同, 所以重放是幂等的.
+ * 进程崩溃时, 最后一次sync之后追加的修改可能丢失, 最后一行可能不完整(读取时忽略).
+ */
+public class MutationLog implements Closeable {
+    public static final String COMMIT_SEQ_KEY = "mutationLogSeq";   //commit用户数据中, 已应用的最大序列号
+
+    private static final String FILE_PREFIX = "mutations-";
+    private static final String FILE_SUFFIX = ".log";
+
+    private final Path logDir;
+    private final IndexWriter iwriter;
+    private final int batchSize;
+    private final boolean addressGrams;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object appendLock = new Object();
+    private final Object applyLock = new Object();
+    private LinkedHashMap<String, Mutation> pending = new LinkedHashMap<>();   //尚未应用的修改, 按id合并
+    private long nextSeq;
+    private long lastAppendedSeq;
+    private FileChannel channel = null;    //当前的日志文件, 第一次追加时创建
+    private BufferedWriter out = null;
+    private final TreeMap<Long, Path> closedFiles = new TreeMap<>();   //已切换出去的日志文件: 文件中最大的序列号 -> 文件
+    private Path currentFile = null;
+
+    private volatile long appliedSeq;
+    private volatile long appliedIndexSeqNo = 0;   //最近一批在IndexWriter中的序列号, 用于等待近实时检索可见
+    private volatile long committedSeq;
+    private final AtomicBoolean applyScheduled = new AtomicBoolean(false);
+    private final AtomicLong appendedOps = new AtomicLong();
+    private final AtomicLong appliedOps = new AtomicLong();   //合并后实际写入索引的修改数
+    private final AtomicLong batches = new AtomicLong();
+    private final int replayedOps;
+    private volatile boolean closed = false;
+    private volatile SearchMetrics metrics = SearchMetrics.NONE;
+
+    /**
+     * 打开日志目录, 重放未commit的修改(只放入待应用队列, 由后台线程或checkpoint应用)
+     * @param logDir 日志目录
+     * @param iwriter 共享的IndexWriter, 如IndexWriterService.getIndexWriter()
+     * @param batchSize 累计多少条待应用的修改时触发应用
+     * @param applyIntervalMs 定时应用的间隔(毫秒), <=0 表示只按条数和checkpoint应用
+     * @throws IOException
+     */
+    public MutationLog(Path logDir, IndexWriter iwriter, int batchSize, long applyIntervalMs) throws IOException {
+        this(logDir, iwriter, batchSize, applyIntervalMs, false);
+    }
+
+    /**
+     * 打开日志目录, 重放未commit的修改(只放入待应用队列, 由后台线程或checkpoint应用)
+     * @param logDir 日志目录
+     * @param iwriter 共享的IndexWriter, 如IndexWriterService.getIndexWriter()
+     * @param batchSize 累计多少条待应用的修改时触发应用
+     * @param applyIntervalMs 定时应用的间隔(毫秒), <=0 表示只按条数和checkpoint应用
+     * @param addressGrams upsert和重放的文档是否写入地址子串检索的addr_ngram, addr_edge域, 应和建索引时一致;
+     *                     为true时iwriter的分析器要用ShopSchema.withAddressGrams包装
+     * @throws IOException
+     */
+    public MutationLog(Path logDir, IndexWriter iwriter, int batchSize, long applyIntervalMs, boolean addressGrams) throws IOException {
+        this.logDir = logDir;
+        this.iwriter = iwriter;
+        this.batchSize = batchSize;
+        this.addressGrams = addressGrams;
+        Files.createDirectories(logDir);
+        this.committedSeq = readCommittedSeq(iwriter);
+        this.appliedSeq = committedSeq;
+        this.replayedOps = replay();
+        this.nextSeq = Math.max(lastAppendedSeq, committedSeq) + 1;   //日志尾部丢失时, 序列号也不能小于已commit的
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mutation-log-apply");
+            t.setDaemon(true);
+            return t;
+        });
+        if (applyIntervalMs > 0) {
+            scheduler.scheduleWithFixedDelay(this::applyQuietly, applyIntervalMs, applyIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static long readCommittedSeq(IndexWriter iwriter) {
+        Iterable<Map.Entry<String, String>> data = iwriter.getLiveCommitData();
+        if (data != null) {
+            for (Map.Entry<String, String> entry : data) {
+                if (COMMIT_SEQ_KEY.equals(entry.getKey())) {
+                    return Long.parseLong(entry.getValue());
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 读取日志目录中的所有文件, 序列号大于committedSeq的修改放入待应用队列
+     * @return 重放的修改数(合并前)
+     */
+    private int replay() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDir, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);   //文件名是补零的起始序列号, 按名字排序即按序列号排序
+        int replayed = 0;
+        for (Path file : files) {
+            long fileLastSeq = 0;
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && !endsWithNewline(file)) {
+                lines.remove(lines.size() - 1);   //崩溃时写了一半的行, 可能被误读成另一个id, 直接丢弃
+            }
+            for (String line : lines) {
+                Mutation mutation = parse(line);
+                if (mutation == null) {
+                    System.err.println("[warn] skip bad mutation log line in " + file.getFileName() + ": " + line);
+                    continue;
+                }
+                fileLastSeq = mutation.seq;
+                lastAppendedSeq = Math.max(lastAppendedSeq, mutation.seq);
+                if (mutation.seq > committedSeq) {
+                    pending.remove(mutation.id);
+                    pending.put(mutation.id, mutation);
+                    replayed++;
+                }
+            }
+            if (fileLastSeq == 0) {
+                Files.delete(file);   //没有完整记录的文件
+            } else {
+                closedFiles.put(fileLastSeq, file);
+            }
+        }
+        return replayed;
+    }
+
+    private static boolean endsWithNewline(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() == 0) {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            ch.read(last, ch.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private Mutation parse(String line) {
+        int first = line.indexOf('\t');
+        int second = first < 0 ? -1 : line.indexOf('\t', first + 1);
+        if (second < 0) {
+            return null;
+        }
+        try {
+            long seq = Long.parseLong(line.substring(0, first));
+            String op = line.substring(first + 1, second);
+            String body = line.substring(second + 1);
+            if ("D".equals(op)) {
+                return new Mutation(seq, body, null);
+            }
+            JSONObject shop = JSON.parseObject(body);
+            return new Mutation(seq, shop.getString("id"), ShopSchema.createDocument(shop, addressGrams));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 追加一条upsert: 文档不存在时新增, 存在时替换.
+     * 文档在追加前创建, 缺少字段的记录在这里抛出异常, 不会写入日志, 也不会让后台的批量应用失败.
+     * @param shop shop.json格式的记录, 必须有id, name, address
+     * @return 序列号
+     * @throws IOException
+     * @throws IllegalArgumentException 记录不完整
+     */
+    public long upsert(JSONObject shop) throws IOException {
+        String id = shop.getString("id");
+        if (id == null) {
+            throw new IllegalArgumentException("shop without id: " + shop);
+        }
+        Document doc = ShopSchema.createDocument(shop, addressGrams);
+        return append(id, doc, "U", shop.toJSONString());
+    }
+
+    /**
+     * 追加一条删除
+     * @param id
+     * @return 序列号
+     * @throws IOException
+     */
+    public long delete(String id) throws IOException {
+        return append(id, null, "D", id);
+    }
+
+    private long append(String id, Document doc, String op, String body) throws IOException {
+        int size;
+        long seq;
+        synchronized (appendLock) {
+            ensureOpen();
+            if (out == null) {
+                openFile();
+            }
+            seq = nextSeq++;
+            out.write(Long.toString(seq));
+            out.write('\t');
+            out.write(op);
+            out.write('\t');
+            out.write(body);
+            out.write('\n');
+            lastAppendedSeq = seq;
+            pending.remove(id);   //先删再放, 保持最后一次修改的顺序
+            pending.put(id, new Mutation(seq, id, doc));
+            size = pending.size();
+        }
+        appendedOps.incrementAndGet();
+        //达到批大小时, 交给后台线程应用, 不阻塞调用方; applyScheduled保证同时只排队一次
+        if (size >= batchSize && applyScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    applyScheduled.set(false);
+                    applyQuietly();
+                });
+            } catch (RejectedExecutionException e) {
+                //close已停止scheduler(追加和close并发), 修改已写入日志, 由close中的checkpoint应用或下次打开时重放
+                applyScheduled.set(false);
+            }
+        }
+        return seq;
+    }
+
+    private void openFile() throws IOException {
+        currentFile = logDir.resolve(String.format("%s%020d%s", FILE_PREFIX, nextSeq, FILE_SUFFIX));
+        channel = FileChannel.open(currentFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 64 * 1024));
+    }
+
+    /**
+     * 把已追加的修改写入磁盘(fsync). 返回后, 这些修改在进程崩溃后也能重放.
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        synchronized (appendLock) {
+            if (out != null) {
+                out.flush();
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * 把待应用的修改写入IndexWriter(不commit). 先sync日志, 保证索引中的修改都能从日志重放.
+     * @return 写入索引的修改数(合并后)
+     * @throws IOException
+     */
+    public int apply() throws IOException {
+        synchronized (applyLock) {
+            LinkedHashMap<String, Mutation> batch;
+            long batchSeq;
+            synchronized (appendLock) {
+                if (pending.isEmpty()) {
+                    return 0;
+                }
+                if (out != null) {
+                    out.flush();
+                    channel.force(false);
+                }
+                batch = pending;
+                batchSeq = lastAppendedSeq;
+                pending = new LinkedHashMap<>();
+            }
+            List<Term> deletes = new ArrayList<>();
+            long start = System.nanoTime();
+            long seqNo = 0;
+            try {
+                for (Mutation mutation : batch.values()) {
+                    Term term = new Term(ShopSchema.ID, mutation.id);
+                    if (mutation.doc == null) {
+                        deletes.add(term);
+                    } else {
+                        seqNo = iwriter.updateDocument(term, mutation.doc);   //删除旧文档和写入新文档在同一次操作中, NRT reopen或commit不会夹在中间
+                    }
+                }
+                if (!deletes.isEmpty()) {
+                    seqNo = iwriter.deleteDocuments(deletes.toArray(new Term[0]));   //合并后每个id只有一个操作, 和upsert的顺序无关
+                }
+            } catch (IOException | RuntimeException e) {
+                metrics.recordError(SearchMetrics.Stage.APPLY);
+                throw e;
+            }
+            metrics.record(SearchMetrics.Stage.APPLY, System.nanoTime() - start);
+            iwriter.setLiveCommitData(Collections.singletonMap(COMMIT_SEQ_KEY, Long.toString(batchSeq)).entrySet());
+            appliedSeq = batchSeq;
+            appliedIndexSeqNo = seqNo;
+            appliedOps.addAndGet(batch.size());
+            batches.incrementAndGet();
+            return batch.size();
+        }
+    }
+
+    private void applyQuietly() {
+        if (closed) {
+            return;
+        }
+        try {
+            apply();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 应用剩余修改并commit, 删除修改已全部commit的日志文件
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        synchronized (applyLock) {
+            apply();
+            long start = System.nanoTime();
+            try {
+                iwriter.commit();
+            } catch (IOException | RuntimeException e) {
+                metrics.recordError(SearchMetrics.Stage.COMMIT);
+                throw e;
+            }
+            metrics.record(SearchMetrics.Stage.COMMIT, System.nanoTime() - start);
+            committedSeq = appliedSeq;
+        }
+        synchronized (appendLock) {
+            if (out != null) {
+                out.close();   //切换到新文件, 下次追加时创建
+                closedFiles.put(lastAppendedSeq, currentFile);
+                out = null;
+                channel = null;
+                currentFile = null;
+            }
+            Map<Long, Path> done = closedFiles.headMap(committedSeq, true);
+            for (Path file : done.values()) {
+                Files.deleteIfExists(file);
+            }
+            done.clear();
+        }
+    }
+
+    /**
+     * 记录每批修改写入IndexWriter和checkpoint时commit的耗时
+     * @param metrics
+     * @return
+     */
+    public MutationLog setMetrics(SearchMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("MutationLog is closed");
+        }
+    }
+
+    public long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    /**
+     * 最近一次apply在IndexWriter中的序列号, 可传给NRTSearcherService.waitForGeneration
+     * @return
+     */
+    public long getAppliedIndexSeqNo() {
+        return appliedIndexSeqNo;
+    }
+
+    public long getCommittedSeq() {
+        return committedSeq;
+    }
+
+    public int getReplayedOps() {
+        return replayedOps;
+    }
+
+    public int getPendingOps() {
+        synchronized (appendLock) {
+            return pending.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("appended=%d, applied=%d(合并后), batches=%d, pending=%d, appliedSeq=%d, committedSeq=%d",
+                appendedOps.get(), appliedOps.get(), batches.get(), getPendingOps(), appliedSeq, committedSeq);
+    }
+
+    /**
+     * 停止后台应用线程, 应用剩余修改并commit. 不会关闭IndexWriter.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+        closed = true;
+    }
+
+    /**
+     * 一条修改, doc为null表示删除
+     */
+    private static final class Mutation {
+        final long seq;
+        final String id;
+        final Document doc;
+
+        Mutation(long seq, String id, Document doc) {
+            this.seq = seq;
+            this.id = id;
+            this.doc = doc;
+        }
+    }
+}
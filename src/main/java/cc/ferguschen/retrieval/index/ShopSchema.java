@@ -0,0 +1,179 @@
+package cc.ferguschen.retrieval.index;
+
+import cc.ferguschen.retrieval.analysis.AddressGramAnalyzer;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.LatLonDocValuesField;
+import org.apache.lucene.document.LatLonPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by chenqining on 2018/7/20.
+ * POI索引的统一文档结构. 建索引, 追加, 批量导入都通过这里构造Document, 保证各处的域一致.
+ * 检索结果要返回或排序的域(id, name, 经纬度, popularity)同时写入列式的DocValues,
+ * 取结果时可以按列读取(见{@link cc.ferguschen.retrieval.search.FieldLoader}), 不必逐个解压存储的文档.
+ * 索引按{@link #INDEX_SORT}(热度降序, 再按id)排序存储, 写入同一索引的IndexWriterConfig都要设置相同的排序.
+ * 可选的地址子串模式: 另写addr_ngram和addr_edge两个域(见{@link #addAddressGrams}), 建索引时分析器要用
+ * {@link #withAddressGrams}包装, 查询见{@link cc.ferguschen.retrieval.search.AddressQueryBuilder}.
+ */
+public class ShopSchema {
+    public static final String ID = "id";       //不分析, 直接存储
+    public static final String NAME = "name";   //分析并存储
+    public static final String ADDR = "addr";   //只分析, 不存储
+    public static final String LOCATION = "location";   //经纬度, 点索引(BKD树)用于距离/矩形过滤, DocValues用于按距离排序
+    public static final String LATITUDE = "latitude";   //存储的纬度
+    public static final String LONGITUDE = "longitude"; //存储的经度
+    public static final String POPULARITY = "popularity";   //热度, 只有DocValues, 用于排序
+    public static final String ADDR_NGRAM = "addr_ngram";   //地址的1~2字组合, 子串查询, 不存储
+    public static final String ADDR_EDGE = "addr_edge";     //地址各段的前缀, 前缀查询, 不存储
+
+    public static final AddressGramAnalyzer ADDR_NGRAM_ANALYZER = new AddressGramAnalyzer(AddressGramAnalyzer.Mode.NGRAM, 2);
+    public static final AddressGramAnalyzer ADDR_EDGE_ANALYZER = new AddressGramAnalyzer(AddressGramAnalyzer.Mode.EDGE, 16);
+    private static final FieldType ADDR_EDGE_TYPE = new FieldType();   //前缀只需判断是否出现: 不记词频, 位置和norms
+    static {
+        ADDR_EDGE_TYPE.setIndexOptions(IndexOptions.DOCS);
+        ADDR_EDGE_TYPE.setTokenized(true);
+        ADDR_EDGE_TYPE.setOmitNorms(true);
+        ADDR_EDGE_TYPE.freeze();
+    }
+
+    public static final Sort BY_POPULARITY = new Sort(popularityDesc(), new SortField(ID, SortField.Type.STRING));  //热度降序, 相同时按id
+    public static final Sort BY_ID = new Sort(new SortField(ID, SortField.Type.STRING));   //按id(字符串)升序
+    public static final Sort INDEX_SORT = BY_POPULARITY;   //索引内文档的存储顺序, 按它排序的查询可以提前结束
+
+    public static final ShopSimilarity SIMILARITY = new ShopSimilarity();   //建索引和检索共用的分域相关度模型
+    public static final Map<String, Float> FIELD_BOOSTS;   //name和addr同时检索时各域的权重, 店名命中比地址命中重要
+    static {
+        Map<String, Float> boosts = new LinkedHashMap<>();
+        boosts.put(NAME, 3.0f);
+        boosts.put(ADDR, 1.0f);
+        FIELD_BOOSTS = Collections.unmodifiableMap(boosts);
+    }
+
+    private static SortField popularityDesc(){
+        SortField field = new SortField(POPULARITY, SortField.Type.LONG, true);
+        field.setMissingValue(0L);   //没有热度的按0
+        return field;
+    }
+
+    /**
+     * 根据POI的各字段构造文档(无经纬度)
+     * @param id
+     * @param name
+     * @param addr
+     * @return
+     */
+    public static Document createDocument(String id, String name, String addr){
+        Document doc = new Document();
+        doc.add(new StringField(ID, id, Field.Store.YES));   // 不分析, 直接存储字符串.
+        doc.add(new SortedDocValuesField(ID, new BytesRef(id)));   // 列式存储, 按列读取和排序
+        doc.add(new TextField(NAME, name, Field.Store.YES));   // 分析(lucene分析器)并存储.
+        doc.add(new SortedDocValuesField(NAME, new BytesRef(name)));
+        doc.add(new TextField(ADDR, addr, Field.Store.NO));  //只分析, 不存储. 不存储的域, 在检索时无法获取其值.
+        return doc;
+    }
+
+    /**
+     * 根据POI的各字段构造文档
+     * @param id
+     * @param name
+     * @param addr
+     * @param latitude 纬度, 为null时不索引位置
+     * @param longitude 经度, 为null时不索引位置
+     * @return
+     */
+    public static Document createDocument(String id, String name, String addr, Double latitude, Double longitude){
+        Document doc = createDocument(id, name, addr);
+        if (latitude != null && longitude != null){
+            doc.add(new LatLonPoint(LOCATION, latitude, longitude));
+            doc.add(new LatLonDocValuesField(LOCATION, latitude, longitude));
+            doc.add(new StoredField(LATITUDE, latitude));
+            doc.add(new StoredField(LONGITUDE, longitude));
+        }
+        return doc;
+    }
+
+    /**
+     * 根据POI的各字段构造文档
+     * @param id
+     * @param name
+     * @param addr
+     * @param latitude 纬度, 为null时不索引位置
+     * @param longitude 经度, 为null时不索引位置
+     * @param popularity 热度, 为null时不写入(排序和读取时按0处理)
+     * @return
+     */
+    public static Document createDocument(String id, String name, String addr, Double latitude, Double longitude,
+                                          Long popularity){
+        Document doc = createDocument(id, name, addr, latitude, longitude);
+        if (popularity != null){
+            doc.add(new NumericDocValuesField(POPULARITY, popularity));
+        }
+        return doc;
+    }
+
+    /**
+     * 根据shop.json中的一条记录构造文档
+     * @param shop
+     * @return
+     */
+    public static Document createDocument(JSONObject shop){
+        return createDocument(shop.getString("id"), shop.getString("name"), shop.getString("address"),
+                shop.getDouble("latitude"), shop.getDouble("longitude"), shop.getLong("popularity"));
+    }
+
+    /**
+     * 根据shop.json中的一条记录构造文档
+     * @param shop
+     * @param addressGrams 是否写入地址子串检索的addr_ngram, addr_edge域
+     * @return
+     */
+    public static Document createDocument(JSONObject shop, boolean addressGrams){
+        Document doc = createDocument(shop);
+        if (addressGrams){
+            addAddressGrams(doc, shop.getString("address"));
+        }
+        return doc;
+    }
+
+    /**
+     * 写入地址子串检索的域: addr_ngram(1~2字组合, 带位置, 用于短语查询), addr_edge(各段前缀, 只记文档)
+     * @param doc
+     * @param addr
+     * @return doc
+     */
+    public static Document addAddressGrams(Document doc, String addr){
+        doc.add(new TextField(ADDR_NGRAM, addr, Field.Store.NO));
+        doc.add(new Field(ADDR_EDGE, addr, ADDR_EDGE_TYPE));
+        return doc;
+    }
+
+    /**
+     * 建索引用的分析器: addr_ngram, addr_edge用地址子串的分析器, 其他域用base
+     * @param base
+     * @return
+     */
+    public static Analyzer withAddressGrams(Analyzer base){
+        Map<String, Analyzer> perField = new HashMap<>();
+        perField.put(ADDR_NGRAM, ADDR_NGRAM_ANALYZER);
+        perField.put(ADDR_EDGE, ADDR_EDGE_ANALYZER);
+        return new PerFieldAnalyzerWrapper(base, perField);
+    }
+}
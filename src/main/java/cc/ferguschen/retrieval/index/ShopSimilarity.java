@@ -0,0 +1,66 @@
+package cc.ferguschen.retrieval.index;
+
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.PerFieldSimilarityWrapper;
+import org.apache.lucene.search.similarities.Similarity;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Created by chenqining on 2018/8/3.
+ * POI索引的分域相关度模型: 每个域单独设置BM25的k1和b.
+ * * name很短(多为5~15个字), 长短差别主要来自分店说明, 长度归一化要弱(b小), 否则"星巴克"会输给恰好更短的无关店名;
+ * * addr较长且长短差别大, 用标准的长度归一化.
+ * 建索引(IndexWriterConfig.setSimilarity)和检索(IndexSearcher.setSimilarity)必须使用同一个实例或相同配置.
+ * BM25的长度归一化因子在每次查询创建Weight时按256种norm值预先算好一张表, 打分时只查表;
+ * 各域的BM25实例在这里创建一次后一直复用, 不在每次查询时重新创建.
+ */
+public class ShopSimilarity extends PerFieldSimilarityWrapper {
+    private final Map<String, Similarity> perField;
+
+    /**
+     * 默认参数: name k1=1.2, b=0.3; addr k1=1.2, b=0.75
+     */
+    public ShopSimilarity() {
+        this(1.2f, 0.3f, 1.2f, 0.75f);
+    }
+
+    /**
+     * @param nameK1 name域的词频饱和参数
+     * @param nameB name域的长度归一化程度, 0不归一化, 1完全归一化
+     * @param addrK1 addr域的词频饱和参数
+     * @param addrB addr域的长度归一化程度
+     */
+    public ShopSimilarity(float nameK1, float nameB, float addrK1, float addrB) {
+        this(perField(nameK1, nameB, addrK1, addrB), new BM25Similarity());
+    }
+
+    /**
+     * @param perField 域名 -> 相关度模型, 没有列出的域使用defaultSim
+     * @param defaultSim
+     */
+    public ShopSimilarity(Map<String, Similarity> perField, Similarity defaultSim) {
+        super(defaultSim);
+        this.perField = Collections.unmodifiableMap(new HashMap<>(perField));
+    }
+
+    private static Map<String, Similarity> perField(float nameK1, float nameB, float addrK1, float addrB) {
+        Map<String, Similarity> perField = new HashMap<>();
+        perField.put(ShopSchema.NAME, new BM25Similarity(nameK1, nameB));
+        perField.put(ShopSchema.ADDR, new BM25Similarity(addrK1, addrB));
+        return perField;
+    }
+
+    @Override
+    public Similarity get(String name) {
+        Similarity sim = perField.get(name);
+        return sim != null ? sim : defaultSim;
+    }
+
+    @Override
+    public String toString() {
+        return "ShopSimilarity(" + perField + ", default=" + defaultSim + ")";
+    }
+}
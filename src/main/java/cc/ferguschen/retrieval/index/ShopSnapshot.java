@@ -0,0 +1,470 @@
+package cc.ferguschen.retrieval.index;
+
+import cc.ferguschen.retrieval.utils.JsonLineReader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.codecs.compressing.Decompressor;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Created by chenqining on 2018/8/13.
+ * shop数据的二进制快照: JSON行文件转换一次, 之后全量重建索引直接读快照, 不再逐行解析JSON.
+ * 字段固定(id, name, address, latitude, longitude, popularity), 按块列式存放, 每块blockSize条:
+ * <pre>
+ * 文件头: "SHOPSNP1" 版本(int) 压缩方式(byte) 块大小(int)
+ * 块:     条数(int) 原始长度(int) 存储长度(int) 数据(按压缩方式压缩)
+ *         数据 = id列, name列, address列: 每条的长度+1(vInt, 0表示null), 之后是各条的UTF-8字节
+ *                latitude列, longitude列: 每条一个double, NaN表示缺失
+ *                popularity列: 有值的位图, 之后每条一个long
+ * 文件尾: 总条数(long) 块数(int) "SHOPEND1"
+ * </pre>
+ * 读取时按窗口内存映射文件: 不压缩时直接在映射的内存上解码, 经纬度和热度不经过任何中间对象;
+ * 压缩时每块解压到复用的缓冲区(LZ4或DEFLATE, 使用Lucene存储字段的压缩实现).
+ * 每块解码成一个{@link Block}, 只有字符串字段需要新建String, 没有JSONObject, Map和装箱的数字.
+ * 非线程安全, 一个reader只能由一个线程消费; 解码出的Block可以交给其他线程.
+ * 用法: ShopSnapshot [JSON行文件] [快照文件] [none|lz4|deflate] [块大小], 转换JSON行文件.
+ */
+public class ShopSnapshot implements Closeable {
+    public enum Codec {
+        NONE, LZ4, DEFLATE;
+
+        CompressionMode mode() {
+            return this == LZ4 ? CompressionMode.FAST : this == DEFLATE ? CompressionMode.HIGH_COMPRESSION : null;
+        }
+    }
+
+    private static final byte[] MAGIC = "SHOPSNP1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_MAGIC = "SHOPEND1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 1 + 4;
+    private static final int TRAILER_SIZE = 8 + 4 + END_MAGIC.length;
+    private static final long MAP_WINDOW = 256L << 20;   //内存映射的窗口大小, 块不会跨窗口
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private final FileChannel channel;
+    private final long blocksEnd;
+    private final Codec codec;
+    private final int blockSize;
+    private final long rows;
+    private final int blocks;
+    private final Decompressor decompressor;
+    private final BytesRef decompressed = new BytesRef();
+    private byte[] scratch = new byte[256];
+    private long pos = HEADER_SIZE;
+    private long windowStart = 0;
+    private ByteBuffer window = null;
+    private long rowsRead = 0;
+
+    private ShopSnapshot(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("not a shop snapshot (too short): " + path);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            checkMagic(header, MAGIC, path);
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported snapshot version " + version + ": " + path);
+            }
+            this.codec = Codec.values()[header.get()];
+            this.blockSize = header.getInt();
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+            this.rows = trailer.getLong();
+            this.blocks = trailer.getInt();
+            checkMagic(trailer, END_MAGIC, path);   //没有文件尾说明转换没有完成
+            this.blocksEnd = size - TRAILER_SIZE;
+            this.decompressor = codec == Codec.NONE ? null : codec.mode().newDecompressor();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void checkMagic(ByteBuffer buffer, byte[] magic, Path path) throws IOException {
+        byte[] actual = new byte[magic.length];
+        buffer.get(actual);
+        if (!Arrays.equals(actual, magic)) {
+            throw new IOException("not a shop snapshot (bad magic): " + path);
+        }
+    }
+
+    /**
+     * 打开快照
+     * @param path 快照文件
+     * @return
+     * @throws IOException 文件不完整或格式不对
+     */
+    public static ShopSnapshot open(Path path) throws IOException {
+        return new ShopSnapshot(path);
+    }
+
+    /**
+     * 读取下一块
+     * @return 已读完时返回null
+     * @throws IOException
+     */
+    public Block next() throws IOException {
+        if (pos >= blocksEnd) {
+            return null;
+        }
+        ByteBuffer head = region(pos, 12);
+        int count = head.getInt();
+        int rawLength = head.getInt();
+        int storedLength = head.getInt();
+        ByteBuffer data = region(pos + 12, storedLength);
+        pos += 12 + storedLength;
+        if (decompressor != null) {
+            decompressor.decompress(new ByteBufferDataInput(data), rawLength, 0, rawLength, decompressed);
+            data = ByteBuffer.wrap(decompressed.bytes, decompressed.offset, decompressed.length);
+        }
+        Block block = decode(data, count);
+        rowsRead += count;
+        return block;
+    }
+
+    /**
+     * 文件中[start, start+length)的只读视图, 不在当前窗口内时从start重新映射
+     */
+    private ByteBuffer region(long start, int length) throws IOException {
+        if (window == null || start < windowStart || start + length > windowStart + window.capacity()) {
+            windowStart = start;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(length, Math.min(MAP_WINDOW, blocksEnd - start)));
+        }
+        ByteBuffer view = window.duplicate();
+        view.position((int) (start - windowStart));
+        view.limit(view.position() + length);
+        return view.slice();
+    }
+
+    private Block decode(ByteBuffer data, int count) {
+        Block block = new Block(count);
+        readStrings(data, block.ids);
+        readStrings(data, block.names);
+        readStrings(data, block.addresses);
+        for (int i = 0; i < count; i++) {
+            block.latitudes[i] = data.getDouble();
+        }
+        for (int i = 0; i < count; i++) {
+            block.longitudes[i] = data.getDouble();
+        }
+        data.get(block.popularityPresent);
+        for (int i = 0; i < count; i++) {
+            block.popularity[i] = data.getLong();
+        }
+        return block;
+    }
+
+    private void readStrings(ByteBuffer data, String[] column) {
+        int[] lengths = new int[column.length];
+        for (int i = 0; i < column.length; i++) {
+            lengths[i] = readVInt(data) - 1;
+        }
+        for (int i = 0; i < column.length; i++) {
+            int len = lengths[i];
+            if (len < 0) {
+                continue;
+            }
+            if (data.hasArray()) {
+                column[i] = new String(data.array(), data.arrayOffset() + data.position(), len, StandardCharsets.UTF_8);
+                data.position(data.position() + len);
+            } else {
+                if (len > scratch.length) {
+                    scratch = new byte[Math.max(len, scratch.length * 2)];
+                }
+                data.get(scratch, 0, len);
+                column[i] = new String(scratch, 0, len, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static int readVInt(ByteBuffer data) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * 快照中的总条数
+     * @return
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    public int getBlocks() {
+        return blocks;
+    }
+
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * 把JSON行转换成快照. 先写临时文件, 完成后改名, 转换中断不会留下不完整的快照.
+     * @param reader JSON行读取器, 格式错误的行由reader跳过, 不关闭
+     * @param path 快照文件
+     * @param codec 块的压缩方式
+     * @param blockSize 每块的条数
+     * @return 写入的条数
+     * @throws IOException
+     */
+    public static long write(JsonLineReader reader, Path path, Codec codec, int blockSize) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        long rows = 0;
+        int blocks = 0;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16)) {
+            OutputStreamDataOutput output = new OutputStreamDataOutput(out);
+            output.writeBytes(MAGIC, MAGIC.length);
+            output.writeInt(VERSION);
+            output.writeByte((byte) codec.ordinal());
+            output.writeInt(blockSize);
+            BlockWriter blockWriter = new BlockWriter(blockSize, codec);
+            while (reader.hasNext()) {
+                blockWriter.add(reader.next());
+                if (blockWriter.count == blockSize) {
+                    blockWriter.flush(output);
+                    rows += blockSize;
+                    blocks++;
+                }
+            }
+            if (blockWriter.count > 0) {
+                rows += blockWriter.count;
+                blockWriter.flush(output);
+                blocks++;
+            }
+            output.writeLong(rows);
+            output.writeInt(blocks);
+            output.writeBytes(END_MAGIC, END_MAGIC.length);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        try (FileChannel written = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            written.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return rows;
+    }
+
+    /**
+     * 累积一块的记录, 满了以后按列写出
+     */
+    private static final class BlockWriter {
+        private final Codec codec;
+        private final Compressor compressor;
+        private final byte[][] ids;
+        private final byte[][] names;
+        private final byte[][] addresses;
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final long[] popularity;
+        private final byte[] popularityPresent;
+        private final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        private int count = 0;
+
+        BlockWriter(int blockSize, Codec codec) {
+            this.codec = codec;
+            this.compressor = codec == Codec.NONE ? null : codec.mode().newCompressor();
+            ids = new byte[blockSize][];
+            names = new byte[blockSize][];
+            addresses = new byte[blockSize][];
+            latitudes = new double[blockSize];
+            longitudes = new double[blockSize];
+            popularity = new long[blockSize];
+            popularityPresent = new byte[(blockSize + 7) / 8];
+        }
+
+        void add(JSONObject shop) {
+            ids[count] = utf8(shop.getString("id"));
+            names[count] = utf8(shop.getString("name"));
+            addresses[count] = utf8(shop.getString("address"));
+            Double latitude = shop.getDouble("latitude");
+            Double longitude = shop.getDouble("longitude");
+            latitudes[count] = latitude == null ? Double.NaN : latitude;
+            longitudes[count] = longitude == null ? Double.NaN : longitude;
+            Long pop = shop.getLong("popularity");
+            popularity[count] = pop == null ? 0 : pop;
+            if (pop != null) {
+                popularityPresent[count >> 3] |= 1 << (count & 7);
+            }
+            count++;
+        }
+
+        private static byte[] utf8(String value) {
+            return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        void flush(OutputStreamDataOutput output) throws IOException {
+            raw.reset();
+            OutputStreamDataOutput data = new OutputStreamDataOutput(raw);
+            writeStrings(data, ids);
+            writeStrings(data, names);
+            writeStrings(data, addresses);
+            for (int i = 0; i < count; i++) {
+                data.writeLong(Double.doubleToRawLongBits(latitudes[i]));
+            }
+            for (int i = 0; i < count; i++) {
+                data.writeLong(Double.doubleToRawLongBits(longitudes[i]));
+            }
+            data.writeBytes(popularityPresent, (count + 7) / 8);
+            for (int i = 0; i < count; i++) {
+                data.writeLong(popularity[i]);
+            }
+            byte[] rawBytes = raw.toByteArray();
+            byte[] stored = rawBytes;
+            if (compressor != null) {
+                compressed.reset();
+                compressor.compress(rawBytes, 0, rawBytes.length, new OutputStreamDataOutput(compressed));
+                stored = compressed.toByteArray();
+            }
+            output.writeInt(count);
+            output.writeInt(rawBytes.length);
+            output.writeInt(stored.length);
+            output.writeBytes(stored, stored.length);
+            Arrays.fill(popularityPresent, (byte) 0);
+            count = 0;
+        }
+
+        private void writeStrings(OutputStreamDataOutput data, byte[][] column) throws IOException {
+            for (int i = 0; i < count; i++) {
+                data.writeVInt(column[i] == null ? 0 : column[i].length + 1);
+            }
+            for (int i = 0; i < count; i++) {
+                if (column[i] != null) {
+                    data.writeBytes(column[i], column[i].length);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一块记录的各列. 缺失的字符串为null, 缺失的经纬度为NaN.
+     */
+    public static final class Block {
+        public final int size;
+        public final String[] ids;
+        public final String[] names;
+        public final String[] addresses;
+        public final double[] latitudes;
+        public final double[] longitudes;
+        public final long[] popularity;
+        private final byte[] popularityPresent;
+
+        Block(int size) {
+            this.size = size;
+            ids = new String[size];
+            names = new String[size];
+            addresses = new String[size];
+            latitudes = new double[size];
+            longitudes = new double[size];
+            popularity = new long[size];
+            popularityPresent = new byte[(size + 7) / 8];
+        }
+
+        public boolean hasPopularity(int i) {
+            return (popularityPresent[i >> 3] & (1 << (i & 7))) != 0;
+        }
+
+        /**
+         * 第i条记录的文档, 和ShopSchema.createDocument(JSONObject)相同
+         * @param i
+         * @return
+         */
+        public Document toDocument(int i) {
+            return toDocument(i, false);
+        }
+
+        /**
+         * 第i条记录的文档, 和ShopSchema.createDocument(JSONObject, boolean)相同
+         * @param i
+         * @param addressGrams 是否写入地址子串检索的域
+         * @return
+         */
+        public Document toDocument(int i, boolean addressGrams) {
+            boolean located = !Double.isNaN(latitudes[i]) && !Double.isNaN(longitudes[i]);
+            Document doc = ShopSchema.createDocument(ids[i], names[i], addresses[i],
+                    located ? latitudes[i] : null, located ? longitudes[i] : null,
+                    hasPopularity(i) ? popularity[i] : null);
+            if (addressGrams) {
+                ShopSchema.addAddressGrams(doc, addresses[i]);
+            }
+            return doc;
+        }
+    }
+
+    /**
+     * ByteBuffer上的DataInput, 解压时直接读映射的内存
+     */
+    private static final class ByteBufferDataInput extends DataInput {
+        private final ByteBuffer buffer;
+
+        ByteBufferDataInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public byte readByte() {
+            return buffer.get();
+        }
+
+        @Override
+        public void readBytes(byte[] b, int offset, int len) {
+            buffer.get(b, offset, len);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path in = Paths.get(args.length > 0 ? args[0] : "shop.json");
+        Path out = Paths.get(args.length > 1 ? args[1] : in.getFileName() + ".snap");
+        Codec codec = args.length > 2 ? Codec.valueOf(args[2].toUpperCase(Locale.ROOT)) : Codec.LZ4;
+        int blockSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_BLOCK_SIZE;
+        long start = System.nanoTime();
+        try (JsonLineReader reader = JsonLineReader.map(in, true)) {
+            long rows = write(reader, out, codec, blockSize);
+            System.out.println(String.format("转换%d条记录(跳过错误行%d), %s -> %s (%.1fMB, %s), 耗时: %.2fs", rows,
+                    reader.getBadLineCount(), in, out, Files.size(out) / 1048576.0, codec, (System.nanoTime() - start) / 1e9));
+        }
+    }
+}
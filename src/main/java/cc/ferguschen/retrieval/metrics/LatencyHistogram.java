@@ -0,0 +1,153 @@
+package cc.ferguschen.retrieval.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Created by chenqining on 2018/8/11.
+ * 无锁的延迟直方图(纳秒), 分桶方式同HdrHistogram: 每个2的幂区间再等分成16个子桶, 相对误差不超过1/16,
+ * 1ns到Long.MAX_VALUE共960个桶, 一个直方图约8KB.
+ * 记录只有一次数组元素的原子加和一次LongAdder累加, 可以一直开着; 快照不加锁, 和并发的记录之间允许有一两个样本的出入.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一次耗时
+     * @param nanos 纳秒, 负数按0记录
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {   //只有出现新的最大值时才CAS
+            current = max.get();
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * 桶内的最大值, 作为落在该桶的样本的估计值(和HdrHistogram的highestEquivalentValue一致, 分位数只会偏大)
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        long lowest = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * 清空所有样本. 和并发的记录之间不保证原子性.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        long maxNanos = max.get();
+        return new Snapshot(total, total == 0 ? 0 : sum.sum() / 1e6 / total,
+                percentile(copy, total, 0.5, maxNanos), percentile(copy, total, 0.9, maxNanos),
+                percentile(copy, total, 0.99, maxNanos), percentile(copy, total, 0.999, maxNanos), maxNanos / 1e6);
+    }
+
+    private static double percentile(long[] counts, long total, double p, long maxNanos) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * p));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), maxNanos) / 1e6;   //不超过实际的最大值
+            }
+        }
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * 直方图的快照, 时间单位为毫秒. 作为MXBean的属性时映射成CompositeData.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final double meanMs;
+        private final double p50Ms;
+        private final double p90Ms;
+        private final double p99Ms;
+        private final double p999Ms;
+        private final double maxMs;
+
+        @ConstructorProperties({"count", "meanMs", "p50Ms", "p90Ms", "p99Ms", "p999Ms", "maxMs"})
+        public Snapshot(long count, double meanMs, double p50Ms, double p90Ms, double p99Ms, double p999Ms, double maxMs) {
+            this.count = count;
+            this.meanMs = meanMs;
+            this.p50Ms = p50Ms;
+            this.p90Ms = p90Ms;
+            this.p99Ms = p99Ms;
+            this.p999Ms = p999Ms;
+            this.maxMs = maxMs;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMs() {
+            return meanMs;
+        }
+
+        public double getP50Ms() {
+            return p50Ms;
+        }
+
+        public double getP90Ms() {
+            return p90Ms;
+        }
+
+        public double getP99Ms() {
+            return p99Ms;
+        }
+
+        public double getP999Ms() {
+            return p999Ms;
+        }
+
+        public double getMaxMs() {
+            return maxMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, mean=%.3fms, p50=%.3fms, p90=%.3fms, p99=%.3fms, p999=%.3fms, max=%.3fms",
+                    count, meanMs, p50Ms, p90Ms, p99Ms, p999Ms, maxMs);
+        }
+    }
+}
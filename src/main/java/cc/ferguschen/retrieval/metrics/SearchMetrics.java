@@ -0,0 +1,302 @@
+package cc.ferguschen.retrieval.metrics;
+
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Created by chenqining on 2018/8/11.
+ * 检索和建索引的指标: 各阶段的延迟直方图, 异常计数, 以及最近一次reopen后的段数和删除文档比例.
+ * 各组件持有同一个实例并在关键路径上记录耗时(见{@link Stage}), 每次记录只是两次System.nanoTime和几次无锁的原子操作, 可以常开.
+ * 读取方式:
+ * 1. {@link #register(String)}注册成MXBean, 用JMX查看;
+ * 2. {@link #snapshot()}拉取一份JSON快照, 由调用方定期上报或打日志.
+ * {@link #NONE}不记录任何数据, 是各组件的默认值.
+ */
+public class SearchMetrics implements SearchMetricsMXBean {
+    public enum Stage {
+        QUERY,     //一次检索请求的总耗时(构造查询, 检索, 读取结果), 包括命中结果缓存的; 关键词, 排序, 地址, 附近和分片检索都计入
+        BATCH,     //一批关键词的批量检索
+        SUGGEST,   //一次店名提示
+        PARSE,     //QueryParser解析关键词(结果缓存未命中时, 下同)
+        SEARCH,    //IndexSearcher.search, 包括打分和收集top-K
+        FETCH,     //读取命中文档的存储字段或DocValues
+        ADD,       //IndexWriter.addDocument
+        UPDATE,    //IndexWriter.updateDocument
+        DELETE,    //IndexWriter.deleteDocuments
+        APPLY,     //修改日志的一批修改写入IndexWriter
+        COMMIT,    //IndexWriter.commit, 包括fsync
+        REFRESH,   //SearcherManager reopen到新数据(包括预热)
+        MERGE      //一次段合并
+    }
+
+    public static final SearchMetrics NONE = new SearchMetrics(false);
+
+    private final boolean enabled;
+    private final EnumMap<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+    private final EnumMap<Stage, LongAdder> errors = new EnumMap<>(Stage.class);
+    private final LongAdder mergedDocs = new LongAdder();
+    private volatile IndexStats indexStats = new IndexStats(0, 0, 0);
+
+    public SearchMetrics() {
+        this(true);
+    }
+
+    private SearchMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (Stage stage : Stage.values()) {
+            latencies.put(stage, new LatencyHistogram());
+            errors.put(stage, new LongAdder());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 记录一次耗时
+     * @param stage 阶段
+     * @param nanos 纳秒, 一般为System.nanoTime()的差
+     */
+    public void record(Stage stage, long nanos) {
+        if (enabled) {
+            latencies.get(stage).record(nanos);
+        }
+    }
+
+    /**
+     * 记录一次异常. 出错的调用不计入延迟.
+     * @param stage 阶段
+     */
+    public void recordError(Stage stage) {
+        if (enabled) {
+            errors.get(stage).increment();
+        }
+    }
+
+    /**
+     * 统计reader的段数和删除文档比例, 一般在reopen后调用
+     * @param reader
+     */
+    public void updateIndexStats(IndexReader reader) {
+        if (enabled) {
+            indexStats = new IndexStats(reader.leaves().size(), reader.numDocs(), reader.maxDoc());
+        }
+    }
+
+    /**
+     * 监听SearcherManager等: 记录每次reopen到新数据的耗时, 并用新的searcher更新索引统计. 注册时先统计一次当前的searcher.
+     * @param manager
+     * @throws IOException
+     */
+    public void watch(ReferenceManager<IndexSearcher> manager) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        manager.addListener(new ReferenceManager.RefreshListener() {
+            private long start;   //reopen由ReferenceManager串行执行, 不需要同步
+
+            @Override
+            public void beforeRefresh() {
+                start = System.nanoTime();
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) throws IOException {
+                if (!didRefresh) {
+                    return;
+                }
+                record(Stage.REFRESH, System.nanoTime() - start);
+                sample(manager);
+            }
+        });
+        sample(manager);
+    }
+
+    private void sample(ReferenceManager<IndexSearcher> manager) throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            updateIndexStats(searcher.getIndexReader());
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    /**
+     * 记录合并耗时的合并调度器, 在创建IndexWriter前设置到IndexWriterConfig
+     * @return
+     */
+    public ConcurrentMergeScheduler newMergeScheduler() {
+        return new ConcurrentMergeScheduler() {
+            @Override
+            protected void doMerge(IndexWriter writer, MergePolicy.OneMerge merge) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    super.doMerge(writer, merge);
+                } catch (IOException | RuntimeException e) {
+                    recordError(Stage.MERGE);
+                    throw e;
+                }
+                record(Stage.MERGE, System.nanoTime() - start);
+                if (enabled) {
+                    mergedDocs.add(merge.totalMaxDoc);
+                }
+            }
+        };
+    }
+
+    /**
+     * 注册成MXBean. 同名的已存在时先注销旧的(如重新初始化的服务).
+     * @param name ObjectName, 如"cc.ferguschen.retrieval:type=SearchMetrics,name=shop"
+     * @throws JMException
+     */
+    public void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        try {
+            server.registerMBean(this, objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        }
+    }
+
+    /**
+     * 注销MXBean, 未注册时忽略
+     * @param name 注册时的ObjectName
+     * @throws JMException
+     */
+    public static void unregister(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+    }
+
+    public LatencyHistogram.Snapshot getLatency(Stage stage) {
+        return latencies.get(stage).snapshot();
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getLatencies() {
+        Map<String, LatencyHistogram.Snapshot> result = new LinkedHashMap<>();
+        for (Map.Entry<Stage, LatencyHistogram> e : latencies.entrySet()) {
+            result.put(e.getKey().name().toLowerCase(Locale.ROOT), e.getValue().snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<Stage, LongAdder> e : errors.entrySet()) {
+            result.put(e.getKey().name().toLowerCase(Locale.ROOT), e.getValue().sum());
+        }
+        return result;
+    }
+
+    @Override
+    public int getSegmentCount() {
+        return indexStats.segmentCount;
+    }
+
+    @Override
+    public int getNumDocs() {
+        return indexStats.numDocs;
+    }
+
+    @Override
+    public int getMaxDoc() {
+        return indexStats.maxDoc;
+    }
+
+    @Override
+    public double getDeletedDocsRatio() {
+        IndexStats stats = indexStats;
+        return stats.maxDoc == 0 ? 0 : (double) (stats.maxDoc - stats.numDocs) / stats.maxDoc;
+    }
+
+    @Override
+    public long getMergedDocs() {
+        return mergedDocs.sum();
+    }
+
+    @Override
+    public void reset() {
+        for (Stage stage : Stage.values()) {
+            latencies.get(stage).reset();
+            errors.get(stage).reset();
+        }
+        mergedDocs.reset();
+    }
+
+    /**
+     * 拉取式的快照: 有样本的阶段的延迟和异常数, 以及索引统计
+     * @return
+     */
+    public JSONObject snapshot() {
+        JSONObject result = new JSONObject(true);
+        JSONObject stages = new JSONObject(true);
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot latency = latencies.get(stage).snapshot();
+            long errorCount = errors.get(stage).sum();
+            if (latency.getCount() == 0 && errorCount == 0) {
+                continue;
+            }
+            JSONObject item = new JSONObject(true);
+            item.put("count", latency.getCount());
+            item.put("errors", errorCount);
+            item.put("meanMs", round(latency.getMeanMs()));
+            item.put("p50Ms", round(latency.getP50Ms()));
+            item.put("p99Ms", round(latency.getP99Ms()));
+            item.put("p999Ms", round(latency.getP999Ms()));
+            item.put("maxMs", round(latency.getMaxMs()));
+            stages.put(stage.name().toLowerCase(Locale.ROOT), item);
+        }
+        result.put("stages", stages);
+        result.put("segmentCount", getSegmentCount());
+        result.put("numDocs", getNumDocs());
+        result.put("deletedDocsRatio", round(getDeletedDocsRatio()));
+        result.put("mergedDocs", getMergedDocs());
+        return result;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toJSONString();
+    }
+
+    private static final class IndexStats {
+        final int segmentCount;
+        final int numDocs;
+        final int maxDoc;
+
+        IndexStats(int segmentCount, int numDocs, int maxDoc) {
+            this.segmentCount = segmentCount;
+            this.numDocs = numDocs;
+            this.maxDoc = maxDoc;
+        }
+    }
+}
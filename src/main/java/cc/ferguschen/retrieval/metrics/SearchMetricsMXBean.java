@@ -0,0 +1,35 @@
+package cc.ferguschen.retrieval.metrics;
+
+import java.util.Map;
+
+/**
+ * Created by chenqining on 2018/8/11.
+ * {@link SearchMetrics}的JMX接口, jconsole/VisualVM中可以直接查看, 也可以用Jolokia等转成HTTP拉取.
+ */
+public interface SearchMetricsMXBean {
+
+    /**
+     * @return 各阶段(小写的Stage名)的延迟快照
+     */
+    Map<String, LatencyHistogram.Snapshot> getLatencies();
+
+    /**
+     * @return 各阶段抛出异常的次数
+     */
+    Map<String, Long> getErrors();
+
+    int getSegmentCount();
+
+    int getNumDocs();
+
+    int getMaxDoc();
+
+    double getDeletedDocsRatio();
+
+    long getMergedDocs();
+
+    /**
+     * 清空延迟直方图和异常计数, 索引的统计不变
+     */
+    void reset();
+}
@@ -0,0 +1,153 @@
+package cc.ferguschen.retrieval.search;
+
+import cc.ferguschen.retrieval.analysis.AddressGramAnalyzer;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by chenqining on 2018/8/10.
+ * 地址子串检索: 把"浙江南路78"这样的部分地址转成addr_ngram, addr_edge域上的查询(索引要用地址子串模式建,
+ * 见{@link ShopSchema#addAddressGrams}), 代替QueryParser的通配符查询"*浙江南路78*".
+ * 通配符查询要遍历整个词典找匹配的词, 这里只查几个2字组合的倒排, 再按位置确认相邻:
+ * * 子串("浙江南路78", "*浙江南路78*", "*浙江南路78"): addr_ngram上的短语查询. 段内每隔一个取2字组合(最后一个总取),
+ *   位置固定后正好覆盖每个字, 和逐个2字组合的短语等价; 只有一个字时查这个字;
+ * * 前缀("上海市黄浦区*"): 不含标点时查addr_edge上的一个词(地址某一段以它开头); 超过前缀的最大长度时,
+ *   用前maxGram个字的前缀过滤, 再加子串短语;
+ * * 中间带通配符(如"浙江*78")或没有字母数字时返回null, 由调用方照旧交给QueryParser.
+ */
+public class AddressQueryBuilder {
+
+    /**
+     * @param input 用户输入的部分地址, 可以带首尾的*
+     * @return 查询; 不能按子串处理时返回null
+     * @throws IOException
+     */
+    public static Query build(String input) throws IOException {
+        String text = input.trim();
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) == '*') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) == '*') {
+            end--;
+        }
+        String body = text.substring(start, end);
+        if (body.isEmpty() || body.indexOf('*') >= 0 || body.indexOf('?') >= 0) {
+            return null;
+        }
+        Query substring = substring(body);
+        if (substring == null) {
+            return null;
+        }
+        boolean prefix = start == 0 && end < text.length();
+        if (!prefix || !isSingleSegment(body)) {
+            return substring;
+        }
+        int maxGram = ShopSchema.ADDR_EDGE_ANALYZER.getMaxGram();
+        if (body.codePointCount(0, body.length()) <= maxGram) {
+            return new TermQuery(new Term(ShopSchema.ADDR_EDGE, ShopSchema.ADDR_EDGE_ANALYZER.normalize(ShopSchema.ADDR_EDGE, body)));
+        }
+        String head = body.substring(0, body.offsetByCodePoints(0, maxGram));
+        return new BooleanQuery.Builder()
+                .add(new TermQuery(new Term(ShopSchema.ADDR_EDGE, ShopSchema.ADDR_EDGE_ANALYZER.normalize(ShopSchema.ADDR_EDGE, head))),
+                        BooleanClause.Occur.FILTER)
+                .add(substring, BooleanClause.Occur.MUST)
+                .build();
+    }
+
+    /**
+     * 子串查询: addr_ngram上的短语
+     * @param body 不带通配符的输入
+     * @return 没有字母数字时返回null
+     * @throws IOException
+     */
+    public static Query substring(String body) throws IOException {
+        List<String> unigrams = new ArrayList<>();
+        List<Integer> unigramPositions = new ArrayList<>();
+        List<String> bigrams = new ArrayList<>();
+        List<Integer> bigramPositions = new ArrayList<>();
+        List<Integer> bigramStarts = new ArrayList<>();
+        AddressGramAnalyzer analyzer = ShopSchema.ADDR_NGRAM_ANALYZER;
+        try (TokenStream ts = analyzer.tokenStream(ShopSchema.ADDR_NGRAM, body)) {
+            CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+            OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+            PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+            ts.reset();
+            int position = -1;
+            while (ts.incrementToken()) {
+                position += posIncAtt.getPositionIncrement();
+                String term = termAtt.toString();
+                if (term.codePointCount(0, term.length()) == 1) {
+                    unigrams.add(term);
+                    unigramPositions.add(position);
+                } else {
+                    bigrams.add(term);
+                    bigramPositions.add(position);
+                    bigramStarts.add(offsetAtt.startOffset());
+                }
+            }
+            ts.end();
+        }
+        if (bigrams.isEmpty()) {
+            return phrase(unigrams, unigramPositions, null);   //只有单字: 查这个字, 或者按位置组成短语
+        }
+        //同一段内相邻2字组合的起点相差一个字; 段内取第0, 2, 4...个和最后一个
+        List<Integer> keep = new ArrayList<>();
+        int segmentFirst = 0;
+        for (int i = 0; i < bigrams.size(); i++) {
+            boolean last = i + 1 == bigrams.size() || !adjacent(bigramStarts.get(i), bigramStarts.get(i + 1), bigrams.get(i));
+            if ((i - segmentFirst) % 2 == 0 || last) {
+                keep.add(i);
+            }
+            if (last) {
+                segmentFirst = i + 1;
+            }
+        }
+        return phrase(bigrams, bigramPositions, keep);
+    }
+
+    private static boolean adjacent(int start, int nextStart, String gram) {
+        return nextStart == start + Character.charCount(gram.codePointAt(0));
+    }
+
+    private static Query phrase(List<String> terms, List<Integer> positions, List<Integer> keep) {
+        if (terms.isEmpty()) {
+            return null;
+        }
+        if (terms.size() == 1 || (keep != null && keep.size() == 1)) {
+            return new TermQuery(new Term(ShopSchema.ADDR_NGRAM, terms.get(keep == null ? 0 : keep.get(0))));
+        }
+        PhraseQuery.Builder builder = new PhraseQuery.Builder();
+        int base = positions.get(keep == null ? 0 : keep.get(0));
+        for (int k = 0, n = keep == null ? terms.size() : keep.size(); k < n; k++) {
+            int i = keep == null ? k : keep.get(k);
+            builder.add(new Term(ShopSchema.ADDR_NGRAM, terms.get(i)), positions.get(i) - base);
+        }
+        return builder.build();
+    }
+
+    private static boolean isSingleSegment(String body) {
+        for (int i = 0; i < body.length(); ) {
+            int c = body.codePointAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                return false;
+            }
+            i += Character.charCount(c);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,242 @@
+package cc.ferguschen.retrieval.search;
+
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by chenqining on 2018/7/31.
+ * 批量关键词检索.
+ * * 整批查询共用调用方借来的同一个searcher, 结果来自同一个索引快照;
+ * * 关键词分成threads份, 调用线程和线程池并行解析和打分, 每份复用一个QueryParser; 指定KeywordQueryBuilder时由它构造查询;
+ * * 全部查询打分完成后, 把所有命中的文档号去重并升序排列, 统一读取字段(见{@link FieldLoader}):
+ *   有DocValues时按列读取; 否则顺序读取存储字段, 同一压缩块中的相邻文档只解压一次, 而逐个查询读取时文档号是随机跳跃的;
+ * * 返回结构化的结果, 单个关键词解析失败只影响它自己的结果.
+ */
+public class BatchSearcher implements Closeable {
+    private final Analyzer analyzer;
+    private final String field;
+    private final KeywordQueryBuilder queryBuilder;   //为null时用QueryParser
+    private final int threads;
+    private final ExecutorService executor;
+    private volatile SearchMetrics metrics = SearchMetrics.NONE;
+
+    /**
+     * @param analyzer 解析关键词的分析器
+     * @param field 查询的域
+     * @param threads 并行执行查询的线程数(含调用线程), 1表示串行
+     */
+    public BatchSearcher(Analyzer analyzer, String field, int threads) {
+        this(analyzer, field, null, threads);
+    }
+
+    /**
+     * @param queryBuilder 构造查询, 不经过QueryParser, 带括号的店名等不会解析失败
+     * @param threads 并行执行查询的线程数(含调用线程), 1表示串行
+     */
+    public BatchSearcher(KeywordQueryBuilder queryBuilder, int threads) {
+        this(null, null, queryBuilder, threads);
+    }
+
+    private BatchSearcher(Analyzer analyzer, String field, KeywordQueryBuilder queryBuilder, int threads) {
+        this.analyzer = analyzer;
+        this.field = field;
+        this.queryBuilder = queryBuilder;
+        this.threads = Math.max(1, threads);
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = this.threads > 1 ? Executors.newFixedThreadPool(this.threads - 1, r -> {
+            Thread t = new Thread(r, "batch-search-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    /**
+     * 批量检索
+     * @param searcher 借用的searcher, 整批共用
+     * @param keywords 关键词
+     * @param topK 每个关键词返回的结果数
+     * @param fields 需要读取的字段
+     * @return 与keywords一一对应的结果
+     * @throws IOException
+     */
+    public List<KeywordResult> search(IndexSearcher searcher, List<String> keywords, int topK, String... fields) throws IOException {
+        SearchMetrics metrics = this.metrics;
+        long start = System.nanoTime();
+        List<KeywordResult> results;
+        try {
+            results = searchBatch(searcher, keywords, topK, fields);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordError(SearchMetrics.Stage.BATCH);
+            throw e;
+        }
+        metrics.record(SearchMetrics.Stage.BATCH, System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * 记录每批检索的总耗时(BATCH)
+     * @param metrics
+     * @return
+     */
+    public BatchSearcher setMetrics(SearchMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    private List<KeywordResult> searchBatch(IndexSearcher searcher, List<String> keywords, int topK, String... fields) throws IOException {
+        KeywordResult[] results = new KeywordResult[keywords.size()];
+        int chunks = Math.min(threads, keywords.size());
+        List<Future<?>> futures = new ArrayList<>(chunks);
+        for (int c = 1; c < chunks; c++) {
+            int chunk = c;
+            futures.add(executor.submit(() -> {
+                searchChunk(searcher, keywords, chunk, chunks, topK, results);
+                return null;
+            }));
+        }
+        if (chunks > 0) {
+            searchChunk(searcher, keywords, 0, chunks, topK, results);
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        loadFields(searcher, results, fields);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * 执行第chunk份关键词(下标 i % chunks == chunk)的查询
+     */
+    private void searchChunk(IndexSearcher searcher, List<String> keywords, int chunk, int chunks, int topK,
+                             KeywordResult[] results) throws IOException {
+        QueryParser parser = queryBuilder == null ? new QueryParser(field, analyzer) : null;
+        for (int i = chunk; i < keywords.size(); i += chunks) {
+            String keyword = keywords.get(i);
+            try {
+                Query query = parser == null ? queryBuilder.build(keyword) : parser.parse(keyword);
+                TopDocs topDocs = searcher.search(query, topK);
+                List<Hit> hits = new ArrayList<>(topDocs.scoreDocs.length);
+                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                    hits.add(new Hit(scoreDoc.doc, scoreDoc.score));
+                }
+                results[i] = new KeywordResult(keyword, topDocs.totalHits, Collections.unmodifiableList(hits), null);
+            } catch (ParseException e) {
+                results[i] = new KeywordResult(keyword, 0, Collections.emptyList(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 统一读取所有命中文档的字段, 每个文档只读一次; 有DocValues时按列读取, 否则按文档号升序读取存储字段
+     */
+    private static void loadFields(IndexSearcher searcher, KeywordResult[] results, String[] fields) throws IOException {
+        if (fields.length == 0) {
+            return;
+        }
+        int total = 0;
+        for (KeywordResult result : results) {
+            total += result.hits.size();
+        }
+        int[] docs = new int[total];
+        int n = 0;
+        for (KeywordResult result : results) {
+            for (Hit hit : result.hits) {
+                docs[n++] = hit.doc;
+            }
+        }
+        Map<Integer, Map<String, String>> loaded = FieldLoader.load(searcher.getIndexReader(), docs, fields);
+        for (KeywordResult result : results) {
+            for (Hit hit : result.hits) {
+                hit.fields = loaded.get(hit.doc);
+            }
+        }
+    }
+
+    /**
+     * 停止线程池
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 一个关键词的结果
+     */
+    public static final class KeywordResult {
+        public final String keyword;
+        public final long totalHits;
+        public final List<Hit> hits;
+        public final String error;   //解析失败的原因, 成功时为null
+
+        KeywordResult(String keyword, long totalHits, List<Hit> hits, String error) {
+            this.keyword = keyword;
+            this.totalHits = totalHits;
+            this.hits = hits;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return error != null ? keyword + ": error " + error : keyword + ": " + totalHits + " hits " + hits;
+        }
+    }
+
+    /**
+     * 一条命中: 文档号(只在本批使用的searcher上有效), 得分和存储字段
+     */
+    public static final class Hit {
+        public final int doc;
+        public final float score;
+        private Map<String, String> fields = Collections.emptyMap();
+
+        Hit(int doc, float score) {
+            this.doc = doc;
+            this.score = score;
+        }
+
+        public String get(String name) {
+            return fields.get(name);
+        }
+
+        public Map<String, String> getFields() {
+            return fields;
+        }
+
+        @Override
+        public String toString() {
+            return fields.isEmpty() ? String.valueOf(doc) : fields.toString();
+        }
+    }
+}
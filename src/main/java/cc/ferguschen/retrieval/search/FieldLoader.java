@@ -0,0 +1,183 @@
+package cc.ferguschen.retrieval.search;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Created by chenqining on 2018/8/1.
+ * 读取命中文档的字段值.
+ * * 要读取的字段在所有段中都有DocValues(SORTED, BINARY或NUMERIC)时按列读取: 文档号排序后逐段取出各列, 每个值只是一次定位,
+ *   不需要解压整块存储字段(存储字段按16KB左右的块压缩, 读一个文档的两三个字段也要解压它所在的整块);
+ * * 否则(如DocValues加入之前建的旧索引)按文档号升序读取存储字段, 同一块中的相邻文档只解压一次.
+ * 文档号相对于传入的reader(顶层reader), 返回的值都是字符串, 数值按十进制输出.
+ */
+public class FieldLoader {
+
+    /**
+     * 读取docs中各文档的fields, 能按列读取时按列读取
+     * @param reader 顶层reader
+     * @param docs 文档号, 顺序任意, 可以重复
+     * @param fields 要读取的字段
+     * @return 文档号 -> (字段 -> 值), 文档没有的字段不出现在map中
+     * @throws IOException
+     */
+    public static Map<Integer, Map<String, String>> load(IndexReader reader, int[] docs, String... fields) throws IOException {
+        return hasDocValues(reader, fields) ? loadDocValues(reader, docs, fields) : loadStored(reader, docs, fields);
+    }
+
+    /**
+     * fields是否都可以按列读取: 每个段中该字段有可读的DocValues, 或者该段根本没有这个字段
+     * @param reader
+     * @param fields
+     * @return
+     */
+    public static boolean hasDocValues(IndexReader reader, String... fields) {
+        for (LeafReaderContext leaf : reader.leaves()) {
+            for (String field : fields) {
+                FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+                if (info == null) {
+                    continue;
+                }
+                DocValuesType type = info.getDocValuesType();
+                if (type != DocValuesType.SORTED && type != DocValuesType.BINARY && type != DocValuesType.NUMERIC) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按列读取DocValues
+     */
+    public static Map<Integer, Map<String, String>> loadDocValues(IndexReader reader, int[] docs, String... fields) throws IOException {
+        int[] sorted = sortedUnique(docs);
+        Map<Integer, Map<String, String>> result = new HashMap<>(sorted.length * 2);
+        List<LeafReaderContext> leaves = reader.leaves();
+        Column[] columns = new Column[fields.length];
+        int leafIndex = -1;
+        LeafReaderContext leaf = null;
+        for (int doc : sorted) {
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leafIndex = ReaderUtil.subIndex(doc, leaves);
+                leaf = leaves.get(leafIndex);
+                for (int i = 0; i < fields.length; i++) {
+                    columns[i] = Column.open(leaf.reader(), fields[i]);
+                }
+            }
+            int leafDoc = doc - leaf.docBase;
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < fields.length; i++) {
+                String value = columns[i] == null ? null : columns[i].get(leafDoc);
+                if (value != null) {
+                    values.put(fields[i], value);
+                }
+            }
+            result.put(doc, Collections.unmodifiableMap(values));
+        }
+        return result;
+    }
+
+    /**
+     * 按文档号升序读取存储字段
+     */
+    public static Map<Integer, Map<String, String>> loadStored(IndexReader reader, int[] docs, String... fields) throws IOException {
+        int[] sorted = sortedUnique(docs);
+        Map<Integer, Map<String, String>> result = new HashMap<>(sorted.length * 2);
+        Set<String> fieldsToLoad = new HashSet<>(Arrays.asList(fields));
+        for (int doc : sorted) {
+            Document document = reader.document(doc, fieldsToLoad);
+            Map<String, String> values = new LinkedHashMap<>();
+            for (IndexableField f : document.getFields()) {
+                values.put(f.name(), f.stringValue());
+            }
+            result.put(doc, Collections.unmodifiableMap(values));
+        }
+        return result;
+    }
+
+    private static int[] sortedUnique(int[] docs) {
+        int[] sorted = docs.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+
+    /**
+     * 一个段中一个字段的DocValues
+     */
+    private static abstract class Column {
+        abstract String get(int doc);
+
+        static Column open(LeafReader reader, String field) throws IOException {
+            FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+            if (info == null) {
+                return null;
+            }
+            switch (info.getDocValuesType()) {
+                case SORTED: {
+                    SortedDocValues values = reader.getSortedDocValues(field);
+                    return new Column() {
+                        @Override
+                        String get(int doc) {
+                            int ord = values.getOrd(doc);
+                            return ord < 0 ? null : values.lookupOrd(ord).utf8ToString();
+                        }
+                    };
+                }
+                case BINARY: {
+                    BinaryDocValues values = reader.getBinaryDocValues(field);
+                    Bits docsWithField = reader.getDocsWithField(field);
+                    return new Column() {
+                        @Override
+                        String get(int doc) {
+                            if (!docsWithField.get(doc)) {
+                                return null;
+                            }
+                            BytesRef bytes = values.get(doc);
+                            return bytes.utf8ToString();
+                        }
+                    };
+                }
+                case NUMERIC: {
+                    NumericDocValues values = reader.getNumericDocValues(field);
+                    Bits docsWithField = reader.getDocsWithField(field);
+                    return new Column() {
+                        @Override
+                        String get(int doc) {
+                            return docsWithField.get(doc) ? Long.toString(values.get(doc)) : null;
+                        }
+                    };
+                }
+                default:
+                    throw new IllegalArgumentException("field " + field + " has no loadable doc values: " + info.getDocValuesType());
+            }
+        }
+    }
+}
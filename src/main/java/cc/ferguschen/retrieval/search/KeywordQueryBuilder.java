@@ -0,0 +1,248 @@
+package cc.ferguschen.retrieval.search;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SynonymQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by chenqining on 2018/8/12.
+ * 不经过QueryParser, 直接由分析结果构造关键词查询.
+ * QueryParser每次要新建(不能在线程间共享), 要跑JavaCC的语法分析, 而且"星巴克(江苏店)"这样带括号的店名会抛ParseException.
+ * 这里把关键词当作纯文本: 用配置的分析器分析(Analyzer按线程复用分析组件), 同一位置的一个词生成TermQuery, 多个词(同义词)生成SynonymQuery,
+ * 各位置按OR(默认, 和QueryParser相同)或AND组合; 多个域时每个域按权重加权后OR. 整个关键词用双引号括起时生成短语查询.
+ * 不支持QueryParser的语法(field:, AND/OR, 通配符等), 需要时仍用QueryParser.
+ * 构造好的查询不可变, 按规整后的关键词缓存, 热门关键词直接复用. 线程安全, 一个实例可供所有查询线程共享.
+ */
+public class KeywordQueryBuilder {
+    public enum Operator {
+        OR, AND
+    }
+
+    private final Analyzer analyzer;
+    private final Map<String, Float> fieldBoosts;
+    private volatile Operator operator = Operator.OR;
+    private int maxCacheEntries = 1000;
+
+    private final LinkedHashMap<String, Query> cache = new LinkedHashMap<>(16, 0.75f, true);   //按访问顺序, 最久未用的在最前
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param analyzer 分析关键词, 应和建索引时一致
+     * @param field 查询的域
+     */
+    public KeywordQueryBuilder(Analyzer analyzer, String field) {
+        this(analyzer, Collections.singletonMap(field, 1.0f));
+    }
+
+    /**
+     * @param analyzer 分析关键词, 应和建索引时一致
+     * @param fieldBoosts 查询的域及其权重, 如ShopSchema.FIELD_BOOSTS
+     */
+    public KeywordQueryBuilder(Analyzer analyzer, Map<String, Float> fieldBoosts) {
+        this.analyzer = analyzer;
+        this.fieldBoosts = new LinkedHashMap<>(fieldBoosts);
+    }
+
+    /**
+     * 各位置的组合方式, 默认OR. 修改后清空缓存.
+     * @param operator
+     * @return
+     */
+    public synchronized KeywordQueryBuilder setOperator(Operator operator) {
+        this.operator = operator;
+        cache.clear();
+        return this;
+    }
+
+    /**
+     * 最多缓存的查询数, 0表示不缓存
+     * @param maxCacheEntries
+     * @return
+     */
+    public synchronized KeywordQueryBuilder setMaxCacheEntries(int maxCacheEntries) {
+        this.maxCacheEntries = maxCacheEntries;
+        cache.clear();
+        return this;
+    }
+
+    /**
+     * 构造关键词查询, 重复的关键词返回缓存的同一个实例
+     * @param keyword 用户输入的关键词, 原样当作文本
+     * @return 分析后没有任何词(如只有标点或停用词)时返回MatchNoDocsQuery
+     */
+    public Query build(String keyword) {
+        String key = QueryResultCache.normalize(keyword);
+        synchronized (this) {
+            Query query = cache.get(key);
+            if (query != null) {
+                hitCount++;
+                return query;
+            }
+            missCount++;
+        }
+        Query query = compile(key);
+        synchronized (this) {
+            if (maxCacheEntries > 0) {
+                cache.put(key, query);
+                if (cache.size() > maxCacheEntries) {
+                    cache.remove(cache.keySet().iterator().next());
+                }
+            }
+        }
+        return query;
+    }
+
+    /**
+     * 构造查询, 不经过缓存
+     * @param keyword 规整后的关键词
+     * @return
+     */
+    public Query compile(String keyword) {
+        boolean phrase = keyword.length() > 1 && keyword.startsWith("\"") && keyword.endsWith("\"");
+        String text = phrase ? keyword.substring(1, keyword.length() - 1) : keyword;
+        List<Query> perField = new ArrayList<>(fieldBoosts.size());
+        for (Map.Entry<String, Float> e : fieldBoosts.entrySet()) {
+            List<Integer> offsets = new ArrayList<>();
+            List<List<Term>> positions = analyze(e.getKey(), text, offsets);
+            if (positions.isEmpty()) {
+                continue;
+            }
+            Query query = phrase ? phrase(positions, offsets) : terms(positions);
+            perField.add(e.getValue() == 1.0f ? query : new BoostQuery(query, e.getValue()));
+        }
+        if (perField.isEmpty()) {
+            return new MatchNoDocsQuery("no terms in: " + keyword);
+        }
+        if (perField.size() == 1) {
+            return perField.get(0);
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (Query query : perField) {
+            builder.add(query, BooleanClause.Occur.SHOULD);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 分析文本, 按位置分组: 位置增量为0的词(同义词)和前一个词同组
+     * @param offsets 输出各组的位置(去掉的停用词会留下空位), 用于短语查询
+     */
+    private List<List<Term>> analyze(String field, String text, List<Integer> offsets) {
+        List<List<Term>> positions = new ArrayList<>();
+        int position = -1;
+        try (TokenStream ts = analyzer.tokenStream(field, text)) {
+            TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+            PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+            ts.reset();
+            while (ts.incrementToken()) {
+                Term term = new Term(field, BytesRef.deepCopyOf(termAtt.getBytesRef()));
+                position += posIncAtt.getPositionIncrement();
+                if (posIncAtt.getPositionIncrement() == 0 && !positions.isEmpty()) {
+                    positions.get(positions.size() - 1).add(term);
+                } else {
+                    List<Term> group = new ArrayList<>(1);
+                    group.add(term);
+                    positions.add(group);
+                    offsets.add(position);
+                }
+            }
+            ts.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);   //分析的是内存中的字符串, 不会真的发生
+        }
+        return positions;
+    }
+
+    private Query terms(List<List<Term>> positions) {
+        if (positions.size() == 1) {
+            return position(positions.get(0));
+        }
+        BooleanClause.Occur occur = operator == Operator.AND ? BooleanClause.Occur.MUST : BooleanClause.Occur.SHOULD;
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (List<Term> group : positions) {
+            builder.add(position(group), occur);
+        }
+        return builder.build();
+    }
+
+    private static Query position(List<Term> group) {
+        return group.size() == 1 ? new TermQuery(group.get(0)) : new SynonymQuery(group.toArray(new Term[0]));
+    }
+
+    private static Query phrase(List<List<Term>> positions, List<Integer> offsets) {
+        if (positions.size() == 1) {
+            return position(positions.get(0));
+        }
+        boolean synonyms = false;
+        for (List<Term> group : positions) {
+            synonyms |= group.size() > 1;
+        }
+        if (synonyms) {
+            MultiPhraseQuery.Builder builder = new MultiPhraseQuery.Builder();
+            for (int i = 0; i < positions.size(); i++) {
+                builder.add(positions.get(i).toArray(new Term[0]), offsets.get(i));
+            }
+            return builder.build();
+        }
+        PhraseQuery.Builder builder = new PhraseQuery.Builder();
+        for (int i = 0; i < positions.size(); i++) {
+            builder.add(positions.get(i).get(0), offsets.get(i));
+        }
+        return builder.build();
+    }
+
+    public Map<String, Float> getFieldBoosts() {
+        return Collections.unmodifiableMap(fieldBoosts);
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    /**
+     * 清空缓存的查询
+     */
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = hitCount + missCount;
+        return String.format("fields=%s, operator=%s, cached=%d, hits=%d, misses=%d, hitRatio=%.2f",
+                fieldBoosts, operator, cache.size(), hitCount, missCount, total == 0 ? 0 : (double) hitCount / total);
+    }
+}
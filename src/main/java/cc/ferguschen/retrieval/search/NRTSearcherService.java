@@ -0,0 +1,188 @@
+package cc.ferguschen.retrieval.search;
+
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.similarities.Similarity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by chenqining on 2018/7/19.
+ * 基于SearcherManager的近实时(NRT)检索服务.
+ * 只保持一个打开的reader, 由后台线程(ControlledRealTimeReopenThread)直接从IndexWriter重新打开, 不需要commit新文档即可被检索到.
+ * 查询通过acquire()/release()借用searcher, 引用计数保证reopen时旧的reader在最后一个查询结束后才关闭.
+ */
+public class NRTSearcherService implements Closeable {
+    private final SearcherManager searcherManager;
+    private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+
+    private final AtomicLong reopenCount = new AtomicLong();
+    private volatile long lastReopenNanos = 0;
+    private volatile long maxReopenNanos = 0;
+
+    /**
+     * searcher使用writer配置的相似度, 检索和建索引时一致
+     * @param iwriter 共享的IndexWriter
+     * @param maxStaleSec 最大陈旧时间(秒): 没有人等待时, 后台最多隔这么久reopen一次
+     * @param minStaleSec 最小陈旧时间(秒): 有查询在waitForGeneration等待时, 最快隔这么久reopen一次
+     * @throws IOException
+     */
+    public NRTSearcherService(IndexWriter iwriter, double maxStaleSec, double minStaleSec) throws IOException {
+        this(iwriter, similarityFactory(iwriter.getConfig().getSimilarity()), maxStaleSec, minStaleSec);
+    }
+
+    private static SearcherFactory similarityFactory(Similarity similarity) {
+        return new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+                IndexSearcher searcher = super.newSearcher(reader, previousReader);
+                searcher.setSimilarity(similarity);
+                return searcher;
+            }
+        };
+    }
+
+    /**
+     * @param iwriter 共享的IndexWriter
+     * @param searcherFactory 创建IndexSearcher的工厂, 可在其中设置相似度, 线程池或预热
+     * @param maxStaleSec 最大陈旧时间(秒)
+     * @param minStaleSec 最小陈旧时间(秒)
+     * @throws IOException
+     */
+    public NRTSearcherService(IndexWriter iwriter, SearcherFactory searcherFactory,
+                              double maxStaleSec, double minStaleSec) throws IOException {
+        this.searcherManager = new SearcherManager(iwriter, true, false, searcherFactory);
+        this.searcherManager.addListener(new ReferenceManager.RefreshListener() {
+            private long start;
+
+            @Override
+            public void beforeRefresh() {
+                start = System.nanoTime();
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (!didRefresh) {
+                    return;
+                }
+                long cost = System.nanoTime() - start;
+                lastReopenNanos = cost;
+                if (cost > maxReopenNanos) {
+                    maxReopenNanos = cost;
+                }
+                reopenCount.incrementAndGet();
+            }
+        });
+        this.reopenThread = new ControlledRealTimeReopenThread<>(iwriter, searcherManager, maxStaleSec, minStaleSec);
+        this.reopenThread.setName("nrt-reopen");
+        this.reopenThread.setDaemon(true);
+        this.reopenThread.start();
+    }
+
+    /**
+     * 借用当前的searcher, 用完后必须调用release.
+     * @return
+     * @throws IOException
+     */
+    public IndexSearcher acquire() throws IOException {
+        return searcherManager.acquire();
+    }
+
+    /**
+     * 归还acquire得到的searcher
+     * @param searcher
+     * @throws IOException
+     */
+    public void release(IndexSearcher searcher) throws IOException {
+        searcherManager.release(searcher);
+    }
+
+    /**
+     * 等待指定序列号(IndexWriter add/update/delete的返回值)的修改可被检索到.
+     * @param seqNo 修改的序列号
+     * @param maxWaitMs 最长等待时间(毫秒)
+     * @return 是否在等待时间内可见
+     * @throws InterruptedException
+     */
+    public boolean waitForGeneration(long seqNo, int maxWaitMs) throws InterruptedException {
+        return reopenThread.waitForGeneration(seqNo, maxWaitMs);
+    }
+
+    /**
+     * 不等后台线程, 立即尝试reopen
+     * @throws IOException
+     */
+    public void maybeRefresh() throws IOException {
+        searcherManager.maybeRefresh();
+    }
+
+    /**
+     * 注册reopen的监听器, 如{@link QueryResultCache}: 写入/更新/删除产生的新generation被reopen后, 监听器随之失效旧数据.
+     * @param listener
+     */
+    public void addListener(ReferenceManager.RefreshListener listener) {
+        searcherManager.addListener(listener);
+    }
+
+    /**
+     * 由metrics记录每次reopen的耗时, 以及reopen后的段数和删除文档比例
+     * @param metrics
+     * @throws IOException
+     */
+    public void watch(SearchMetrics metrics) throws IOException {
+        metrics.watch(searcherManager);
+    }
+
+    /**
+     * 当前可检索到的最大序列号
+     * @return
+     */
+    public long getSearchingGen() {
+        return reopenThread.getSearchingGen();
+    }
+
+    /**
+     * 当前reader的版本号, 每次reopen到新数据后递增
+     * @return
+     * @throws IOException
+     */
+    public long getReaderVersion() throws IOException {
+        IndexSearcher searcher = acquire();
+        try {
+            return ((DirectoryReader) searcher.getIndexReader()).getVersion();
+        } finally {
+            release(searcher);
+        }
+    }
+
+    public long getReopenCount() {
+        return reopenCount.get();
+    }
+
+    public double getLastReopenMs() {
+        return lastReopenNanos / 1e6;
+    }
+
+    public double getMaxReopenMs() {
+        return maxReopenNanos / 1e6;
+    }
+
+    /**
+     * 关闭后台reopen线程和SearcherManager. 不会关闭IndexWriter.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        reopenThread.close();
+        searcherManager.close();
+    }
+}
@@ -0,0 +1,185 @@
+package cc.ferguschen.retrieval.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Created by chenqining on 2018/7/30.
+ * 按段分片并行检索的IndexSearcher.
+ * 不使用IndexSearcher自带的executor(那样每个查询, 哪怕只命中几条, 都要按段拆成任务提交), 而是:
+ * * 构造时把各段按文档数均衡地分到最多threads个分片中, 文档太少时不拆分;
+ * * search(Query, CollectorManager)(search(Query, int), searchAfter和排序检索都经过这里)先创建Weight,
+ *   用各词的docFreq估算命中数, 轻查询在当前线程串行执行, 重查询经准入后各分片提交到共享线程池并行执行, 当前线程执行第一个分片;
+ *   等不到准入许可的重查询同样在当前线程串行执行.
+ * 其他search(Query, Collector)等方法保持串行.
+ */
+public class ParallelIndexSearcher extends IndexSearcher {
+    private final ParallelSearchPool pool;
+    private final List<List<LeafReaderContext>> slices;
+
+    public ParallelIndexSearcher(IndexReader reader, ParallelSearchPool pool) {
+        super(reader);
+        this.pool = pool;
+        this.slices = split(leafContexts, pool.getThreads(), pool.getMinDocsPerSlice());
+    }
+
+    /**
+     * 按文档数从多到少, 依次把段放进当前文档数最少的分片
+     */
+    private static List<List<LeafReaderContext>> split(List<LeafReaderContext> leaves, int threads, int minDocsPerSlice) {
+        long totalDocs = 0;
+        for (LeafReaderContext leaf : leaves) {
+            totalDocs += leaf.reader().maxDoc();
+        }
+        int count = (int) Math.min(Math.min(threads, leaves.size()), Math.max(1, totalDocs / Math.max(1, minDocsPerSlice)));
+        List<List<LeafReaderContext>> result = new ArrayList<>(count);
+        if (count <= 1) {
+            result.add(leaves);
+            return result;
+        }
+        List<LeafReaderContext> sorted = new ArrayList<>(leaves);
+        sorted.sort((a, b) -> Integer.compare(b.reader().maxDoc(), a.reader().maxDoc()));
+        long[] docs = new long[count];
+        for (int i = 0; i < count; i++) {
+            result.add(new ArrayList<>());
+        }
+        for (LeafReaderContext leaf : sorted) {
+            int min = 0;
+            for (int i = 1; i < count; i++) {
+                if (docs[i] < docs[min]) {
+                    min = i;
+                }
+            }
+            result.get(min).add(leaf);
+            docs[min] += leaf.reader().maxDoc();
+        }
+        return result;
+    }
+
+    /**
+     * 分片数
+     * @return
+     */
+    public int getSliceCount() {
+        return slices.size();
+    }
+
+    @Override
+    public <C extends Collector, T> T search(Query query, CollectorManager<C, T> collectorManager) throws IOException {
+        if (slices.size() <= 1) {
+            pool.onLight();
+            return super.search(query, collectorManager);
+        }
+        List<C> collectors = new ArrayList<>(slices.size());
+        boolean needsScores = false;
+        for (int i = 0; i < slices.size(); i++) {
+            C collector = collectorManager.newCollector();
+            collectors.add(collector);
+            needsScores |= collector.needsScores();
+        }
+        Weight weight = createNormalizedWeight(query, needsScores);
+        if (!pool.isHeavy(estimateCost(weight))) {
+            pool.onLight();
+            return searchSerial(weight, collectorManager, collectors.get(0));
+        }
+        if (!pool.acquireHeavy()) {
+            return searchSerial(weight, collectorManager, collectors.get(0));   //并行的重查询已满, 退化为串行, 不拒绝
+        }
+
+        try {
+            List<FutureTask<C>> tasks = new ArrayList<>(slices.size() - 1);
+            for (int i = 1; i < slices.size(); i++) {
+                List<LeafReaderContext> slice = slices.get(i);
+                C collector = collectors.get(i);
+                FutureTask<C> task = new FutureTask<>(() -> {
+                    search(slice, weight, collector);
+                    return collector;
+                });
+                try {
+                    pool.executor().execute(task);
+                } catch (RejectedExecutionException e) {
+                    //线程池已关闭
+                }
+                tasks.add(task);
+            }
+            //当前线程执行第一个分片, 不空等
+            search(slices.get(0), weight, collectors.get(0));
+            for (FutureTask<C> task : tasks) {
+                if (pool.executor().isShutdown()) {
+                    task.run();   //线程池关闭后任务可能被丢弃, 在当前线程补上; 已执行过的任务不会重复执行
+                }
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            pool.releaseHeavy();
+        }
+        return collectorManager.reduce(collectors);
+    }
+
+    private <C extends Collector, T> T searchSerial(Weight weight, CollectorManager<C, T> collectorManager, C collector)
+            throws IOException {
+        search(leafContexts, weight, collector);
+        return collectorManager.reduce(Collections.singletonList(collector));
+    }
+
+    /**
+     * 估算命中文档数: 查询中各词的docFreq之和; 没有词的查询(如MatchAllDocsQuery, 范围和地理查询)按全部文档计
+     */
+    private long estimateCost(Weight weight) throws IOException {
+        Set<Term> terms = new HashSet<>();
+        weight.extractTerms(terms);
+        IndexReader reader = getIndexReader();
+        if (terms.isEmpty()) {
+            return reader.maxDoc();
+        }
+        long cost = 0;
+        for (Term term : terms) {
+            cost += reader.docFreq(term);
+        }
+        return cost;
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelIndexSearcher(" + getIndexReader() + "; slices=" + Arrays.toString(sliceSizes()) + ")";
+    }
+
+    private int[] sliceSizes() {
+        int[] sizes = new int[slices.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            for (LeafReaderContext leaf : slices.get(i)) {
+                sizes[i] += leaf.reader().maxDoc();
+            }
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,167 @@
+package cc.ferguschen.retrieval.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.similarities.Similarity;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by chenqining on 2018/7/30.
+ * 段并行检索的共享线程池和准入控制, 配合{@link ParallelIndexSearcher}使用.
+ * * 线程池: 固定线程数, 有界队列; 队列满时由发起查询的线程自己执行分片(CallerRunsPolicy), 不丢任务也不无限排队.
+ * * 准入: 估算命中文档数(各词的docFreq之和)达到heavyCost的查询才并行, 同时并行的重查询不超过maxHeavyQueries个,
+ *   超出的等待admissionTimeoutMs后退化为在调用线程上串行执行(变慢但不失败); 轻查询始终在调用线程上串行执行, 不进入线程池,
+ *   所以一批重查询占满线程池时, 轻查询不受影响.
+ * 通过{@link #newSearcherFactory()}交给SearcherManager, 每次reopen得到的searcher都共用这个池.
+ */
+public class ParallelSearchPool implements Closeable {
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final int minDocsPerSlice;
+    private final long heavyCost;
+    private final long admissionTimeoutMs;
+    private final Semaphore heavyPermits;
+
+    private final AtomicLong lightQueries = new AtomicLong();
+    private final AtomicLong heavyQueries = new AtomicLong();
+    private final AtomicLong degradedQueries = new AtomicLong();
+
+    /**
+     * 默认参数: 每片至少5万文档, 命中估算超过5万的查询并行, 同时最多threads/2个重查询并行, 最多等待1秒
+     * @param threads 线程数, 一般为CPU核数
+     */
+    public ParallelSearchPool(int threads) {
+        this(threads, 50000, 50000, Math.max(1, threads / 2), 1000);
+    }
+
+    /**
+     * @param threads 线程数
+     * @param minDocsPerSlice 每个分片至少包含的文档数, 小索引不值得拆分
+     * @param heavyCost 估算命中文档数达到该值的查询视为重查询, 并行执行
+     * @param maxHeavyQueries 同时并行执行的重查询数上限
+     * @param admissionTimeoutMs 重查询等待准入的最长时间(毫秒)
+     */
+    public ParallelSearchPool(int threads, int minDocsPerSlice, long heavyCost, int maxHeavyQueries, long admissionTimeoutMs) {
+        this.threads = threads;
+        this.minDocsPerSlice = minDocsPerSlice;
+        this.heavyCost = heavyCost;
+        this.admissionTimeoutMs = admissionTimeoutMs;
+        this.heavyPermits = new Semaphore(maxHeavyQueries, true);
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4),
+                r -> {
+                    Thread t = new Thread(r, "search-slice-" + threadId.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * 创建ParallelIndexSearcher的工厂, 用于SearcherManager
+     * @return
+     */
+    public SearcherFactory newSearcherFactory() {
+        return newSearcherFactory(null);
+    }
+
+    /**
+     * 创建ParallelIndexSearcher的工厂, 用于SearcherManager
+     * @param similarity 检索使用的相似度, 应和建索引时一致; 为null时使用IndexSearcher的默认值
+     * @return
+     */
+    public SearcherFactory newSearcherFactory(Similarity similarity) {
+        return new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+                IndexSearcher searcher = new ParallelIndexSearcher(reader, ParallelSearchPool.this);
+                if (similarity != null) {
+                    searcher.setSimilarity(similarity);
+                }
+                return searcher;
+            }
+        };
+    }
+
+    ExecutorService executor() {
+        return executor;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    int getMinDocsPerSlice() {
+        return minDocsPerSlice;
+    }
+
+    boolean isHeavy(long cost) {
+        return cost >= heavyCost;
+    }
+
+    /**
+     * 重查询获取并行执行的许可
+     * @return 是否获得许可; 等待超时(或被中断)时返回false, 调用方应在当前线程串行执行, 不调用releaseHeavy
+     */
+    boolean acquireHeavy() {
+        boolean acquired = false;
+        try {
+            acquired = heavyPermits.tryAcquire(admissionTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!acquired) {
+            degradedQueries.incrementAndGet();
+            return false;
+        }
+        heavyQueries.incrementAndGet();
+        return true;
+    }
+
+    void releaseHeavy() {
+        heavyPermits.release();
+    }
+
+    void onLight() {
+        lightQueries.incrementAndGet();
+    }
+
+    public long getLightQueries() {
+        return lightQueries.get();
+    }
+
+    public long getHeavyQueries() {
+        return heavyQueries.get();
+    }
+
+    /**
+     * @return 没有等到并行许可, 退化为串行执行的重查询数
+     */
+    public long getDegradedQueries() {
+        return degradedQueries.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("threads=%d, light=%d, heavy=%d, degraded=%d, queued slices=%d",
+                threads, lightQueries.get(), heavyQueries.get(), degradedQueries.get(), executor.getQueue().size());
+    }
+
+    /**
+     * 关闭线程池. 之后该池创建的searcher上的并行查询会在调用线程上执行.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,359 @@
+package cc.ferguschen.retrieval.search;
+
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Created by chenqining on 2018/7/27.
+ * 关键词检索结果的缓存: 缓存top-K结果和读取出的字段, 重复的热门关键词不必再解析查询, 打分和读取文档.
+ * * 键: 规整后的关键词(去首尾空白, 合并连续空白; 不改大小写, 以免改变AND/OR等语法) + 查询域 + K + 要读取的字段;
+ * * 淘汰: LRU, 同时限制条数和估算的内存字节数;
+ * * 失效: 每条结果记录计算时reader的身份(getCombinedCoreAndDeletesKey, 新段, 删除和合并都会产生新的reader), 只在同一个reader上命中;
+ *   注册为SearcherManager的RefreshListener后, reopen时立即清空, 及时释放旧结果占用的内存.
+ * 线程安全. 未命中时在锁外计算, 同一个关键词并发未命中会各算一次.
+ */
+public class QueryResultCache implements ReferenceManager.RefreshListener, Accountable {
+    private static final long ENTRY_OVERHEAD = 2 * RamUsageEstimator.NUM_BYTES_OBJECT_HEADER   //LinkedHashMap的Entry和Key
+            + 8 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + 2 * Integer.BYTES;
+    private static final long HIT_OVERHEAD = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + Integer.BYTES + Float.BYTES
+            + RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");   //每次查询都要规整关键词, 预先编译
+
+    private final int maxEntries;
+    private final long maxRamBytes;
+    private final LinkedHashMap<Key, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);   //按访问顺序, 最久未用的在最前
+
+    private long ramBytesUsed;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long invalidationCount;
+    private volatile SearchMetrics metrics = SearchMetrics.NONE;
+
+    /**
+     * @param maxEntries 最多缓存的查询数
+     * @param maxRamBytes 缓存结果估算占用的最大字节数
+     */
+    public QueryResultCache(int maxEntries, long maxRamBytes) {
+        this.maxEntries = maxEntries;
+        this.maxRamBytes = maxRamBytes;
+    }
+
+    /**
+     * 用QueryParser在field上检索keyword, 返回top-K结果及其存储字段. 同一reader上的重复查询直接返回缓存的结果.
+     * @param searcher 当前借用的searcher
+     * @param analyzer 解析关键词的分析器, 应和建索引时一致
+     * @param field 查询的域
+     * @param keyword 关键词
+     * @param topK 返回的结果数
+     * @param fields 需要读取的字段, 有DocValues时按列读取
+     * @return 结果不可修改, 可在多个线程间共享
+     * @throws IOException
+     * @throws ParseException
+     */
+    public CachedHits search(IndexSearcher searcher, Analyzer analyzer, String field, String keyword, int topK,
+                             String... fields) throws IOException, ParseException {
+        return search(searcher, new Key(normalize(keyword), field, topK, fields),
+                text -> new QueryParser(field, analyzer).parse(text), fields);
+    }
+
+    /**
+     * 用KeywordQueryBuilder构造查询, 不经过QueryParser, 关键词中的括号等字符不会导致解析失败. 其他同上.
+     * @param searcher 当前借用的searcher
+     * @param queryBuilder 共享的查询构造器, 自带常用关键词的查询缓存
+     * @param keyword 关键词
+     * @param topK 返回的结果数
+     * @param fields 需要读取的字段, 有DocValues时按列读取
+     * @return 结果不可修改, 可在多个线程间共享
+     * @throws IOException
+     */
+    public CachedHits search(IndexSearcher searcher, KeywordQueryBuilder queryBuilder, String keyword, int topK,
+                             String... fields) throws IOException {
+        String field = "builder:" + queryBuilder.getFieldBoosts() + ":" + queryBuilder.getOperator();   //和QueryParser的结果分开缓存
+        try {
+            return search(searcher, new Key(normalize(keyword), field, topK, fields), queryBuilder::build, fields);
+        } catch (ParseException e) {
+            throw new AssertionError(e);   //KeywordQueryBuilder不会抛ParseException
+        }
+    }
+
+    private interface QueryFactory {
+        Query create(String keyword) throws ParseException;
+    }
+
+    private CachedHits search(IndexSearcher searcher, Key key, QueryFactory queryFactory,
+                              String... fields) throws IOException, ParseException {
+        SearchMetrics metrics = this.metrics;
+        long start = System.nanoTime();
+        CachedHits result;
+        try {
+            result = lookupOrCompute(searcher, key, queryFactory, metrics, fields);
+        } catch (IOException | ParseException | RuntimeException e) {
+            metrics.recordError(SearchMetrics.Stage.QUERY);
+            throw e;
+        }
+        metrics.record(SearchMetrics.Stage.QUERY, System.nanoTime() - start);   //命中和未命中都计入, 是调用方看到的延迟
+        return result;
+    }
+
+    private CachedHits lookupOrCompute(IndexSearcher searcher, Key key, QueryFactory queryFactory, SearchMetrics metrics,
+                                       String... fields) throws IOException, ParseException {
+        Object readerKey = searcher.getIndexReader().getCombinedCoreAndDeletesKey();
+        synchronized (this) {
+            Entry entry = cache.get(key);
+            if (entry != null && entry.readerKey == readerKey) {
+                hitCount++;
+                return entry.hits;
+            }
+            missCount++;
+        }
+
+        SearchMetrics.Stage stage = SearchMetrics.Stage.PARSE;
+        Map<Integer, Map<String, String>> loaded;
+        TopDocs topDocs;
+        try {
+            long start = System.nanoTime();
+            Query query = queryFactory.create(key.keyword);
+            long parsed = System.nanoTime();
+            metrics.record(stage, parsed - start);
+            stage = SearchMetrics.Stage.SEARCH;
+            topDocs = searcher.search(query, key.topK);
+            long searched = System.nanoTime();
+            metrics.record(stage, searched - parsed);
+            stage = SearchMetrics.Stage.FETCH;
+            int[] docs = new int[topDocs.scoreDocs.length];
+            for (int i = 0; i < docs.length; i++) {
+                docs[i] = topDocs.scoreDocs[i].doc;
+            }
+            loaded = fields.length == 0 ? Collections.emptyMap() : FieldLoader.load(searcher.getIndexReader(), docs, fields);
+            metrics.record(stage, System.nanoTime() - searched);
+        } catch (IOException | ParseException | RuntimeException e) {
+            metrics.recordError(stage);
+            throw e;
+        }
+        List<CachedHit> hits = new ArrayList<>(topDocs.scoreDocs.length);
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            Map<String, String> values = loaded.get(scoreDoc.doc);
+            hits.add(new CachedHit(scoreDoc.doc, scoreDoc.score, values == null ? Collections.emptyMap() : values));
+        }
+        CachedHits result = new CachedHits(topDocs.totalHits, Collections.unmodifiableList(hits));
+        put(key, new Entry(readerKey, result, ramBytesUsed(key, result)));
+        return result;
+    }
+
+    private synchronized void put(Key key, Entry entry) {
+        if (entry.ramBytes > maxRamBytes) {
+            return;   //单条结果就超过上限, 不缓存
+        }
+        Entry old = cache.put(key, entry);
+        if (old != null) {
+            ramBytesUsed -= old.ramBytes;
+        }
+        ramBytesUsed += entry.ramBytes;
+        Iterator<Map.Entry<Key, Entry>> it = cache.entrySet().iterator();
+        while ((cache.size() > maxEntries || ramBytesUsed > maxRamBytes) && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            ramBytesUsed -= eldest.ramBytes;
+            evictionCount++;
+        }
+    }
+
+    static String normalize(String keyword) {
+        return WHITESPACE.matcher(keyword.trim()).replaceAll(" ");
+    }
+
+    private static long ramBytesUsed(Key key, CachedHits hits) {
+        long bytes = ENTRY_OVERHEAD + sizeOf(key.keyword) + sizeOf(key.field)
+                + RamUsageEstimator.shallowSizeOf(key.fields) + RamUsageEstimator.NUM_BYTES_OBJECT_HEADER;
+        for (String f : key.fields) {
+            bytes += sizeOf(f);
+        }
+        for (CachedHit hit : hits.hits) {
+            bytes += HIT_OVERHEAD;
+            for (Map.Entry<String, String> e : hit.fields.entrySet()) {
+                bytes += 4 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+                        + sizeOf(e.getKey()) + sizeOf(e.getValue());
+            }
+        }
+        return bytes;
+    }
+
+    private static long sizeOf(String s) {
+        return s == null ? 0 : RamUsageEstimator.shallowSizeOfInstance(String.class) + RamUsageEstimator.sizeOf(s.toCharArray());
+    }
+
+    /**
+     * 记录每次查询的总耗时(QUERY, 包括命中缓存的); 未命中时另外记录解析, 检索和读取字段各自的耗时
+     * @param metrics
+     * @return
+     */
+    public QueryResultCache setMetrics(SearchMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * 清空缓存
+     */
+    public synchronized void clear() {
+        if (!cache.isEmpty()) {
+            invalidationCount++;
+        }
+        cache.clear();
+        ramBytesUsed = 0;
+    }
+
+    @Override
+    public void beforeRefresh() {
+    }
+
+    @Override
+    public void afterRefresh(boolean didRefresh) {
+        if (didRefresh) {
+            clear();   //reader已换, 旧结果不会再命中
+        }
+    }
+
+    @Override
+    public synchronized long ramBytesUsed() {
+        return ramBytesUsed;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 命中率, 还没有查询时为0
+     * @return
+     */
+    public synchronized double getHitRatio() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * 因超过条数或内存上限而淘汰的结果数
+     * @return
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 因reader reopen而清空的次数
+     * @return
+     */
+    public synchronized long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("entries=%d, ram=%.1fKB, hitRatio=%.2f (%d/%d), evictions=%d, invalidations=%d",
+                cache.size(), ramBytesUsed / 1024.0, getHitRatio(), hitCount, hitCount + missCount, evictionCount, invalidationCount);
+    }
+
+    /**
+     * 一次查询缓存的结果
+     */
+    public static final class CachedHits {
+        public final long totalHits;
+        public final List<CachedHit> hits;
+
+        CachedHits(long totalHits, List<CachedHit> hits) {
+            this.totalHits = totalHits;
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * 一条结果: 文档号(只在计算它的reader上有效), 得分和读取出的存储字段
+     */
+    public static final class CachedHit {
+        public final int doc;
+        public final float score;
+        public final Map<String, String> fields;
+
+        CachedHit(int doc, float score, Map<String, String> fields) {
+            this.doc = doc;
+            this.score = score;
+            this.fields = fields;
+        }
+
+        public String get(String name) {
+            return fields.get(name);
+        }
+    }
+
+    private static final class Key {
+        final String keyword;
+        final String field;
+        final int topK;
+        final String[] fields;
+        final int hash;
+
+        Key(String keyword, String field, int topK, String[] fields) {
+            this.keyword = keyword;
+            this.field = field;
+            this.topK = topK;
+            this.fields = fields.clone();
+            this.hash = 31 * (31 * (31 * keyword.hashCode() + field.hashCode()) + topK) + Arrays.hashCode(fields);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return topK == other.topK && keyword.equals(other.keyword) && field.equals(other.field)
+                    && Arrays.equals(fields, other.fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final Object readerKey;
+        final CachedHits hits;
+        final long ramBytes;
+
+        Entry(Object readerKey, CachedHits hits, long ramBytes) {
+            this.readerKey = readerKey;
+            this.hits = hits;
+            this.ramBytes = ramBytes;
+        }
+    }
+}
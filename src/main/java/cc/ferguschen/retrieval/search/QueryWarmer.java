@@ -0,0 +1,171 @@
+package cc.ferguschen.retrieval.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Created by chenqining on 2018/8/7.
+ * 查询预热: 记录最近的查询关键词, 新的searcher发布前先用它们查一遍.
+ * * 通过{@link #wrap(SearcherFactory)}包装SearcherManager的工厂, 预热在newSearcher中执行,
+ *   SearcherManager在newSearcher返回后才发布searcher, 所以线上查询拿到的都是预热过的searcher;
+ * * 每个查询取topK并读取命中文档的字段, 使词典, 倒排, norms和DocValues的页进入页缓存, 相关代码也经过JIT编译;
+ * * 最近的关键词可以保存到文件({@link #save(Path)}), 重启后先{@link #load(Path)}, 第一个searcher就能预热.
+ * 只保留最近capacity个不同的关键词, 并且可以设置预热的时间预算({@link #setMaxWarmMs(long)}): 刚启动时JIT还没编译,
+ * 查询较慢, 预热太多反而推迟了searcher的发布; 按最近查过的优先, 预算用完即停止.
+ */
+public class QueryWarmer {
+    private final int capacity;
+    private final int topK;
+    private final Function<String, Query> queryBuilder;
+    private final String[] fields;
+    private final LinkedHashMap<String, Boolean> recent;   //按访问顺序, 最久未查的在最前
+    private long maxWarmMs = Long.MAX_VALUE;
+
+    private volatile long lastWarmNanos = 0;
+    private volatile int lastWarmQueries = 0;
+
+    /**
+     * @param capacity 最多保留的关键词数, 即每次预热的查询数上限
+     * @param topK 每个预热查询取的结果数
+     * @param queryBuilder 由关键词构造查询, 和线上查询一致; 返回null的关键词跳过. 在reopen的线程上调用, 需要线程安全
+     * @param fields 预热时读取的结果字段
+     */
+    public QueryWarmer(int capacity, int topK, Function<String, Query> queryBuilder, String... fields) {
+        this.capacity = capacity;
+        this.topK = topK;
+        this.queryBuilder = queryBuilder;
+        this.fields = fields;
+        this.recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > QueryWarmer.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * 每次预热的时间预算(毫秒), 超出后不再执行剩余的查询. 默认不限制.
+     * @param maxWarmMs
+     * @return
+     */
+    public QueryWarmer setMaxWarmMs(long maxWarmMs) {
+        this.maxWarmMs = maxWarmMs;
+        return this;
+    }
+
+    /**
+     * 记录一次线上查询的关键词
+     * @param keyword
+     */
+    public synchronized void record(String keyword) {
+        if (keyword != null && !keyword.trim().isEmpty()) {
+            recent.put(keyword.trim(), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 最近的关键词, 最近查过的在最后
+     * @return
+     */
+    public synchronized List<String> recentQueries() {
+        return new ArrayList<>(recent.keySet());
+    }
+
+    /**
+     * 用最近的关键词预热searcher
+     * @param searcher
+     * @return 执行的查询数
+     * @throws IOException
+     */
+    public int warm(IndexSearcher searcher) throws IOException {
+        long start = System.nanoTime();
+        List<String> keywords = recentQueries();
+        Collections.reverse(keywords);   //最近查过的先预热
+        int count = 0;
+        for (String keyword : keywords) {
+            if ((System.nanoTime() - start) / 1000000 >= maxWarmMs) {
+                break;
+            }
+            Query query = queryBuilder.apply(keyword);
+            if (query == null) {
+                continue;
+            }
+            ScoreDoc[] hits = searcher.search(query, topK).scoreDocs;
+            if (fields.length > 0 && hits.length > 0) {
+                int[] docs = new int[hits.length];
+                for (int i = 0; i < hits.length; i++) {
+                    docs[i] = hits[i].doc;
+                }
+                FieldLoader.load(searcher.getIndexReader(), docs, fields);
+            }
+            count++;
+        }
+        lastWarmNanos = System.nanoTime() - start;
+        lastWarmQueries = count;
+        return count;
+    }
+
+    /**
+     * 包装SearcherManager的工厂: 创建searcher后先预热再返回
+     * @param delegate 实际创建searcher的工厂, 如ParallelSearchPool.newSearcherFactory
+     * @return
+     */
+    public SearcherFactory wrap(SearcherFactory delegate) {
+        return new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+                IndexSearcher searcher = delegate.newSearcher(reader, previousReader);
+                warm(searcher);
+                return searcher;
+            }
+        };
+    }
+
+    /**
+     * 保存最近的关键词, 每行一个
+     * @param file
+     * @throws IOException
+     */
+    public void save(Path file) throws IOException {
+        Files.write(file, recentQueries(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 加载save保存的关键词. 文件不存在时忽略.
+     * @param file
+     * @return 加载的关键词数
+     * @throws IOException
+     */
+    public int load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            record(line);
+        }
+        return lines.size();
+    }
+
+    public double getLastWarmMs() {
+        return lastWarmNanos / 1e6;
+    }
+
+    public int getLastWarmQueries() {
+        return lastWarmQueries;
+    }
+}
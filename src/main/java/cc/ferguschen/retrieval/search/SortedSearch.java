@@ -0,0 +1,73 @@
+package cc.ferguschen.retrieval.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.EarlyTerminatingSortingCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopFieldDocs;
+
+import java.io.IOException;
+
+/**
+ * Created by chenqining on 2018/8/2.
+ * 按字段排序的检索(如按热度, 按id), 不计算相关度.
+ * 排序方式是索引排序(IndexWriterConfig.setIndexSort)的前缀时, 每个段里的文档已经按这个顺序存放,
+ * 段内收集到topK个就可以停止(EarlyTerminatingSortingCollector), 不必遍历全部匹配文档;
+ * 此时totalHits只是已遍历的匹配数(下限), 需要精确总数时用IndexSearcher.count.
+ * 其他排序方式, 或者有段不是按索引排序写入的(如排序加入之前建的旧索引), 遍历全部匹配文档.
+ */
+public class SortedSearch {
+
+    /**
+     * 按sort排序检索topK个结果
+     * @param searcher
+     * @param query
+     * @param sort 排序方式, 排序字段需要有DocValues
+     * @param topK
+     * @return
+     * @throws IOException
+     */
+    public static SortedHits search(IndexSearcher searcher, Query query, Sort sort, int topK) throws IOException {
+        int numHits = Math.max(1, Math.min(topK, searcher.getIndexReader().maxDoc()));
+        TopFieldCollector topCollector = TopFieldCollector.create(sort, numHits, true, false, false);
+        if (!canEarlyTerminate(searcher.getIndexReader(), sort)) {
+            searcher.search(query, topCollector);
+            return new SortedHits(topCollector.topDocs(), false);
+        }
+        EarlyTerminatingSortingCollector collector = new EarlyTerminatingSortingCollector(topCollector, sort, numHits);
+        searcher.search(query, collector);
+        return new SortedHits(topCollector.topDocs(), collector.terminatedEarly());
+    }
+
+    /**
+     * reader的每个段是否都按可以提前结束sort的索引排序写入
+     * @param reader
+     * @param sort
+     * @return
+     */
+    public static boolean canEarlyTerminate(IndexReader reader, Sort sort) {
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Sort indexSort = leaf.reader().getIndexSort();
+            if (indexSort == null || !EarlyTerminatingSortingCollector.canEarlyTerminate(sort, indexSort)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 排序检索的结果
+     */
+    public static final class SortedHits {
+        public final TopFieldDocs topDocs;
+        public final boolean earlyTerminated;   //是否有段提前结束, 为true时topDocs.totalHits是下限
+
+        SortedHits(TopFieldDocs topDocs, boolean earlyTerminated) {
+            this.topDocs = topDocs;
+            this.earlyTerminated = earlyTerminated;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package cc.ferguschen.retrieval.search;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+
+/**
+ * Created by chenqining on 2018/8/15.
+ * 可以切换索引目录的SearcherManager, 用于蓝绿重建: 新索引在另一个目录建好后, 线上检索原子地换过去.
+ * * 平时和SearcherManager相同: maybeRefresh时当前目录有新的commit就reopen;
+ * * {@link #switchTo}在refresh中打开新目录的reader, 经SearcherFactory创建(如QueryWarmer.wrap预热)后才替换当前searcher.
+ *   切换前acquire的查询继续用旧searcher, 之后的acquire拿到新的, 不会有查询看到空的或建了一半的索引, 也不会失败;
+ * * 旧目录的所有reader都关闭后回调{@link RetiredListener}, 用于关闭旧Directory并删除文件. 每个目录单独计数打开的reader:
+ *   切换前几次reopen得到的reader可能还被慢查询借用着, 只看切换时的当前reader会在它们用完前就删掉目录.
+ * 同一时刻只有一个refresh在执行(ReferenceManager的锁), 切换和普通的reopen不会交错.
+ */
+public final class SwitchingSearcherManager extends ReferenceManager<IndexSearcher> {
+
+    /**
+     * 旧目录不再被任何searcher使用
+     */
+    public interface RetiredListener {
+        /**
+         * 在release最后一个旧searcher的线程上调用, 抛出的异常只打印, 不影响查询
+         * @param directory 切换前的目录
+         */
+        void onRetired(Directory directory) throws IOException;
+    }
+
+    private final SearcherFactory searcherFactory;
+    private volatile Directory directory;
+    private volatile OpenReaders openReaders;   //当前目录打开的reader数
+    private Directory pendingDirectory = null;   //等待切换的目录, 由refresh取走
+    private RetiredListener pendingListener = null;
+
+    /**
+     * @param directory 当前的索引目录, 不关闭
+     * @param searcherFactory 创建searcher, 如QueryWarmer.wrap(ParallelSearchPool.newSearcherFactory(...)); 为null时用默认的
+     * @throws IOException
+     */
+    public SwitchingSearcherManager(Directory directory, SearcherFactory searcherFactory) throws IOException {
+        this.searcherFactory = searcherFactory == null ? new SearcherFactory() : searcherFactory;
+        this.directory = directory;
+        this.openReaders = new OpenReaders(directory);
+        current = SearcherManager.getSearcher(this.searcherFactory, openReaders.track(DirectoryReader.open(directory)), null);
+    }
+
+    /**
+     * 切换到另一个目录, 返回时新目录的searcher已发布(预热在本线程执行).
+     * @param newDirectory 已commit的完整索引, 不关闭
+     * @param listener 旧目录不再被使用时的回调, 可为null
+     * @throws IOException 打开或预热新目录失败, 此时仍使用原来的目录
+     */
+    public void switchTo(Directory newDirectory, RetiredListener listener) throws IOException {
+        synchronized (this) {
+            pendingDirectory = newDirectory;
+            pendingListener = listener;
+        }
+        try {
+            maybeRefreshBlocking();   //阻塞到拿到refresh锁; 并发的maybeRefresh先取走切换也一样
+        } finally {
+            synchronized (this) {
+                if (pendingDirectory == newDirectory) {
+                    pendingDirectory = null;   //切换失败, 不留给之后的refresh
+                    pendingListener = null;
+                }
+            }
+        }
+        if (directory != newDirectory) {
+            throw new IOException("failed to switch to " + newDirectory);
+        }
+    }
+
+    @Override
+    protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+        Directory target;
+        RetiredListener listener;
+        synchronized (this) {
+            target = pendingDirectory;
+            listener = pendingListener;
+        }
+        IndexReader oldReader = referenceToRefresh.getIndexReader();
+        if (target == null) {
+            IndexReader newReader = DirectoryReader.openIfChanged((DirectoryReader) oldReader);
+            return newReader == null ? null : SearcherManager.getSearcher(searcherFactory, openReaders.track(newReader), oldReader);
+        }
+        //新目录和旧目录没有共享的段, 不传previousReader
+        OpenReaders targetReaders = new OpenReaders(target);
+        IndexSearcher searcher = SearcherManager.getSearcher(searcherFactory, targetReaders.track(DirectoryReader.open(target)), null);
+        OpenReaders oldReaders = openReaders;
+        openReaders = targetReaders;
+        oldReaders.retire(listener);   //当前的旧searcher在返回后才被替换和release, 此时计数不会是0
+        synchronized (this) {
+            directory = target;
+            if (pendingDirectory == target) {
+                pendingDirectory = null;
+                pendingListener = null;
+            }
+        }
+        return searcher;
+    }
+
+    @Override
+    protected void decRef(IndexSearcher reference) throws IOException {
+        reference.getIndexReader().decRef();
+    }
+
+    @Override
+    protected boolean tryIncRef(IndexSearcher reference) {
+        return reference.getIndexReader().tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount(IndexSearcher reference) {
+        return reference.getIndexReader().getRefCount();
+    }
+
+    /**
+     * 一个目录打开的reader数. 每个reader关闭时减一, 目录退役并且减到0时回调RetiredListener(只回调一次)
+     */
+    private static final class OpenReaders {
+        private final Directory directory;
+        private int count = 0;
+        private boolean retired = false;
+        private RetiredListener listener = null;
+
+        OpenReaders(Directory directory) {
+            this.directory = directory;
+        }
+
+        <R extends IndexReader> R track(R reader) {
+            synchronized (this) {
+                count++;
+            }
+            reader.addReaderClosedListener(r -> closed());
+            return reader;
+        }
+
+        void retire(RetiredListener listener) {
+            synchronized (this) {
+                retired = true;
+                this.listener = listener;
+                if (count > 0) {
+                    return;
+                }
+            }
+            notifyRetired();
+        }
+
+        private void closed() {
+            synchronized (this) {
+                if (--count > 0 || !retired) {
+                    return;
+                }
+            }
+            notifyRetired();
+        }
+
+        private void notifyRetired() {
+            RetiredListener l;
+            synchronized (this) {
+                l = listener;
+                listener = null;   //只回调一次
+            }
+            if (l == null) {
+                return;
+            }
+            try {
+                l.onRetired(directory);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();   //release旧searcher的是查询线程, 清理失败不能让查询失败
+            }
+        }
+    }
+
+    /**
+     * @return 当前searcher所在的目录
+     */
+    public Directory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return 当前searcher是否是当前目录的最新commit
+     * @throws IOException
+     */
+    public boolean isSearcherCurrent() throws IOException {
+        IndexSearcher searcher = acquire();
+        try {
+            return ((DirectoryReader) searcher.getIndexReader()).isCurrent();
+        } finally {
+            release(searcher);
+        }
+    }
+}
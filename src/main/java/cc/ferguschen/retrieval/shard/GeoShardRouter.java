@@ -0,0 +1,96 @@
+package cc.ferguschen.retrieval.shard;
+
+import com.alibaba.fastjson.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Created by chenqining on 2018/8/6.
+ * 按经度分带路由: 第i个分片保存经度在[cuts[i-1], cuts[i])之间的POI, 没有位置的POI按id哈希分配.
+ * 附近检索和矩形检索只需访问和查询范围相交的分片(见{@link #shardsForLongitude(double, double)}).
+ * 分界线一般由{@link #fromSample(List, int)}按样本经度的分位数确定, 使各分片文档数大致相同.
+ */
+public class GeoShardRouter implements ShardRouter {
+    private final double[] cuts;   //升序, 长度为分片数-1
+    private final HashShardRouter fallback;
+
+    /**
+     * @param cuts 经度分界线, 升序
+     */
+    public GeoShardRouter(double[] cuts) {
+        this.cuts = cuts.clone();
+        Arrays.sort(this.cuts);
+        this.fallback = new HashShardRouter(cuts.length + 1);
+    }
+
+    /**
+     * 按样本经度的分位数划分numShards个分片
+     * @param sample shop.json格式的记录
+     * @param numShards
+     * @return
+     */
+    public static GeoShardRouter fromSample(List<JSONObject> sample, int numShards) {
+        double[] lons = sample.stream()
+                .filter(shop -> shop.getDouble("longitude") != null && shop.getDouble("latitude") != null)
+                .mapToDouble(shop -> shop.getDoubleValue("longitude"))
+                .sorted()
+                .toArray();
+        double[] cuts = new double[numShards - 1];
+        for (int i = 1; i < numShards; i++) {
+            cuts[i - 1] = lons.length == 0 ? 0 : lons[(int) ((long) lons.length * i / numShards)];
+        }
+        return new GeoShardRouter(cuts);
+    }
+
+    @Override
+    public int getNumShards() {
+        return cuts.length + 1;
+    }
+
+    @Override
+    public int route(JSONObject shop) {
+        Double lat = shop.getDouble("latitude");
+        Double lon = shop.getDouble("longitude");
+        if (lat == null || lon == null) {
+            return fallback.route(shop);
+        }
+        return routeLongitude(lon);
+    }
+
+    private int routeLongitude(double lon) {
+        int pos = Arrays.binarySearch(cuts, lon);
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+
+    @Override
+    public boolean routesById() {
+        return false;
+    }
+
+    @Override
+    public int routeId(String id) {
+        throw new UnsupportedOperationException("geo router does not route by id");
+    }
+
+    /**
+     * 和经度范围[minLon, maxLon]相交的分片. 地理查询不会命中没有位置的POI, 只需访问这些分片.
+     * @param minLon
+     * @param maxLon
+     * @return 分片号, 升序
+     */
+    public int[] shardsForLongitude(double minLon, double maxLon) {
+        int from = routeLongitude(minLon);
+        int to = routeLongitude(maxLon);
+        int[] shards = new int[to - from + 1];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = from + i;
+        }
+        return shards;
+    }
+
+    @Override
+    public String toString() {
+        return "geo(" + Arrays.toString(cuts) + ")";
+    }
+}
@@ -0,0 +1,45 @@
+package cc.ferguschen.retrieval.shard;
+
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Created by chenqining on 2018/8/6.
+ * 按id的哈希(murmur3)取模路由. 各分片文档数均衡, 但同一区域的POI分散在所有分片中, 每个查询都要访问所有分片.
+ */
+public class HashShardRouter implements ShardRouter {
+    private final int numShards;
+
+    public HashShardRouter(int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("numShards must be >= 1: " + numShards);
+        }
+        this.numShards = numShards;
+    }
+
+    @Override
+    public int getNumShards() {
+        return numShards;
+    }
+
+    @Override
+    public int route(JSONObject shop) {
+        return routeId(shop.getString("id"));
+    }
+
+    @Override
+    public boolean routesById() {
+        return true;
+    }
+
+    @Override
+    public int routeId(String id) {
+        return Math.floorMod(StringHelper.murmurhash3_x86_32(new BytesRef(id), 0), numShards);
+    }
+
+    @Override
+    public String toString() {
+        return "hash(" + numShards + ")";
+    }
+}
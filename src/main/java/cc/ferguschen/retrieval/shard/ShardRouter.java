@@ -0,0 +1,37 @@
+package cc.ferguschen.retrieval.shard;
+
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * Created by chenqining on 2018/8/6.
+ * 决定一条POI写入哪个分片.
+ */
+public interface ShardRouter {
+
+    /**
+     * 分片数
+     * @return
+     */
+    int getNumShards();
+
+    /**
+     * 记录所在的分片
+     * @param shop shop.json格式的记录
+     * @return 0 ~ getNumShards()-1
+     */
+    int route(JSONObject shop);
+
+    /**
+     * 是否只按id路由. 为true时同一id总在同一分片, 按id更新和删除只需操作一个分片;
+     * 否则(如按位置路由, 位置变化后会换分片)要在所有分片上删除旧文档.
+     * @return
+     */
+    boolean routesById();
+
+    /**
+     * 按id路由的分片, 仅在routesById()为true时有效
+     * @param id
+     * @return
+     */
+    int routeId(String id);
+}
@@ -0,0 +1,160 @@
+package cc.ferguschen.retrieval.shard;
+
+import cc.ferguschen.retrieval.index.BulkIndexer;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.utils.JsonLineReader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Created by chenqining on 2018/8/6.
+ * 分片索引的写入端: basePath下每个分片一个目录(shard-0, shard-1, ...), 每个分片一个IndexWriter.
+ * * 批量导入复用BulkIndexer的流水线, 索引线程按router把记录写入各自分片, 各分片并行建索引, 合并也各自进行;
+ * * 按id路由时, 更新和删除只操作id所在的分片; 按位置路由时, 先在所有分片删除旧文档再写入新分片.
+ * 分片数和路由方式在建索引时确定, 改变分片数需要重建索引.
+ */
+public class ShardedIndexWriter implements Closeable {
+    private final ShardRouter router;
+    private final Directory[] dirs;
+    private final IndexWriter[] iwriters;
+    private final boolean addressGrams;   //和批量导入一致, 追加和更新的文档也写入地址子串的域
+
+    /**
+     * @param basePath 分片目录的父目录
+     * @param router 路由方式, 决定分片数
+     * @param analyzer 分析器
+     * @param bulkIndexer 提供IndexWriterConfig(内存缓冲按分片数平分), 批量导入的线程数和是否写入地址子串的域
+     * @throws IOException
+     */
+    public ShardedIndexWriter(Path basePath, ShardRouter router, Analyzer analyzer, BulkIndexer bulkIndexer) throws IOException {
+        int n = router.getNumShards();
+        this.router = router;
+        this.dirs = new Directory[n];
+        this.iwriters = new IndexWriter[n];
+        this.addressGrams = bulkIndexer.isAddressGrams();
+        boolean success = false;
+        try {
+            for (int i = 0; i < n; i++) {
+                dirs[i] = FSDirectory.open(shardPath(basePath, i));
+                IndexWriterConfig config = bulkIndexer.newConfig(analyzer);
+                config.setRAMBufferSizeMB(Math.max(16, config.getRAMBufferSizeMB() / n));
+                iwriters[i] = new IndexWriter(dirs[i], config);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(iwriters);
+                IOUtils.closeWhileHandlingException(dirs);
+            }
+        }
+    }
+
+    /**
+     * 第i个分片的目录
+     * @param basePath
+     * @param shard
+     * @return
+     */
+    public static Path shardPath(Path basePath, int shard) {
+        return basePath.resolve("shard-" + shard);
+    }
+
+    /**
+     * 并行导入JSON行数据, 不commit
+     * @param bulkIndexer
+     * @param reader
+     * @return 导入的文档数
+     * @throws IOException
+     */
+    public long index(BulkIndexer bulkIndexer, JsonLineReader reader) throws IOException {
+        return bulkIndexer.index(iwriters, router::route, reader);
+    }
+
+    /**
+     * 追加一条记录
+     * @param shop
+     * @throws IOException
+     */
+    public void add(JSONObject shop) throws IOException {
+        iwriters[router.route(shop)].addDocument(ShopSchema.createDocument(shop, addressGrams));
+    }
+
+    /**
+     * 按id替换一条记录
+     * @param shop
+     * @throws IOException
+     */
+    public void update(JSONObject shop) throws IOException {
+        String id = shop.getString("id");
+        int shard = router.route(shop);
+        if (!router.routesById()) {
+            for (int i = 0; i < iwriters.length; i++) {
+                if (i != shard) {
+                    iwriters[i].deleteDocuments(new Term(ShopSchema.ID, id));
+                }
+            }
+        }
+        iwriters[shard].updateDocument(new Term(ShopSchema.ID, id), ShopSchema.createDocument(shop, addressGrams));
+    }
+
+    /**
+     * 按id删除
+     * @param id
+     * @throws IOException
+     */
+    public void delete(String id) throws IOException {
+        Term term = new Term(ShopSchema.ID, id);
+        if (router.routesById()) {
+            iwriters[router.routeId(id)].deleteDocuments(term);
+            return;
+        }
+        for (IndexWriter iwriter : iwriters) {
+            iwriter.deleteDocuments(term);
+        }
+    }
+
+    /**
+     * 提交所有分片. 各分片分别commit, 不是原子的: 中途失败时部分分片可能已提交.
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        for (IndexWriter iwriter : iwriters) {
+            iwriter.commit();
+        }
+    }
+
+    public int getNumShards() {
+        return iwriters.length;
+    }
+
+    public IndexWriter getIndexWriter(int shard) {
+        return iwriters[shard];
+    }
+
+    public ShardRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * 关闭所有分片的writer(close时commit)和目录
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            IOUtils.close(iwriters);
+        } finally {
+            IOUtils.close(dirs);
+        }
+    }
+}
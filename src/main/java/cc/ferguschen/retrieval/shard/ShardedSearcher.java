@@ -0,0 +1,368 @@
+package cc.ferguschen.retrieval.shard;
+
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import cc.ferguschen.retrieval.search.FieldLoader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by chenqining on 2018/8/6.
+ * 分片索引的scatter-gather检索.
+ * * 每个分片一个SearcherManager, 查询时同时借用所有分片的searcher, 结果来自同一组快照;
+ * * 各分片并行执行查询(调用线程执行第一个分片), 每个分片取topK, 再用TopDocs.merge按得分归并出全局topK;
+ * * 各分片打分时使用所有分片合计的词频和文档数(termStatistics/collectionStatistics), 得分与把所有文档建在一个索引里相同,
+ *   否则各分片的idf和平均长度不同, 得分不可比, 归并出的topK是错的; 统计在一次查询内缓存, 每个词只在各分片查一次;
+ * * 命中文档的字段按分片分组, 在各自分片上按列读取.
+ * 加分片只需增加目录和线程, 路由和归并逻辑不变.
+ */
+public class ShardedSearcher implements Closeable {
+    private final Directory[] dirs;
+    private final SearcherManager[] managers;
+    private final Similarity similarity;
+    private final ExecutorService executor;
+    private volatile SearchMetrics metrics = SearchMetrics.NONE;
+
+    /**
+     * @param basePath 分片目录的父目录, 和ShardedIndexWriter一致
+     * @param numShards 分片数
+     * @param similarity 相似度, 应和建索引时一致
+     * @param threads 并行查询分片的线程数(含调用线程)
+     * @throws IOException
+     */
+    public ShardedSearcher(Path basePath, int numShards, Similarity similarity, int threads) throws IOException {
+        this.dirs = new Directory[numShards];
+        this.managers = new SearcherManager[numShards];
+        this.similarity = similarity;
+        boolean success = false;
+        try {
+            for (int i = 0; i < numShards; i++) {
+                dirs[i] = FSDirectory.open(ShardedIndexWriter.shardPath(basePath, i));
+                managers[i] = new SearcherManager(dirs[i], null);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(managers);
+                IOUtils.closeWhileHandlingException(dirs);
+            }
+        }
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = threads > 1 ? Executors.newFixedThreadPool(threads - 1, r -> {
+            Thread t = new Thread(r, "shard-search-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    /**
+     * 各分片有新的commit时reopen
+     * @throws IOException
+     */
+    public void maybeRefresh() throws IOException {
+        for (SearcherManager manager : managers) {
+            manager.maybeRefresh();
+        }
+    }
+
+    /**
+     * 在所有分片上检索
+     * @param query
+     * @param topK
+     * @param fields 需要读取的字段
+     * @return
+     * @throws IOException
+     */
+    public ShardedHits search(Query query, int topK, String... fields) throws IOException {
+        int[] shards = new int[managers.length];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = i;
+        }
+        return search(query, topK, shards, fields);
+    }
+
+    /**
+     * 只在指定分片上检索, 如GeoShardRouter.shardsForLongitude裁剪出的分片. 打分仍使用所有分片的统计.
+     * @param query
+     * @param topK
+     * @param shards 要检索的分片号
+     * @param fields 需要读取的字段
+     * @return
+     * @throws IOException
+     */
+    public ShardedHits search(Query query, int topK, int[] shards, String... fields) throws IOException {
+        SearchMetrics metrics = this.metrics;
+        long start = System.nanoTime();
+        ShardedHits hits;
+        try {
+            hits = scatterGather(query, topK, shards, fields);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordError(SearchMetrics.Stage.QUERY);
+            throw e;
+        }
+        metrics.record(SearchMetrics.Stage.QUERY, System.nanoTime() - start);
+        return hits;
+    }
+
+    /**
+     * 记录每次检索的总耗时(QUERY), 包括各分片的检索, 合并和读取字段
+     * @param metrics
+     * @return
+     */
+    public ShardedSearcher setMetrics(SearchMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    private ShardedHits scatterGather(Query query, int topK, int[] shards, String... fields) throws IOException {
+        IndexSearcher[] acquired = new IndexSearcher[managers.length];
+        try {
+            IndexReader[] readers = new IndexReader[managers.length];
+            for (int i = 0; i < managers.length; i++) {
+                acquired[i] = managers[i].acquire();
+                readers[i] = acquired[i].getIndexReader();
+            }
+            TopDocs[] shardHits = scatter(query, topK, shards, readers);
+            TopDocs merged = TopDocs.merge(topK, shardHits);
+
+            //shardIndex是shards中的下标, 换成分片号
+            List<ShardHit> hits = new ArrayList<>(merged.scoreDocs.length);
+            for (ScoreDoc scoreDoc : merged.scoreDocs) {
+                hits.add(new ShardHit(shards[scoreDoc.shardIndex], scoreDoc.doc, scoreDoc.score));
+            }
+            if (fields.length > 0) {
+                loadFields(hits, readers, fields);
+            }
+            return new ShardedHits(merged.totalHits, Collections.unmodifiableList(hits));
+        } finally {
+            for (int i = 0; i < managers.length; i++) {
+                if (acquired[i] != null) {
+                    managers[i].release(acquired[i]);
+                }
+            }
+        }
+    }
+
+    private TopDocs[] scatter(Query query, int topK, int[] shards, IndexReader[] readers) throws IOException {
+        TopDocs[] shardHits = new TopDocs[shards.length];
+        GlobalStats stats = new GlobalStats(readers);
+        List<FutureTask<TopDocs>> tasks = new ArrayList<>(shards.length);
+        for (int i = 1; i < shards.length; i++) {
+            IndexSearcher searcher = new GlobalStatsSearcher(readers[shards[i]], stats, similarity);
+            FutureTask<TopDocs> task = new FutureTask<>(() -> searcher.search(query, topK));
+            if (executor != null) {
+                executor.execute(task);
+            }
+            tasks.add(task);
+        }
+        if (shards.length > 0) {
+            shardHits[0] = new GlobalStatsSearcher(readers[shards[0]], stats, similarity).search(query, topK);
+        }
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                FutureTask<TopDocs> task = tasks.get(i);
+                if (executor == null) {
+                    task.run();
+                }
+                shardHits[i + 1] = task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return shardHits;
+    }
+
+    private static void loadFields(List<ShardHit> hits, IndexReader[] readers, String[] fields) throws IOException {
+        for (int shard = 0; shard < readers.length; shard++) {
+            int count = 0;
+            for (ShardHit hit : hits) {
+                if (hit.shard == shard) {
+                    count++;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            int[] docs = new int[count];
+            int n = 0;
+            for (ShardHit hit : hits) {
+                if (hit.shard == shard) {
+                    docs[n++] = hit.doc;
+                }
+            }
+            Map<Integer, Map<String, String>> loaded = FieldLoader.load(readers[shard], docs, fields);
+            for (ShardHit hit : hits) {
+                if (hit.shard == shard) {
+                    hit.fields = loaded.get(hit.doc);
+                }
+            }
+        }
+    }
+
+    public int getNumShards() {
+        return managers.length;
+    }
+
+    /**
+     * 停止线程池, 关闭各分片的reader和目录
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        try {
+            IOUtils.close(managers);
+        } finally {
+            IOUtils.close(dirs);
+        }
+    }
+
+    /**
+     * 一次查询中所有分片合计的词和域统计. 各分片创建Weight时都要取同样的统计, 每个词只计算一次.
+     */
+    static final class GlobalStats {
+        private final IndexReader[] readers;
+        private final Map<Term, TermStatistics> terms = new ConcurrentHashMap<>();
+        private final Map<String, CollectionStatistics> fields = new ConcurrentHashMap<>();
+
+        GlobalStats(IndexReader[] readers) {
+            this.readers = readers;
+        }
+
+        TermStatistics termStatistics(Term term) throws IOException {
+            TermStatistics stats = terms.get(term);
+            if (stats == null) {
+                long docFreq = 0;
+                long totalTermFreq = 0;
+                for (IndexReader reader : readers) {
+                    docFreq += reader.docFreq(term);
+                    totalTermFreq = sum(totalTermFreq, reader.totalTermFreq(term));
+                }
+                stats = new TermStatistics(term.bytes(), docFreq, totalTermFreq);
+                terms.put(term, stats);
+            }
+            return stats;
+        }
+
+        CollectionStatistics collectionStatistics(String field) throws IOException {
+            CollectionStatistics stats = fields.get(field);
+            if (stats == null) {
+                long maxDoc = 0;
+                long docCount = 0;
+                long sumTotalTermFreq = 0;
+                long sumDocFreq = 0;
+                for (IndexReader reader : readers) {
+                    maxDoc += reader.maxDoc();
+                    docCount = sum(docCount, reader.getDocCount(field));
+                    sumTotalTermFreq = sum(sumTotalTermFreq, reader.getSumTotalTermFreq(field));
+                    sumDocFreq = sum(sumDocFreq, reader.getSumDocFreq(field));
+                }
+                stats = new CollectionStatistics(field, maxDoc, docCount, sumTotalTermFreq, sumDocFreq);
+                fields.put(field, stats);
+            }
+            return stats;
+        }
+
+        private static long sum(long a, long b) {
+            return a < 0 || b < 0 ? -1 : a + b;   //-1表示该统计不可用
+        }
+    }
+
+    /**
+     * 检索一个分片, 但词和域的统计取所有分片之和
+     */
+    static final class GlobalStatsSearcher extends IndexSearcher {
+        private final GlobalStats stats;
+
+        GlobalStatsSearcher(IndexReader reader, GlobalStats stats, Similarity similarity) {
+            super(reader);
+            this.stats = stats;
+            setSimilarity(similarity);
+        }
+
+        @Override
+        public TermStatistics termStatistics(Term term, TermContext context) throws IOException {
+            return stats.termStatistics(term);
+        }
+
+        @Override
+        public CollectionStatistics collectionStatistics(String field) throws IOException {
+            return stats.collectionStatistics(field);
+        }
+    }
+
+    /**
+     * 归并后的结果
+     */
+    public static final class ShardedHits {
+        public final long totalHits;
+        public final List<ShardHit> hits;
+
+        ShardedHits(long totalHits, List<ShardHit> hits) {
+            this.totalHits = totalHits;
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * 一条命中: 分片号, 分片内的文档号, 得分和读取的字段
+     */
+    public static final class ShardHit {
+        public final int shard;
+        public final int doc;
+        public final float score;
+        private Map<String, String> fields = Collections.emptyMap();
+
+        ShardHit(int shard, int doc, float score) {
+            this.shard = shard;
+            this.doc = doc;
+            this.score = score;
+        }
+
+        public String get(String name) {
+            return fields.get(name);
+        }
+
+        public Map<String, String> getFields() {
+            return fields;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.3f@%d\t%s", score, shard, fields);
+        }
+    }
+}
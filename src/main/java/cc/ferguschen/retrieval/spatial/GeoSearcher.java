@@ -0,0 +1,196 @@
+package cc.ferguschen.retrieval.spatial;
+
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.search.FieldLoader;
+import org.apache.lucene.document.LatLonDocValuesField;
+import org.apache.lucene.document.LatLonPoint;
+import org.apache.lucene.geo.GeoEncodingUtils;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexOrDocValuesQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.util.SloppyMath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by chenqining on 2018/7/22.
+ * "附近的POI"检索: 在索引中直接按经纬度做距离过滤, 矩形过滤, 并按距离由近到远取topK.
+ * 位置过滤用LatLonPoint(BKD树), 排序用LatLonDocValuesField, 不需要把所有匹配的文档取回到应用层再计算距离.
+ * 过滤条件用IndexOrDocValuesQuery包装: 关键词很稀疏时, Lucene会改为逐个文档用DocValues校验位置, 而不是遍历整个范围.
+ * 结果的id, name和经纬度都从DocValues按列读取, 不加载存储的文档.
+ */
+public class GeoSearcher {
+    /**
+     * 检索结果
+     */
+    public static class GeoHit {
+        public final int doc;
+        public final String id;
+        public final String name;
+        public final double latitude;
+        public final double longitude;
+        public final double distanceMeters;   //到查询点的距离, 矩形查询时为NaN
+
+        GeoHit(int doc, String id, String name, double latitude, double longitude, double distanceMeters) {
+            this.doc = doc;
+            this.id = id;
+            this.name = name;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.distanceMeters = distanceMeters;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("id:%s\tname:%s\t(%.6f,%.6f)\t%.0fm", id, name, latitude, longitude, distanceMeters);
+        }
+    }
+
+    /**
+     * 距离过滤的查询: 离(lat, lon)不超过radiusMeters
+     * @param lat
+     * @param lon
+     * @param radiusMeters
+     * @return
+     */
+    public static Query distanceFilter(double lat, double lon, double radiusMeters) {
+        return new IndexOrDocValuesQuery(
+                LatLonPoint.newDistanceQuery(ShopSchema.LOCATION, lat, lon, radiusMeters),
+                LatLonDocValuesField.newDistanceQuery(ShopSchema.LOCATION, lat, lon, radiusMeters));
+    }
+
+    /**
+     * 矩形过滤的查询
+     * @return
+     */
+    public static Query boxFilter(double minLat, double maxLat, double minLon, double maxLon) {
+        return new IndexOrDocValuesQuery(
+                LatLonPoint.newBoxQuery(ShopSchema.LOCATION, minLat, maxLat, minLon, maxLon),
+                LatLonDocValuesField.newBoxQuery(ShopSchema.LOCATION, minLat, maxLat, minLon, maxLon));
+    }
+
+    /**
+     * 把关键词查询和位置过滤组合起来. 位置条件用FILTER, 不参与打分.
+     * @param textQuery 关键词查询, 为null时只按位置过滤
+     * @param geoFilter 位置过滤
+     * @return
+     */
+    public static Query combine(Query textQuery, Query geoFilter) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(textQuery == null ? new MatchAllDocsQuery() : textQuery, BooleanClause.Occur.MUST);
+        builder.add(geoFilter, BooleanClause.Occur.FILTER);
+        return builder.build();
+    }
+
+    /**
+     * 检索离(lat, lon)radiusMeters以内匹配textQuery的POI, 按距离由近到远返回topK个.
+     * @param isearcher
+     * @param textQuery 关键词查询, 为null时不限关键词
+     * @param lat 纬度
+     * @param lon 经度
+     * @param radiusMeters 半径(米), <=0表示不限距离
+     * @param topK
+     * @return
+     * @throws IOException
+     */
+    public static List<GeoHit> nearby(IndexSearcher isearcher, Query textQuery, double lat, double lon,
+                                      double radiusMeters, int topK) throws IOException {
+        Query query;
+        if (radiusMeters > 0) {
+            query = combine(textQuery, distanceFilter(lat, lon, radiusMeters));
+        } else {
+            query = textQuery == null ? new MatchAllDocsQuery() : textQuery;
+        }
+        Sort sort = new Sort(LatLonDocValuesField.newDistanceSort(ShopSchema.LOCATION, lat, lon));
+        TopFieldDocs topDocs = isearcher.search(query, topK, sort);
+        return toHits(isearcher, topDocs, true);
+    }
+
+    /**
+     * 检索矩形范围内匹配textQuery的POI, 按相关度返回topK个.
+     * @param isearcher
+     * @param textQuery 关键词查询, 为null时不限关键词
+     * @param topK
+     * @return
+     * @throws IOException
+     */
+    public static List<GeoHit> inBox(IndexSearcher isearcher, Query textQuery, double minLat, double maxLat,
+                                     double minLon, double maxLon, int topK) throws IOException {
+        TopDocs topDocs = isearcher.search(combine(textQuery, boxFilter(minLat, maxLat, minLon, maxLon)), topK);
+        return toHits(isearcher, topDocs, false);
+    }
+
+    /**
+     * 读取命中文档的id, name(FieldLoader, 有DocValues时按列读取)和经纬度(LatLonDocValuesField, 按文档号升序逐段读取)
+     */
+    private static List<GeoHit> toHits(IndexSearcher isearcher, TopDocs topDocs, boolean sortedByDistance) throws IOException {
+        IndexReader reader = isearcher.getIndexReader();
+        ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+        int[] docs = new int[scoreDocs.length];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = scoreDocs[i].doc;
+        }
+        Map<Integer, Map<String, String>> fields = FieldLoader.load(reader, docs, ShopSchema.ID, ShopSchema.NAME);
+        Map<Integer, double[]> locations = loadLocations(reader, docs);
+        List<GeoHit> hits = new ArrayList<>(scoreDocs.length);
+        for (ScoreDoc scoreDoc : scoreDocs) {
+            Map<String, String> values = fields.get(scoreDoc.doc);
+            double[] location = locations.get(scoreDoc.doc);
+            double distance = sortedByDistance ? (Double) ((FieldDoc) scoreDoc).fields[0] : Double.NaN;
+            hits.add(new GeoHit(scoreDoc.doc, values.get(ShopSchema.ID), values.get(ShopSchema.NAME),
+                    location == null ? Double.NaN : location[0], location == null ? Double.NaN : location[1], distance));
+        }
+        return hits;
+    }
+
+    /**
+     * 从LatLonDocValuesField解码经纬度(精度约1cm), 不读取存储的latitude/longitude
+     */
+    private static Map<Integer, double[]> loadLocations(IndexReader reader, int[] docs) throws IOException {
+        int[] sorted = docs.clone();
+        Arrays.sort(sorted);
+        Map<Integer, double[]> result = new HashMap<>(sorted.length * 2);
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = null;
+        SortedNumericDocValues values = null;
+        for (int doc : sorted) {
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                values = DocValues.getSortedNumeric(leaf.reader(), ShopSchema.LOCATION);
+            }
+            values.setDocument(doc - leaf.docBase);
+            if (values.count() > 0) {
+                long encoded = values.valueAt(0);
+                result.put(doc, new double[]{GeoEncodingUtils.decodeLatitude((int) (encoded >> 32)),
+                        GeoEncodingUtils.decodeLongitude((int) encoded)});
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 两点间的球面距离(米), 用于应用层计算(如对比基准)
+     * @return
+     */
+    public static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        return SloppyMath.haversinMeters(lat1, lon1, lat2, lon2);
+    }
+}
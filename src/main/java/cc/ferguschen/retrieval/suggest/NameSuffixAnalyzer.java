@@ -0,0 +1,93 @@
+package cc.ferguschen.retrieval.suggest;
+
+import cc.ferguschen.retrieval.ik.AdvIKTokenizer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.KeywordTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.wltea.analyzer.core.IKSegmenter;
+import org.wltea.analyzer.core.Lexeme;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Created by chenqining on 2018/7/23.
+ * 输入提示用的分析器.
+ * 用户输入的往往是半个词(如"星巴"), IK会把它切成"星|巴", 和店名切出的"星巴克"对不上.
+ * 因此建提示索引时, 用IK找出店名中每个词的起点, 输出从该起点到店名结尾的后缀(如"星巴克(江苏店)", "江苏店)"),
+ * 查询时把整个输入当作一个词, 做前缀匹配: 既能匹配店名开头, 也能匹配店名中以某个词开头的部分("密室" -> "极道真人密室逃脱").
+ */
+public class NameSuffixAnalyzer extends Analyzer {
+    private final boolean forQuery;
+
+    /**
+     * @param forQuery true: 查询用, 整个输入作为一个词; false: 建索引用, 输出各词起点开始的后缀
+     */
+    public NameSuffixAnalyzer(boolean forQuery) {
+        this.forQuery = forQuery;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName) {
+        Tokenizer tokenizer = forQuery ? new KeywordTokenizer() : new SuffixTokenizer();
+        return new TokenStreamComponents(tokenizer, new LowerCaseFilter(tokenizer));
+    }
+
+    /**
+     * 读入整个店名(店名很短), 用IK切词, 对每个词的起点输出一个后缀
+     */
+    private static final class SuffixTokenizer extends Tokenizer {
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final StringBuilder text = new StringBuilder();
+        private final char[] buffer = new char[256];
+        private final IKSegmenter segmenter = new IKSegmenter(new StringReader(""), AdvIKTokenizer.getConfig(true));
+        private int lastStart = -1;
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            clearAttributes();
+            if (lastStart < 0 && text.length() > 0) {
+                //先输出整个店名
+                return emit(0);
+            }
+            Lexeme lexeme;
+            while ((lexeme = segmenter.next()) != null) {
+                int start = lexeme.getBeginPosition();
+                if (start > lastStart) {
+                    return emit(start);
+                }
+            }
+            return false;
+        }
+
+        private boolean emit(int start) {
+            lastStart = start;
+            termAtt.append(text, start, text.length());
+            offsetAtt.setOffset(correctOffset(start), correctOffset(text.length()));
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            text.setLength(0);
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                text.append(buffer, 0, n);
+            }
+            segmenter.reset(new StringReader(text.toString()));
+            lastStart = -1;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            int finalOffset = correctOffset(text.length());
+            offsetAtt.setOffset(finalOffset, finalOffset);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package cc.ferguschen.retrieval.suggest;
+
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.metrics.SearchMetrics;
+import cc.ferguschen.retrieval.utils.JsonLineReader;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Created by chenqining on 2018/7/23.
+ * 店名的输入提示(type-ahead). 基于AnalyzingInfixSuggester:
+ * * 店名经NameSuffixAnalyzer(IK切词, 输出每个词起点开始的后缀)建立一个小的独立索引, 输入按前缀匹配, 短前缀用edge n-gram直接命中, 不需要走完整的QueryParser检索;
+ * * 提示索引保存在自己的目录中, 进程重启后直接打开, 不需要重建;
+ * * 支持增量更新: 新增/修改POI时upsert店名, 按店名去重, 调用refresh后可见.
+ * 提示结果的payload是该店名对应的POI id.
+ */
+public class ShopSuggester implements Closeable {
+    private static final int MIN_PREFIX_CHARS = 4;   //4个字以内的前缀用edge n-gram直接命中一个词, 不需要展开PrefixQuery
+
+    private final InfixSuggester suggester;
+    private volatile SearchMetrics metrics = SearchMetrics.NONE;
+
+    /**
+     * 打开(或创建)保存在suggestDir中的提示索引
+     * @param suggestDir 提示索引目录, 已存在时直接加载
+     * @throws IOException
+     */
+    public ShopSuggester(Directory suggestDir) throws IOException {
+        this.suggester = new InfixSuggester(suggestDir);
+    }
+
+    /**
+     * 从POI主索引全量构建(覆盖已有的提示), 读取存储的id和name
+     * @param reader 主索引的reader
+     * @throws IOException
+     */
+    public void buildFromIndex(IndexReader reader) throws IOException {
+        suggester.build(new ShopInputIterator(new StoredShopIterator(reader)));
+        suggester.commit();
+    }
+
+    /**
+     * 从JSON行源数据全量构建(覆盖已有的提示)
+     * @param jsonReader 源数据, 由调用方关闭
+     * @throws IOException
+     */
+    public void buildFromJson(JsonLineReader jsonReader) throws IOException {
+        Iterator<String[]> shops = new Iterator<String[]>() {
+            @Override
+            public boolean hasNext() {
+                return jsonReader.hasNext();
+            }
+
+            @Override
+            public String[] next() {
+                JSONObject shop = jsonReader.next();
+                return new String[]{shop.getString("id"), shop.getString("name")};
+            }
+        };
+        suggester.build(new ShopInputIterator(shops));
+        suggester.commit();
+    }
+
+    /**
+     * 增量新增或更新一个店名. 相同店名只保留一条. 调用refresh后可见.
+     * @param id POI id
+     * @param name 店名
+     * @throws IOException
+     */
+    public void upsert(String id, String name) throws IOException {
+        if (name == null || name.isEmpty()) {
+            return;
+        }
+        suggester.update(new BytesRef(name), null, weight(name), new BytesRef(id));
+    }
+
+    /**
+     * 删除一个店名. 调用refresh后生效.
+     * @param name
+     * @throws IOException
+     */
+    public void remove(String name) throws IOException {
+        suggester.remove(name);
+    }
+
+    /**
+     * 使增量修改可见
+     * @throws IOException
+     */
+    public void refresh() throws IOException {
+        suggester.refresh();
+    }
+
+    /**
+     * 持久化增量修改
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        suggester.commit();
+    }
+
+    /**
+     * 根据用户输入的前缀给出提示
+     * @param prefix 用户输入
+     * @param num 返回的提示数
+     * @return
+     * @throws IOException
+     */
+    public List<Lookup.LookupResult> suggest(String prefix, int num) throws IOException {
+        if (prefix == null || prefix.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        SearchMetrics metrics = this.metrics;
+        long start = System.nanoTime();
+        List<Lookup.LookupResult> results;
+        try {
+            //整个输入作为一个前缀, 不做高亮, 减少每次请求的开销
+            results = suggester.lookup(prefix.trim(), num, true, false);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordError(SearchMetrics.Stage.SUGGEST);
+            throw e;
+        }
+        metrics.record(SearchMetrics.Stage.SUGGEST, System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * 记录每次提示的耗时(SUGGEST)
+     * @param metrics
+     * @return
+     */
+    public ShopSuggester setMetrics(SearchMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * 提示索引中的店名数
+     * @return
+     * @throws IOException
+     */
+    public long getCount() throws IOException {
+        return suggester.getCount();
+    }
+
+    /**
+     * 店名越短权重越高, 同样匹配时优先提示短的(通常是品牌名本身)
+     */
+    private static long weight(String name) {
+        return Math.max(1, 100 - name.length());
+    }
+
+    @Override
+    public void close() throws IOException {
+        suggester.close();
+    }
+
+    /**
+     * 增加按店名删除的能力
+     */
+    private static class InfixSuggester extends AnalyzingInfixSuggester {
+
+        InfixSuggester(Directory dir) throws IOException {
+            super(dir, new NameSuffixAnalyzer(false), new NameSuffixAnalyzer(true), MIN_PREFIX_CHARS, true);
+        }
+
+        synchronized void remove(String name) throws IOException {
+            if (writer == null) {
+                //writer由父类在第一次写入时才打开, 没有单独打开的方法: 先update同名记录打开writer, 随后一起删除
+                update(new BytesRef(name), null, 0, null);
+            }
+            writer.deleteDocuments(new Term(EXACT_TEXT_FIELD_NAME, name));
+        }
+    }
+
+    /**
+     * 把(id, name)序列转成suggester的输入, 按店名去重
+     */
+    private static class ShopInputIterator implements InputIterator {
+        private final Iterator<String[]> shops;
+        private final Set<String> seen = new HashSet<>();
+        private long weight;
+        private BytesRef payload;
+
+        ShopInputIterator(Iterator<String[]> shops) {
+            this.shops = shops;
+        }
+
+        @Override
+        public BytesRef next() {
+            while (shops.hasNext()) {
+                String[] shop = shops.next();
+                String name = shop[1];
+                if (name == null || name.isEmpty() || !seen.add(name)) {
+                    continue;
+                }
+                weight = ShopSuggester.weight(name);
+                payload = new BytesRef(shop[0]);
+                return new BytesRef(name);
+            }
+            return null;
+        }
+
+        @Override
+        public long weight() {
+            return weight;
+        }
+
+        @Override
+        public BytesRef payload() {
+            return payload;
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return true;
+        }
+
+        @Override
+        public Set<BytesRef> contexts() {
+            return null;
+        }
+
+        @Override
+        public boolean hasContexts() {
+            return false;
+        }
+    }
+
+    /**
+     * 遍历主索引中未删除文档存储的(id, name)
+     */
+    private static class StoredShopIterator implements Iterator<String[]> {
+        private static final Set<String> FIELDS = new HashSet<>(Arrays.asList(ShopSchema.ID, ShopSchema.NAME));
+        private final List<LeafReaderContext> leaves;
+        private int leafIndex = 0;
+        private int docId = -1;
+        private String[] next;
+
+        StoredShopIterator(IndexReader reader) {
+            this.leaves = new ArrayList<>(reader.leaves());
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            try {
+                while (leafIndex < leaves.size()) {
+                    LeafReader leaf = leaves.get(leafIndex).reader();
+                    Bits liveDocs = leaf.getLiveDocs();
+                    while (++docId < leaf.maxDoc()) {
+                        if (liveDocs != null && !liveDocs.get(docId)) {
+                            continue;
+                        }
+                        Document doc = leaf.document(docId, FIELDS);
+                        next = new String[]{doc.get(ShopSchema.ID), doc.get(ShopSchema.NAME)};
+                        return true;
+                    }
+                    leafIndex++;
+                    docId = -1;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return false;
+        }
+
+        @Override
+        public String[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String[] result = next;
+            next = null;
+            return result;
+        }
+    }
+}
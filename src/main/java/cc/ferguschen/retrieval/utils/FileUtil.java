@@ -6,6 +6,8 @@ import com.alibaba.fastjson.JSONException;
 import com.alibaba.fastjson.JSONObject;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -182,7 +184,7 @@ public class FileUtil {
         BufferedReader reader;
         String line = "";
         try{
-            reader = new BufferedReader(new InputStreamReader(fileStream));
+            reader = new BufferedReader(new InputStreamReader(fileStream, StandardCharsets.UTF_8));
 
             while((line = reader.readLine()) != null){
                 JSONObject curObj = JSON.parseObject(line);
@@ -199,6 +201,27 @@ public class FileUtil {
         return result;
     }
 
+    /**
+     * 流式读取JSON行数据, 逐条返回JSON对象, 不把整个文件加载到内存. 用完需要close.
+     * @param fileStream 输入文件流
+     * @param skipBadLines true: 跳过格式错误的行并计数; false: 遇到错误行抛出JSONException
+     * @return JSON行读取器
+     */
+    public static JsonLineReader openJSONLines(InputStream fileStream, boolean skipBadLines){
+        return JsonLineReader.open(fileStream, skipBadLines);
+    }
+
+    /**
+     * 以内存映射的方式流式读取本地的JSON行文件, 适合大文件. 用完需要close.
+     * @param inFilepath 输入文件路径
+     * @param skipBadLines true: 跳过格式错误的行并计数; false: 遇到错误行抛出JSONException
+     * @return JSON行读取器
+     * @throws IOException
+     */
+    public static JsonLineReader mapJSONLines(String inFilepath, boolean skipBadLines) throws IOException {
+        return JsonLineReader.map(Paths.get(inFilepath), skipBadLines);
+    }
+
     /**
      * 根据输入文件路径和输出文件路径, 1. 判断输入路径是否存在, 2. 创建输出文件路径的父目录.
      * @param inFilepath
@@ -0,0 +1,289 @@
+package cc.ferguschen.retrieval.utils;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONException;
+import com.alibaba.fastjson.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Created by chenqining on 2018/7/21.
+ * 流式读取JSON行文件(每行一个JSON对象, 如shop.json), 内存占用与文件大小无关.
+ * 直接在字节层面按'\n'切行, 行缓冲区反复复用, 用UTF-8解码器把字节交给fastjson解析, 不为每行创建String.
+ * 支持两种数据源: 普通输入流, 以及对本地大文件的内存映射(MappedByteBuffer, 按窗口映射, 避免read系统调用和内核到用户态的拷贝).
+ * 两种数据源都要经过两次内存拷贝: 数据源 -> 块缓冲区 -> 行缓冲区(fastjson只接受byte[]), 内存映射省不掉这两次.
+ * 每行必须是JSON对象; null, 数组, 数字等其他JSON值和语法错误一样算作格式错误的行.
+ * 非线程安全, 一个reader只能由一个线程消费.
+ */
+public class JsonLineReader implements Iterator<JSONObject>, Closeable {
+    private static final int CHUNK_SIZE = 1 << 16;            //每次从数据源取的字节数
+    private static final long MAP_WINDOW = 256L << 20;        //内存映射的窗口大小
+
+    private final ByteSource source;
+    private final boolean skipBadLines;   //true: 跳过格式错误(含不是JSON对象)的行并计数; false: 遇到错误行抛出JSONException
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkPos = 0;
+    private int chunkLimit = 0;
+    private byte[] line = new byte[1024];   //当前行的缓冲区, 按需扩容后复用
+    private boolean eof = false;
+
+    private JSONObject next = null;
+    private long lineCount = 0;
+    private long badLineCount = 0;
+    private long bytesRead = 0;
+
+    private JsonLineReader(ByteSource source, boolean skipBadLines) {
+        this.source = source;
+        this.skipBadLines = skipBadLines;
+    }
+
+    /**
+     * 从输入流读取
+     * @param in 输入流, close时一并关闭
+     * @param skipBadLines 是否跳过格式错误的行
+     * @return
+     */
+    public static JsonLineReader open(InputStream in, boolean skipBadLines) {
+        return new JsonLineReader(new StreamSource(in), skipBadLines);
+    }
+
+    /**
+     * 内存映射本地文件读取, 适合大文件
+     * @param path 文件路径
+     * @param skipBadLines 是否跳过格式错误的行
+     * @return
+     * @throws IOException
+     */
+    public static JsonLineReader map(Path path, boolean skipBadLines) throws IOException {
+        return new JsonLineReader(new MappedSource(path), skipBadLines);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        try {
+            next = readNext();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return next != null;
+    }
+
+    @Override
+    public JSONObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        JSONObject result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * 以Stream的形式顺序消费剩余的记录
+     * @return
+     */
+    public Stream<JSONObject> stream() {
+        Spliterator<JSONObject> spliterator = Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private JSONObject readNext() throws IOException {
+        int len;
+        while ((len = readLine()) >= 0) {
+            lineCount++;
+            int start = 0;
+            if (lineCount == 1 && len >= 3 && (line[0] & 0xFF) == 0xEF && (line[1] & 0xFF) == 0xBB && (line[2] & 0xFF) == 0xBF) {
+                start = 3;   //跳过UTF-8 BOM
+            }
+            if (len > start && line[len - 1] == '\r') {
+                len--;
+            }
+            if (isBlank(line, start, len)) {
+                continue;
+            }
+            try {
+                JSONObject obj = JSON.parseObject(line, start, len - start, decoder, JSONObject.class);
+                if (obj == null) {
+                    throw new JSONException("not a json object");   //"null"解析为null, 不能交给调用方
+                }
+                return obj;
+            } catch (JSONException | ClassCastException e) {
+                badLineCount++;
+                if (!skipBadLines) {
+                    throw new JSONException("illegal json at line " + lineCount, e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 读取下一行到line缓冲区(不含'\n')
+     * @return 行的字节长度, 已到结尾时返回-1
+     * @throws IOException
+     */
+    private int readLine() throws IOException {
+        int len = 0;
+        boolean gotAny = false;
+        while (true) {
+            if (chunkPos >= chunkLimit) {
+                if (eof) {
+                    return gotAny ? len : -1;
+                }
+                chunkLimit = source.read(chunk);
+                chunkPos = 0;
+                if (chunkLimit <= 0) {
+                    chunkLimit = 0;
+                    eof = true;
+                    continue;
+                }
+                bytesRead += chunkLimit;
+            }
+            gotAny = true;
+            int end = chunkPos;
+            while (end < chunkLimit && chunk[end] != '\n') {
+                end++;
+            }
+            int n = end - chunkPos;
+            if (len + n > line.length) {
+                byte[] grown = new byte[Math.max(line.length * 2, len + n)];
+                System.arraycopy(line, 0, grown, 0, len);
+                line = grown;
+            }
+            System.arraycopy(chunk, chunkPos, line, len, n);
+            len += n;
+            chunkPos = end;
+            if (end < chunkLimit) {
+                chunkPos++;   //跳过'\n'
+                return len;
+            }
+        }
+    }
+
+    private static boolean isBlank(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 已读取的行数(含空行和错误行)
+     * @return
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * 格式错误而被跳过的行数
+     * @return
+     */
+    public long getBadLineCount() {
+        return badLineCount;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * 字节数据源
+     */
+    private interface ByteSource extends Closeable {
+        /**
+         * 读取最多buf.length个字节
+         * @return 读取的字节数, 结尾返回-1
+         */
+        int read(byte[] buf) throws IOException;
+    }
+
+    private static class StreamSource implements ByteSource {
+        private final InputStream in;
+
+        StreamSource(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(byte[] buf) throws IOException {
+            return in.read(buf, 0, buf.length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * 按窗口内存映射文件, 单个MappedByteBuffer最大2GB, 所以大文件分段映射
+     */
+    private static class MappedSource implements ByteSource {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart = 0;
+        private MappedByteBuffer window = null;
+
+        MappedSource(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.size = channel.size();
+        }
+
+        @Override
+        public int read(byte[] buf) throws IOException {
+            if (window == null || !window.hasRemaining()) {
+                long nextStart = window == null ? 0 : windowStart + window.capacity();
+                if (nextStart >= size) {
+                    return -1;
+                }
+                windowStart = nextStart;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAP_WINDOW, size - windowStart));
+            }
+            int n = Math.min(buf.length, window.remaining());
+            window.get(buf, 0, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package cc.ferguschen.retrieval.analysis;
+
+import cc.ferguschen.retrieval.ik.AdvIKAnalyzer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.cjk.CJKAnalyzer;
+import org.apache.lucene.analysis.cn.smart.SmartChineseAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by chenqining on 2018/8/9.
+ * CachingAnalyzer回放的词元(词, 偏移, 类型, 位置增量, 结束偏移)必须和被包装的分析器直接分析的结果完全相同:
+ * 每个输入分析多次, 第一次未命中, 之后从缓存回放.
+ */
+public class CachingAnalyzerTest {
+    private static final List<String> INPUTS = Arrays.asList(
+            "星巴克(江苏店)",
+            "星巴克(南京西路店)",   //和上一条共用"星巴克("片段
+            "上海市黄浦区 浙江南路78号",
+            "上海市长宁区  江苏路 ",   //连续和末尾的空白
+            "麦当劳（人民广场店）",   //全角括号
+            "一茶一坐，新天地、淮海路。",
+            "，、。",   //只有标点, 没有词元
+            "",
+            "U.S.A 1,000 hello world",   //英文的. , 不是切分字符
+            "Starbucks Coffee(Jiangsu Rd)",
+            "上海市浦东新区张江高科技园区碧波路690号张江微电子港一楼大厅",   //超过maxChars, 不缓存
+            "星巴克(江苏店)");
+
+    @Test
+    public void standard() throws IOException {
+        assertSameTokens(new StandardAnalyzer(), CachingAnalyzer.DEFAULT_BREAKS);
+    }
+
+    @Test
+    public void cjk() throws IOException {
+        assertSameTokens(new CJKAnalyzer(), CachingAnalyzer.DEFAULT_BREAKS);
+    }
+
+    @Test
+    public void smartChinese() throws IOException {
+        assertSameTokens(new SmartChineseAnalyzer(), CachingAnalyzer.DEFAULT_BREAKS);
+    }
+
+    @Test
+    public void advIKSmart() throws IOException {
+        assertSameTokens(new AdvIKAnalyzer(true), CachingAnalyzer.DEFAULT_BREAKS);
+    }
+
+    @Test
+    public void advIKFine() throws IOException {
+        assertSameTokens(new AdvIKAnalyzer(false), CachingAnalyzer.DEFAULT_BREAKS);
+    }
+
+    @Test
+    public void whitespace() throws IOException {
+        assertSameTokens(new WhitespaceAnalyzer(), CachingAnalyzer.WHITESPACE_BREAKS);
+    }
+
+    @Test
+    public void evictionKeepsResultsCorrect() throws IOException {
+        try (Analyzer delegate = new StandardAnalyzer();
+             CachingAnalyzer cached = new CachingAnalyzer(delegate, 1024, 32, CachingAnalyzer.DEFAULT_BREAKS, null)) {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 200; i++) {
+                    String text = "连锁店" + i + "(分店" + (i % 7) + ") 地址" + (i % 13);
+                    assertEquals(text, tokens(delegate, "name", text), tokens(cached, "name", text));
+                }
+            }
+            assertTrue(cached.ramBytesUsed() <= 1024);
+        }
+    }
+
+    @Test
+    public void generationChangeDropsCachedTokens() throws IOException {
+        Object[] generation = {new Object()};
+        try (Analyzer delegate = new StandardAnalyzer();
+             CachingAnalyzer cached = new CachingAnalyzer(delegate, 1 << 20, 32, CachingAnalyzer.DEFAULT_BREAKS,
+                     () -> generation[0])) {
+            String text = "星巴克(江苏店)";
+            tokens(cached, "name", text);
+            tokens(cached, "name", text);
+            long hits = cached.getHitCount();
+            generation[0] = new Object();
+            assertEquals(tokens(delegate, "name", text), tokens(cached, "name", text));
+            assertEquals(hits, cached.getHitCount());   //新版本下第一次出现, 不命中旧的结果
+        }
+    }
+
+    private static void assertSameTokens(Analyzer delegate, IntPredicate breaks) throws IOException {
+        try (Analyzer d = delegate;
+             CachingAnalyzer cached = new CachingAnalyzer(d, 1 << 20, 32, breaks, null)) {
+            for (int round = 0; round < 3; round++) {
+                for (String field : new String[]{"name", "addr"}) {
+                    for (String text : INPUTS) {
+                        assertEquals(field + ": " + text, tokens(d, field, text), tokens(cached, field, text));
+                    }
+                }
+            }
+            assertTrue("片段重复出现后应从缓存回放", cached.getHitCount() > 0);
+        }
+    }
+
+    /**
+     * 分析结果: 每个词元一行, 最后一行是end()之后的结束偏移和位置增量
+     */
+    private static List<String> tokens(Analyzer analyzer, String field, String text) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (TokenStream ts = analyzer.tokenStream(field, text)) {
+            CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+            OffsetAttribute offset = ts.addAttribute(OffsetAttribute.class);
+            TypeAttribute type = ts.addAttribute(TypeAttribute.class);
+            PositionIncrementAttribute posInc = ts.addAttribute(PositionIncrementAttribute.class);
+            ts.reset();
+            while (ts.incrementToken()) {
+                result.add(String.format("%s[%d,%d) %s +%d", term, offset.startOffset(), offset.endOffset(),
+                        type.type(), posInc.getPositionIncrement()));
+            }
+            ts.end();
+            result.add(String.format("end %d +%d", offset.endOffset(), posInc.getPositionIncrement()));
+        }
+        return result;
+    }
+}
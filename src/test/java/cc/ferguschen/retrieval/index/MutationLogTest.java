@@ -0,0 +1,229 @@
+package cc.ferguschen.retrieval.index;
+
+import cc.ferguschen.retrieval.search.AddressQueryBuilder;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Created by chenqining on 2018/8/8.
+ * MutationLog的崩溃恢复: 追加后不checkpoint就"崩溃"(writer rollback, 丢弃未commit的修改), 重新打开时从日志重放.
+ */
+public class MutationLogTest {
+    private Path base;
+    private Path logDir;
+    private Directory dir;
+
+    @Before
+    public void setUp() throws IOException {
+        base = Files.createTempDirectory("mutation-log-test");
+        logDir = base.resolve("mutations");
+        dir = FSDirectory.open(base.resolve("index"));
+        try (IndexWriter iwriter = new IndexWriter(dir, config(IndexWriterConfig.OpenMode.CREATE))) {
+            iwriter.addDocument(ShopSchema.createDocument(shop("1", "旧店名")));
+            iwriter.addDocument(ShopSchema.createDocument(shop("3", "要删除的店")));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dir.close();
+        IOUtils.rm(base);
+    }
+
+    @Test
+    public void replayAfterCrashIsIdempotent() throws IOException {
+        IndexWriter iwriter = openWriter();
+        MutationLog log = open(iwriter);
+        assertEquals(0, log.getReplayedOps());
+        log.upsert(shop("1", "新店名"));
+        log.upsert(shop("2", "新增的店"));
+        log.delete("3");
+        log.upsert(shop("4", "第一次"));
+        log.upsert(shop("4", "第二次"));   //同一id合并, 以最后一次为准
+        log.sync();
+        log.apply();   //已写入writer, 但没有commit
+        crash(iwriter);
+        appendTornLine();
+
+        //第一次重放, 应用后再次崩溃
+        iwriter = openWriter();
+        log = open(iwriter);
+        assertEquals(5, log.getReplayedOps());
+        assertEquals(4, log.getPendingOps());
+        log.apply();
+        crash(iwriter);
+        assertIndex(0);   //两次崩溃都没有commit, 索引保持原样
+        assertEquals("旧店名", nameOf("1"));
+
+        //第二次重放同样的修改, checkpoint后结果和只应用一次相同
+        iwriter = openWriter();
+        log = open(iwriter);
+        assertEquals(5, log.getReplayedOps());
+        log.checkpoint();
+        assertEquals(5, log.getCommittedSeq());
+        assertEquals(0, logFiles().size());   //修改已全部commit, 日志文件被删除
+        log.close();
+        iwriter.close();
+        assertIndex(1);
+
+        //再次打开, 没有需要重放的修改, 新的序列号接着已commit的
+        iwriter = openWriter();
+        log = open(iwriter);
+        assertEquals(0, log.getReplayedOps());
+        assertEquals(6, log.delete("2"));
+        log.close();
+        iwriter.close();
+        assertEquals(0, count("2"));
+    }
+
+    @Test
+    public void tornFirstLineIsDropped() throws IOException {
+        Files.createDirectories(logDir);
+        Path file = logDir.resolve(String.format("mutations-%020d.log", 1));
+        Files.write(file, "1\tD\t".getBytes(StandardCharsets.UTF_8));   //崩溃时只写了半行, 不能当作删除id为空的文档
+        IndexWriter iwriter = openWriter();
+        MutationLog log = open(iwriter);
+        assertEquals(0, log.getReplayedOps());
+        assertEquals(0, logFiles().size());   //没有完整记录的文件直接删除
+        log.close();
+        iwriter.close();
+        assertEquals(1, count("3"));
+    }
+
+    @Test
+    public void upsertsCarryAddressGrams() throws IOException {
+        IndexWriter iwriter = new IndexWriter(dir, config(IndexWriterConfig.OpenMode.APPEND, true));
+        MutationLog log = new MutationLog(logDir, iwriter, 1000, 0, true);
+        log.upsert(shop("6", "重放的店"));
+        log.sync();
+        crash(iwriter);
+
+        //重放的修改和新追加的修改都应带地址子串域
+        iwriter = new IndexWriter(dir, config(IndexWriterConfig.OpenMode.APPEND, true));
+        log = new MutationLog(logDir, iwriter, 1000, 0, true);
+        assertEquals(1, log.getReplayedOps());
+        log.upsert(shop("7", "新追加的店"));
+        log.close();
+        iwriter.close();
+        assertEquals(1, count(AddressQueryBuilder.build("学业路6")));
+        assertEquals(1, count(AddressQueryBuilder.build("学业路7")));
+        assertEquals(0, count(AddressQueryBuilder.build("学业路1")));   //建索引时没有地址子串域的旧文档
+    }
+
+    /**
+     * 各id的文档数和店名
+     * @param applied 修改是否已commit
+     */
+    private void assertIndex(int applied) throws IOException {
+        assertEquals(1, count("1"));
+        assertEquals(applied, count("2"));
+        assertEquals(1 - applied, count("3"));
+        assertEquals(applied, count("4"));
+        assertEquals(0, count("5"));   //不完整的最后一行被忽略
+        if (applied == 1) {
+            assertEquals("新店名", nameOf("1"));
+            assertEquals("第二次", nameOf("4"));
+        } else {
+            assertNull(nameOf("4"));
+        }
+    }
+
+    private static JSONObject shop(String id, String name) {
+        JSONObject shop = new JSONObject();
+        shop.put("id", id);
+        shop.put("name", name);
+        shop.put("address", "上海市浦东新区学业路" + id + "号");
+        return shop;
+    }
+
+    private static IndexWriterConfig config(IndexWriterConfig.OpenMode mode) {
+        return config(mode, false);
+    }
+
+    private static IndexWriterConfig config(IndexWriterConfig.OpenMode mode, boolean addressGrams) {
+        StandardAnalyzer analyzer = new StandardAnalyzer();
+        IndexWriterConfig config = new IndexWriterConfig(addressGrams ? ShopSchema.withAddressGrams(analyzer) : analyzer);
+        config.setOpenMode(mode);
+        config.setIndexSort(ShopSchema.INDEX_SORT);
+        return config;
+    }
+
+    private IndexWriter openWriter() throws IOException {
+        return new IndexWriter(dir, config(IndexWriterConfig.OpenMode.APPEND));
+    }
+
+    private MutationLog open(IndexWriter iwriter) throws IOException {
+        return new MutationLog(logDir, iwriter, 1000, 0);   //不在后台应用, 由测试控制
+    }
+
+    /**
+     * 进程崩溃: 未commit的修改丢失, 日志不checkpoint
+     */
+    private static void crash(IndexWriter iwriter) throws IOException {
+        iwriter.rollback();
+    }
+
+    /**
+     * 在最后一个日志文件末尾写入不完整的一行, 像追加到一半时崩溃
+     */
+    private void appendTornLine() throws IOException {
+        List<Path> files = logFiles();
+        Path last = files.get(files.size() - 1);
+        Files.write(last, "99\tU\t{\"id\":\"5\",\"na".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    private List<Path> logFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDir, "mutations-*.log")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    private int count(String id) throws IOException {
+        return count(new TermQuery(new Term(ShopSchema.ID, id)));
+    }
+
+    private int count(Query query) throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            return new IndexSearcher(reader).count(query);
+        }
+    }
+
+    private String nameOf(String id) throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            ScoreDoc[] hits = searcher.search(new TermQuery(new Term(ShopSchema.ID, id)), 1).scoreDocs;
+            return hits.length == 0 ? null : searcher.doc(hits[0].doc).get(ShopSchema.NAME);
+        }
+    }
+}
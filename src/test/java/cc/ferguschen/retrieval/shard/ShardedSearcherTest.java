@@ -0,0 +1,135 @@
+package cc.ferguschen.retrieval.shard;
+
+import cc.ferguschen.retrieval.index.BulkIndexer;
+import cc.ferguschen.retrieval.index.ShopSchema;
+import cc.ferguschen.retrieval.search.KeywordQueryBuilder;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by chenqining on 2018/8/6.
+ * 同样的文档建成1个分片和4个分片, 分片检索用全局的词频统计打分, 合并后的top-K应和单个索引的完全相同(id和得分).
+ */
+public class ShardedSearcherTest {
+    private static final String[] WORDS = {"星巴克", "咖啡", "南京西路", "江苏", "面馆", "烤肉", "上海", "人民广场", "便利店", "书店"};
+
+    private Path base;
+    private StandardAnalyzer analyzer;
+    private ShardedSearcher single;
+    private ShardedSearcher sharded;
+
+    @Before
+    public void setUp() throws IOException {
+        base = Files.createTempDirectory("sharded-searcher-test");
+        analyzer = new StandardAnalyzer();
+        Random random = new Random(42);
+        try (ShardedIndexWriter one = new ShardedIndexWriter(base.resolve("one"), new HashShardRouter(1), analyzer, new BulkIndexer());
+             ShardedIndexWriter four = new ShardedIndexWriter(base.resolve("four"), new HashShardRouter(4), analyzer, new BulkIndexer())) {
+            for (int i = 0; i < 500; i++) {
+                StringBuilder name = new StringBuilder();
+                int words = 1 + random.nextInt(4);
+                for (int w = 0; w < words; w++) {
+                    name.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                name.append(i);   //店名长度不同, 得分不全相同
+                JSONObject shop = new JSONObject();
+                shop.put("id", String.valueOf(i));
+                shop.put("name", name.toString());
+                shop.put("address", "上海市" + WORDS[random.nextInt(WORDS.length)] + "路" + i + "号");
+                one.add(shop);
+                four.add(shop);
+            }
+        }
+        single = new ShardedSearcher(base.resolve("one"), 1, ShopSchema.SIMILARITY, 1);
+        sharded = new ShardedSearcher(base.resolve("four"), 4, ShopSchema.SIMILARITY, 4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IOUtils.close(single, sharded, analyzer);
+        IOUtils.rm(base);
+    }
+
+    @Test
+    public void allHitsMatchSingleIndex() throws IOException {
+        KeywordQueryBuilder builder = new KeywordQueryBuilder(analyzer, ShopSchema.NAME);
+        for (String keyword : new String[]{"星巴克", "咖啡 面馆", "南京西路星巴克", "人民广场便利店"}) {
+            assertSameHits(keyword, builder.build(keyword), 1000);
+        }
+    }
+
+    @Test
+    public void multiFieldTopKMatchesSingleIndex() throws IOException {
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        query.add(new KeywordQueryBuilder(analyzer, ShopSchema.NAME).build("江苏烤肉"), BooleanClause.Occur.SHOULD);
+        query.add(new KeywordQueryBuilder(analyzer, ShopSchema.ADDR).build("江苏路"), BooleanClause.Occur.SHOULD);
+        assertSameHits("江苏", query.build(), 1000);
+
+        //只取top10: 得分序列相同; 严格高于第10名得分的各个得分上id集合相同.
+        //同分的文档按分片号和文档号排列, 顺序在两边可能不同; 和第10名同分的文档两边可能取到不同的几个
+        ShardedSearcher.ShardedHits expected = single.search(query.build(), 10, ShopSchema.ID);
+        ShardedSearcher.ShardedHits actual = sharded.search(query.build(), 10, ShopSchema.ID);
+        assertEquals(expected.totalHits, actual.totalHits);
+        assertEquals(10, actual.hits.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(expected.hits.get(i).score, actual.hits.get(i).score, 0f);
+        }
+        float last = expected.hits.get(9).score;
+        assertEquals(idsByScore(expected, last), idsByScore(actual, last));
+    }
+
+    /**
+     * 得分高于minScore的命中, 按得分分组的id
+     */
+    private static Map<Float, Set<String>> idsByScore(ShardedSearcher.ShardedHits hits, float minScore) {
+        Map<Float, Set<String>> result = new HashMap<>();
+        for (ShardedSearcher.ShardHit hit : hits.hits) {
+            if (hit.score > minScore) {
+                result.computeIfAbsent(hit.score, k -> new HashSet<>()).add(hit.get(ShopSchema.ID));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * topK不小于命中数时, 两边返回同样的文档, 每个id的得分完全相同, 并且按得分降序
+     */
+    private void assertSameHits(String message, Query query, int topK) throws IOException {
+        ShardedSearcher.ShardedHits expected = single.search(query, topK, ShopSchema.ID);
+        ShardedSearcher.ShardedHits actual = sharded.search(query, topK, ShopSchema.ID);
+        assertTrue(message, expected.totalHits > 1);
+        assertEquals(message, expected.totalHits, actual.totalHits);
+        assertEquals(message, expected.hits.size(), actual.hits.size());
+        Map<String, Float> expectedScores = new HashMap<>();
+        for (ShardedSearcher.ShardHit hit : expected.hits) {
+            expectedScores.put(hit.get(ShopSchema.ID), hit.score);
+        }
+        for (int i = 0; i < actual.hits.size(); i++) {
+            ShardedSearcher.ShardHit hit = actual.hits.get(i);
+            Float score = expectedScores.get(hit.get(ShopSchema.ID));
+            assertNotNull(message + " " + hit, score);
+            assertEquals(message + " " + hit, score, hit.score, 0f);
+            assertEquals(message, expected.hits.get(i).score, hit.score, 0f);
+        }
+    }
+}